@@ -7,8 +7,6 @@ import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.common.MergeOp;
-import org.esa.snap.core.util.ProductUtils;
 
 /**
  * Merges Idepix and EraInterim intermediate products in Water_Vapour_cci TCWV chain.
@@ -43,31 +41,10 @@ public class MergeIdepixEraInterimOp extends Operator {
     public void initialize() throws OperatorException {
 
         validateIdepixProduct();
-        ProductUtils.copyGeoCoding(idepixProduct, eraInterimProduct);
-        ProductUtils.copyGeoCoding(idepixProduct, eraInterimProduct);
 
-        final MergeOp mergeOp = new MergeOp();
-        mergeOp.setSourceProducts(eraInterimProduct);
-        mergeOp.setSourceProduct("masterProduct", idepixProduct);
-
-        final MergeOp.NodeDescriptor inclIdepixDescriptor = new MergeOp.NodeDescriptor();
-        inclIdepixDescriptor.setNamePattern(".*");
-        inclIdepixDescriptor.setProductId("masterProduct");
-
-        final MergeOp.NodeDescriptor[] includeDescriptor =
-                new MergeOp.NodeDescriptor[eraInterimBandsToCopy.length+1];
-        includeDescriptor[0] = new MergeOp.NodeDescriptor();
-        includeDescriptor[0].setProductId("masterProduct");
-        includeDescriptor[0].setNamePattern(".*");
-        for (int i = 1; i < includeDescriptor.length; i++) {
-            includeDescriptor[i] = new MergeOp.NodeDescriptor();
-            includeDescriptor[i].setProductId("sourceProduct.1");
-            includeDescriptor[i].setNamePattern(eraInterimBandsToCopy[i-1]);
-        }
-        mergeOp.setParameterDefaultValues();
-        mergeOp.setParameter("includes", includeDescriptor);
-
-        setTargetProduct(mergeOp.getTargetProduct());
+        // all IdePix bands and the selected ERA bands, by reference (see ReferenceMerge):
+        setTargetProduct(ReferenceMerge.merge(idepixProduct, new String[]{".*"},
+                                              eraInterimProduct, eraInterimBandsToCopy));
     }
 
     private void validateIdepixProduct() {
@@ -7,10 +7,10 @@ import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.common.MergeOp;
-import org.esa.snap.core.util.ProductUtils;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
 
+import java.util.regex.Pattern;
+
 /**
  * Merges MODIS L1b (5 bands of MOD021KM) and EraInterim intermediate products in Water_Vapour_cci TCWV chain.
  *
@@ -57,33 +57,14 @@ public class MergeModisL1bEraInterimOp extends Operator {
         if (validateL1b) {
             validateL1bProduct();
         }
-        ProductUtils.copyGeoCoding(l1bProduct, eraInterimProduct);
-        ProductUtils.copyGeoCoding(l1bProduct, eraInterimProduct);
-
-        final MergeOp mergeOp = new MergeOp();
-        mergeOp.setSourceProducts(eraInterimProduct);
-        mergeOp.setSourceProduct("masterProduct", l1bProduct);
-
         final String[] reflBandNames = Sensor.MODIS_TERRA.getReflBandNames();
-        final int numReflBands = reflBandNames.length;
-        final MergeOp.NodeDescriptor[] includeDescriptor =
-                new MergeOp.NodeDescriptor[numReflBands + eraInterimBandsToCopy.length];
-
-        for (int i=0; i<numReflBands; i++) {
-            includeDescriptor[i] = new MergeOp.NodeDescriptor();
-            includeDescriptor[i].setProductId("masterProduct");
-            includeDescriptor[i].setName(reflBandNames[i]);
+        final String[] reflBandNamePatterns = new String[reflBandNames.length];
+        for (int i = 0; i < reflBandNames.length; i++) {
+            reflBandNamePatterns[i] = Pattern.quote(reflBandNames[i]);
         }
-
-        for (int i = numReflBands; i < includeDescriptor.length; i++) {
-            includeDescriptor[i] = new MergeOp.NodeDescriptor();
-            includeDescriptor[i].setProductId("sourceProduct.1");
-            includeDescriptor[i].setNamePattern(eraInterimBandsToCopy[i-numReflBands]);
-        }
-        mergeOp.setParameterDefaultValues();
-        mergeOp.setParameter("includes", includeDescriptor);
-
-        setTargetProduct(mergeOp.getTargetProduct());
+        // the required L1b bands and the selected ERA bands, by reference (see ReferenceMerge):
+        setTargetProduct(ReferenceMerge.merge(l1bProduct, reflBandNamePatterns,
+                                              eraInterimProduct, eraInterimBandsToCopy));
     }
 
     private void validateL1bProduct() {
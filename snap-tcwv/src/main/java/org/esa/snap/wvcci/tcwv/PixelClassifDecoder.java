@@ -0,0 +1,145 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.dataio.mod35.ModisMod35L2Constants;
+import org.esa.snap.wvcci.tcwv.util.TileRowReader;
+
+/**
+ * Decision table for the pixel classification flag word (IdePix or MOD35) in the TCWV retrieval.
+ * <p>
+ * All tests on the flag word (invalid, land, cloud for the selected {@link CloudFilterLevel}, coastline,
+ * sea ice) are evaluated once at operator initialisation for every combination of the flag bits they use, and
+ * stored as a small decision code per combination. Per pixel, the flag word is then masked and mapped through
+ * the table with one array lookup, instead of extracting up to a dozen single bits.
+ * <p>
+ * The decision code only covers what follows from the flag word. Validity of the reflectances, the SZA limit, the
+ * land assignment of coastline pixels by reflectance, and the sea ice test band are still tested per pixel.
+ *
+ * @author olafd
+ */
+class PixelClassifDecoder {
+
+    /**
+     * The flag word marks the pixel as invalid.
+     */
+    static final int INVALID = 1;
+    /**
+     * The flag word marks the pixel as land.
+     */
+    static final int LAND = 1 << 1;
+    /**
+     * The flag word marks the pixel as cloud, for the selected cloud filter level.
+     */
+    static final int CLOUD = 1 << 2;
+    /**
+     * The flag word marks the pixel as coastline.
+     */
+    static final int COASTLINE = 1 << 3;
+    /**
+     * The flag word marks the pixel as sea ice.
+     */
+    static final int SEA_ICE = 1 << 4;
+
+    private final byte[] decisions;
+    private final int mask;
+
+    private PixelClassifDecoder(byte[] decisions) {
+        this.decisions = decisions;
+        mask = decisions.length - 1;
+    }
+
+    /**
+     * Creates the decision table for the IdePix classification.
+     *
+     * @param cloudFilterLevel          - the cloud filter level
+     * @param cloudAmbiguousIsCloudSure - true if CLOUD_AMBIGUOUS does not exclude CLOUD_SURE (IdePix MODIS)
+     * @param seaIceFromIdepix          - true if sea ice is taken from the classification
+     * @return the decoder
+     */
+    static PixelClassifDecoder createIdepix(CloudFilterLevel cloudFilterLevel, boolean cloudAmbiguousIsCloudSure,
+                                            boolean seaIceFromIdepix) {
+        if (cloudFilterLevel == null) {
+            throw new IllegalArgumentException("No cloud filter level given.");
+        }
+        final byte[] decisions = new byte[1 << (TcwvConstants.IDEPIX_LAND_BIT + 1)];
+        for (int word = 0; word < decisions.length; word++) {
+            int decision = 0;
+            final boolean isLand = TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_LAND_BIT);
+            decision = set(decision, INVALID, TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_INVALID_BIT));
+            decision = set(decision, LAND, isLand);
+            decision = set(decision, CLOUD, isIdepixCloud(word, cloudFilterLevel, cloudAmbiguousIsCloudSure));
+            decision = set(decision, COASTLINE, TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_COASTLINE));
+            decision = set(decision, SEA_ICE, seaIceFromIdepix && !isLand &&
+                    TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_SNOW_ICE_BIT));
+            decisions[word] = (byte) decision;
+        }
+        return new PixelClassifDecoder(decisions);
+    }
+
+    /**
+     * Creates the decision table for the MOD35 classification. The cloud test does not depend on the cloud filter
+     * level, and MOD35 provides no invalid and sea ice decisions.
+     *
+     * @return the decoder
+     */
+    static PixelClassifDecoder createMod35() {
+        final byte[] decisions = new byte[1 << (ModisMod35L2Constants.LAND_BIT_INDEX + 1)];
+        for (int word = 0; word < decisions.length; word++) {
+            int decision = 0;
+            decision = set(decision, LAND, TileRowReader.isBitSet(word, ModisMod35L2Constants.SNOW_ICE_BIT_INDEX) ||
+                    TileRowReader.isBitSet(word, ModisMod35L2Constants.DESERT_BIT_INDEX) ||
+                    TileRowReader.isBitSet(word, ModisMod35L2Constants.LAND_BIT_INDEX));
+            // make this even more strict: regard as cloud and exclude everything which is not certainly clear and
+            // not snow (RP, 20190902)
+            decision = set(decision, CLOUD,
+                           !TileRowReader.isBitSet(word, ModisMod35L2Constants.CLEAR_CERTAIN_BIT_INDEX) &&
+                                   !TileRowReader.isBitSet(word, ModisMod35L2Constants.SNOW_ICE_BIT_INDEX));
+            decision = set(decision, COASTLINE, TileRowReader.isBitSet(word, ModisMod35L2Constants.COASTAL_BIT_INDEX));
+            decisions[word] = (byte) decision;
+        }
+        return new PixelClassifDecoder(decisions);
+    }
+
+    /**
+     * @param pixelClassif - the classification flag word
+     * @return the decision code, combination of {@link #INVALID}, {@link #LAND}, {@link #CLOUD}, {@link #COASTLINE}
+     * and {@link #SEA_ICE}
+     */
+    int decode(int pixelClassif) {
+        // bits above the highest tested bit do not matter
+        return decisions[pixelClassif & mask];
+    }
+
+    static boolean isSet(int decision, int code) {
+        return (decision & code) != 0;
+    }
+
+    private static int set(int decision, int code, boolean value) {
+        return value ? decision | code : decision;
+    }
+
+    private static boolean isIdepixCloud(int word, CloudFilterLevel cloudFilterLevel,
+                                         boolean cloudAmbiguousIsCloudSure) {
+        final boolean sure = TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_CLOUD_SURE_BIT);
+        final boolean ambiguous = TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT);
+        final boolean buffer = TileRowReader.isBitSet(word, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT);
+        switch (cloudFilterLevel) {
+            case NO_FILTER:
+                return false;
+            case CLOUD_SURE:
+                if (cloudAmbiguousIsCloudSure) {
+                    // for Idepix MODIS, CLOUD_SURE and CLOUD_AMBIGUOUS are actually the same
+                    return sure && !buffer;
+                } else {
+                    return sure && !ambiguous && !buffer;
+                }
+            case CLOUD_SURE_BUFFER:
+                return (sure || buffer) && !ambiguous;
+            case CLOUD_SURE_AMBIGUOUS:
+                return (sure || ambiguous) && !buffer;
+            case CLOUD_SURE_AMBIGUOUS_BUFFER:
+                return sure || ambiguous || buffer;
+            default:
+                return false;
+        }
+    }
+}
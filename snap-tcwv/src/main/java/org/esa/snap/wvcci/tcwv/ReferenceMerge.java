@@ -0,0 +1,80 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.util.ProductUtils;
+
+import java.util.regex.Pattern;
+
+/**
+ * Merge of a master product (IdePix, MODIS L1b) and the ERA-Interim intermediate product, which is already
+ * collocated onto the master grid, for the TCWV chain.
+ * <p>
+ * The selected bands are exposed by reference: each target band shares the source image of its source band, so
+ * no raster data is copied, and each source tile (e.g. of an ERA band) is computed once and shared by all its
+ * consumers via the tile cache. The source products are not modified.
+ *
+ * @author olafd
+ */
+class ReferenceMerge {
+
+    /**
+     * Provides the merged product. The product nodes (metadata, tie point grids, flag codings, geocoding, masks,
+     * start and stop time) are taken from the master product.
+     *
+     * @param masterProduct              - the master product
+     * @param masterBandNamePatterns     - regular expressions of the master bands to include
+     * @param eraInterimProduct          - the ERA-Interim product, on the master grid
+     * @param eraInterimBandNamePatterns - regular expressions of the ERA-Interim bands to include
+     * @return the merged product
+     */
+    static Product merge(Product masterProduct, String[] masterBandNamePatterns,
+                         Product eraInterimProduct, String[] eraInterimBandNamePatterns) {
+        if (masterProduct.getSceneRasterWidth() != eraInterimProduct.getSceneRasterWidth() ||
+                masterProduct.getSceneRasterHeight() != eraInterimProduct.getSceneRasterHeight()) {
+            throw new OperatorException("Product '" + eraInterimProduct.getName() + "' is not compatible to " +
+                                                "master product '" + masterProduct.getName() + "'.");
+        }
+        final Product mergedProduct = new Product(masterProduct.getName(), masterProduct.getProductType(),
+                                                  masterProduct.getSceneRasterWidth(),
+                                                  masterProduct.getSceneRasterHeight());
+        mergedProduct.setDescription(masterProduct.getDescription());
+        mergedProduct.setStartTime(masterProduct.getStartTime());
+        mergedProduct.setEndTime(masterProduct.getEndTime());
+        ProductUtils.copyMetadata(masterProduct, mergedProduct);
+        ProductUtils.copyTiePointGrids(masterProduct, mergedProduct);
+        ProductUtils.copyFlagCodings(masterProduct, mergedProduct);
+        ProductUtils.copyGeoCoding(masterProduct, mergedProduct);
+
+        copyBandsByReference(masterProduct, masterBandNamePatterns, mergedProduct);
+        copyBandsByReference(eraInterimProduct, eraInterimBandNamePatterns, mergedProduct);
+        // masks after the bands, as their expressions refer to them:
+        ProductUtils.copyMasks(masterProduct, mergedProduct);
+
+        return mergedProduct;
+    }
+
+    private static void copyBandsByReference(Product sourceProduct, String[] bandNamePatterns,
+                                             Product targetProduct) {
+        final Pattern[] patterns = new Pattern[bandNamePatterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = Pattern.compile(bandNamePatterns[i]);
+        }
+        for (Band band : sourceProduct.getBands()) {
+            final String bandName = band.getName();
+            if (!targetProduct.containsRasterDataNode(bandName) && matches(patterns, bandName)) {
+                ProductUtils.copyBand(bandName, sourceProduct, targetProduct, true);
+            }
+        }
+    }
+
+    private static boolean matches(Pattern[] patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
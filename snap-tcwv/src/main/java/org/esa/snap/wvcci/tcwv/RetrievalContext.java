@@ -0,0 +1,134 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.oe.DiagonalCovariance;
+import org.esa.snap.wvcci.tcwv.oe.OptimalEstimation;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Scratch state of the TCWV retrieval (see {@link TcwvAlgorithm}) for one thread and sensor: measurement,
+ * parameter, prior and state bound vectors, the measurement error covariances, and one reusable
+ * {@link OptimalEstimation} per surface type, which is re-armed per pixel instead of being constructed.
+ * With {@link org.esa.snap.wvcci.tcwv.oe.InversionMethod#OE_3X3}, a pixel inversion then needs no allocations at
+ * all in the steady state (see {@link OptimalEstimation#createReusable(int)}).
+ * <p>
+ * Instances are NOT thread safe. Use the instance of the current thread (see {@link #get(Sensor)}), i.e. one per
+ * GPF worker thread, and do not keep arrays or OE results of it beyond the pixel they were computed for.
+ *
+ * @author olafd
+ */
+class RetrievalContext {
+
+    private static final ThreadLocal<Map<Sensor, RetrievalContext>> CONTEXTS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Sensor.class));
+
+    private final double[] mesLand;
+    private final double[] mesOcean;
+    private final double[] parLand = new double[6];
+    private final double[] parOcean = new double[3];
+    private final double[] xaPrior = new double[3];
+    private final double[] xa = new double[3];
+    private final double[] firstGuess = new double[3];
+    private final double[] a = new double[3];
+    private final double[] b = new double[3];
+    private final DiagonalCovariance seLandDefault;
+    private final DiagonalCovariance seOceanDefault;
+    private final DiagonalCovariance seLand;
+    private final DiagonalCovariance seOcean;
+    private final OptimalEstimation oeLand;
+    private final OptimalEstimation oeOcean;
+
+    RetrievalContext(Sensor sensor) {
+        mesLand = new double[sensor.getLandWinBandNames().length + sensor.getLandAbsBandNames().length];
+        mesOcean = new double[sensor.getOceanWinBandNames().length + sensor.getOceanAbsBandNames().length];
+        seLandDefault = new DiagonalCovariance(sensor.getLandSe());
+        seOceanDefault = new DiagonalCovariance(sensor.getOceanSe());
+        seLand = new DiagonalCovariance(sensor.getLandSe());
+        seOcean = new DiagonalCovariance(sensor.getOceanSe());
+        oeLand = OptimalEstimation.createReusable(mesLand.length);
+        oeOcean = OptimalEstimation.createReusable(mesOcean.length);
+    }
+
+    /**
+     * Provides the context of the current thread for the given sensor.
+     *
+     * @param sensor - the sensor
+     * @return the context
+     */
+    static RetrievalContext get(Sensor sensor) {
+        return CONTEXTS.get().computeIfAbsent(sensor, RetrievalContext::new);
+    }
+
+    double[] getMesLand() {
+        return mesLand;
+    }
+
+    double[] getMesOcean() {
+        return mesOcean;
+    }
+
+    double[] getParLand() {
+        return parLand;
+    }
+
+    double[] getParOcean() {
+        return parOcean;
+    }
+
+    /**
+     * @return the prior state, as given (i.e. not clipped)
+     */
+    double[] getXaPrior() {
+        return xaPrior;
+    }
+
+    /**
+     * @return the prior state, clipped to the state bounds
+     */
+    double[] getXa() {
+        return xa;
+    }
+
+    double[] getFirstGuess() {
+        return firstGuess;
+    }
+
+    /**
+     * @return lower bound of state
+     */
+    double[] getA() {
+        return a;
+    }
+
+    /**
+     * @return upper bound of state
+     */
+    double[] getB() {
+        return b;
+    }
+
+    /**
+     * @return the land measurement error covariance, reset to the sensor default
+     */
+    DiagonalCovariance resetSeLand() {
+        seLand.set(seLandDefault);
+        return seLand;
+    }
+
+    /**
+     * @return the ocean measurement error covariance, reset to the sensor default
+     */
+    DiagonalCovariance resetSeOcean() {
+        seOcean.set(seOceanDefault);
+        return seOcean;
+    }
+
+    OptimalEstimation getOeLand() {
+        return oeLand;
+    }
+
+    OptimalEstimation getOeOcean() {
+        return oeOcean;
+    }
+}
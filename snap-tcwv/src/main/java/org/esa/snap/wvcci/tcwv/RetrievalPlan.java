@@ -0,0 +1,328 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.oe.ConstantCovariance;
+import org.esa.snap.wvcci.tcwv.oe.Covariance;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Immutable retrieval plan of a {@link Sensor}: all sensor dependent decisions and coefficients of the per-pixel
+ * processing (spectral normalisation, albedo priors, flag interpretation, rectification and O2 correction
+ * coefficients per absorption band, measurement and prior error covariance templates), resolved once per sensor.
+ * The per-pixel code then reads plain fields instead of testing the sensor for every pixel and band, and a new
+ * sensor only needs its decisions here, not in the inner loops.
+ * <p>
+ * The LUT functions are not part of the plan, as they depend on the auxdata, the LUT precision and the LUT
+ * pruning, see {@link TcwvLutRegistry}.
+ *
+ * @author olafd
+ */
+public class RetrievalPlan {
+
+    private static final Map<Sensor, RetrievalPlan> PLANS = new EnumMap<>(Sensor.class);
+
+    static {
+        for (Sensor sensor : Sensor.values()) {
+            PLANS.put(sensor, new RetrievalPlan(sensor));
+        }
+    }
+
+    private final Sensor sensor;
+    private final SpectralNormalisation spectralNormalisation;
+    private final boolean albedoPriorDividedByCsza;
+    private final boolean seaIceFromIdepix;
+    private final boolean idepixCloudAmbiguousIsCloudSure;
+    private final SurfacePlan land;
+    private final SurfacePlan ocean;
+
+    private RetrievalPlan(Sensor sensor) {
+        this.sensor = sensor;
+        final boolean isMeris = sensor == Sensor.MERIS;
+        final boolean isOlci = sensor == Sensor.OLCI || sensor == Sensor.OLCI_A || sensor == Sensor.OLCI_B;
+        final boolean isModis = sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA;
+
+        // clarification of correct normalisation of input reflectances (email RP, 20190903)
+        if (isModis) {
+            spectralNormalisation = SpectralNormalisation.REFLECTANCE;
+        } else if (isOlci) {
+            spectralNormalisation = SpectralNormalisation.REFLECTANCE_COS_SZA;
+        } else {
+            spectralNormalisation = SpectralNormalisation.RADIANCE_PER_FLUX;
+        }
+        // for MERIS, OLCI, set to rad * PI / csza = refl_input*flux (RP 20200316)
+        albedoPriorDividedByCsza = !isModis;
+        seaIceFromIdepix = !isModis;
+        // for Idepix MODIS, CLOUD_SURE and CLOUD_AMBIGUOUS are actually the same
+        idepixCloudAmbiguousIsCloudSure = isModis;
+
+        // run the rectification also for MODIS land !! (RP 20190410)
+        // for ocean it makes no difference as a,b are always 0,1
+        final boolean rectify = isMeris || isOlci || isModis;
+        final double[][] saLand = isMeris ? TcwvConstants.MERIS_SA_LAND : TcwvConstants.SA_LAND;
+        land = new SurfacePlan(sensor.getLandWinBandNames().length, sensor.getLandAbsBandNames().length,
+                               rectify, sensor.getLandRectCorr(), sensor.getCwvlRectCorr(),
+                               sensor.getLandSnr(), sensor.getLandInterpolError(),
+                               new ConstantCovariance(saLand),
+                               // RP March 2020: for coastline pixels, use the ocean prior error of TCWV
+                               new ConstantCovariance(copyWithElement(saLand, 0, 0, TcwvConstants.SA_OCEAN[0][0])),
+                               -1, Double.NaN);
+        final Covariance saOcean = new ConstantCovariance(isModis ?
+                copyWithElement(TcwvConstants.SA_OCEAN, 2, 2, TcwvConstants.SA_OCEAN_2_2_MODIS) :
+                TcwvConstants.SA_OCEAN);
+        ocean = new SurfacePlan(sensor.getOceanWinBandNames().length, sensor.getOceanAbsBandNames().length,
+                                rectify, sensor.getOceanRectCorr(), sensor.getCwvlRectCorr(),
+                                sensor.getOceanSnr(), sensor.getOceanInterpolError(), saOcean, saOcean,
+                                // switching off 17 over ocean (too much noise), see demo_modis_processor.py l.312
+                                isModis ? 1 : -1, 100.0);
+    }
+
+    /**
+     * Provides the plan of a sensor. The plans are created once, when this class is initialised.
+     *
+     * @param sensor - the sensor
+     * @return the plan
+     */
+    static RetrievalPlan get(Sensor sensor) {
+        return PLANS.get(sensor);
+    }
+
+    public Sensor getSensor() {
+        return sensor;
+    }
+
+    /**
+     * @return the normalisation of the spectral input bands to the reflectances used for TCWV
+     */
+    public SpectralNormalisation getSpectralNormalisation() {
+        return spectralNormalisation;
+    }
+
+    /**
+     * @return true if the spectral normalisation needs the flux bands (MERIS)
+     */
+    public boolean isFluxNormalised() {
+        return spectralNormalisation == SpectralNormalisation.RADIANCE_PER_FLUX;
+    }
+
+    /**
+     * @return true if the albedo priors are the normalised window reflectances * PI / cos(sza) (MERIS, OLCI),
+     * false if they are the normalised window reflectances * PI (MODIS)
+     */
+    public boolean isAlbedoPriorDividedByCsza() {
+        return albedoPriorDividedByCsza;
+    }
+
+    /**
+     * @return true if sea ice is taken from the IdePix classification (not for MODIS)
+     */
+    public boolean isSeaIceFromIdepix() {
+        return seaIceFromIdepix;
+    }
+
+    /**
+     * @return true if the IdePix CLOUD_AMBIGUOUS bit does not exclude a CLOUD_SURE pixel (IdePix MODIS)
+     */
+    public boolean isIdepixCloudAmbiguousIsCloudSure() {
+        return idepixCloudAmbiguousIsCloudSure;
+    }
+
+    public SurfacePlan getLand() {
+        return land;
+    }
+
+    public SurfacePlan getOcean() {
+        return ocean;
+    }
+
+    /**
+     * @param isLand - land/water flag
+     * @return the plan of the surface type
+     */
+    public SurfacePlan getSurface(boolean isLand) {
+        return isLand ? land : ocean;
+    }
+
+    private static double[][] copyWithElement(double[][] src, int i, int j, double value) {
+        double[][] dest = new double[src.length][];
+        for (int k = 0; k < src.length; k++) {
+            dest[k] = src[k].clone();
+        }
+        dest[i][j] = value;
+        return dest;
+    }
+
+    /**
+     * Normalisation of the spectral input bands to the reflectances used for TCWV (email RP, 20190903).
+     */
+    public enum SpectralNormalisation {
+        /**
+         * MODIS: refl_for_tcwv = refl_input / PI
+         */
+        REFLECTANCE {
+            @Override
+            public double normalise(double spectralValue, double csza, double spectralFlux) {
+                return spectralValue / Math.PI;
+            }
+        },
+        /**
+         * OLCI: refl_for_tcwv = refl_input * cos(sza) / PI, i.e. radiance / flux, because
+         * refl_input = radiance * PI / (flux * cos(sza)), see RsMathUtils.radianceToReflectance(...)
+         */
+        REFLECTANCE_COS_SZA {
+            @Override
+            public double normalise(double spectralValue, double csza, double spectralFlux) {
+                return spectralValue * csza / Math.PI;
+            }
+        },
+        /**
+         * MERIS 4RP: refl_for_tcwv = radiance / flux
+         */
+        RADIANCE_PER_FLUX {
+            @Override
+            public double normalise(double spectralValue, double csza, double spectralFlux) {
+                return spectralValue / spectralFlux;
+            }
+        };
+
+        /**
+         * @param spectralValue - the value of the spectral input band
+         * @param csza          - cos(sza)
+         * @param spectralFlux  - the flux of the band (used for {@link #RADIANCE_PER_FLUX} only)
+         * @return the reflectance used for TCWV
+         */
+        public abstract double normalise(double spectralValue, double csza, double spectralFlux);
+    }
+
+    /**
+     * The part of the plan for one surface type (land or ocean): band numbers, coefficients of the absorption
+     * measurements, and the error covariance templates.
+     */
+    public static class SurfacePlan {
+
+        private final int numWin;
+        private final int numAbs;
+        private final int secondWinIndex;
+        private final boolean rectify;
+        private final double[] rectCorrA;
+        private final double[] rectCorrB;
+        private final boolean interpolateReference;
+        private final double[] cwvlOffsets;
+        private final double dwvl;
+        private final double snr;
+        private final double winVariance;
+        private final double[] interpolError;
+        private final Covariance sa;
+        private final Covariance saCoastline;
+        private final int seOverrideIndex;
+        private final double seOverrideVariance;
+
+        SurfacePlan(int numWin, int numAbs, boolean rectify, double[][] rectCorr, double[] cwvl,
+                    double snr, double[] interpolError, Covariance sa, Covariance saCoastline,
+                    int seOverrideIndex, double seOverrideVariance) {
+            this.numWin = numWin;
+            this.numAbs = numAbs;
+            secondWinIndex = numWin > 1 ? 1 : 0;
+            this.rectify = rectify;
+            rectCorrA = new double[numAbs];
+            rectCorrB = new double[numAbs];
+            cwvlOffsets = new double[numAbs];
+            if (rectify) {
+                for (int i = 0; i < numAbs; i++) {
+                    rectCorrA[i] = rectCorr[i][0];
+                    rectCorrB[i] = rectCorr[i][1];
+                    if (numWin > 1) {
+                        cwvlOffsets[i] = cwvl[numWin + i] - cwvl[0];
+                    }
+                }
+                dwvl = numWin > 1 ? cwvl[1] - cwvl[0] : 0.0;
+            } else {
+                dwvl = 0.0;
+            }
+            interpolateReference = numWin > 1 && Math.abs(dwvl) > 1.E-5;
+            this.snr = snr;
+            winVariance = 1.0 / (snr * snr);
+            this.interpolError = interpolError.clone();
+            this.sa = sa;
+            this.saCoastline = saCoastline;
+            this.seOverrideIndex = seOverrideIndex;
+            this.seOverrideVariance = seOverrideVariance;
+        }
+
+        public int getNumWin() {
+            return numWin;
+        }
+
+        public int getNumAbs() {
+            return numAbs;
+        }
+
+        /**
+         * @return index of the second window band, or of the first if there is only one
+         */
+        public int getSecondWinIndex() {
+            return secondWinIndex;
+        }
+
+        /**
+         * Provides the absorption measurement of an absorption band: the rectified and O2 corrected band ratio
+         * for the sensors with rectification coefficients, the plain band ratio to the last window band otherwise.
+         *
+         * @param absBandIndex - index of the absorption band
+         * @param rhoWin0      - first window band
+         * @param rhoWin1      - second window band (or first, if there is only one)
+         * @param rhoWinLast   - last window band
+         * @param rhoAbs       - the absorption band
+         * @param samf         - sqrt(amf)
+         * @return the absorption measurement
+         */
+        public double getAbsMeasurement(int absBandIndex, double rhoWin0, double rhoWin1, double rhoWinLast,
+                                        double rhoAbs, double samf) {
+            if (!rectify) {
+                // this is equal to the output of the rectification in case of a,b = 0,1
+                return -1.0 * Math.log(rhoAbs / rhoWinLast) / samf;
+            }
+            final double ref = interpolateReference ?
+                    rhoWin0 + (rhoWin1 - rhoWin0) * cwvlOffsets[absBandIndex] / dwvl : rhoWin0;
+            return -(rectCorrA[absBandIndex] + rectCorrB[absBandIndex] * Math.log(rhoAbs / ref) / samf);
+        }
+
+        public double getSnr() {
+            return snr;
+        }
+
+        /**
+         * @return the measurement error variance of the window bands, 1 / snr^2
+         */
+        public double getWinVariance() {
+            return winVariance;
+        }
+
+        /**
+         * @param absBandIndex - index of the absorption band
+         * @return interpolation error of the absorption band
+         */
+        public double getInterpolError(int absBandIndex) {
+            return interpolError[absBandIndex];
+        }
+
+        /**
+         * @param isCoastline - coastline flag
+         * @return the prior error covariance
+         */
+        public Covariance getSa(boolean isCoastline) {
+            return isCoastline ? saCoastline : sa;
+        }
+
+        /**
+         * @return index of the measurement whose error variance is overridden, or -1 if none is
+         */
+        public int getSeOverrideIndex() {
+            return seOverrideIndex;
+        }
+
+        public double getSeOverrideVariance() {
+            return seOverrideVariance;
+        }
+    }
+}
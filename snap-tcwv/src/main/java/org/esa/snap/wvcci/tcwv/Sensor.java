@@ -372,4 +372,12 @@ public enum Sensor {
     public double[] getCwvlRectCorr() {
         return cwvlRectCorr;
     }
+
+    /**
+     * @return the immutable retrieval plan of the sensor, resolving all sensor dependent decisions of the
+     * per-pixel processing once (see {@link RetrievalPlan})
+     */
+    public RetrievalPlan getRetrievalPlan() {
+        return RetrievalPlan.get(this);
+    }
 }
@@ -4,13 +4,44 @@ import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
 import org.esa.snap.wvcci.tcwv.oe.*;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
 /**
  * Implementation of TCWV algorithm follwing SE Python breadboard (CAWA heritage)
+ * <p>
+ * Instances are thread safe and may be shared by all tile threads: the (diagonal) measurement error covariance
+ * is built per pixel from a copy of the sensor default, and the prior error covariances are constant, with
+ * their inverses computed once. All sensor dependent decisions are taken from the {@link RetrievalPlan} of the
+ * sensor, so the per-pixel code does not test the sensor. All per-pixel scratch state (vectors, covariances and the re-armed OE) is kept
+ * in the {@link RetrievalContext} of the current thread, so that a batch computation with
+ * {@link InversionMethod#OE_3X3} does not allocate per pixel.
  *
  * @author olafd
  */
 public class TcwvAlgorithm {
 
+    // only what is used for the TCWV result: cost and TCWV uncertainty
+    private static final Set<OEDiagnostic> DIAGNOSTICS =
+            Collections.unmodifiableSet(EnumSet.of(OEDiagnostic.COST, OEDiagnostic.UNCERTAINTY));
+
+    private final InversionMethod inversionMethod;
+
+    public TcwvAlgorithm() {
+        this(InversionMethod.OE);
+    }
+
+    /**
+     * @param inversionMethod - the OE inversion method: {@link InversionMethod#OE} (JAMA) or
+     *                        {@link InversionMethod#OE_3X3} (allocation-free fixed-size kernel), or one of the
+     *                        corresponding methods with Broyden Jacobian updates
+     *                        ({@link InversionMethod#OE_BROYDEN}, {@link InversionMethod#OE_3X3_BROYDEN})
+     */
+    public TcwvAlgorithm(InversionMethod inversionMethod) {
+        this.inversionMethod = inversionMethod;
+    }
+
     /**
      * Provides computation of final TCWV from given input
      *
@@ -60,144 +91,273 @@ public class TcwvAlgorithm {
                 computeTcwvOcean(sensor, input, oceanLut, tcwvFunctionOcean, jacobiFunctionOcean);
     }
 
-    private TcwvResult computeTcwvLand(Sensor sensor, TcwvAlgorithmInput input, TcwvLandLut landLut,
-                                       TcwvFunction tcwvFunction, JacobiFunction jacobiFunction, boolean isCoastline) {
+    /**
+     * Provides computation of final TCWV for a batch of pixels (e.g. a tile row) in struct-of-arrays form.
+     * Gives the same results as {@link #compute(Sensor, TcwvLandLut, TcwvOceanLut, TcwvFunction, TcwvFunction,
+     * JacobiFunction, JacobiFunction, TcwvAlgorithmInput, boolean, boolean)} for each pixel, but without
+     * per-pixel input and result objects. The measurement preparation runs as simple loops over the pixels
+     * per band, the OE inversion then per pixel. If warm start is enabled for the batch, the inversion of a pixel
+     * starts from a close neighbour solution, and is repeated from the prior if it does not converge to a cost
+     * of at most {@link TcwvConstants#TCWV_RETRIEVAL_COST_1}. The results then agree with the per-pixel
+     * computation within the OE convergence limit only.
+     *
+     * @param sensor              - the sensor (MERIS, MODIS, or OLCI)
+     * @param landLut             - lookup table for land pixels for given sensor
+     * @param oceanLut            - lookup table for ocean pixels for given sensor
+     * @param tcwvFunctionLand    - TCWB function object for land pixels
+     * @param tcwvFunctionOcean   - TCWB function object for ocean pixels
+     * @param jacobiFunctionLand  - Jacobi function object for land pixels
+     * @param jacobiFunctionOcean - Jacobi function object for ocean pixels
+     * @param batch               - the batch with filled inputs, receives the results
+     */
+    public void compute(Sensor sensor,
+                        TcwvLandLut landLut, TcwvOceanLut oceanLut,
+                        TcwvFunction tcwvFunctionLand, TcwvFunction tcwvFunctionOcean,
+                        JacobiFunction jacobiFunctionLand, JacobiFunction jacobiFunctionOcean,
+                        TcwvBatch batch) {
+        if (batch.getSensor() != sensor) {
+            throw new IllegalArgumentException("Batch was created for sensor " + batch.getSensor() +
+                                                       ", not for " + sensor + ".");
+        }
+        final int size = batch.getSize();
+        final boolean[] process = batch.getProcess();
+        final boolean[] land = batch.getLand();
+        final double[][] rhoToaWin = batch.getRhoToaWin();
+        final double[][] rhoToaAbs = batch.getRhoToaAbs();
+        final double[] amf = batch.getAmf();
+        final double[][] absMeasurements = batch.absMeasurements;
 
-        final double[] wvc = landLut.getWvc();
-        final double[] al0 = landLut.getAl0();
-        final double[] al1 = landLut.getAl1();
-        final double[] a = {wvc[0], al0[0], al1[0]}; // constant for all retrievals!
-        final double[] b = {wvc[wvc.length - 1], al0[al0.length - 1], al1[al1.length - 1]};
+        final RetrievalPlan plan = sensor.getRetrievalPlan();
+        final RetrievalPlan.SurfacePlan landPlan = plan.getLand();
+        final RetrievalPlan.SurfacePlan oceanPlan = plan.getOcean();
+        final int numWinLand = landPlan.getNumWin();
+        final int numAbsLand = landPlan.getNumAbs();
+        final int numWinOcean = oceanPlan.getNumWin();
+        final int numAbsOcean = oceanPlan.getNumAbs();
 
-        // see cawa_tcwv_land.py --> _do_inversion:
-        double[] mes = new double[input.getRhoToaWin().length + input.getRhoToaAbs().length];
-        for (int i = 0; i < input.getRhoToaWin().length; i++) {
-            mes[i] = input.getRhoToaWin()[i];
-        }
-        for (int i = 0; i < input.getRhoToaAbs().length; i++) {
-            if (sensor == Sensor.MERIS || sensor == Sensor.OLCI || sensor == Sensor.OLCI_A || sensor == Sensor.OLCI_B ||
-                    sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-                // run this also for MODIS land !! (RP 20190410)
-                // for ocean it makes no difference as a,b are always 0,1
-                mes[input.getRhoToaWin().length + i] = rectifyAndO2Correct(sensor, input.getRhoToaWin(),
-                        input.getRhoToaAbs(), i,
-                        Math.sqrt(input.getAmf()), true);
-            } else {
-                // this is equal to the output of rectifyAndO2Correct in case of a,b = 0,1
-                mes[input.getRhoToaWin().length + i] =
-                        -1.0 * Math.log(input.getRhoToaAbs()[i] / input.getRhoToaWin()[input.getRhoToaWin().length - 1]) /
-                                Math.sqrt(input.getAmf());
+        // measurement preparation, band by band over all pixels:
+        for (int i = 0; i < absMeasurements.length; i++) {
+            final double[] rhoAbs = rhoToaAbs[i];
+            final double[] mesAbs = absMeasurements[i];
+            for (int p = 0; p < size; p++) {
+                if (process[p]) {
+                    final RetrievalPlan.SurfacePlan surfacePlan = land[p] ? landPlan : oceanPlan;
+                    if (i < surfacePlan.getNumAbs()) {
+                        mesAbs[p] = surfacePlan.getAbsMeasurement(i, rhoToaWin[0][p],
+                                                                  rhoToaWin[surfacePlan.getSecondWinIndex()][p],
+                                                                  rhoToaWin[surfacePlan.getNumWin() - 1][p],
+                                                                  rhoAbs[p], Math.sqrt(amf[p]));
+                    }
+                }
             }
-
         }
 
-        double[] par = new double[6];
-        par[0] = input.getPriorAot();
-        par[1] = -Math.log(input.getPriorMslPress());
-        par[2] = input.getPriorT2m();
-        par[3] = input.getRelAzi();
-        par[4] = input.getVza();
-        par[5] = input.getSza();
+        // OE inversion per pixel, with the scratch state of the current thread:
+        final RetrievalContext context = RetrievalContext.get(sensor);
+        final double[] mesLand = context.getMesLand();
+        final double[] mesOcean = context.getMesOcean();
+        final double[] parLand = context.getParLand();
+        final double[] parOcean = context.getParOcean();
+        final double[] xaPrior = context.getXaPrior();
+        final double[] firstGuess = context.getFirstGuess();
+        final boolean warmStart = batch.isWarmStart();
+        for (int p = 0; p < size; p++) {
+            if (!process[p]) {
+                setBatchResult(batch, p, null);
+                batch.invalidateSolution(p);
+                continue;
+            }
+            final boolean isLand = land[p];
+            final double[] mes;
+            if (isLand) {
+                mes = mesLand;
+                fillMeasurement(mesLand, numWinLand, numAbsLand, rhoToaWin, absMeasurements, p);
+                fillLandParameters(parLand, batch.getPriorAot()[p], batch.getPriorMslPress()[p],
+                                   batch.getPriorT2m()[p], batch.getRelAzi()[p], batch.getVza()[p],
+                                   batch.getSza()[p]);
+                xaPrior[0] = Math.sqrt(batch.getPriorTcwv()[p]);
+                xaPrior[1] = batch.getPriorAl0()[p];
+                xaPrior[2] = batch.getPriorAl1()[p];
+            } else {
+                mes = mesOcean;
+                fillMeasurement(mesOcean, numWinOcean, numAbsOcean, rhoToaWin, absMeasurements, p);
+                fillOceanParameters(parOcean, batch.getRelAzi()[p], batch.getVza()[p], batch.getSza()[p]);
+                xaPrior[0] = Math.sqrt(batch.getPriorTcwv()[p]);
+                xaPrior[1] = batch.getPriorAot()[p];
+                xaPrior[2] = batch.getPriorWsp()[p];
+            }
 
-        double[] xa = new double[3];
-        xa[0] = Math.sqrt(input.getPriorTcwv());
-        xa[1] = input.getPriorAl0();
-        xa[2] = input.getPriorAl1();
-        // finally clip (see cowa_core.py, prepare_data):
-        xa = OptimalEstimationUtils.clip1D(a, b, xa);
+            final int neighbour = warmStart ? batch.findWarmStartSolution(p, isLand, mes) : -1;
+            OptimalEstimationResult result = null;
+            if (neighbour >= 0) {
+                batch.getSolution(neighbour, firstGuess);
+                result = invertBatchPixel(sensor, landLut, oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                                          jacobiFunctionLand, jacobiFunctionOcean, batch, p, context, firstGuess);
+                if (isAcceptedWarmStart(result)) {
+                    batch.addWarmStart(result.getIi(), false);
+                } else {
+                    // fall back to the prior as first guess, as without warm start
+                    final int warmIterations = result.getIi();
+                    result = invertBatchPixel(sensor, landLut, oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                                              jacobiFunctionLand, jacobiFunctionOcean, batch, p, context, null);
+                    batch.addWarmStart(warmIterations + result.getIi(), true);
+                }
+            } else {
+                result = invertBatchPixel(sensor, landLut, oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                                          jacobiFunctionLand, jacobiFunctionOcean, batch, p, context, null);
+                if (warmStart) {
+                    batch.addColdStart(result.getIi());
+                }
+            }
+            setBatchResult(batch, p, result);
 
-        double[][] se = sensor.getLandSe();
-        for (int i = 0; i < input.getRhoToaWin().length; i++) {
-            se[i][i] = 1.0 / (sensor.getLandSnr() * sensor.getLandSnr());
-        }
-        // introduce per-pixel uncertainty for abs bands as provided by RP Jan 2020:
-        for (int i = 0; i < input.getRhoToaAbs().length; i++) {
-            int j = input.getRhoToaWin().length + i;
-            se[j][j] = TcwvUtils.computePseudoAbsorptionMeasurementVariance(sensor.getLandSnr(),
-                    sensor.getLandInterpolError()[i],
-                    input.getAmf());
+            if (warmStart) {
+                if (result.isConvergence()) {
+                    batch.setSolution(p, isLand, mes, result.getXn());
+                } else {
+                    batch.invalidateSolution(p);
+                }
+            }
         }
+    }
 
-        double[][] sa = TcwvConstants.SA_LAND;
-        if (sensor == Sensor.MERIS) {
-            sa = TcwvConstants.MERIS_SA_LAND;
-        }
-        // RP March 2020:
-        if (isCoastline) {
-            sa[0][0] = TcwvConstants.SA_OCEAN[0][0];
+    private OptimalEstimationResult invertBatchPixel(Sensor sensor, TcwvLandLut landLut, TcwvOceanLut oceanLut,
+                                                     TcwvFunction tcwvFunctionLand, TcwvFunction tcwvFunctionOcean,
+                                                     JacobiFunction jacobiFunctionLand,
+                                                     JacobiFunction jacobiFunctionOcean,
+                                                     TcwvBatch batch, int p, RetrievalContext context,
+                                                     double[] firstGuess) {
+        if (batch.getLand()[p]) {
+            return invertLand(sensor.getRetrievalPlan().getLand(), landLut, tcwvFunctionLand, jacobiFunctionLand,
+                              context, firstGuess, batch.getAmf()[p], batch.getCoastline()[p]);
+        } else {
+            return invertOcean(sensor.getRetrievalPlan().getOcean(), oceanLut, tcwvFunctionOcean,
+                               jacobiFunctionOcean, context, firstGuess, batch.getAmf()[p]);
         }
+    }
+
+    // a warm started inversion is kept if it converged to a solution which would be flagged as good quality
+    private static boolean isAcceptedWarmStart(OptimalEstimationResult result) {
+        return result.isConvergence() && result.getDiagnoseResult() != null &&
+                result.getDiagnoseResult().getCost() <= TcwvConstants.TCWV_RETRIEVAL_COST_1;
+    }
+
+    private TcwvResult computeTcwvLand(Sensor sensor, TcwvAlgorithmInput input, TcwvLandLut landLut,
+                                       TcwvFunction tcwvFunction, JacobiFunction jacobiFunction, boolean isCoastline) {
 
-        OptimalEstimation oe = new OptimalEstimation(tcwvFunction, a, b, mes, par, jacobiFunction);
-//        OptimalEstimation oe = new OptimalEstimation(tcwvFunction, a, b, mes, par, null);  // test: compute NumericalJacobi!!!
+        // see cawa_tcwv_land.py --> _do_inversion:
+        final RetrievalContext context = RetrievalContext.get(sensor);
+        final RetrievalPlan.SurfacePlan surfacePlan = sensor.getRetrievalPlan().getLand();
+        final double[] mes = context.getMesLand();
+        fillMeasurement(mes, surfacePlan, input);
+
+        fillLandParameters(context.getParLand(), input.getPriorAot(), input.getPriorMslPress(), input.getPriorT2m(),
+                           input.getRelAzi(), input.getVza(), input.getSza());
+
+        double[] xa = context.getXaPrior();
+        xa[0] = Math.sqrt(input.getPriorTcwv());
+        xa[1] = input.getPriorAl0();
+        xa[2] = input.getPriorAl1();
 
-        return getTcwvResult(a, xa, se, sa, oe, sensor);
+        return getTcwvResult(invertLand(surfacePlan, landLut, tcwvFunction, jacobiFunction, context, null,
+                                        input.getAmf(), isCoastline));
     }
 
     private TcwvResult computeTcwvOcean(Sensor sensor, TcwvAlgorithmInput input, TcwvOceanLut oceanLut,
                                         TcwvFunction tcwvFunction, JacobiFunction jacobiFunction) {
 
-        final double[] wvc = oceanLut.getWvc();
-        final double[] aot = oceanLut.getAot();
-        final double[] wsp = oceanLut.getWsp();
-        final double[] a = {wvc[0], aot[0], wsp[0]}; // constant for all retrievals!
-        final double[] b = {wvc[wvc.length - 1], aot[aot.length - 1], wsp[wsp.length - 1]};
-
-        double[] mes = new double[input.getRhoToaWin().length + input.getRhoToaAbs().length];
-        for (int i = 0; i < input.getRhoToaWin().length; i++) {
-            mes[i] = input.getRhoToaWin()[i];
-        }
-        for (int i = 0; i < input.getRhoToaAbs().length; i++) {
-            if (sensor == Sensor.MERIS || sensor == Sensor.OLCI || sensor == Sensor.OLCI_A || sensor == Sensor.OLCI_B ||
-                    sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-//                if (sensor == Sensor.MERIS || sensor == Sensor.OLCI) {
-                mes[input.getRhoToaWin().length + i] = rectifyAndO2Correct(sensor, input.getRhoToaWin(),
-                        input.getRhoToaAbs(), i,
-                        Math.sqrt(input.getAmf()), false);
-            } else {
-                // this is equal to the output of rectifyAndO2Correct in case of a,b = 0,1. Therefore ok for MODIS.
-                // Python:
-                //            self.mes[len(self.wb) + ich] = -np.log(
-                //                    data['rtoa'][ch] /
-                //                            data['rtoa'][self.wb[-1]]) / np.sqrt(data['amf'])
-                mes[input.getRhoToaWin().length + i] =
-                        -1.0 * Math.log(input.getRhoToaAbs()[i] / input.getRhoToaWin()[input.getRhoToaWin().length - 1]) /
-                                Math.sqrt(input.getAmf());
-            }
-        }
+        final RetrievalContext context = RetrievalContext.get(sensor);
+        final RetrievalPlan.SurfacePlan surfacePlan = sensor.getRetrievalPlan().getOcean();
+        final double[] mes = context.getMesOcean();
+        fillMeasurement(mes, surfacePlan, input);
 
-        double[] par = new double[3];
-        par[0] = input.getRelAzi();
-        par[1] = input.getVza();
-        par[2] = input.getSza();
+        fillOceanParameters(context.getParOcean(), input.getRelAzi(), input.getVza(), input.getSza());
 
-        double[] xa = new double[3];
+        double[] xa = context.getXaPrior();
         xa[0] = Math.sqrt(input.getPriorTcwv());
         xa[1] = input.getPriorAot();
         xa[2] = input.getPriorWsp();
+
+        return getTcwvResult(invertOcean(surfacePlan, oceanLut, tcwvFunction, jacobiFunction, context, null,
+                                         input.getAmf()));
+    }
+
+    private OptimalEstimationResult invertLand(RetrievalPlan.SurfacePlan surfacePlan, TcwvLandLut landLut,
+                                               TcwvFunction tcwvFunction, JacobiFunction jacobiFunction,
+                                               RetrievalContext context, double[] firstGuess,
+                                               double amf, boolean isCoastline) {
+        final double[] wvc = landLut.getWvc();
+        final double[] al0 = landLut.getAl0();
+        final double[] al1 = landLut.getAl1();
+        final double[] a = context.getA();
+        final double[] b = context.getB();
+        setStateBounds(a, b, wvc, al0, al1); // constant for all retrievals!
+
         // finally clip (see cowa_core.py, prepare_data):
-        xa = OptimalEstimationUtils.clip1D(a, b, xa);
+        final double[] xa = context.getXa();
+        OptimalEstimationUtils.clip1D(a, b, context.getXaPrior(), xa);
 
-        final double[][] se = sensor.getOceanSe();
-        for (int i = 0; i < input.getRhoToaWin().length; i++) {
-            se[i][i] = 1.0 / (sensor.getOceanSnr() * sensor.getOceanSnr());
-        }
-        // introduce per-pixel uncertainty for abs bands as provided by RP Jan 2020:
-        for (int i = 0; i < input.getRhoToaAbs().length; i++) {
-            int j = input.getRhoToaWin().length + i;
-            se[j][j] = TcwvUtils.computePseudoAbsorptionMeasurementVariance(sensor.getOceanSnr(),
-                    sensor.getOceanInterpolError()[i],
-                    input.getAmf());
-        }
+        final DiagonalCovariance se = context.resetSeLand();
+        setMeasurementVariances(se, surfacePlan, amf);
+        final Covariance sa = surfacePlan.getSa(isCoastline);
 
-        final double[][] sa = TcwvConstants.SA_OCEAN;
-        if (sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-            sa[2][2] = TcwvConstants.SA_OCEAN_2_2_MODIS;   // differs from default
-            se[1][1] = 100.0; // switching off 17 over ocean (too much noise), see demo_modis_processor.py l.312
+        final OptimalEstimation oe = context.getOeLand();
+        oe.rearm(tcwvFunction, a, b, context.getMesLand(), context.getParLand(), jacobiFunction);
+//        oe.rearm(tcwvFunction, a, b, context.getMesLand(), context.getParLand(), null);  // test: compute NumericalJacobi!!!
+
+        // now includes uncertainty
+        try {
+            return oe.invert(inversionMethod, a, se, sa, xa, firstGuess, DIAGNOSTICS);
+        } finally {
+            // the reusable OE of this thread must not keep the LUTs alive
+            oe.disarm();
         }
+    }
+
+    private OptimalEstimationResult invertOcean(RetrievalPlan.SurfacePlan surfacePlan, TcwvOceanLut oceanLut,
+                                                TcwvFunction tcwvFunction, JacobiFunction jacobiFunction,
+                                                RetrievalContext context, double[] firstGuess, double amf) {
+        final double[] wvc = oceanLut.getWvc();
+        final double[] aot = oceanLut.getAot();
+        final double[] wsp = oceanLut.getWsp();
+        final double[] a = context.getA();
+        final double[] b = context.getB();
+        setStateBounds(a, b, wvc, aot, wsp); // constant for all retrievals!
+
+        // finally clip (see cowa_core.py, prepare_data):
+        final double[] xa = context.getXa();
+        OptimalEstimationUtils.clip1D(a, b, context.getXaPrior(), xa);
+
+        final DiagonalCovariance se = context.resetSeOcean();
+        setMeasurementVariances(se, surfacePlan, amf);
+        final Covariance sa = surfacePlan.getSa(false);
+
+        final OptimalEstimation oe = context.getOeOcean();
+        oe.rearm(tcwvFunction, a, b, context.getMesOcean(), context.getParOcean(), jacobiFunction);
 
-        OptimalEstimation oe = new OptimalEstimation(tcwvFunction, a, b, mes, par, jacobiFunction);
+        // now includes uncertainty
+        try {
+            return oe.invert(inversionMethod, a, se, sa, xa, firstGuess, DIAGNOSTICS);
+        } finally {
+            // the reusable OE of this thread must not keep the LUTs alive
+            oe.disarm();
+        }
+    }
 
-        return getTcwvResult(a, xa, se, sa, oe, sensor);
+    private static void setMeasurementVariances(DiagonalCovariance se, RetrievalPlan.SurfacePlan surfacePlan,
+                                                double amf) {
+        final int numWin = surfacePlan.getNumWin();
+        for (int i = 0; i < numWin; i++) {
+            se.setVariance(i, surfacePlan.getWinVariance());
+        }
+        // introduce per-pixel uncertainty for abs bands as provided by RP Jan 2020:
+        for (int i = 0; i < surfacePlan.getNumAbs(); i++) {
+            se.setVariance(numWin + i, TcwvUtils.computePseudoAbsorptionMeasurementVariance(
+                    surfacePlan.getSnr(), surfacePlan.getInterpolError(i), amf));
+        }
+        if (surfacePlan.getSeOverrideIndex() >= 0) {
+            se.setVariance(surfacePlan.getSeOverrideIndex(), surfacePlan.getSeOverrideVariance());
+        }
     }
 
     double rectifyAndO2Correct(Sensor sensor, double[] rhoWb, double[] rhoAb, int absBandIndex,
@@ -209,25 +369,82 @@ public class TcwvAlgorithm {
         final double b = rectCorr[absBandIndex][1];
         double[] cwvl = sensor.getCwvlRectCorr();       // first win bands, then abs bands
 
+        return rectifyAndO2Correct(a, b, cwvl, rhoWb.length, rhoWb[0], rhoWb.length > 1 ? rhoWb[1] : rhoWb[0],
+                                   rhoAb[absBandIndex], absBandIndex, samf);
+    }
+
+    private static double rectifyAndO2Correct(double a, double b, double[] cwvl, int numWin,
+                                              double rhoWin0, double rhoWin1, double rhoAbs,
+                                              int absBandIndex, double samf) {
         double ref;
-        if (rhoWb.length == 1) {
-            ref = rhoWb[0];
+        if (numWin == 1) {
+            ref = rhoWin0;
         } else {
             final double dwvl = cwvl[1] - cwvl[0];
-            final double drho = rhoWb[1] - rhoWb[0];
+            final double drho = rhoWin1 - rhoWin0;
             if (Math.abs(dwvl) > 1.E-5) {
-                ref = rhoWb[0] + drho * (cwvl[rhoWb.length + absBandIndex] - cwvl[0]) / dwvl;
+                ref = rhoWin0 + drho * (cwvl[numWin + absBandIndex] - cwvl[0]) / dwvl;
             } else {
-                ref = rhoWb[0];
+                ref = rhoWin0;
             }
         }
-        return -(a + b * Math.log(rhoAb[absBandIndex] / ref) / samf);
+        return -(a + b * Math.log(rhoAbs / ref) / samf);
     }
 
-    private TcwvResult getTcwvResult(double[] a, double[] xa, double[][] se, double[][] sa,
-                                     OptimalEstimation oe, Sensor sensor) {
-        // now includes uncertainty
-        OptimalEstimationResult result = oe.invert(InversionMethod.OE, a, se, sa, xa, OEOutputMode.FULL);
+    private static void fillLandParameters(double[] par, double priorAot, double priorMslPress, double priorT2m,
+                                           double relAzi, double vza, double sza) {
+        par[0] = priorAot;
+        par[1] = -Math.log(priorMslPress);
+        par[2] = priorT2m;
+        par[3] = relAzi;
+        par[4] = vza;
+        par[5] = sza;
+    }
+
+    private static void fillOceanParameters(double[] par, double relAzi, double vza, double sza) {
+        par[0] = relAzi;
+        par[1] = vza;
+        par[2] = sza;
+    }
+
+    private static void setStateBounds(double[] a, double[] b, double[] axis0, double[] axis1, double[] axis2) {
+        a[0] = axis0[0];
+        a[1] = axis1[0];
+        a[2] = axis2[0];
+        b[0] = axis0[axis0.length - 1];
+        b[1] = axis1[axis1.length - 1];
+        b[2] = axis2[axis2.length - 1];
+    }
+
+    private static void fillMeasurement(double[] mes, RetrievalPlan.SurfacePlan surfacePlan,
+                                        TcwvAlgorithmInput input) {
+        final double[] rhoToaWin = input.getRhoToaWin();
+        final double[] rhoToaAbs = input.getRhoToaAbs();
+        final int numWin = surfacePlan.getNumWin();
+        if (rhoToaWin.length != numWin || rhoToaAbs.length != surfacePlan.getNumAbs()) {
+            throw new IllegalArgumentException("Number of window and absorption bands must be " + numWin + " and " +
+                                                       surfacePlan.getNumAbs() + ", but is " + rhoToaWin.length +
+                                                       " and " + rhoToaAbs.length + ".");
+        }
+        System.arraycopy(rhoToaWin, 0, mes, 0, numWin);
+        final double samf = Math.sqrt(input.getAmf());
+        for (int i = 0; i < rhoToaAbs.length; i++) {
+            mes[numWin + i] = surfacePlan.getAbsMeasurement(i, rhoToaWin[0], rhoToaWin[surfacePlan.getSecondWinIndex()],
+                                                            rhoToaWin[numWin - 1], rhoToaAbs[i], samf);
+        }
+    }
+
+    private static void fillMeasurement(double[] mes, int numWin, int numAbs,
+                                        double[][] rhoToaWin, double[][] absMeasurements, int pixel) {
+        for (int i = 0; i < numWin; i++) {
+            mes[i] = rhoToaWin[i][pixel];
+        }
+        for (int i = 0; i < numAbs; i++) {
+            mes[numWin + i] = absMeasurements[i][pixel];
+        }
+    }
+
+    private static TcwvResult getTcwvResult(OptimalEstimationResult result) {
         final double resultTcwv = Math.pow(result.getXn()[0], 2.0);
         double resultTcwvUncertainty = 0.0;
         if (result.getSr() != null) {
@@ -239,4 +456,20 @@ public class TcwvAlgorithm {
         final double cost = result.getDiagnoseResult().getCost();
         return new TcwvResult(resultTcwv, resultTcwvUncertainty, cost, resultAot1, resultAot2);
     }
+
+    private static void setBatchResult(TcwvBatch batch, int pixel, OptimalEstimationResult result) {
+        if (result == null) {
+            batch.getTcwv()[pixel] = Double.NaN;
+            batch.getTcwvUncertainty()[pixel] = Double.NaN;
+            batch.getCost()[pixel] = Double.NaN;
+            batch.getStateVector1()[pixel] = Double.NaN;
+            batch.getStateVector2()[pixel] = Double.NaN;
+            return;
+        }
+        batch.getTcwv()[pixel] = Math.pow(result.getXn()[0], 2.0);
+        batch.getTcwvUncertainty()[pixel] = result.getSr() != null ? result.getSr()[0][0] : 0.0;
+        batch.getCost()[pixel] = result.getDiagnoseResult().getCost();
+        batch.getStateVector1()[pixel] = result.getXn()[1];
+        batch.getStateVector2()[pixel] = result.getXn()[2];
+    }
 }
@@ -0,0 +1,377 @@
+package org.esa.snap.wvcci.tcwv;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays container for the TCWV retrieval of a batch of pixels (e.g. a tile row), used by
+ * {@link TcwvAlgorithm#compute(Sensor, TcwvLandLut, TcwvOceanLut, TcwvFunction, TcwvFunction,
+ * org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction, org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction,
+ * TcwvBatch)}.
+ * <p>
+ * The caller fills the input arrays for the first {@link #getSize()} pixels and receives the results in the
+ * output arrays, without any per-pixel {@link TcwvAlgorithmInput} or {@link TcwvResult} objects.
+ * Reflectances are stored band-major, i.e. {@code rhoToaWin[band][pixel]}. A land pixel uses the first
+ * {@code sensor.getLandWinBandNames().length} window and {@code sensor.getLandAbsBandNames().length}
+ * absorption bands, an ocean pixel the corresponding ocean bands.
+ * Pixels with {@code process[pixel] == false} are skipped, their outputs are set to NaN.
+ * <p>
+ * Optionally, the OE inversion of a pixel can be warm started from the converged solution of its left or upper
+ * neighbour of the same surface type, if the measurements of both pixels are close (see
+ * {@link #setWarmStart(boolean)}). For this, the batch keeps the solutions of the last computed row, so
+ * consecutive rows of a tile must be computed with the same batch, and {@link #resetWarmStart()} must be called
+ * if the next row is not adjacent to the last computed one.
+ * <p>
+ * A batch is reusable for consecutive rows of the same sensor, but must not be shared between threads.
+ *
+ * @author olafd
+ */
+public class TcwvBatch {
+
+    /**
+     * Default max relative difference of each measurement of a pixel and its neighbour to use the
+     * neighbour solution as first guess.
+     */
+    public static final double DEFAULT_WARM_START_TOLERANCE = 0.05;
+
+    private final Sensor sensor;
+    private final int capacity;
+    private int size;
+
+    // inputs
+    private final double[][] rhoToaWin;
+    private final double[][] rhoToaAbs;
+    private final double[] sza;
+    private final double[] vza;
+    private final double[] relAzi;
+    private final double[] amf;
+    private final double[] priorAot;
+    private final double[] priorAl0;
+    private final double[] priorAl1;
+    private final double[] priorT2m;
+    private final double[] priorMslPress;
+    private final double[] priorWsp;
+    private final double[] priorTcwv;
+    private final boolean[] land;
+    private final boolean[] coastline;
+    private final boolean[] process;
+
+    // outputs
+    private final double[] tcwv;
+    private final double[] tcwvUncertainty;
+    private final double[] cost;
+    private final double[] stateVector1;
+    private final double[] stateVector2;
+
+    // scratch: absorption band measurements after rectification and O2 correction
+    final double[][] absMeasurements;
+
+    // warm start: converged solutions and their measurements, of the current row left of the current pixel,
+    // and of the previous row otherwise
+    private boolean warmStart;
+    private double warmStartTolerance = DEFAULT_WARM_START_TOLERANCE;
+    private final double[][] solution;
+    private final double[][] solutionMeasurement;
+    private final boolean[] solutionValid;
+    private final boolean[] solutionLand;
+
+    // warm start statistics
+    private int numColdStarts;
+    private long numColdIterations;
+    private int numWarmStarts;
+    private long numWarmIterations;
+    private int numWarmStartFallbacks;
+
+    /**
+     * @param sensor   - the sensor
+     * @param capacity - max number of pixels in the batch
+     */
+    public TcwvBatch(Sensor sensor, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity must be positive, but is " + capacity + ".");
+        }
+        this.sensor = sensor;
+        this.capacity = capacity;
+        this.size = capacity;
+
+        final int numWin = Math.max(sensor.getLandWinBandNames().length, sensor.getOceanWinBandNames().length);
+        final int numAbs = Math.max(sensor.getLandAbsBandNames().length, sensor.getOceanAbsBandNames().length);
+        rhoToaWin = new double[numWin][capacity];
+        rhoToaAbs = new double[numAbs][capacity];
+        absMeasurements = new double[numAbs][capacity];
+        sza = new double[capacity];
+        vza = new double[capacity];
+        relAzi = new double[capacity];
+        amf = new double[capacity];
+        priorAot = new double[capacity];
+        priorAl0 = new double[capacity];
+        priorAl1 = new double[capacity];
+        priorT2m = new double[capacity];
+        priorMslPress = new double[capacity];
+        priorWsp = new double[capacity];
+        priorTcwv = new double[capacity];
+        land = new boolean[capacity];
+        coastline = new boolean[capacity];
+        process = new boolean[capacity];
+        Arrays.fill(process, true);
+
+        tcwv = new double[capacity];
+        tcwvUncertainty = new double[capacity];
+        cost = new double[capacity];
+        stateVector1 = new double[capacity];
+        stateVector2 = new double[capacity];
+
+        final int maxNy = Math.max(sensor.getLandWinBandNames().length + sensor.getLandAbsBandNames().length,
+                                   sensor.getOceanWinBandNames().length + sensor.getOceanAbsBandNames().length);
+        solution = new double[3][capacity];
+        solutionMeasurement = new double[maxNy][capacity];
+        solutionValid = new boolean[capacity];
+        solutionLand = new boolean[capacity];
+    }
+
+    public Sensor getSensor() {
+        return sensor;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param size - number of pixels to process in the next computation, at most {@link #getCapacity()}
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > capacity) {
+            throw new IllegalArgumentException("Batch size must be in [0, " + capacity + "], but is " + size + ".");
+        }
+        this.size = size;
+    }
+
+    public double[][] getRhoToaWin() {
+        return rhoToaWin;
+    }
+
+    public double[][] getRhoToaAbs() {
+        return rhoToaAbs;
+    }
+
+    public double[] getSza() {
+        return sza;
+    }
+
+    public double[] getVza() {
+        return vza;
+    }
+
+    public double[] getRelAzi() {
+        return relAzi;
+    }
+
+    public double[] getAmf() {
+        return amf;
+    }
+
+    public double[] getPriorAot() {
+        return priorAot;
+    }
+
+    public double[] getPriorAl0() {
+        return priorAl0;
+    }
+
+    public double[] getPriorAl1() {
+        return priorAl1;
+    }
+
+    public double[] getPriorT2m() {
+        return priorT2m;
+    }
+
+    public double[] getPriorMslPress() {
+        return priorMslPress;
+    }
+
+    public double[] getPriorWsp() {
+        return priorWsp;
+    }
+
+    public double[] getPriorTcwv() {
+        return priorTcwv;
+    }
+
+    public boolean[] getLand() {
+        return land;
+    }
+
+    public boolean[] getCoastline() {
+        return coastline;
+    }
+
+    public boolean[] getProcess() {
+        return process;
+    }
+
+    public double[] getTcwv() {
+        return tcwv;
+    }
+
+    public double[] getTcwvUncertainty() {
+        return tcwvUncertainty;
+    }
+
+    public double[] getCost() {
+        return cost;
+    }
+
+    public double[] getStateVector1() {
+        return stateVector1;
+    }
+
+    public double[] getStateVector2() {
+        return stateVector2;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     * @param warmStart - if true, the OE inversion is started from a close neighbour solution if available,
+     *                  otherwise always from the prior
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        resetWarmStart();
+    }
+
+    public double getWarmStartTolerance() {
+        return warmStartTolerance;
+    }
+
+    /**
+     * @param warmStartTolerance - max relative difference of each measurement of a pixel and its neighbour to
+     *                           use the neighbour solution as first guess
+     */
+    public void setWarmStartTolerance(double warmStartTolerance) {
+        if (!(warmStartTolerance >= 0.0)) {
+            throw new IllegalArgumentException("Warm start tolerance must not be negative, but is " +
+                                                       warmStartTolerance + ".");
+        }
+        this.warmStartTolerance = warmStartTolerance;
+    }
+
+    /**
+     * Forgets all neighbour solutions, e.g. if the next row to compute is not adjacent to the last one.
+     */
+    public void resetWarmStart() {
+        Arrays.fill(solutionValid, false);
+    }
+
+    public int getNumColdStarts() {
+        return numColdStarts;
+    }
+
+    public long getNumColdIterations() {
+        return numColdIterations;
+    }
+
+    public int getNumWarmStarts() {
+        return numWarmStarts;
+    }
+
+    /**
+     * @return number of iterations of the warm started inversions, including the iterations of the
+     * repeated inversions from the prior after a warm start fallback
+     */
+    public long getNumWarmIterations() {
+        return numWarmIterations;
+    }
+
+    /**
+     * @return number of warm started inversions which did not converge to an acceptable cost and were
+     * repeated from the prior
+     */
+    public int getNumWarmStartFallbacks() {
+        return numWarmStartFallbacks;
+    }
+
+    /**
+     * @return the estimated number of OE iterations saved by the warm starts, i.e. the mean number of iterations
+     * of the cold starts applied to the warm started pixels, minus the iterations actually needed for them
+     */
+    public double getEstimatedIterationsSaved() {
+        if (numColdStarts == 0) {
+            return 0.0;
+        }
+        return numWarmStarts * ((double) numColdIterations / numColdStarts) - numWarmIterations;
+    }
+
+    public void resetWarmStartStatistics() {
+        numColdStarts = 0;
+        numColdIterations = 0;
+        numWarmStarts = 0;
+        numWarmIterations = 0;
+        numWarmStartFallbacks = 0;
+    }
+
+    // returns the index of a close neighbour solution (left pixel first, then upper pixel), or -1 if none
+    int findWarmStartSolution(int pixel, boolean isLand, double[] mes) {
+        if (pixel > 0 && isCloseSolution(pixel - 1, isLand, mes)) {
+            return pixel - 1;
+        }
+        if (isCloseSolution(pixel, isLand, mes)) {
+            return pixel;
+        }
+        return -1;
+    }
+
+    void getSolution(int index, double[] state) {
+        for (int i = 0; i < state.length; i++) {
+            state[i] = solution[i][index];
+        }
+    }
+
+    void setSolution(int pixel, boolean isLand, double[] mes, double[] state) {
+        for (int i = 0; i < state.length; i++) {
+            solution[i][pixel] = state[i];
+        }
+        for (int i = 0; i < mes.length; i++) {
+            solutionMeasurement[i][pixel] = mes[i];
+        }
+        solutionLand[pixel] = isLand;
+        solutionValid[pixel] = true;
+    }
+
+    void invalidateSolution(int pixel) {
+        solutionValid[pixel] = false;
+    }
+
+    void addColdStart(int iterations) {
+        numColdStarts++;
+        numColdIterations += iterations;
+    }
+
+    void addWarmStart(int iterations, boolean fallback) {
+        numWarmStarts++;
+        numWarmIterations += iterations;
+        if (fallback) {
+            numWarmStartFallbacks++;
+        }
+    }
+
+    private boolean isCloseSolution(int index, boolean isLand, double[] mes) {
+        if (!solutionValid[index] || solutionLand[index] != isLand) {
+            return false;
+        }
+        for (int i = 0; i < mes.length; i++) {
+            final double neighbourMes = solutionMeasurement[i][index];
+            if (!(Math.abs(mes[i] - neighbourMes) <= warmStartTolerance * Math.abs(neighbourMes))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,4 +19,17 @@ public interface TcwvFunction {
      * @return f - double array of measurements
      */
     double[] f(double[] x, double[] params);
+
+    /**
+     * Same as {@link #f(double[], double[])}, but writes the measurements into the given array. Implementations
+     * evaluated per OE iteration override this to avoid the allocation of the result.
+     *
+     * @param x - double array of state variables
+     * @param params - double array of parameters
+     * @param result - double array receiving the m measurements
+     */
+    default void f(double[] x, double[] params, double[] result) {
+        final double[] values = f(x, params);
+        System.arraycopy(values, 0, result, 0, values.length);
+    }
 }
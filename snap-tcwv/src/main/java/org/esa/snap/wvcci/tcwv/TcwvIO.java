@@ -48,11 +48,89 @@ public class TcwvIO {
         return auxdataDirectory.toString();
     }
 
+    /**
+     * Reads the ocean LUT for given sensor. If a binary LUT file (see {@link TcwvLutBinaryIO}) is present
+     * in the auxdata path, this is memory mapped, otherwise the NetCDF LUT is read.
+     *
+     * @param auxdataPath - the auxdata path for lookup tables
+     * @param sensor      - the sensor
+     * @return the ocean LUT
+     */
     public static TcwvOceanLut readOceanLookupTable(String auxdataPath, Sensor sensor) {
+        return readOceanLookupTable(auxdataPath, sensor, true);
+    }
+
+    /**
+     * Reads the ocean LUT for given sensor, as {@link #readOceanLookupTable(String, Sensor)}, but optionally without
+     * the Jacobi LUT (if the Jacobian is computed analytically from the forward LUT). A binary LUT file is
+     * always mapped completely, but the Jacobi part is then never paged in.
+     *
+     * @param auxdataPath - the auxdata path for lookup tables
+     * @param sensor      - the sensor
+     * @param readJacobi  - if false, the Jacobi LUT is not read from NetCDF
+     * @return the ocean LUT
+     */
+    public static TcwvOceanLut readOceanLookupTable(String auxdataPath, Sensor sensor, boolean readJacobi) {
+        final File binaryLutFile =
+                new File(auxdataPath, TcwvLutBinaryIO.getBinaryLutFileName(sensor.getOceanLutName()));
+        if (binaryLutFile.isFile()) {
+            try {
+                final TcwvOceanLut tcwvOceanLut = TcwvLutBinaryIO.readOceanLut(binaryLutFile);
+                tcwvOceanLut.setSensor(sensor);
+                return tcwvOceanLut;
+            } catch (IOException e) {
+                throw new OperatorException("Cannot read binary ocean LUT for sensor '" + sensor.getName() + "'.");
+            }
+        }
+        return readOceanLookupTableFromNetcdf(auxdataPath, sensor, readJacobi);
+    }
+
+    /**
+     * Reads the land LUT for given sensor. If a binary LUT file (see {@link TcwvLutBinaryIO}) is present
+     * in the auxdata path, this is memory mapped, otherwise the NetCDF LUT is read.
+     *
+     * @param auxdataPath - the auxdata path for lookup tables
+     * @param sensor      - the sensor
+     * @return the land LUT
+     */
+    public static TcwvLandLut readLandLookupTable(String auxdataPath, Sensor sensor) {
+        return readLandLookupTable(auxdataPath, sensor, true);
+    }
+
+    /**
+     * Reads the land LUT for given sensor, as {@link #readLandLookupTable(String, Sensor)}, but optionally without
+     * the Jacobi LUT (if the Jacobian is computed analytically from the forward LUT). A binary LUT file is
+     * always mapped completely, but the Jacobi part is then never paged in.
+     *
+     * @param auxdataPath - the auxdata path for lookup tables
+     * @param sensor      - the sensor
+     * @param readJacobi  - if false, the Jacobi LUT is not read from NetCDF
+     * @return the land LUT
+     */
+    public static TcwvLandLut readLandLookupTable(String auxdataPath, Sensor sensor, boolean readJacobi) {
+        final File binaryLutFile =
+                new File(auxdataPath, TcwvLutBinaryIO.getBinaryLutFileName(sensor.getLandLutName()));
+        if (binaryLutFile.isFile()) {
+            try {
+                final TcwvLandLut tcwvLandLut = TcwvLutBinaryIO.readLandLut(binaryLutFile);
+                tcwvLandLut.setSensor(sensor);
+                return tcwvLandLut;
+            } catch (IOException e) {
+                throw new OperatorException("Cannot read binary land LUT for sensor '" + sensor.getName() + "'.");
+            }
+        }
+        return readLandLookupTableFromNetcdf(auxdataPath, sensor, readJacobi);
+    }
+
+    static TcwvOceanLut readOceanLookupTableFromNetcdf(String auxdataPath, Sensor sensor) {
+        return readOceanLookupTableFromNetcdf(auxdataPath, sensor, true);
+    }
+
+    static TcwvOceanLut readOceanLookupTableFromNetcdf(String auxdataPath, Sensor sensor, boolean readJacobi) {
         final NetcdfFile ncFile;
         try {
             ncFile = TcwvIO.getTcwvLookupTableNcFile(auxdataPath, sensor.getOceanLutName());
-            final TcwvOceanLut tcwvOceanLut = TcwvIO.getTcwvOceanLut(ncFile);
+            final TcwvOceanLut tcwvOceanLut = TcwvIO.getTcwvOceanLut(ncFile, readJacobi);
             tcwvOceanLut.setSensor(sensor);
             return tcwvOceanLut;
         } catch (IOException e) {
@@ -60,11 +138,15 @@ public class TcwvIO {
         }
     }
 
-    public static TcwvLandLut readLandLookupTable(String auxdataPath, Sensor sensor) {
+    static TcwvLandLut readLandLookupTableFromNetcdf(String auxdataPath, Sensor sensor) {
+        return readLandLookupTableFromNetcdf(auxdataPath, sensor, true);
+    }
+
+    static TcwvLandLut readLandLookupTableFromNetcdf(String auxdataPath, Sensor sensor, boolean readJacobi) {
         final NetcdfFile ncFile;
         try {
             ncFile = TcwvIO.getTcwvLookupTableNcFile(auxdataPath, sensor.getLandLutName());
-            final TcwvLandLut tcwvLandLut = TcwvIO.getTcwvLandLut(ncFile);
+            final TcwvLandLut tcwvLandLut = TcwvIO.getTcwvLandLut(ncFile, readJacobi);
             tcwvLandLut.setSensor(sensor);
             return tcwvLandLut;
         } catch (IOException e) {
@@ -77,7 +159,7 @@ public class TcwvIO {
         return NetcdfFile.open(auxdataPath + File.separator + lutFileName);
     }
 
-    private static TcwvOceanLut getTcwvOceanLut(NetcdfFile lutNcFile) throws IOException {
+    private static TcwvOceanLut getTcwvOceanLut(NetcdfFile lutNcFile, boolean readJacobi) throws IOException {
         final List<Variable> variables = lutNcFile.getVariables();
 
         final Variable wvcVariable = variables.get(0);
@@ -100,13 +182,14 @@ public class TcwvIO {
         // 6*6*11*11*9*9*3
         final double[][][][][][][] lutArray = TcwvInterpolationUtils.getDouble7DArrayFromNetcdfVariable(lutVariable);
         // 6*6*11*11*9*9*18
-        final double[][][][][][][] jlutArray = TcwvInterpolationUtils.getDouble7DArrayFromNetcdfVariable(jlutVariable);
+        final double[][][][][][][] jlutArray =
+                readJacobi ? TcwvInterpolationUtils.getDouble7DArrayFromNetcdfVariable(jlutVariable) : null;
 
         return new TcwvOceanLut(wvcArray, aotArray, aziArray, vieArray, suzArray, jacoArray, lutArray, jlutArray, wspArray);
 
     }
 
-    private static TcwvLandLut getTcwvLandLut(NetcdfFile lutNcFile) throws IOException {
+    private static TcwvLandLut getTcwvLandLut(NetcdfFile lutNcFile, boolean readJacobi) throws IOException {
         final List<Variable> variables = lutNcFile.getVariables();
 
         final double[] wvcArray = TcwvInterpolationUtils.getDouble1DArrayFromNetcdfVariable(variables.get(0));
@@ -124,7 +207,7 @@ public class TcwvIO {
                 TcwvInterpolationUtils.getDouble10DArrayFromNetcdfVariable(variables.get(10));
         // 5 * 5 * 5 * 5 * 3 * 3 * 6 * 5 * 5 * 27
         final double[][][][][][][][][][] jlutArray =
-                TcwvInterpolationUtils.getDouble10DArrayFromNetcdfVariable(variables.get(11));
+                readJacobi ? TcwvInterpolationUtils.getDouble10DArrayFromNetcdfVariable(variables.get(11)) : null;
 
 
         // todo: prs array seems to be totally wrong in MERIS Land LUT. Report to RP!
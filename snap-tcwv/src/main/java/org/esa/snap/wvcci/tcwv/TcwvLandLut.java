@@ -1,5 +1,7 @@
 package org.esa.snap.wvcci.tcwv;
 
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+
 /**
  * TCWV LUT object for land.
  *
@@ -22,6 +24,10 @@ public class TcwvLandLut {
     private double[][][][][][][][][][] lutArray;   // 10D for land, 7D for ocean
     private double[][][][][][][][][][] jlutArray;   // 10D for land, 7D for ocean
 
+    // alternatively, the flattened tables as used for the interpolation (e.g. memory mapped from binary LUT file)
+    private MultiOutputLookupTable forwardLookupTable;
+    private MultiOutputLookupTable jacobiLookupTable;
+
     // land specific:
     private double[] al0;
     private double[] al1;
@@ -45,6 +51,42 @@ public class TcwvLandLut {
         this.tmp = tmp;
     }
 
+    TcwvLandLut(double[] wvc, double[] aot, double[] azi, double[] vie, double[] suz, int[] jaco,
+                MultiOutputLookupTable forwardLookupTable, MultiOutputLookupTable jacobiLookupTable,
+                double[] al0, double[] al1, double[] prs, double[] tmp) {
+        this.wvc = wvc;
+        this.aot = aot;
+        this.azi = azi;
+        this.vie = vie;
+        this.suz = suz;
+        this.jaco = jaco;
+        this.forwardLookupTable = forwardLookupTable;
+        this.jacobiLookupTable = jacobiLookupTable;
+        this.al0 = al0;
+        this.al1 = al1;
+        this.prs = prs;
+        this.tmp = tmp;
+    }
+
+    /**
+     * Provides a LUT with the given flattened tables, e.g. pruned (see {@link TcwvLutPruning}) or in reduced
+     * precision. The axes are taken from the forward table.
+     *
+     * @param forwardLookupTable - the flattened forward LUT
+     * @param jacobiLookupTable  - the flattened Jacobi LUT (may be null)
+     * @return the new LUT, for the same sensor
+     */
+    TcwvLandLut withLookupTables(MultiOutputLookupTable forwardLookupTable,
+                                 MultiOutputLookupTable jacobiLookupTable) {
+        final double[][] axes = forwardLookupTable.getAxes();
+        // wvc, al0, al1, aot, prs, tmp, azi, vie, suz
+        final TcwvLandLut lut = new TcwvLandLut(axes[0], axes[3], axes[6], axes[7], axes[8], jaco,
+                                                forwardLookupTable, jacobiLookupTable,
+                                                axes[1], axes[2], axes[4], axes[5]);
+        lut.setSensor(sensor);
+        return lut;
+    }
+
     public double[] getWvc() {
         return wvc;
     }
@@ -57,10 +99,27 @@ public class TcwvLandLut {
         return lutArray;
     }
 
+    /**
+     * @return the Jacobi LUT array, or null if the LUT was read from binary file or without Jacobi LUT
+     */
     public double[][][][][][][][][][] getJlutArray() {
         return jlutArray;
     }
 
+    /**
+     * @return the flattened forward LUT, or null if the LUT was read from NetCDF (see {@link #getLutArray()})
+     */
+    public MultiOutputLookupTable getForwardLookupTable() {
+        return forwardLookupTable;
+    }
+
+    /**
+     * @return the flattened Jacobi LUT, or null if the LUT was read from NetCDF (see {@link #getJlutArray()})
+     */
+    public MultiOutputLookupTable getJacobiLookupTable() {
+        return jacobiLookupTable;
+    }
+
     public double[] getAl0() {
         return al0;
     }
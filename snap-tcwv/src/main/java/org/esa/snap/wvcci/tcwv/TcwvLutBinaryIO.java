@@ -0,0 +1,264 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes TCWV LUTs in a compact binary format holding the already flattened ('interleaved')
+ * forward and Jacobi tables as used by {@link MultiOutputLookupTable}.
+ * The tables are memory mapped read-only when reading, so all operator instances (and JVMs) on a node
+ * share the same pages from the file system cache instead of holding their own heap copies.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *   int magic, int version, int surface type (0: ocean, 1: land), int number of axes,
+ *   int number of bands, int jaco ny, int jaco nx, int number of Jacobi outputs (ny * 3),
+ *   int[number of axes] axis lengths, padding to 8 bytes,
+ *   double[] axis values (all axes, in order of {@link TcwvLandLut#getAxes()} / {@link TcwvOceanLut#getAxes()}),
+ *   double[] forward LUT values,
+ *   double[] Jacobi LUT values
+ * </pre>
+ * The binary files are created once from the NetCDF LUTs with {@link TcwvLutConverterMain}.
+ *
+ * @author olafd
+ */
+public class TcwvLutBinaryIO {
+
+    static final String BINARY_LUT_FILE_EXTENSION = ".lut";
+
+    private static final int MAGIC = 0x54435756;   // 'TCWV'
+    private static final int VERSION = 1;
+    private static final int OCEAN = 0;
+    private static final int LAND = 1;
+    private static final int NUM_HEADER_INTS = 8;
+    private static final int WRITE_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Provides the name of the binary LUT file corresponding to a NetCDF LUT file.
+     *
+     * @param ncLutFileName - name of NetCDF LUT file, e.g. 'ocean_core_meris.nc4'
+     * @return name of binary LUT file, e.g. 'ocean_core_meris.lut'
+     */
+    public static String getBinaryLutFileName(String ncLutFileName) {
+        return ncLutFileName.replaceFirst("\\.nc4?$", "") + BINARY_LUT_FILE_EXTENSION;
+    }
+
+    /**
+     * Writes a land LUT as binary file.
+     *
+     * @param tcwvLandLut - the land LUT
+     * @param file        - the target file
+     * @throws IOException -
+     */
+    public static void writeLandLut(TcwvLandLut tcwvLandLut, File file) throws IOException {
+        writeLut(file, LAND, tcwvLandLut.getAxes(), tcwvLandLut.getJaco(),
+                 TcwvInterpolation.getForwardLookupTable(tcwvLandLut),
+                 TcwvInterpolation.getJacobiLookupTable(tcwvLandLut));
+    }
+
+    /**
+     * Writes an ocean LUT as binary file.
+     *
+     * @param tcwvOceanLut - the ocean LUT
+     * @param file         - the target file
+     * @throws IOException -
+     */
+    public static void writeOceanLut(TcwvOceanLut tcwvOceanLut, File file) throws IOException {
+        writeLut(file, OCEAN, tcwvOceanLut.getAxes(), tcwvOceanLut.getJaco(),
+                 TcwvInterpolation.getForwardLookupTable(tcwvOceanLut),
+                 TcwvInterpolation.getJacobiLookupTable(tcwvOceanLut));
+    }
+
+    /**
+     * Reads a land LUT from binary file. The tables are memory mapped read-only.
+     *
+     * @param file - the binary LUT file
+     * @return the land LUT
+     * @throws IOException -
+     */
+    public static TcwvLandLut readLandLut(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final BinaryLut binaryLut = readLut(channel, LAND);
+            final double[][] axes = binaryLut.axes;
+            // wvc, al0, al1, aot, prs, tmp, azi, vie, suz
+            return new TcwvLandLut(axes[0], axes[3], axes[6], axes[7], axes[8], binaryLut.jaco,
+                                   binaryLut.forwardLookupTable, binaryLut.jacobiLookupTable,
+                                   axes[1], axes[2], axes[4], axes[5]);
+        }
+    }
+
+    /**
+     * Reads an ocean LUT from binary file. The tables are memory mapped read-only.
+     *
+     * @param file - the binary LUT file
+     * @return the ocean LUT
+     * @throws IOException -
+     */
+    public static TcwvOceanLut readOceanLut(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final BinaryLut binaryLut = readLut(channel, OCEAN);
+            final double[][] axes = binaryLut.axes;
+            // wvc, aot, wsp, azi, vie, suz
+            return new TcwvOceanLut(axes[0], axes[1], axes[3], axes[4], axes[5], binaryLut.jaco,
+                                    binaryLut.forwardLookupTable, binaryLut.jacobiLookupTable,
+                                    axes[2]);
+        }
+    }
+
+    private static void writeLut(File file, int surfaceType, double[][] axes, int[] jaco,
+                                 MultiOutputLookupTable forwardLookupTable,
+                                 MultiOutputLookupTable jacobiLookupTable) throws IOException {
+        final int numAxes = axes.length;
+        int numAxisValues = 0;
+        for (double[] axis : axes) {
+            numAxisValues += axis.length;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(getAxisValuesOffset(numAxes) + 8 * numAxisValues);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(surfaceType);
+        header.putInt(numAxes);
+        header.putInt(forwardLookupTable.getNumOutputs());
+        header.putInt(jaco[0]);
+        header.putInt(jaco[1]);
+        header.putInt(jacobiLookupTable.getNumOutputs());
+        for (double[] axis : axes) {
+            header.putInt(axis.length);
+        }
+        header.position(getAxisValuesOffset(numAxes));
+        for (double[] axis : axes) {
+            for (double value : axis) {
+                header.putDouble(value);
+            }
+        }
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            writeValues(channel, forwardLookupTable.getValueBuffer());
+            writeValues(channel, jacobiLookupTable.getValueBuffer());
+        }
+    }
+
+    private static void writeValues(FileChannel channel, DoubleBuffer values) throws IOException {
+        final ByteBuffer chunk = ByteBuffer.allocate(8 * WRITE_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final int size = values.limit();
+        int index = 0;
+        while (index < size) {
+            chunk.clear();
+            final int end = Math.min(size, index + WRITE_CHUNK_SIZE);
+            for (int i = index; i < end; i++) {
+                chunk.putDouble(values.get(i));
+            }
+            chunk.flip();
+            writeFully(channel, chunk);
+            index = end;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static BinaryLut readLut(FileChannel channel, int surfaceType) throws IOException {
+        final ByteBuffer intro = readFully(channel, 0, 4 * NUM_HEADER_INTS);
+        if (intro.getInt() != MAGIC) {
+            throw new IOException("Not a binary TCWV LUT file.");
+        }
+        final int version = intro.getInt();
+        if (version != VERSION) {
+            throw new IOException("Binary TCWV LUT version " + version + " not supported.");
+        }
+        if (intro.getInt() != surfaceType) {
+            throw new IOException("Binary TCWV LUT is not a " + (surfaceType == LAND ? "land" : "ocean") + " LUT.");
+        }
+        final int numAxes = intro.getInt();
+        final int numBands = intro.getInt();
+        final int[] jaco = new int[]{intro.getInt(), intro.getInt()};
+        final int numJacobiOutputs = intro.getInt();
+
+        final ByteBuffer axisLengthsBuffer = readFully(channel, 4 * NUM_HEADER_INTS, 4 * numAxes);
+        final int[] axisLengths = new int[numAxes];
+        long numNodes = 1;
+        int numAxisValues = 0;
+        for (int i = 0; i < numAxes; i++) {
+            axisLengths[i] = axisLengthsBuffer.getInt();
+            numNodes *= axisLengths[i];
+            numAxisValues += axisLengths[i];
+        }
+
+        final long axisValuesOffset = getAxisValuesOffset(numAxes);
+        final ByteBuffer axisValuesBuffer = readFully(channel, axisValuesOffset, 8 * numAxisValues);
+        final double[][] axes = new double[numAxes][];
+        for (int i = 0; i < numAxes; i++) {
+            axes[i] = new double[axisLengths[i]];
+            for (int j = 0; j < axisLengths[i]; j++) {
+                axes[i][j] = axisValuesBuffer.getDouble();
+            }
+        }
+
+        final long forwardOffset = axisValuesOffset + 8L * numAxisValues;
+        final long forwardSize = numNodes * numBands;
+        final long jacobiOffset = forwardOffset + 8L * forwardSize;
+        final long jacobiSize = numNodes * numJacobiOutputs;
+        if (channel.size() != jacobiOffset + 8L * jacobiSize) {
+            throw new IOException("Binary TCWV LUT file size does not match header.");
+        }
+
+        BinaryLut binaryLut = new BinaryLut();
+        binaryLut.axes = axes;
+        binaryLut.jaco = jaco;
+        binaryLut.forwardLookupTable =
+                new MultiOutputLookupTable(map(channel, forwardOffset, forwardSize), numBands, axes);
+        binaryLut.jacobiLookupTable =
+                new MultiOutputLookupTable(map(channel, jacobiOffset, jacobiSize), numJacobiOutputs, axes);
+        return binaryLut;
+    }
+
+    private static DoubleBuffer map(FileChannel channel, long offset, long numValues) throws IOException {
+        if (8 * numValues > Integer.MAX_VALUE) {
+            throw new IOException("Binary TCWV LUT table too large to be mapped.");
+        }
+        // the mapping stays valid after the channel is closed
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, 8 * numValues)
+                .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of binary TCWV LUT file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // header ints and axis lengths, padded to 8 bytes so that all doubles are aligned
+    private static int getAxisValuesOffset(int numAxes) {
+        final int size = 4 * (NUM_HEADER_INTS + numAxes);
+        return (size + 7) / 8 * 8;
+    }
+
+    private static class BinaryLut {
+        double[][] axes;
+        int[] jaco;
+        MultiOutputLookupTable forwardLookupTable;
+        MultiOutputLookupTable jacobiLookupTable;
+    }
+}
@@ -0,0 +1,75 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiAccuracyReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One-off converter from the NetCDF TCWV LUTs to the binary LUT format (see {@link TcwvLutBinaryIO}).
+ * Converts the land and ocean LUTs of all sensors found in the given auxdata directory.
+ * The binary LUTs are written to the output directory (default: the auxdata directory), where
+ * {@link TcwvIO#readLandLookupTable(String, Sensor)} and {@link TcwvIO#readOceanLookupTable(String, Sensor)}
+ * will find them. For each converted LUT, the deviations of the analytic Jacobian (computed from the forward LUT)
+ * from the stored Jacobi LUT are reported (see {@link JacobiAccuracyReport}).
+ *
+ * @author olafd
+ */
+public class TcwvLutConverterMain {
+
+    private static final String TOOL_NAME = "wvcci_convert_luts";
+    private static final int NUM_JACOBI_REPORT_SAMPLES = 10000;
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: " + TOOL_NAME + " <auxdata-dir> [<output-dir>]");
+            System.exit(-1);
+        }
+        final String auxdataPath = args[0];
+        final File outputDir = new File(args.length == 2 ? args[1] : args[0]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.out.println("ERROR: cannot create output directory '" + outputDir + "'.");
+            System.exit(-1);
+        }
+
+        try {
+            convertLuts(auxdataPath, outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private static void convertLuts(String auxdataPath, File outputDir) throws IOException {
+        // several sensors may share LUTs, convert each file only once
+        Set<String> convertedLutNames = new HashSet<>();
+        for (Sensor sensor : Sensor.values()) {
+            final String landLutName = sensor.getLandLutName();
+            if (landLutName != null && convertedLutNames.add(landLutName) &&
+                    new File(auxdataPath, landLutName).isFile()) {
+                final File binaryLutFile = new File(outputDir, TcwvLutBinaryIO.getBinaryLutFileName(landLutName));
+                System.out.println("Converting " + landLutName + " --> " + binaryLutFile);
+                final TcwvLandLut landLut = TcwvIO.readLandLookupTableFromNetcdf(auxdataPath, sensor);
+                TcwvLutBinaryIO.writeLandLut(landLut, binaryLutFile);
+                final TcwvLandLut binaryLandLut = TcwvLutBinaryIO.readLandLut(binaryLutFile);
+                System.out.print(JacobiAccuracyReport.compute(binaryLandLut.getForwardLookupTable(),
+                                                              binaryLandLut.getJacobiLookupTable(), 3,
+                                                              NUM_JACOBI_REPORT_SAMPLES, 0L));
+            }
+            final String oceanLutName = sensor.getOceanLutName();
+            if (oceanLutName != null && convertedLutNames.add(oceanLutName) &&
+                    new File(auxdataPath, oceanLutName).isFile()) {
+                final File binaryLutFile = new File(outputDir, TcwvLutBinaryIO.getBinaryLutFileName(oceanLutName));
+                System.out.println("Converting " + oceanLutName + " --> " + binaryLutFile);
+                final TcwvOceanLut oceanLut = TcwvIO.readOceanLookupTableFromNetcdf(auxdataPath, sensor);
+                TcwvLutBinaryIO.writeOceanLut(oceanLut, binaryLutFile);
+                final TcwvOceanLut binaryOceanLut = TcwvLutBinaryIO.readOceanLut(binaryLutFile);
+                System.out.print(JacobiAccuracyReport.compute(binaryOceanLut.getForwardLookupTable(),
+                                                              binaryOceanLut.getJacobiLookupTable(), 3,
+                                                              NUM_JACOBI_REPORT_SAMPLES, 0L));
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
+
+import java.util.Random;
+
+/**
+ * Validation tool for the reduced precision LUT storage (see {@link LutPrecision}): reports the maximum TCWV and
+ * TCWV uncertainty deviations from the double precision retrieval (see {@link TcwvLutPrecisionReport}) for
+ * the LUTs of the given sensor. The test pixels (land and ocean) are sampled within the geometry ranges of the
+ * TCWV retrieval, with measurements and priors in typical ranges.
+ *
+ * @author olafd
+ */
+public class TcwvLutPrecisionMain {
+
+    private static final String TOOL_NAME = "wvcci_validate_lut_precision";
+    private static final int DEFAULT_NUM_PIXELS = 10000;
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: " + TOOL_NAME + " <auxdata-dir> <sensor> [<number-of-pixels>]");
+            System.exit(-1);
+        }
+        final String auxdataPath = args[0];
+        final Sensor sensor = Sensor.valueOf(args[1]);
+        final int numPixels = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_NUM_PIXELS;
+
+        final TcwvLandLut landLut = TcwvIO.readLandLookupTable(auxdataPath, sensor);
+        final TcwvOceanLut oceanLut = TcwvIO.readOceanLookupTable(auxdataPath, sensor);
+        final TcwvBatch batch = new TcwvBatch(sensor, numPixels);
+        for (LutPrecision precision : new LutPrecision[]{LutPrecision.FLOAT, LutPrecision.SCALED_SHORT}) {
+            fillBatch(batch, new Random(0L));
+            System.out.print(TcwvLutPrecisionReport.compute(sensor, landLut, oceanLut, precision,
+                                                            InversionMethod.OE_3X3, batch));
+        }
+    }
+
+    private static void fillBatch(TcwvBatch batch, Random random) {
+        for (int p = 0; p < batch.getSize(); p++) {
+            batch.getProcess()[p] = true;
+            batch.getLand()[p] = p % 2 == 0;
+            batch.getCoastline()[p] = false;
+            for (int j = 0; j < batch.getRhoToaWin().length; j++) {
+                batch.getRhoToaWin()[j][p] = (batch.getLand()[p] ? 0.1 : 0.01) + 0.2 * random.nextDouble();
+            }
+            for (int j = 0; j < batch.getRhoToaAbs().length; j++) {
+                batch.getRhoToaAbs()[j][p] = batch.getRhoToaWin()[0][p] * (0.3 + 0.6 * random.nextDouble());
+            }
+            batch.getSza()[p] = TcwvConstants.SZA_MAX_VALUE * random.nextDouble();
+            batch.getVza()[p] = 60.0 * random.nextDouble();
+            batch.getRelAzi()[p] = 180.0 * random.nextDouble();
+            batch.getAmf()[p] = 1.0 / Math.cos(Math.toRadians(batch.getSza()[p])) +
+                    1.0 / Math.cos(Math.toRadians(batch.getVza()[p]));
+            batch.getPriorAot()[p] = batch.getLand()[p] ? TcwvConstants.AOT_FALLBACK_LAND : 0.1;
+            batch.getPriorAl0()[p] = batch.getRhoToaWin()[0][p] * Math.PI;
+            batch.getPriorAl1()[p] = batch.getRhoToaWin()[1][p] * Math.PI;
+            batch.getPriorT2m()[p] = 250.0 + 60.0 * random.nextDouble();
+            batch.getPriorMslPress()[p] = 950.0 + 80.0 * random.nextDouble();
+            batch.getPriorWsp()[p] = 15.0 * random.nextDouble();
+            batch.getPriorTcwv()[p] = 60.0 * random.nextDouble();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
+
+import java.util.Locale;
+
+/**
+ * Compares the TCWV retrieval with LUTs stored in reduced precision (see {@link LutPrecision}) against the
+ * retrieval with double precision LUTs, for the pixels of a batch. Gives the maximum absolute TCWV and TCWV
+ * uncertainty deviations, the number of pixels which are retrieved in one path only, and the LUT memory.
+ *
+ * @author olafd
+ */
+public class TcwvLutPrecisionReport {
+
+    private final LutPrecision precision;
+    private int numPixels;
+    private int numValidityChanges;
+    private double maxTcwvDeviation;
+    private double maxTcwvUncertaintyDeviation;
+    private long doubleLutBytes;
+    private long reducedLutBytes;
+
+    private TcwvLutPrecisionReport(LutPrecision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Computes the report. The inputs of the batch must be filled, the results are overwritten.
+     *
+     * @param sensor          - the sensor
+     * @param landLut         - land LUT (double precision)
+     * @param oceanLut        - ocean LUT (double precision)
+     * @param precision       - the reduced precision to validate
+     * @param inversionMethod - the inversion method
+     * @param batch           - batch of test pixels
+     * @return the report
+     */
+    public static TcwvLutPrecisionReport compute(Sensor sensor, TcwvLandLut landLut, TcwvOceanLut oceanLut,
+                                             LutPrecision precision, InversionMethod inversionMethod,
+                                             TcwvBatch batch) {
+        final TcwvAlgorithm algorithm = new TcwvAlgorithm(inversionMethod);
+        final int size = batch.getSize();
+        final TcwvLutPrecisionReport report = new TcwvLutPrecisionReport(precision);
+
+        final LutFunctions doubleFunctions = new LutFunctions(landLut, oceanLut, LutPrecision.DOUBLE);
+        doubleFunctions.compute(algorithm, sensor, batch);
+        final double[] tcwv = batch.getTcwv().clone();
+        final double[] tcwvUncertainty = batch.getTcwvUncertainty().clone();
+
+        final LutFunctions reducedFunctions = new LutFunctions(landLut, oceanLut, precision);
+        batch.resetWarmStart();
+        reducedFunctions.compute(algorithm, sensor, batch);
+
+        for (int p = 0; p < size; p++) {
+            if (!batch.getProcess()[p]) {
+                continue;
+            }
+            final boolean valid = !Double.isNaN(tcwv[p]);
+            if (valid != !Double.isNaN(batch.getTcwv()[p])) {
+                report.numValidityChanges++;
+            } else if (valid) {
+                report.numPixels++;
+                report.maxTcwvDeviation = Math.max(report.maxTcwvDeviation,
+                                                   Math.abs(batch.getTcwv()[p] - tcwv[p]));
+                report.maxTcwvUncertaintyDeviation =
+                        Math.max(report.maxTcwvUncertaintyDeviation,
+                                 Math.abs(batch.getTcwvUncertainty()[p] - tcwvUncertainty[p]));
+            }
+        }
+        report.doubleLutBytes = doubleFunctions.getValueBytes();
+        report.reducedLutBytes = reducedFunctions.getValueBytes();
+        return report;
+    }
+
+    public LutPrecision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return number of pixels retrieved in both paths
+     */
+    public int getNumPixels() {
+        return numPixels;
+    }
+
+    /**
+     * @return number of pixels retrieved in one path only
+     */
+    public int getNumValidityChanges() {
+        return numValidityChanges;
+    }
+
+    public double getMaxTcwvDeviation() {
+        return maxTcwvDeviation;
+    }
+
+    public double getMaxTcwvUncertaintyDeviation() {
+        return maxTcwvUncertaintyDeviation;
+    }
+
+    /**
+     * @return memory of the flattened land and ocean LUTs in double precision
+     */
+    public long getDoubleLutBytes() {
+        return doubleLutBytes;
+    }
+
+    /**
+     * @return memory of the flattened land and ocean LUTs in reduced precision
+     */
+    public long getReducedLutBytes() {
+        return reducedLutBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                             "%s vs. DOUBLE LUTs (%d pixels, LUT memory %.1f MB --> %.1f MB):%n" +
+                                     "  max TCWV dev %.4g, max TCWV uncertainty dev %.4g, validity changes %d%n",
+                             precision, numPixels, doubleLutBytes / 1.E6, reducedLutBytes / 1.E6,
+                             maxTcwvDeviation, maxTcwvUncertaintyDeviation, numValidityChanges);
+    }
+
+    // forward and Jacobi functions from the flattened LUTs in given precision
+    private static class LutFunctions {
+        final MultiOutputLookupTable[] lookupTables;
+        final TcwvFunction tcwvFunctionLand;
+        final TcwvFunction tcwvFunctionOcean;
+        final JacobiFunction jacobiFunctionLand;
+        final JacobiFunction jacobiFunctionOcean;
+        final TcwvLandLut landLut;
+        final TcwvOceanLut oceanLut;
+
+        LutFunctions(TcwvLandLut landLut, TcwvOceanLut oceanLut, LutPrecision precision) {
+            this.landLut = landLut;
+            this.oceanLut = oceanLut;
+            lookupTables = new MultiOutputLookupTable[]{
+                    TcwvInterpolation.getForwardLookupTable(landLut).withPrecision(precision),
+                    TcwvInterpolation.getJacobiLookupTable(landLut).withPrecision(precision),
+                    TcwvInterpolation.getForwardLookupTable(oceanLut).withPrecision(precision),
+                    TcwvInterpolation.getJacobiLookupTable(oceanLut).withPrecision(precision)
+            };
+            tcwvFunctionLand = TcwvInterpolation.lut2Function(lookupTables[0]);
+            jacobiFunctionLand = TcwvInterpolation.jacobiLut2Function(lookupTables[1], landLut.getJaco()[0]);
+            tcwvFunctionOcean = TcwvInterpolation.lut2Function(lookupTables[2]);
+            jacobiFunctionOcean = TcwvInterpolation.jacobiLut2Function(lookupTables[3], oceanLut.getJaco()[0]);
+        }
+
+        void compute(TcwvAlgorithm algorithm, Sensor sensor, TcwvBatch batch) {
+            algorithm.compute(sensor, landLut, oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                              jacobiFunctionLand, jacobiFunctionOcean, batch);
+        }
+
+        long getValueBytes() {
+            long bytes = 0;
+            for (MultiOutputLookupTable lookupTable : lookupTables) {
+                bytes += lookupTable.getValueBytes();
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+
+/**
+ * Pruning of the TCWV LUTs to the sun and view geometry actually covered by a granule.
+ * <p>
+ * The LUTs span the full azimuth, view and sun zenith ranges, but a single MERIS or OLCI granule only covers a
+ * narrow slice of these. The pruned LUTs hold only the sub-block of the flattened tables over the node ranges
+ * covering the geometry range of the granule, plus one node of margin on each side. Within this range, the
+ * interpolated values are the same as for the full LUT, so the retrieval results do not change.
+ * <p>
+ * As the flattened tables of a binary LUT are memory mapped, only the pages of the sub-block are read from file,
+ * and the (much smaller) pruned tables are resident on the heap, which also improves the cache behaviour of the
+ * interpolation. The pressure and temperature axes are not pruned: they have few nodes only, and their prior
+ * ranges would require a pass over full resolution bands of the granule.
+ *
+ * @author olafd
+ */
+public class TcwvLutPruning {
+
+    // geometry axes in TcwvLandLut.getAxes(): wvc, al0, al1, aot, prs, tmp, azi, vie, suz
+    private static final int LAND_AZI_AXIS = 6;
+    // geometry axes in TcwvOceanLut.getAxes(): wvc, aot, wsp, azi, vie, suz
+    private static final int OCEAN_AZI_AXIS = 3;
+
+    /**
+     * Provides a land LUT pruned to the given geometry range.
+     *
+     * @param lut                - the full LUT
+     * @param forwardLookupTable - the flattened forward LUT
+     * @param jacobiLookupTable  - the flattened Jacobi LUT (may be null, e.g. for the analytic Jacobian)
+     * @param range              - the geometry range
+     * @return the pruned LUT, providing pruned flattened tables
+     */
+    public static TcwvLandLut pruneLandLut(TcwvLandLut lut, MultiOutputLookupTable forwardLookupTable,
+                                           MultiOutputLookupTable jacobiLookupTable, GeometryRange range) {
+        final int[][] indexRanges = getIndexRanges(forwardLookupTable.getAxes(), LAND_AZI_AXIS, range);
+        final MultiOutputLookupTable prunedForward = forwardLookupTable.getSubTable(indexRanges[0], indexRanges[1]);
+        final MultiOutputLookupTable prunedJacobi =
+                jacobiLookupTable != null ? jacobiLookupTable.getSubTable(indexRanges[0], indexRanges[1]) : null;
+        return lut.withLookupTables(prunedForward, prunedJacobi);
+    }
+
+    /**
+     * Provides an ocean LUT pruned to the given geometry range.
+     *
+     * @param lut                - the full LUT
+     * @param forwardLookupTable - the flattened forward LUT
+     * @param jacobiLookupTable  - the flattened Jacobi LUT (may be null, e.g. for the analytic Jacobian)
+     * @param range              - the geometry range
+     * @return the pruned LUT, providing pruned flattened tables
+     */
+    public static TcwvOceanLut pruneOceanLut(TcwvOceanLut lut, MultiOutputLookupTable forwardLookupTable,
+                                             MultiOutputLookupTable jacobiLookupTable, GeometryRange range) {
+        final int[][] indexRanges = getIndexRanges(forwardLookupTable.getAxes(), OCEAN_AZI_AXIS, range);
+        final MultiOutputLookupTable prunedForward = forwardLookupTable.getSubTable(indexRanges[0], indexRanges[1]);
+        final MultiOutputLookupTable prunedJacobi =
+                jacobiLookupTable != null ? jacobiLookupTable.getSubTable(indexRanges[0], indexRanges[1]) : null;
+        return lut.withLookupTables(prunedForward, prunedJacobi);
+    }
+
+    /**
+     * Provides the node index range of an axis covering the given coordinate range, plus one node of margin
+     * on each side. Coordinates outside the axis are clamped, as in the interpolation.
+     *
+     * @param axis - the axis
+     * @param min  - minimum coordinate
+     * @param max  - maximum coordinate
+     * @return first and last node index (inclusive), the full axis if the range is empty or not finite,
+     * or the axis has less than three nodes
+     */
+    static int[] getIndexRange(double[] axis, double min, double max) {
+        final int last = axis.length - 1;
+        if (last < 2 || !(min <= max) || Double.isInfinite(min) || Double.isInfinite(max)) {
+            return new int[]{0, last};
+        }
+        // the cell containing min (lower node), and the cell containing max (upper node)
+        int from = 0;
+        while (from < last - 1 && axis[from + 1] <= min) {
+            from++;
+        }
+        int to = last;
+        while (to > 1 && axis[to - 1] >= max) {
+            to--;
+        }
+        from = Math.max(0, from - 1);
+        to = Math.min(last, to + 1);
+        if (to <= from) {
+            // single node coordinate range at the axis boundary
+            to = Math.min(last, from + 1);
+            from = to - 1;
+        }
+        return new int[]{from, to};
+    }
+
+    // node index ranges (first, last) of all axes, where the geometry axes azi, vie, suz start at aziAxis
+    private static int[][] getIndexRanges(double[][] axes, int aziAxis, GeometryRange range) {
+        final int[] fromIndices = new int[axes.length];
+        final int[] toIndices = new int[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            toIndices[i] = axes[i].length - 1;
+        }
+        final double[][] geometryRanges = {range.getRelAziRange(), range.getVzaRange(), range.getSzaRange()};
+        for (int j = 0; j < geometryRanges.length; j++) {
+            final int[] indexRange = getIndexRange(axes[aziAxis + j], geometryRanges[j][0], geometryRanges[j][1]);
+            fromIndices[aziAxis + j] = indexRange[0];
+            toIndices[aziAxis + j] = indexRange[1];
+        }
+        return new int[][]{fromIndices, toIndices};
+    }
+
+    /**
+     * Range of the sun and view geometry of a granule. Axes without any added value are not pruned.
+     */
+    public static class GeometryRange {
+
+        private double szaMin = Double.POSITIVE_INFINITY;
+        private double szaMax = Double.NEGATIVE_INFINITY;
+        private double vzaMin = Double.POSITIVE_INFINITY;
+        private double vzaMax = Double.NEGATIVE_INFINITY;
+        private double relAziMin = Double.POSITIVE_INFINITY;
+        private double relAziMax = Double.NEGATIVE_INFINITY;
+
+        /**
+         * @param sza - sun zenith angle (NaN is ignored)
+         */
+        public void addSza(double sza) {
+            if (!Double.isNaN(sza)) {
+                szaMin = Math.min(szaMin, sza);
+                szaMax = Math.max(szaMax, sza);
+            }
+        }
+
+        /**
+         * @param vza - view zenith angle (NaN is ignored)
+         */
+        public void addVza(double vza) {
+            if (!Double.isNaN(vza)) {
+                vzaMin = Math.min(vzaMin, vza);
+                vzaMax = Math.max(vzaMax, vza);
+            }
+        }
+
+        /**
+         * @param relAzi - relative azimuth as used for the LUT (NaN is ignored)
+         */
+        public void addRelAzi(double relAzi) {
+            if (!Double.isNaN(relAzi)) {
+                relAziMin = Math.min(relAziMin, relAzi);
+                relAziMax = Math.max(relAziMax, relAzi);
+            }
+        }
+
+        /**
+         * Adds the relative azimuths of all sun and view azimuths interpolated within a tie point cell.
+         * As the relative azimuth is not monotonic in the azimuth difference, its extrema within the cell
+         * (0 or 180 degrees) are added if the cell covers them.
+         *
+         * @param saa - sun azimuth angles at the cell corners
+         * @param vaa - view azimuth angles at the cell corners
+         */
+        public void addAzimuthCell(double[] saa, double[] vaa) {
+            double reference = Double.NaN;
+            double dMin = Double.POSITIVE_INFINITY;
+            double dMax = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < saa.length; i++) {
+                double d = saa[i] - vaa[i];
+                if (Double.isNaN(d)) {
+                    continue;
+                }
+                addRelAzi(getRelAzi(d));
+                if (Double.isNaN(reference)) {
+                    reference = d;
+                }
+                // difference unwrapped with respect to the first valid corner
+                d -= 360.0 * Math.floor((d - reference + 180.0) / 360.0);
+                dMin = Math.min(dMin, d);
+                dMax = Math.max(dMax, d);
+            }
+            if (dMin <= dMax) {
+                if (Math.ceil(dMin / 360.0) * 360.0 <= dMax) {
+                    addRelAzi(180.0);
+                }
+                if (Math.ceil((dMin - 180.0) / 360.0) * 360.0 + 180.0 <= dMax) {
+                    addRelAzi(0.0);
+                }
+            }
+        }
+
+        /**
+         * Limits the SZA range, e.g. to the maximum SZA for which pixels are retrieved at all.
+         *
+         * @param szaLimit - the SZA limit
+         */
+        public void limitSza(double szaLimit) {
+            szaMax = Math.min(szaMax, szaLimit);
+        }
+
+        /**
+         * @return true if no geometry axis can be pruned
+         */
+        public boolean isEmpty() {
+            return !(szaMin <= szaMax) && !(vzaMin <= vzaMax) && !(relAziMin <= relAziMax);
+        }
+
+        double[] getSzaRange() {
+            return new double[]{szaMin, szaMax};
+        }
+
+        double[] getVzaRange() {
+            return new double[]{vzaMin, vzaMax};
+        }
+
+        double[] getRelAziRange() {
+            return new double[]{relAziMin, relAziMax};
+        }
+
+        // relative azimuth as computed in TcwvOp
+        private static double getRelAzi(double azimuthDifference) {
+            return 180.0 - Math.toDegrees(Math.acos(Math.cos(Math.toRadians(azimuthDifference))));
+        }
+    }
+}
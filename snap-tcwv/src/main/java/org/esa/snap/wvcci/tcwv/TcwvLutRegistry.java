@@ -0,0 +1,382 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.AnalyticJacobiLookup;
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of TCWV LUTs and the corresponding forward and Jacobi functions, shared by all
+ * {@link TcwvOp} instances in one JVM. This avoids reading and flattening the same LUTs again for every
+ * product processed e.g. in a GPT graph or a Calvalus task.
+ * <p>
+ * Land and ocean LUTs are registered separately, keyed by sensor, LUT file, Jacobian mode (stored Jacobi LUT
+ * or analytic Jacobian from the forward LUT) and storage precision (see {@link LutPrecision}), where a file is identified by its canonical path, size and
+ * modification time (so that a replaced LUT file is read again).
+ * The entries are reference counted: while acquired, an entry is held strongly; after its last release it is
+ * only softly referenced and may be evicted by the garbage collector under memory pressure.
+ * <p>
+ * The provided LUTs and functions are immutable and thread safe.
+ *
+ * @author olafd
+ */
+public class TcwvLutRegistry {
+
+    private static final TcwvLutRegistry INSTANCE = new TcwvLutRegistry();
+
+    private final Map<Key, Entry> entries = new HashMap<>();
+
+    TcwvLutRegistry() {
+    }
+
+    /**
+     * @return the process-wide registry
+     */
+    public static TcwvLutRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provides the LUTs and functions for given sensor. Must be released with {@link #release(Luts)}
+     * if no longer needed.
+     *
+     * @param auxdataPath  - the auxdata path for lookup tables
+     * @param sensor       - the sensor
+     * @param processOcean - if true, the ocean LUT and functions are provided as well
+     * @return the LUTs and functions
+     */
+    public Luts acquire(String auxdataPath, Sensor sensor, boolean processOcean) {
+        return acquire(auxdataPath, sensor, processOcean, false);
+    }
+
+    /**
+     * Provides the LUTs and functions for given sensor. Must be released with {@link #release(Luts)}
+     * if no longer needed.
+     *
+     * @param auxdataPath      - the auxdata path for lookup tables
+     * @param sensor           - the sensor
+     * @param processOcean     - if true, the ocean LUT and functions are provided as well
+     * @param analyticJacobian - if true, the Jacobi functions compute the Jacobian from the forward LUT
+     *                         (see {@link AnalyticJacobiLookup}) and the Jacobi LUTs are not read
+     * @return the LUTs and functions
+     */
+    public Luts acquire(String auxdataPath, Sensor sensor, boolean processOcean, boolean analyticJacobian) {
+        return acquire(auxdataPath, sensor, processOcean, analyticJacobian, LutPrecision.DOUBLE);
+    }
+
+    /**
+     * Provides the LUTs and functions for given sensor. Must be released with {@link #release(Luts)}
+     * if no longer needed.
+     *
+     * @param auxdataPath      - the auxdata path for lookup tables
+     * @param sensor           - the sensor
+     * @param processOcean     - if true, the ocean LUT and functions are provided as well
+     * @param analyticJacobian - if true, the Jacobi functions compute the Jacobian from the forward LUT
+     *                         (see {@link AnalyticJacobiLookup}) and the Jacobi LUTs are not read
+     * @param precision        - storage precision of the flattened LUTs used for the interpolation
+     * @return the LUTs and functions
+     */
+    public Luts acquire(String auxdataPath, Sensor sensor, boolean processOcean, boolean analyticJacobian,
+                        LutPrecision precision) {
+        final Key landKey = new Key(sensor, getLutFileId(auxdataPath, sensor.getLandLutName()), analyticJacobian,
+                                    precision);
+        final LandPart landPart = (LandPart) acquire(landKey, () ->
+                new LandPart(TcwvIO.readLandLookupTable(auxdataPath, sensor, !analyticJacobian),
+                             analyticJacobian, precision));
+        if (!processOcean) {
+            return new Luts(landKey, landPart, null, null);
+        }
+
+        final Key oceanKey = new Key(sensor, getLutFileId(auxdataPath, sensor.getOceanLutName()), analyticJacobian,
+                                     precision);
+        try {
+            final OceanPart oceanPart = (OceanPart) acquire(oceanKey, () ->
+                    new OceanPart(TcwvIO.readOceanLookupTable(auxdataPath, sensor, !analyticJacobian),
+                                  analyticJacobian, precision));
+            return new Luts(landKey, landPart, oceanKey, oceanPart);
+        } catch (RuntimeException e) {
+            release(landKey);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases LUTs and functions provided by {@link #acquire(String, Sensor, boolean, boolean, LutPrecision)}.
+     * Further calls for the same object have no effect.
+     *
+     * @param luts - the LUTs and functions (may be null)
+     */
+    public void release(Luts luts) {
+        if (luts == null || !luts.released.compareAndSet(false, true)) {
+            return;
+        }
+        release(luts.landKey);
+        if (luts.oceanKey != null) {
+            release(luts.oceanKey);
+        }
+    }
+
+    int getReferenceCount(Sensor sensor) {
+        int refCount = 0;
+        synchronized (entries) {
+            for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+                if (entry.getKey().sensor == sensor) {
+                    refCount += entry.getValue().refCount;
+                }
+            }
+        }
+        return refCount;
+    }
+
+    /**
+     * Clears the soft references of all released entries, as the garbage collector does under memory pressure.
+     */
+    void evictReleased() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                synchronized (entry) {
+                    if (entry.refCount == 0 && entry.softValue != null) {
+                        entry.softValue.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    private Object acquire(Key key, Supplier<Object> loader) {
+        final Entry entry;
+        synchronized (entries) {
+            // forget entries which were evicted meanwhile
+            entries.values().removeIf(e -> e.refCount == 0 && e.get() == null);
+            entry = entries.computeIfAbsent(key, k -> new Entry());
+            entry.refCount++;
+        }
+        try {
+            // load outside of the registry lock, so that other LUTs can be acquired meanwhile
+            synchronized (entry) {
+                Object value = entry.get();
+                if (value == null) {
+                    value = loader.get();
+                    entry.softValue = new SoftReference<>(value);
+                }
+                entry.value = value;
+                return value;
+            }
+        } catch (RuntimeException e) {
+            release(key);
+            throw e;
+        }
+    }
+
+    private void release(Key key) {
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.refCount > 0) {
+                entry.refCount--;
+                if (entry.refCount == 0) {
+                    // keep softly referenced only, may be evicted under memory pressure
+                    synchronized (entry) {
+                        entry.value = null;
+                    }
+                }
+            }
+        }
+    }
+
+    // identifies the LUT file actually read (binary if present, NetCDF otherwise) by path, size and time
+    private static String getLutFileId(String auxdataPath, String ncLutFileName) {
+        File lutFile = new File(auxdataPath, TcwvLutBinaryIO.getBinaryLutFileName(ncLutFileName));
+        if (!lutFile.isFile()) {
+            lutFile = new File(auxdataPath, ncLutFileName);
+        }
+        String path;
+        try {
+            path = lutFile.getCanonicalPath();
+        } catch (IOException e) {
+            path = lutFile.getAbsolutePath();
+        }
+        return path + ":" + lutFile.length() + ":" + lutFile.lastModified();
+    }
+
+    /**
+     * LUTs and corresponding forward and Jacobi functions for one sensor.
+     */
+    public static class Luts {
+        private final Key landKey;
+        private final LandPart landPart;
+        private final Key oceanKey;
+        private final OceanPart oceanPart;
+        private final AtomicBoolean released;
+
+        private Luts(Key landKey, LandPart landPart, Key oceanKey, OceanPart oceanPart) {
+            this(landKey, landPart, oceanKey, oceanPart, new AtomicBoolean(false));
+        }
+
+        private Luts(Key landKey, LandPart landPart, Key oceanKey, OceanPart oceanPart, AtomicBoolean released) {
+            this.landKey = landKey;
+            this.landPart = landPart;
+            this.oceanKey = oceanKey;
+            this.oceanPart = oceanPart;
+            this.released = released;
+        }
+
+        /**
+         * Provides LUTs and functions pruned to the geometry range of a granule (see {@link TcwvLutPruning}).
+         * The pruned LUTs are not shared. Releasing the returned object releases this one, and vice versa.
+         *
+         * @param range - the geometry range
+         * @return the pruned LUTs and functions
+         */
+        public Luts pruneGeometry(TcwvLutPruning.GeometryRange range) {
+            final LandPart prunedLandPart = new LandPart(
+                    TcwvLutPruning.pruneLandLut(landPart.lut, landPart.forwardLookupTable,
+                                                landPart.jacobiLookupTable, range),
+                    landPart.analyticJacobian, landPart.precision);
+            OceanPart prunedOceanPart = null;
+            if (oceanPart != null) {
+                prunedOceanPart = new OceanPart(
+                        TcwvLutPruning.pruneOceanLut(oceanPart.lut, oceanPart.forwardLookupTable,
+                                                     oceanPart.jacobiLookupTable, range),
+                        oceanPart.analyticJacobian, oceanPart.precision);
+            }
+            return new Luts(landKey, prunedLandPart, oceanKey, prunedOceanPart, released);
+        }
+
+        public TcwvLandLut getLandLut() {
+            return landPart.lut;
+        }
+
+        public TcwvFunction getTcwvFunctionLand() {
+            return landPart.tcwvFunction;
+        }
+
+        public JacobiFunction getJacobiFunctionLand() {
+            return landPart.jacobiFunction;
+        }
+
+        public TcwvOceanLut getOceanLut() {
+            return oceanPart != null ? oceanPart.lut : null;
+        }
+
+        public TcwvFunction getTcwvFunctionOcean() {
+            return oceanPart != null ? oceanPart.tcwvFunction : null;
+        }
+
+        public JacobiFunction getJacobiFunctionOcean() {
+            return oceanPart != null ? oceanPart.jacobiFunction : null;
+        }
+    }
+
+    private static class LandPart {
+        final TcwvLandLut lut;
+        final boolean analyticJacobian;
+        final LutPrecision precision;
+        final MultiOutputLookupTable forwardLookupTable;
+        final MultiOutputLookupTable jacobiLookupTable;   // null for analytic Jacobian
+        final TcwvFunction tcwvFunction;
+        final JacobiFunction jacobiFunction;
+
+        LandPart(TcwvLandLut lut, boolean analyticJacobian, LutPrecision precision) {
+            this.analyticJacobian = analyticJacobian;
+            this.precision = precision;
+            forwardLookupTable = TcwvInterpolation.getForwardLookupTable(lut).withPrecision(precision);
+            if (analyticJacobian) {
+                jacobiLookupTable = null;
+                final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(forwardLookupTable, 3);
+                tcwvFunction = lookup.getForwardFunction();
+                jacobiFunction = lookup.getJacobiFunction();
+            } else {
+                jacobiLookupTable = TcwvInterpolation.getJacobiLookupTable(lut).withPrecision(precision);
+                tcwvFunction = TcwvInterpolation.lut2Function(forwardLookupTable);
+                jacobiFunction = TcwvInterpolation.jacobiLut2Function(jacobiLookupTable, lut.getJaco()[0]);
+            }
+            // with reduced precision, the full precision LUT arrays must not be held
+            this.lut = precision == LutPrecision.DOUBLE ? lut : lut.withLookupTables(forwardLookupTable,
+                                                                                     jacobiLookupTable);
+        }
+    }
+
+    private static class OceanPart {
+        final TcwvOceanLut lut;
+        final boolean analyticJacobian;
+        final LutPrecision precision;
+        final MultiOutputLookupTable forwardLookupTable;
+        final MultiOutputLookupTable jacobiLookupTable;   // null for analytic Jacobian
+        final TcwvFunction tcwvFunction;
+        final JacobiFunction jacobiFunction;
+
+        OceanPart(TcwvOceanLut lut, boolean analyticJacobian, LutPrecision precision) {
+            this.analyticJacobian = analyticJacobian;
+            this.precision = precision;
+            forwardLookupTable = TcwvInterpolation.getForwardLookupTable(lut).withPrecision(precision);
+            if (analyticJacobian) {
+                jacobiLookupTable = null;
+                final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(forwardLookupTable, 3);
+                tcwvFunction = lookup.getForwardFunction();
+                jacobiFunction = lookup.getJacobiFunction();
+            } else {
+                jacobiLookupTable = TcwvInterpolation.getJacobiLookupTable(lut).withPrecision(precision);
+                tcwvFunction = TcwvInterpolation.lut2Function(forwardLookupTable);
+                jacobiFunction = TcwvInterpolation.jacobiLut2Function(jacobiLookupTable, lut.getJaco()[0]);
+            }
+            // with reduced precision, the full precision LUT arrays must not be held
+            this.lut = precision == LutPrecision.DOUBLE ? lut : lut.withLookupTables(forwardLookupTable,
+                                                                                     jacobiLookupTable);
+        }
+    }
+
+    private static class Entry {
+        int refCount;                         // guarded by registry lock
+        Object value;                         // strong reference while acquired
+        SoftReference<Object> softValue;      // kept after last release, until evicted
+
+        synchronized Object get() {
+            if (value != null) {
+                return value;
+            }
+            return softValue != null ? softValue.get() : null;
+        }
+    }
+
+    private static class Key {
+        private final Sensor sensor;
+        private final String lutFileId;
+        private final boolean analyticJacobian;
+        private final LutPrecision precision;
+
+        Key(Sensor sensor, String lutFileId, boolean analyticJacobian, LutPrecision precision) {
+            this.sensor = sensor;
+            this.lutFileId = lutFileId;
+            this.analyticJacobian = analyticJacobian;
+            this.precision = precision;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sensor == key.sensor && lutFileId.equals(key.lutFileId) &&
+                    analyticJacobian == key.analyticJacobian && precision == key.precision;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sensor, lutFileId, analyticJacobian, precision);
+        }
+    }
+}
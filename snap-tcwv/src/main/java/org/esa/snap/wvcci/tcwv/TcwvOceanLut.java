@@ -1,5 +1,7 @@
 package org.esa.snap.wvcci.tcwv;
 
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+
 /**
  * TCWV LUT object for ocean.
  *
@@ -21,6 +23,10 @@ public class TcwvOceanLut {
     private double[][][][][][][] lutArray;   // 10D for land, 7D for ocean
     private double[][][][][][][] jlutArray;   // 10D for land, 7D for ocean
 
+    // alternatively, the flattened tables as used for the interpolation (e.g. memory mapped from binary LUT file)
+    private MultiOutputLookupTable forwardLookupTable;
+    private MultiOutputLookupTable jacobiLookupTable;
+
     // ocean specific:
     private double[] wsp;
 
@@ -38,6 +44,38 @@ public class TcwvOceanLut {
         this.wsp = wsp;
     }
 
+    TcwvOceanLut(double[] wvc, double[] aot, double[] azi, double[] vie, double[] suz, int[] jaco,
+                 MultiOutputLookupTable forwardLookupTable, MultiOutputLookupTable jacobiLookupTable,
+                 double[] wsp) {
+        this.wvc = wvc;
+        this.aot = aot;
+        this.azi = azi;
+        this.vie = vie;
+        this.suz = suz;
+        this.jaco = jaco;
+        this.forwardLookupTable = forwardLookupTable;
+        this.jacobiLookupTable = jacobiLookupTable;
+        this.wsp = wsp;
+    }
+
+    /**
+     * Provides a LUT with the given flattened tables, e.g. pruned (see {@link TcwvLutPruning}) or in reduced
+     * precision. The axes are taken from the forward table.
+     *
+     * @param forwardLookupTable - the flattened forward LUT
+     * @param jacobiLookupTable  - the flattened Jacobi LUT (may be null)
+     * @return the new LUT, for the same sensor
+     */
+    TcwvOceanLut withLookupTables(MultiOutputLookupTable forwardLookupTable,
+                                  MultiOutputLookupTable jacobiLookupTable) {
+        final double[][] axes = forwardLookupTable.getAxes();
+        // wvc, aot, wsp, azi, vie, suz
+        final TcwvOceanLut lut = new TcwvOceanLut(axes[0], axes[1], axes[3], axes[4], axes[5], jaco,
+                                                  forwardLookupTable, jacobiLookupTable, axes[2]);
+        lut.setSensor(sensor);
+        return lut;
+    }
+
     public double[] getWvc() {
         return wvc;
     }
@@ -54,10 +92,27 @@ public class TcwvOceanLut {
         return lutArray;
     }
 
+    /**
+     * @return the Jacobi LUT array, or null if the LUT was read from binary file or without Jacobi LUT
+     */
     public double[][][][][][][] getJlutArray() {
         return jlutArray;
     }
 
+    /**
+     * @return the flattened forward LUT, or null if the LUT was read from NetCDF (see {@link #getLutArray()})
+     */
+    public MultiOutputLookupTable getForwardLookupTable() {
+        return forwardLookupTable;
+    }
+
+    /**
+     * @return the flattened Jacobi LUT, or null if the LUT was read from NetCDF (see {@link #getJlutArray()})
+     */
+    public MultiOutputLookupTable getJacobiLookupTable() {
+        return jacobiLookupTable;
+    }
+
     public double[] getWsp() {
         return wsp;
     }
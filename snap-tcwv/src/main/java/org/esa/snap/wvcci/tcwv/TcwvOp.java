@@ -11,15 +11,18 @@ import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.util.ProductUtils;
+import org.esa.snap.core.util.SystemUtils;
 import org.esa.snap.core.util.math.MathUtils;
-import org.esa.snap.wvcci.tcwv.dataio.mod35.ModisMod35L2Constants;
 import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
-import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
+import org.esa.snap.wvcci.tcwv.util.TileRowReader;
 
 import java.awt.*;
 import java.io.IOException;
 import java.util.Map;
+import java.util.logging.Level;
 
 /**
  * TCWV main operator for Water_Vapour_cci.
@@ -54,6 +57,39 @@ public class TcwvOp extends Operator {
             description = "MSL pressure constant to be used if no Prior is available.")
     private double mslPressure;
 
+    @Parameter(valueSet = {"OE", "OE_3X3", "OE_BROYDEN", "OE_3X3_BROYDEN"},
+            defaultValue = "OE_3X3",
+            description = "Inversion method: OE (JAMA matrices) or OE_3X3 (allocation-free fixed-size 3x3 kernel). " +
+                    "The _BROYDEN variants evaluate the Jacobian LUTs once and then use Broyden updates.",
+            label = "Inversion method")
+    private InversionMethod inversionMethod;
+
+    @Parameter(defaultValue = "false",
+            description = "Start the OE inversion from the solution of a neighbouring pixel with close measurements " +
+                    "instead of the prior (faster, results agree within the OE convergence limit).",
+            label = "Warm start inversion from neighbouring pixels")
+    private boolean warmStart;
+
+    @Parameter(defaultValue = "false",
+            description = "Compute the Jacobian analytically from the forward LUT interpolation instead of " +
+                    "interpolating the stored Jacobi LUT (which is then not read, saving most of the LUT memory).",
+            label = "Analytic Jacobian from forward LUT")
+    private boolean analyticJacobian;
+
+    @Parameter(defaultValue = "false",
+            description = "Restrict the LUTs to the sun and view geometry range covered by the tie point grids of " +
+                    "the source product (less LUT memory traffic, same results).",
+            label = "Prune LUTs to product geometry")
+    private boolean pruneLutGeometry;
+
+    @Parameter(valueSet = {"DOUBLE", "FLOAT", "SCALED_SHORT"},
+            defaultValue = "DOUBLE",
+            description = "Storage precision of the LUTs used for the interpolation: DOUBLE, FLOAT (half the memory) " +
+                    "or SCALED_SHORT (16 bit with scale and offset per output, quarter of the memory). " +
+                    "See TcwvLutPrecisionMain for the resulting TCWV deviations.",
+            label = "LUT storage precision")
+    private LutPrecision lutPrecision;
+
     @Parameter(description = "If auxdata are already installed, their path can be provided here.")
     private String auxdataPath;
 
@@ -93,7 +129,6 @@ public class TcwvOp extends Operator {
     private RasterDataNode seaLevelPressBand;
 
     private Band pixelClassifBand;
-    private Band idepixClassifBand;
 
     private Band priorT2mBand;
     private RasterDataNode priorMslBand;
@@ -114,7 +149,10 @@ public class TcwvOp extends Operator {
     private Band[] landFluxAbsBands;
     private Band[] oceanFluxWinBands;
     private Band[] oceanFluxAbsBands;
+    private Band[] fluxBands;
+    private Band minCoastNormRadBand;
 
+    private TcwvLutRegistry.Luts luts;
     private TcwvOceanLut oceanLut;
     private TcwvLandLut landLut;
 
@@ -125,7 +163,6 @@ public class TcwvOp extends Operator {
     private TcwvFunction tcwvFunctionOcean;
     private JacobiFunction jacobiFunctionOcean;
 
-    private boolean mod35Used;
     private Band tcwvBand;
     private Band tcwvUncertaintyBand;
     private Band tcwvQualityFlagBand;
@@ -135,6 +172,9 @@ public class TcwvOp extends Operator {
 
     private Band seaiceMaskTestBand;
 
+    private RetrievalPlan retrievalPlan;
+    private PixelClassifDecoder pixelClassifDecoder;
+
     @Override
     public void initialize() throws OperatorException {
 
@@ -142,15 +182,16 @@ public class TcwvOp extends Operator {
             throw new OperatorException("No sensor selected - TCWV computation aborted.");
         }
         validateSourceProduct(sensor, sourceProduct);
+        retrievalPlan = sensor.getRetrievalPlan();
         if (sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
             validateMod35Product();
             pixelClassifBand = mod35Product.getBand(TcwvConstants.PIXEL_CLASSIF_BAND_NAME);
-//            idepixClassifBand = sourceProduct.getBand(TcwvConstants.PIXEL_CLASSIF_BAND_NAME);
-            mod35Used = true;
+            pixelClassifDecoder = PixelClassifDecoder.createMod35();
         } else {
             pixelClassifBand = sourceProduct.getBand(TcwvConstants.PIXEL_CLASSIF_BAND_NAME);
-            idepixClassifBand = pixelClassifBand;
-            mod35Used = false;
+            pixelClassifDecoder = PixelClassifDecoder.createIdepix(cloudFilterLevel,
+                                                                   retrievalPlan.isIdepixCloudAmbiguousIsCloudSure(),
+                                                                   retrievalPlan.isSeaIceFromIdepix());
         }
 
         // test 20201115: take sea ice from L3 HOAPS product collocated with source product
@@ -161,10 +202,17 @@ public class TcwvOp extends Operator {
             if (auxdataPath == null || auxdataPath.length() == 0) {
                 auxdataPath = TcwvIO.installAuxdataLuts();
             }
-            landLut = TcwvIO.readLandLookupTable(auxdataPath, sensor);
-            if (processOcean) {
-                oceanLut = TcwvIO.readOceanLookupTable(auxdataPath, sensor);
+            // LUTs and functions are shared with other operator instances in this JVM
+            luts = TcwvLutRegistry.getInstance().acquire(auxdataPath, sensor, processOcean, analyticJacobian,
+                                                             lutPrecision);
+            if (pruneLutGeometry) {
+                final TcwvLutPruning.GeometryRange geometryRange = getTiePointGeometryRange();
+                if (!geometryRange.isEmpty()) {
+                    luts = luts.pruneGeometry(geometryRange);
+                }
             }
+            landLut = luts.getLandLut();
+            oceanLut = luts.getOceanLut();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -222,7 +270,13 @@ public class TcwvOp extends Operator {
                 final String bandName = sensor.getOceanFluxAbsBandNames()[i];
                 oceanFluxAbsBands[i] = sourceProduct.getBand(bandName);
             }
+
+            fluxBands = new Band[sensor.getFluxBandNames().length];
+            for (int i = 0; i < fluxBands.length; i++) {
+                fluxBands[i] = sourceProduct.getBand(sensor.getFluxBandNames()[i]);
+            }
         }
+        minCoastNormRadBand = sourceProduct.getBand(sensor.getMinCoastNormRadBandName());
 
         priorT2mBand = null;
         priorMslBand = null;
@@ -294,17 +348,77 @@ public class TcwvOp extends Operator {
             seaLevelPressBand = sourceProduct.getRasterDataNode(sensor.getSlpBandName());
         }
 
-        tcwvAlgorithm = new TcwvAlgorithm();
+        tcwvAlgorithm = new TcwvAlgorithm(inversionMethod);
 
-        tcwvFunctionLand = TcwvInterpolation.getForwardFunctionLand(landLut);
-        jacobiFunctionland = TcwvInterpolation.getJForwardFunctionLand(landLut);
+        tcwvFunctionLand = luts.getTcwvFunctionLand();
+        jacobiFunctionland = luts.getJacobiFunctionLand();
         if (processOcean) {
-            tcwvFunctionOcean = TcwvInterpolation.getForwardFunctionOcean(oceanLut);
-            jacobiFunctionOcean = TcwvInterpolation.getJForwardFunctionOcean(oceanLut);
+            tcwvFunctionOcean = luts.getTcwvFunctionOcean();
+            jacobiFunctionOcean = luts.getJacobiFunctionOcean();
         }
 
     }
 
+    private TcwvLutPruning.GeometryRange getTiePointGeometryRange() {
+        final TcwvLutPruning.GeometryRange range = new TcwvLutPruning.GeometryRange();
+        final TiePointGrid szaTpg = sourceProduct.getTiePointGrid(sensor.getTpgNames()[0]);
+        final TiePointGrid vzaTpg = sourceProduct.getTiePointGrid(sensor.getTpgNames()[1]);
+        final TiePointGrid saaTpg = sourceProduct.getTiePointGrid(sensor.getTpgNames()[2]);
+        final TiePointGrid vaaTpg = sourceProduct.getTiePointGrid(sensor.getTpgNames()[3]);
+        if (szaTpg == null || vzaTpg == null || saaTpg == null || vaaTpg == null) {
+            // geometry given as bands (MODIS): a full pass would be needed, so do not prune
+            return range;
+        }
+        // bilinear interpolation of the tie points stays within the range of the tie points
+        for (float sza : szaTpg.getTiePoints()) {
+            range.addSza(sza);
+        }
+        for (float vza : vzaTpg.getTiePoints()) {
+            range.addVza(vza);
+        }
+        final float[] saa = saaTpg.getTiePoints();
+        final float[] vaa = vaaTpg.getTiePoints();
+        final int tpgWidth = saaTpg.getGridWidth();
+        final int tpgHeight = saaTpg.getGridHeight();
+        final double[] saaCell = new double[4];
+        final double[] vaaCell = new double[4];
+        for (int y = 0; y < tpgHeight - 1; y++) {
+            for (int x = 0; x < tpgWidth - 1; x++) {
+                final int i = y * tpgWidth + x;
+                saaCell[0] = saa[i];
+                saaCell[1] = saa[i + 1];
+                saaCell[2] = saa[i + tpgWidth];
+                saaCell[3] = saa[i + tpgWidth + 1];
+                vaaCell[0] = vaa[i];
+                vaaCell[1] = vaa[i + 1];
+                vaaCell[2] = vaa[i + tpgWidth];
+                vaaCell[3] = vaa[i + tpgWidth + 1];
+                range.addAzimuthCell(saaCell, vaaCell);
+            }
+        }
+        range.limitSza(TcwvConstants.SZA_MAX_VALUE);
+        return range;
+    }
+
+    @Override
+    public void dispose() {
+        TcwvLutRegistry.getInstance().release(luts);
+        // the pruned LUTs are not shared, drop them with the operator
+        luts = null;
+        landLut = null;
+        oceanLut = null;
+        tcwvFunctionLand = null;
+        jacobiFunctionland = null;
+        tcwvFunctionOcean = null;
+        jacobiFunctionOcean = null;
+        tcwvAlgorithm = null;
+        super.dispose();
+    }
+
+    TcwvLutRegistry.Luts getLuts() {
+        return luts;
+    }
+
     @Override
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws OperatorException {
 
@@ -316,158 +430,195 @@ public class TcwvOp extends Operator {
         stateVector2Band = targetProduct.getBand(TcwvConstants.TCWV_STATE_VECTOR2_BAND_NAME);
         costFunctionBand = targetProduct.getBand(TcwvConstants.TCWV_COST_FUNCTION_BAND_NAME);
 
-        Tile[] landWinBandTiles = getSourceTiles(landWinBands, targetRectangle);
-        Tile[] landAbsBandTiles = getSourceTiles(landAbsBands, targetRectangle);
-        Tile[] oceanWinBandTiles = getSourceTiles(oceanWinBands, targetRectangle);
-        Tile[] oceanAbsBandTiles = getSourceTiles(oceanAbsBands, targetRectangle);
-
-        Tile[] landFluxWinBandTiles = null;
-        Tile[] landFluxAbsBandTiles = null;
-        Tile[] oceanFluxWinBandTiles = null;
-        Tile[] oceanFluxAbsBandTiles = null;
-        if (sensor == Sensor.MERIS) {
-            landFluxWinBandTiles = getSourceTiles(landFluxWinBands, targetRectangle);
-            landFluxAbsBandTiles = getSourceTiles(landFluxAbsBands, targetRectangle);
-            oceanFluxWinBandTiles = getSourceTiles(oceanFluxWinBands, targetRectangle);
-            oceanFluxAbsBandTiles = getSourceTiles(oceanFluxAbsBands, targetRectangle);
-        }
-
-        Tile[] atmTempTiles = null;
-        if (atmTempBands != null) {
-            atmTempTiles = getSourceTiles(atmTempBands, targetRectangle);
-        }
-
-        Tile szaTile = getSourceTile(szaBand, targetRectangle);
-        Tile vzaTile = getSourceTile(vzaBand, targetRectangle);
-        Tile saaTile = getSourceTile(saaBand, targetRectangle);
-        Tile vaaTile = getSourceTile(vaaBand, targetRectangle);
+        final TargetData targetData = new TargetData(targetRectangle.width * targetRectangle.height);
 
-        Tile altitudeTile = getSourceTile(altitudeBand, targetRectangle);
-        Tile seaLevelPressTile = null;
-        if (seaLevelPressBand != null) {
-            seaLevelPressTile = getSourceTile(seaLevelPressBand, targetRectangle);
-        }
-
-        Tile pixelClassifTile = getSourceTile(pixelClassifBand, targetRectangle);
-        Tile idepixClassifTile = null;
-        if (sensor != Sensor.MODIS_TERRA && sensor != Sensor.MODIS_AQUA) {
-            idepixClassifTile = getSourceTile(idepixClassifBand, targetRectangle);
-        }
+        // cheap first pass over classification and SZA only. The spectral, geometry and prior tiles (and the upstream
+        // computations behind them) are only requested if there is anything to do in the rectangle:
+        final TileRowReader szaReader = getRowReader(szaBand, targetRectangle);
+        final TileRowReader pixelClassifReader = getRowReader(pixelClassifBand, targetRectangle);
+        final TileRowReader seaiceMaskTestReader = getRowReader(seaiceMaskTestBand, targetRectangle);
 
-        Tile seaiceMaskTestTile = null;
-        if (seaiceMaskTestBand != null) {
-            seaiceMaskTestTile = getSourceTile(seaiceMaskTestBand, targetRectangle);
+        final int[] numCandidates = countRetrievalCandidates(targetRectangle, szaReader, pixelClassifReader);
+        if (numCandidates[0] == 0) {
+            // no pixel can become valid (e.g. night side of the orbit): just fill invalid outputs
+            setTileInvalid(targetRectangle, seaiceMaskTestReader, targetData);
+            targetData.write(targetTiles, tcwvSurfaceTypeFlagBand);
+            return;
         }
-
-        Tile priorT2mTile = getTcwvInputTile(priorT2mBand, targetRectangle);
-        Tile priorMslTile = getTcwvInputTile(priorMslBand, targetRectangle);
-        Tile priorTcwvTile = getTcwvInputTile(priorTcwvBand, targetRectangle);
-        Tile priorU10Tile = getTcwvInputTile(priorU10Band, targetRectangle);
-        Tile priorV10Tile = getTcwvInputTile(priorV10Band, targetRectangle);
-        Tile priorWspTile = getTcwvInputTile(priorWspBand, targetRectangle);
-
-        double[] landWinBandData = new double[landWinBandTiles.length];
-        double[] landAbsBandData = new double[landAbsBandTiles.length];
-        double[] oceanWinBandData = new double[oceanWinBandTiles.length];
-        double[] oceanAbsBandData = new double[oceanAbsBandTiles.length];
-
-        double[] landFluxWinBandData = null;
-        double[] landFluxAbsBandData = null;
-        double[] oceanFluxWinBandData = null;
-        double[] oceanFluxAbsBandData = null;
-        if (sensor == Sensor.MERIS) {
-            landFluxWinBandData = new double[landWinBandTiles.length];
-            landFluxAbsBandData = new double[landAbsBandTiles.length];
-            oceanFluxWinBandData = new double[oceanWinBandTiles.length];
-            oceanFluxAbsBandData = new double[oceanAbsBandTiles.length];
+        // all pixels might be valid but cloudy, then the reflectances are still needed for the surface type flags
+        final boolean retrieve = numCandidates[1] > 0;
+
+        // the source tiles are fetched once, and then read row by row from their raw data buffers:
+        final TileRowReader[] landWinReaders = getRowReaders(landWinBands, targetRectangle);
+        final TileRowReader[] landAbsReaders = getRowReaders(landAbsBands, targetRectangle);
+        final TileRowReader[] oceanWinReaders = getRowReaders(oceanWinBands, targetRectangle);
+        final TileRowReader[] oceanAbsReaders = getRowReaders(oceanAbsBands, targetRectangle);
+
+        TileRowReader[] landFluxWinReaders = null;
+        TileRowReader[] landFluxAbsReaders = null;
+        TileRowReader[] oceanFluxWinReaders = null;
+        TileRowReader[] oceanFluxAbsReaders = null;
+        TileRowReader[] fluxReaders = null;
+        if (retrievalPlan.isFluxNormalised()) {
+            landFluxWinReaders = getRowReaders(landFluxWinBands, targetRectangle);
+            landFluxAbsReaders = getRowReaders(landFluxAbsBands, targetRectangle);
+            oceanFluxWinReaders = getRowReaders(oceanFluxWinBands, targetRectangle);
+            oceanFluxAbsReaders = getRowReaders(oceanFluxAbsBands, targetRectangle);
+            fluxReaders = getRowReaders(fluxBands, targetRectangle);
         }
+        final TileRowReader minCoastNormRadReader = getRowReader(minCoastNormRadBand, targetRectangle);
+
+        // geometry, priors and temperatures are only needed for the retrieval itself:
+        final TileRowReader[] atmTempReaders = retrieve ? getRowReaders(atmTempBands, targetRectangle) : null;
+
+        final TileRowReader vzaReader = retrieve ? getRowReader(vzaBand, targetRectangle) : null;
+        final TileRowReader saaReader = retrieve ? getRowReader(saaBand, targetRectangle) : null;
+        final TileRowReader vaaReader = retrieve ? getRowReader(vaaBand, targetRectangle) : null;
+
+        final TileRowReader altitudeReader = retrieve ? getRowReader(altitudeBand, targetRectangle) : null;
+        final TileRowReader seaLevelPressReader = retrieve ? getRowReader(seaLevelPressBand, targetRectangle) : null;
+
+        final TileRowReader priorT2mReader = retrieve ? getRowReader(priorT2mBand, targetRectangle) : null;
+        final TileRowReader priorMslReader = retrieve ? getRowReader(priorMslBand, targetRectangle) : null;
+        final TileRowReader priorTcwvReader = retrieve ? getRowReader(priorTcwvBand, targetRectangle) : null;
+        final TileRowReader priorU10Reader = retrieve ? getRowReader(priorU10Band, targetRectangle) : null;
+        final TileRowReader priorV10Reader = retrieve ? getRowReader(priorV10Band, targetRectangle) : null;
+        final TileRowReader priorWspReader = retrieve ? getRowReader(priorWspBand, targetRectangle) : null;
+
+        final double[][] landWinRows = new double[landWinReaders.length][];
+        final double[][] landAbsRows = new double[landAbsReaders.length][];
+        final double[][] oceanWinRows = new double[oceanWinReaders.length][];
+        final double[][] oceanAbsRows = new double[oceanAbsReaders.length][];
+        final double[][] landFluxWinRows = landFluxWinReaders != null ? new double[landFluxWinReaders.length][] : null;
+        final double[][] landFluxAbsRows = landFluxAbsReaders != null ? new double[landFluxAbsReaders.length][] : null;
+        final double[][] oceanFluxWinRows = oceanFluxWinReaders != null ? new double[oceanFluxWinReaders.length][] : null;
+        final double[][] oceanFluxAbsRows = oceanFluxAbsReaders != null ? new double[oceanFluxAbsReaders.length][] : null;
+        final double[][] fluxRows = fluxReaders != null ? new double[fluxReaders.length][] : null;
+        final double[][] atmTempRows = atmTempReaders != null ? new double[atmTempReaders.length][] : null;
+
+        final double[] landWinBandData = new double[landWinReaders.length];
+        final double[] landAbsBandData = new double[landAbsReaders.length];
+        final double[] oceanWinBandData = new double[oceanWinReaders.length];
+        final double[] oceanAbsBandData = new double[oceanAbsReaders.length];
 
         double[] atmTempData = null;
-        if (atmTempTiles != null) {
-            atmTempData = new double[atmTempTiles.length];
+        if (atmTempReaders != null) {
+            atmTempData = new double[atmTempReaders.length];
         }
 
-        Tile[] winBandTiles;
-        Tile[] absBandTiles;
-        double[] winBandData;
-        double[] absBandData;
-
-        Tile[] fluxWinBandTiles = null;
-        Tile[] fluxAbsBandTiles = null;
+        // the retrieval is done row by row, for all valid pixels of a row at once:
+        final TcwvBatch batch = new TcwvBatch(sensor, targetRectangle.width);
+        final boolean[] process = batch.getProcess();
+        batch.setWarmStart(warmStart);
 
         for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
             checkForCancellation();
-            for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
-//                if (x == 157 && y == 132) {
-//                    System.out.println("x = " + x);
-//                }
+
+            TileRowReader.readRows(landWinReaders, y, landWinRows);
+            TileRowReader.readRows(landAbsReaders, y, landAbsRows);
+            TileRowReader.readRows(oceanWinReaders, y, oceanWinRows);
+            TileRowReader.readRows(oceanAbsReaders, y, oceanAbsRows);
+            TileRowReader.readRows(landFluxWinReaders, y, landFluxWinRows);
+            TileRowReader.readRows(landFluxAbsReaders, y, landFluxAbsRows);
+            TileRowReader.readRows(oceanFluxWinReaders, y, oceanFluxWinRows);
+            TileRowReader.readRows(oceanFluxAbsReaders, y, oceanFluxAbsRows);
+            TileRowReader.readRows(fluxReaders, y, fluxRows);
+            TileRowReader.readRows(atmTempReaders, y, atmTempRows);
+
+            final double[] szaRow = szaReader.readRow(y);
+            final double[] vzaRow = vzaReader != null ? vzaReader.readRow(y) : null;
+            final double[] saaRow = saaReader != null ? saaReader.readRow(y) : null;
+            final double[] vaaRow = vaaReader != null ? vaaReader.readRow(y) : null;
+            final double[] altitudeRow = altitudeReader != null ? altitudeReader.readRow(y) : null;
+            final double[] seaLevelPressRow = seaLevelPressReader != null ? seaLevelPressReader.readRow(y) : null;
+            final double[] minCoastNormRadRow = minCoastNormRadReader.readRow(y);
+            final int[] pixelClassifRow = pixelClassifReader.readIntRow(y);
+            // mask values are compared as geophysical values (as by getSampleInt), the mask band may be scaled
+            final int[] seaiceMaskTestRow =
+                    seaiceMaskTestReader != null ? seaiceMaskTestReader.readIntSampleRow(y) : null;
+            final double[] priorT2mRow = priorT2mReader != null ? priorT2mReader.readRow(y) : null;
+            final double[] priorMslRow = priorMslReader != null ? priorMslReader.readRow(y) : null;
+            final double[] priorTcwvRow = priorTcwvReader != null ? priorTcwvReader.readRow(y) : null;
+            final double[] priorU10Row = priorU10Reader != null ? priorU10Reader.readRow(y) : null;
+            final double[] priorV10Row = priorV10Reader != null ? priorV10Reader.readRow(y) : null;
+            final double[] priorWspRow = priorWspReader != null ? priorWspReader.readRow(y) : null;
+
+            final int rowOffset = (y - targetRectangle.y) * targetRectangle.width;
+
+            int numProcess = 0;
+            for (int p = 0; p < targetRectangle.width; p++) {
+                final int tileIndex = rowOffset + p;
 
                 // set to invalid if SZA > 75deg (RP, Jan 2020)
-                final double sza = szaTile.getSampleDouble(x, y);
+                final double sza = szaRow[p];
                 final double szaR = sza * MathUtils.DTOR;
                 final double csza = Math.cos(szaR);
 
-                boolean isLand = mod35Used ? isMod35Land(x, y, pixelClassifTile) :
-                        isIdepixLand(x, y, pixelClassifTile);
+                // all flag word tests at once, see PixelClassifDecoder:
+                final int classifDecision = pixelClassifDecoder.decode(pixelClassifRow[p]);
+                boolean isLand = PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.LAND);
 
-                winBandTiles = isLand ? landWinBandTiles : oceanWinBandTiles;
-                absBandTiles = isLand ? landAbsBandTiles : oceanAbsBandTiles;
+                double[][] winRows = isLand ? landWinRows : oceanWinRows;
+                double[][] absRows = isLand ? landAbsRows : oceanAbsRows;
 
-                boolean isValid = isValidNormalizedReflectances(x, y, csza, winBandTiles, absBandTiles, targetRectangle) &&
+                boolean isValid = isValidNormalizedReflectances(p, csza, winRows, absRows, fluxRows) &&
                         sza <= TcwvConstants.SZA_MAX_VALUE &&
-                        (mod35Used || !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_INVALID_BIT));
+                        !PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.INVALID);
                 isLand = isLand && isValid;
-                boolean isSeaIce = false;
-                if (sensor != Sensor.MODIS_TERRA && sensor != Sensor.MODIS_AQUA) {
-                    isSeaIce = isValid && isIdepixSeaIce(x, y, idepixClassifTile);
-                }
+                // sea ice from the classification only if the retrieval plan says so (not for MODIS):
+                boolean isSeaIce = isValid && PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.SEA_ICE);
                 // test 20201115: take sea ice from L3 HOAPS product collocated with source product
-                if (seaiceMaskTestTile != null) {
-                    isSeaIce = seaiceMaskTestTile.getSampleInt(x, y) == 11 || seaiceMaskTestTile.getSampleInt(x, y) == 12;
+                if (seaiceMaskTestRow != null) {
+                    isSeaIce = seaiceMaskTestRow[p] == 11 || seaiceMaskTestRow[p] == 12;
                 }
                 isLand = isLand || isSeaIce;  // sea ice should always be processed as land! (RP, Nov 2020)
 
-                final boolean isCloud = isValid && (mod35Used ? isMod35Cloud(x, y, pixelClassifTile) :
-                        isIdepixCloud(x, y, pixelClassifTile));
-
-                final boolean isCoastline = isValid && (mod35Used ? isMod35Coastline(x, y, pixelClassifTile) :
-                        isIdepixCoastline(x, y, pixelClassifTile));
+                final boolean isCloud = isValid && PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.CLOUD);
 
+                final boolean isCoastline = isValid &&
+                        PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.COASTLINE);
 
-                targetTiles.get(tcwvSurfaceTypeFlagBand).setSample(x, y, TcwvConstants.SURFACE_TYPE_CLOUD, isCloud);
-                targetTiles.get(tcwvSurfaceTypeFlagBand).setSample(x, y, TcwvConstants.SURFACE_TYPE_SEA_ICE, isSeaIce);
-                targetTiles.get(tcwvSurfaceTypeFlagBand).setSample(x, y, TcwvConstants.SURFACE_TYPE_UNDEFINED, !isValid);
+                int surfaceTypeFlags = 0;
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_CLOUD, isCloud);
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_SEA_ICE, isSeaIce);
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_UNDEFINED, !isValid);
 
                 // declare as land also coastline pixels and pixels for which the reference reflectance (sensor dependent)
                 // exceeds certain threshold. Then make sure that finally land/ocean/seaice are complementary!
-                isLand = isLand || (isCoastline && applyLandForCoastlinesAndRivers(y, x, csza, targetRectangle));
-                targetTiles.get(tcwvSurfaceTypeFlagBand).setSample(x, y, TcwvConstants.SURFACE_TYPE_LAND, isLand);
+                isLand = isLand || (isCoastline && applyLandForCoastlinesAndRivers(p, csza, minCoastNormRadRow));
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_LAND, isLand);
                 final boolean isOcean = isValid && !isLand && !isSeaIce;
 
-                targetTiles.get(tcwvSurfaceTypeFlagBand).setSample(x, y, TcwvConstants.SURFACE_TYPE_OCEAN, isOcean);
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_OCEAN, isOcean);
+                targetData.surfaceTypeFlags[tileIndex] = surfaceTypeFlags;
 
                 // update win/abs bands according to possible change of isLand (important for MODIS!):
-                winBandTiles = isLand ? landWinBandTiles : oceanWinBandTiles;
-                absBandTiles = isLand ? landAbsBandTiles : oceanAbsBandTiles;
-                winBandData = isLand ? landWinBandData : oceanWinBandData;
-                absBandData = isLand ? landAbsBandData : oceanAbsBandData;
-
-                if (sensor == Sensor.MERIS) {
-                    fluxWinBandTiles = isLand ? landFluxWinBandTiles : oceanFluxWinBandTiles;
-                    fluxAbsBandTiles = isLand ? landFluxAbsBandTiles : oceanFluxAbsBandTiles;
+                winRows = isLand ? landWinRows : oceanWinRows;
+                absRows = isLand ? landAbsRows : oceanAbsRows;
+                final double[] winBandData = isLand ? landWinBandData : oceanWinBandData;
+                final double[] absBandData = isLand ? landAbsBandData : oceanAbsBandData;
+
+                double[][] fluxWinRows = null;
+                double[][] fluxAbsRows = null;
+                if (retrievalPlan.isFluxNormalised()) {
+                    fluxWinRows = isLand ? landFluxWinRows : oceanFluxWinRows;
+                    fluxAbsRows = isLand ? landFluxAbsRows : oceanFluxAbsRows;
                 }
 
-                if (!isValid || isCloud || (!processOcean && !isLand)) {
-                    setTcwvResultInvalid(x, y, targetTiles);
+                process[p] = isValid && !isCloud && (processOcean || isLand);
+                if (!process[p]) {
+                    targetData.setInvalid(tileIndex);
                 } else {
+                    numProcess++;
                     // Preparing input data...
-                    final double vzaR = vzaTile.getSampleDouble(x, y) * MathUtils.DTOR;
-                    final double saaR = saaTile.getSampleDouble(x, y) * MathUtils.DTOR;
-                    final double vaaR = vaaTile.getSampleDouble(x, y) * MathUtils.DTOR;
+                    final double vza = vzaRow[p];
+                    final double vzaR = vza * MathUtils.DTOR;
+                    final double saaR = saaRow[p] * MathUtils.DTOR;
+                    final double vaaR = vaaRow[p] * MathUtils.DTOR;
                     final double relAzi = 180. - Math.acos(Math.cos(saaR) * Math.cos(vaaR) +
                             Math.sin(saaR) * Math.sin(vaaR)) * MathUtils.RTOD;
                     final double amf = 1. / csza + 1. / Math.cos(vzaR);
-                    final double altitude = altitudeTile.getSampleDouble(x, y);
+                    final double altitude = altitudeRow[p];
 
                     // priors from TPs for MERIS, OLCI (RP Sep 2022):
                     // sea_level_pressure (OLCI), atm_press (MERIS) --> not new, but compute surface pressure now!
@@ -483,23 +634,23 @@ public class TcwvOp extends Operator {
                     double surfacePress = mslPressure;
                     double slp= mslPressure;
                     if (isLand) {
-                        if (seaLevelPressTile != null) {
+                        if (seaLevelPressRow != null) {
                             // MERIS, OLCI: from TPG
-                            slp = seaLevelPressTile.getSampleDouble(x, y);
+                            slp = seaLevelPressRow[p];
                         } else {
                             // MODIS
-                            if (priorMslTile != null) {
+                            if (priorMslRow != null) {
                                 // ERA Interim: Pa, e.g. 100500  --> divide by -100 to get negative hPa for current LUTs
-                                slp = priorMslTile.getSampleDouble(x, y) / 100.0;
+                                slp = priorMslRow[p] / 100.0;
                             }
                         }
                         surfacePress = TcwvUtils.getSurfacePressure(slp, altitude);
-                        t2m = priorT2mTile != null ? priorT2mTile.getSampleDouble(x, y) : temperature;
+                        t2m = priorT2mRow != null ? priorT2mRow[p] : temperature;
 
                         if (atmTempData != null) {
                             // MERIS, OLCI: from TPGs
                             for (int i = 0; i < atmTempData.length; i++) {
-                                atmTempData[i] = atmTempTiles[i].getSampleDouble(x, y);
+                                atmTempData[i] = atmTempRows[i][p];
                             }
                             try {
                                 t2m = TcwvUtils.getSurfaceTemperature(sensor, atmTempData, surfacePress);
@@ -507,109 +658,147 @@ public class TcwvOp extends Operator {
                             }
                         }
                     } else {
-                        if (priorU10Tile != null && priorV10Tile != null) {
-                            final double u10 = priorU10Tile.getSampleDouble(x, y);
-                            final double v10 = priorV10Tile.getSampleDouble(x, y);
+                        if (priorU10Row != null && priorV10Row != null) {
+                            final double u10 = priorU10Row[p];
+                            final double v10 = priorV10Row[p];
                             priorWs = Math.sqrt(u10 * u10 + v10 * v10);
-                        } else if (priorWspTile != null) {
-                            priorWs = priorWspTile.getSampleDouble(x, y);
+                        } else if (priorWspRow != null) {
+                            priorWs = priorWspRow[p];
                         }
                     }
 
                     final double priorAot = isLand ? TcwvConstants.AOT_FALLBACK_LAND : TcwvConstants.AOT_FALLBACK_OCEAN;
 
                     final double priorTcwv =
-                            priorTcwvTile != null ? priorTcwvTile.getSampleDouble(x, y) : TcwvConstants.TCWV_INIT_VALUE;
+                            priorTcwvRow != null ? priorTcwvRow[p] : TcwvConstants.TCWV_INIT_VALUE;
 
-                    normalizeSpectralInputBands(y, x, csza, winBandTiles, winBandData, fluxWinBandTiles);
-                    normalizeSpectralInputBands(y, x, csza, absBandTiles, absBandData, fluxAbsBandTiles);
+                    normalizeSpectralInputBands(p, csza, winRows, winBandData, fluxWinRows);
+                    normalizeSpectralInputBands(p, csza, absRows, absBandData, fluxAbsRows);
 
                     double priorAl0 = TcwvConstants.AL0_INIT_VALUE;
                     double priorAl1 = TcwvConstants.AL1_INIT_VALUE;
                     if (isLand) {
-                        if (sensor == Sensor.MERIS || sensor == Sensor.OLCI ||
-                                sensor == Sensor.OLCI_A || sensor == Sensor.OLCI_B) {
+                        if (retrievalPlan.isAlbedoPriorDividedByCsza()) {
                             // for MERIS, set to rad * PI / csza = refl_input*flux (RP 20200316):
                             priorAl0 = winBandData[0] * Math.PI / csza;
                             priorAl1 = winBandData[1] * Math.PI / csza;
-                        } else if (sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-                            // for MERIS, set to rad * PI / csza = refl_input*flux (RP 20200316):
+                        } else {
                             priorAl0 = winBandData[0] * Math.PI;
                             priorAl1 = winBandData[1] * Math.PI;
                         }
                     }
 
-                    TcwvAlgorithmInput input = new TcwvAlgorithmInput(winBandData, absBandData, sza,
-                            vzaTile.getSampleDouble(x, y), relAzi,
-                            amf, priorAot, priorAl0, priorAl1,
-                            t2m, surfacePress, priorWs, priorTcwv);
-
-                    // 'ocean' parameters are null for land processing!
-                    final TcwvResult result = tcwvAlgorithm.compute(sensor, landLut, oceanLut,
-                            tcwvFunctionLand, tcwvFunctionOcean,
-                            jacobiFunctionland, jacobiFunctionOcean,
-                            input, isLand, isCoastline);
-
-                    targetTiles.get(tcwvBand).setSample(x, y, result.getTcwv());
-                    if (writeCostFunctionValue) {
-                        targetTiles.get(costFunctionBand).setSample(x, y, result.getCost());
+                    for (int i = 0; i < winBandData.length; i++) {
+                        batch.getRhoToaWin()[i][p] = winBandData[i];
                     }
-                    if (writeFullStateVector) {
-                        targetTiles.get(stateVector1Band).setSample(x, y, result.getStateVector1());
-                        targetTiles.get(stateVector2Band).setSample(x, y, result.getStateVector2());
+                    for (int i = 0; i < absBandData.length; i++) {
+                        batch.getRhoToaAbs()[i][p] = absBandData[i];
                     }
-                    targetTiles.get(tcwvUncertaintyBand).setSample(x, y, result.getTcwvUncertainty());
+                    batch.getSza()[p] = sza;
+                    batch.getVza()[p] = vza;
+                    batch.getRelAzi()[p] = relAzi;
+                    batch.getAmf()[p] = amf;
+                    batch.getPriorAot()[p] = priorAot;
+                    batch.getPriorAl0()[p] = priorAl0;
+                    batch.getPriorAl1()[p] = priorAl1;
+                    batch.getPriorT2m()[p] = t2m;
+                    batch.getPriorMslPress()[p] = surfacePress;
+                    batch.getPriorWsp()[p] = priorWs;
+                    batch.getPriorTcwv()[p] = priorTcwv;
+                    batch.getLand()[p] = isLand;
+                    batch.getCoastline()[p] = isCoastline;
+                }
+            }
 
-                    if (result.getTcwv() < TcwvConstants.TCWV_RETRIEVAL_TCWV_LOWER_LIMIT ||
-                            result.getTcwv() > TcwvConstants.TCWV_RETRIEVAL_TCWV_UPPER_LIMIT ||
-                            result.getCost() > TcwvConstants.TCWV_RETRIEVAL_COST_UPPER_LIMIT) {
-                        setTcwvResultInvalid(x, y, targetTiles);
+            if (numProcess == 0) {
+                batch.resetWarmStart();
+                continue;
+            }
 
-                    } else {
-                        if (result.getCost() > TcwvConstants.TCWV_RETRIEVAL_COST_2) {
-                            targetTiles.get(tcwvQualityFlagBand).setSample(x, y, TcwvConstants.TCWV_COST_FUNCTION_2, true);
-                        } else if (result.getCost() > TcwvConstants.TCWV_RETRIEVAL_COST_1) {
-                            targetTiles.get(tcwvQualityFlagBand).setSample(x, y, TcwvConstants.TCWV_COST_FUNCTION_1, true);
-                        } else {
-                            targetTiles.get(tcwvQualityFlagBand).setSample(x, y, TcwvConstants.TCWV_OK, true);
-                        }
-                    }
+            // 'ocean' parameters are null for land processing!
+            tcwvAlgorithm.compute(sensor, landLut, oceanLut,
+                    tcwvFunctionLand, tcwvFunctionOcean,
+                    jacobiFunctionland, jacobiFunctionOcean,
+                    batch);
+
+            for (int p = 0; p < targetRectangle.width; p++) {
+                if (process[p]) {
+                    targetData.setResult(rowOffset + p, batch.getTcwv()[p], batch.getTcwvUncertainty()[p],
+                                         batch.getCost()[p], batch.getStateVector1()[p], batch.getStateVector2()[p]);
                 }
             }
         }
-    }
 
-    private void setTcwvResultInvalid(int x, int y, Map<Band, Tile> targetTiles) {
-        targetTiles.get(tcwvBand).setSample(x, y, Float.NaN);
-        targetTiles.get(tcwvUncertaintyBand).setSample(x, y, Float.NaN);
-        targetTiles.get(tcwvQualityFlagBand).setSample(x, y, TcwvConstants.TCWV_INVALID, true);
-        if (writeCostFunctionValue) {
-            targetTiles.get(costFunctionBand).setSample(x, y, Float.NaN);
+        if (warmStart && SystemUtils.LOG.isLoggable(Level.FINE)) {
+            SystemUtils.LOG.log(Level.FINE, String.format(
+                    "TCWV warm start, tile %s: %d cold starts, %d warm starts (%d fallbacks), " +
+                            "estimated OE iterations saved: %.1f", targetRectangle, batch.getNumColdStarts(),
+                    batch.getNumWarmStarts(), batch.getNumWarmStartFallbacks(),
+                    batch.getEstimatedIterationsSaved()));
         }
-        if (writeFullStateVector) {
-            targetTiles.get(stateVector1Band).setSample(x, y, Float.NaN);
-            targetTiles.get(stateVector2Band).setSample(x, y, Float.NaN);
+
+        targetData.write(targetTiles, tcwvSurfaceTypeFlagBand);
+    }
+
+    // counts the pixels which might be valid, and those which might be retrieved (valid and not cloudy),
+    // from the classification flags and SZA only
+    private int[] countRetrievalCandidates(Rectangle targetRectangle, TileRowReader szaReader,
+                                           TileRowReader pixelClassifReader) {
+        int numValidityCandidates = 0;
+        int numRetrievalCandidates = 0;
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            final double[] szaRow = szaReader.readRow(y);
+            final int[] pixelClassifRow = pixelClassifReader.readIntRow(y);
+            for (int p = 0; p < targetRectangle.width; p++) {
+                final int classifDecision = pixelClassifDecoder.decode(pixelClassifRow[p]);
+                if (szaRow[p] <= TcwvConstants.SZA_MAX_VALUE &&
+                        !PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.INVALID)) {
+                    numValidityCandidates++;
+                    if (!PixelClassifDecoder.isSet(classifDecision, PixelClassifDecoder.CLOUD)) {
+                        numRetrievalCandidates++;
+                    }
+                }
+            }
         }
+        return new int[]{numValidityCandidates, numRetrievalCandidates};
     }
 
-    private boolean isValidNormalizedReflectances(int x, int y, double csza, Tile[] winBandTiles, Tile[] absBandTiles,
-                                                  Rectangle targetRectangle) {
-        for (int i = 0; i < winBandTiles.length; i++) {
-            Tile fluxTile = null;
-            if (sensor == Sensor.MERIS) {
-                fluxTile = getSourceTile(sourceProduct.getBand(sensor.getFluxBandNames()[i]), targetRectangle);
+    // all pixels invalid: same outputs as from the pixel loop, without reading the reflectances
+    private void setTileInvalid(Rectangle targetRectangle, TileRowReader seaiceMaskTestReader, TargetData targetData) {
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            // mask values are compared as geophysical values (as by getSampleInt), the mask band may be scaled
+            final int[] seaiceMaskTestRow =
+                    seaiceMaskTestReader != null ? seaiceMaskTestReader.readIntSampleRow(y) : null;
+            final int rowOffset = (y - targetRectangle.y) * targetRectangle.width;
+            for (int p = 0; p < targetRectangle.width; p++) {
+                // test 20201115: take sea ice from L3 HOAPS product collocated with source product
+                final boolean isSeaIce = seaiceMaskTestRow != null &&
+                        (seaiceMaskTestRow[p] == 11 || seaiceMaskTestRow[p] == 12);
+                int surfaceTypeFlags = setFlag(0, TcwvConstants.SURFACE_TYPE_UNDEFINED, true);
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_SEA_ICE, isSeaIce);
+                surfaceTypeFlags = setFlag(surfaceTypeFlags, TcwvConstants.SURFACE_TYPE_LAND, isSeaIce);
+                targetData.surfaceTypeFlags[rowOffset + p] = surfaceTypeFlags;
+                targetData.setInvalid(rowOffset + p);
             }
-            final double normalizedSpectralValue = normalizeSpectralInputBand(y, x, csza, winBandTiles[i], fluxTile);
+        }
+    }
+
+    private static int setFlag(int flags, int bitIndex, boolean value) {
+        return value ? flags | (1 << bitIndex) : flags & ~(1 << bitIndex);
+    }
+
+    private boolean isValidNormalizedReflectances(int p, double csza, double[][] winRows, double[][] absRows,
+                                                  double[][] fluxRows) {
+        for (int i = 0; i < winRows.length; i++) {
+            final double flux = retrievalPlan.isFluxNormalised() ? fluxRows[i][p] : Double.NaN;
+            final double normalizedSpectralValue = normalizeSpectralInputBand(winRows[i][p], csza, flux);
             if (normalizedSpectralValue < TcwvConstants.MIN_NORM_RAD_VALUE) {
                 return false;
             }
         }
-        for (int i = 0; i < absBandTiles.length; i++) {
-            Tile fluxTile = null;
-            if (sensor == Sensor.MERIS) {
-                fluxTile = getSourceTile(sourceProduct.getBand(sensor.getFluxBandNames()[i]), targetRectangle);
-            }
-            final double normalizedSpectralValue = normalizeSpectralInputBand(y, x, csza, absBandTiles[i], fluxTile);
+        for (int i = 0; i < absRows.length; i++) {
+            final double flux = retrievalPlan.isFluxNormalised() ? fluxRows[i][p] : Double.NaN;
+            final double normalizedSpectralValue = normalizeSpectralInputBand(absRows[i][p], csza, flux);
             if (normalizedSpectralValue < TcwvConstants.MIN_NORM_RAD_VALUE) {
                 return false;
             }
@@ -618,124 +807,45 @@ public class TcwvOp extends Operator {
         return true;
     }
 
-    private boolean applyLandForCoastlinesAndRivers(int y, int x, double csza, Rectangle targetRectangle) {
-        final Tile minCoastNormRadTile =
-                getSourceTile(sourceProduct.getBand(sensor.getMinCoastNormRadBandName()), targetRectangle);
-        Tile minCoastFluxTile = null;
-        if (sensor == Sensor.MERIS) {
-            minCoastFluxTile = getSourceTile(sourceProduct.getBand(sensor.getMinCoastNormRadBandName()), targetRectangle);
-        }
-        final double minCoastNormRadValue = normalizeSpectralInputBand(y, x, csza, minCoastNormRadTile, minCoastFluxTile);
+    private boolean applyLandForCoastlinesAndRivers(int p, double csza, double[] minCoastNormRadRow) {
+        // for MERIS, the min coast band is also used as flux band (as before)
+        final double minCoastFlux = retrievalPlan.isFluxNormalised() ? minCoastNormRadRow[p] : Double.NaN;
+        final double minCoastNormRadValue = normalizeSpectralInputBand(minCoastNormRadRow[p], csza, minCoastFlux);
 
         return minCoastNormRadValue > sensor.getMinCoastNormRadValue();
     }
 
-    private Tile[] getSourceTiles(RasterDataNode[] sourceBands, Rectangle rectangle) {
-        Tile[] sourceTiles = new Tile[sourceBands.length];
+    private TileRowReader[] getRowReaders(RasterDataNode[] sourceBands, Rectangle rectangle) {
+        if (sourceBands == null) {
+            return null;
+        }
+        TileRowReader[] rowReaders = new TileRowReader[sourceBands.length];
         for (int i = 0; i < sourceBands.length; i++) {
-            sourceTiles[i] = getSourceTile(sourceBands[i], rectangle);
+            rowReaders[i] = new TileRowReader(getSourceTile(sourceBands[i], rectangle), rectangle);
         }
-        return sourceTiles;
+        return rowReaders;
     }
 
-    private Tile getTcwvInputTile(RasterDataNode sourceBand, Rectangle rectangle) {
+    private TileRowReader getRowReader(RasterDataNode sourceBand, Rectangle rectangle) {
         if (sourceBand != null) {
-            return getSourceTile(sourceBand, rectangle);
+            return new TileRowReader(getSourceTile(sourceBand, rectangle), rectangle);
         } else {
             return null;
         }
     }
 
-    private void normalizeSpectralInputBands(int y, int x, double csza, Tile[] spectralBandTiles,
-                                             double[] spectralBandData, Tile[] spectralFluxTiles) {
+    private void normalizeSpectralInputBands(int p, double csza, double[][] spectralBandRows,
+                                             double[] spectralBandData, double[][] spectralFluxRows) {
         for (int i = 0; i < spectralBandData.length; i++) {
-            final Tile fluxTile = sensor == Sensor.MERIS ? spectralFluxTiles[i] : null;
-            spectralBandData[i] = normalizeSpectralInputBand(y, x, csza, spectralBandTiles[i], fluxTile);
-        }
-    }
-
-    private double normalizeSpectralInputBand(int y, int x, double csza, Tile spectralBandTile, Tile spectralFluxTile) {
-        // clarification of correct normalisation of input reflectances (email RP, 20190903):
-        // - MODIS: refl_for_tcwv = refl_input / PI
-        // - MERIS/OLCI: refl_for_tcwv = radiance / flux = refl_input * cos(sza) / PI , because
-        //          refl_input = radiance * PI / (flux * cos(sza)), see RsMathUtils.radianceToReflectance(...)
-        if (sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-            // this was wrong before!
-            return spectralBandTile.getSampleDouble(x, y) / Math.PI;
-        } else if (sensor == Sensor.OLCI || sensor == Sensor.OLCI_A || sensor == Sensor.OLCI_B) {
-            // this was already correct before
-            return spectralBandTile.getSampleDouble(x, y) * csza / Math.PI;  // PI was missing!! (OD, 20200318)
-        } else {
-            // MERIS 4RP:
-            return spectralBandTile.getSampleDouble(x, y) / spectralFluxTile.getSampleDouble(x, y);
-        }
-    }
-
-    private boolean isIdepixCloud(int x, int y, Tile pixelClassifTile) {
-
-        switch (cloudFilterLevel) {
-            case NO_FILTER:
-                return false;
-            case CLOUD_SURE:
-                if (sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA) {
-                    // for Idepix MODIS, CLOUD_SURE and CLOUD_AMBIGUOUS are actually the same
-                    return pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_SURE_BIT) &&
-                            !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT);
-                } else {
-                    return pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_SURE_BIT) &&
-                            !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT) &&
-                            !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT);
-                }
-            case CLOUD_SURE_BUFFER:
-                return (pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_SURE_BIT) ||
-                        pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT)) &&
-                        !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT);
-            case CLOUD_SURE_AMBIGUOUS:
-                return (pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_SURE_BIT) ||
-                        pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT)) &&
-                        !pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT);
-            case CLOUD_SURE_AMBIGUOUS_BUFFER:
-                return pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_SURE_BIT) ||
-                        pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT) ||
-                        pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT);
-            default:
-                return false;
+            final double flux = retrievalPlan.isFluxNormalised() ? spectralFluxRows[i][p] : Double.NaN;
+            spectralBandData[i] = normalizeSpectralInputBand(spectralBandRows[i][p], csza, flux);
         }
     }
 
-    private boolean isIdepixLand(int x, int y, Tile pixelClassifTile) {
-        return pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_LAND_BIT);
-    }
-
-    private boolean isIdepixCoastline(int x, int y, Tile pixelClassifTile) {
-        return pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_COASTLINE);
-    }
-
-    private boolean isIdepixSeaIce(int x, int y, Tile pixelClassifTile) {
-        return !(isIdepixLand(x, y, pixelClassifTile)) &&
-                pixelClassifTile.getSampleBit(x, y, TcwvConstants.IDEPIX_SNOW_ICE_BIT);
-    }
-
-    private boolean isMod35Cloud(int x, int y, Tile pixelClassifTile) {
-//        return pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.CLOUD_DETERMINED_BIT_INDEX) &&
-//                (pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.CLOUD_CERTAIN_BIT_INDEX) ||
-//                        pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.CLOUD_UNCERTAIN_BIT_INDEX));
-
-        // make this even more strict: regard as cloud and exclude everything which is not certainly clear and not snow
-        // (RP, 20190902)
-        return !pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.CLEAR_CERTAIN_BIT_INDEX) &&
-                !pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.SNOW_ICE_BIT_INDEX);
-
-    }
-
-    private boolean isMod35Land(int x, int y, Tile pixelClassifTile) {
-        return pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.SNOW_ICE_BIT_INDEX) ||
-                pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.DESERT_BIT_INDEX) ||
-                pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.LAND_BIT_INDEX);
-    }
-
-    private boolean isMod35Coastline(int x, int y, Tile pixelClassifTile) {
-        return pixelClassifTile.getSampleBit(x, y, ModisMod35L2Constants.COASTAL_BIT_INDEX);
+    private double normalizeSpectralInputBand(double spectralValue, double csza, double spectralFlux) {
+        // clarification of correct normalisation of input reflectances (email RP, 20190903),
+        // see RetrievalPlan.SpectralNormalisation
+        return retrievalPlan.getSpectralNormalisation().normalise(spectralValue, csza, spectralFlux);
     }
 
     private static void validateSourceProduct(Sensor sensor, Product sourceProduct) {
@@ -855,6 +965,81 @@ public class TcwvOp extends Operator {
     }
 
 
+    /**
+     * Target samples of a tile, collected for the whole tile and written once per band.
+     */
+    private class TargetData {
+        final double[] tcwv;
+        final double[] tcwvUncertainty;
+        final double[] costFunction;
+        final double[] stateVector1;
+        final double[] stateVector2;
+        final int[] qualityFlags;
+        final int[] surfaceTypeFlags;
+
+        TargetData(int numPixels) {
+            tcwv = new double[numPixels];
+            tcwvUncertainty = new double[numPixels];
+            costFunction = writeCostFunctionValue ? new double[numPixels] : null;
+            stateVector1 = writeFullStateVector ? new double[numPixels] : null;
+            stateVector2 = writeFullStateVector ? new double[numPixels] : null;
+            qualityFlags = new int[numPixels];
+            surfaceTypeFlags = new int[numPixels];
+        }
+
+        void setResult(int index, double tcwvValue, double tcwvUncertaintyValue, double cost,
+                       double stateVector1Value, double stateVector2Value) {
+            tcwv[index] = tcwvValue;
+            if (writeCostFunctionValue) {
+                costFunction[index] = cost;
+            }
+            if (writeFullStateVector) {
+                stateVector1[index] = stateVector1Value;
+                stateVector2[index] = stateVector2Value;
+            }
+            tcwvUncertainty[index] = tcwvUncertaintyValue;
+
+            if (tcwvValue < TcwvConstants.TCWV_RETRIEVAL_TCWV_LOWER_LIMIT ||
+                    tcwvValue > TcwvConstants.TCWV_RETRIEVAL_TCWV_UPPER_LIMIT ||
+                    cost > TcwvConstants.TCWV_RETRIEVAL_COST_UPPER_LIMIT) {
+                setInvalid(index);
+            } else if (cost > TcwvConstants.TCWV_RETRIEVAL_COST_2) {
+                qualityFlags[index] = setFlag(qualityFlags[index], TcwvConstants.TCWV_COST_FUNCTION_2, true);
+            } else if (cost > TcwvConstants.TCWV_RETRIEVAL_COST_1) {
+                qualityFlags[index] = setFlag(qualityFlags[index], TcwvConstants.TCWV_COST_FUNCTION_1, true);
+            } else {
+                qualityFlags[index] = setFlag(qualityFlags[index], TcwvConstants.TCWV_OK, true);
+            }
+        }
+
+        void setInvalid(int index) {
+            tcwv[index] = Float.NaN;
+            tcwvUncertainty[index] = Float.NaN;
+            qualityFlags[index] = setFlag(qualityFlags[index], TcwvConstants.TCWV_INVALID, true);
+            if (writeCostFunctionValue) {
+                costFunction[index] = Float.NaN;
+            }
+            if (writeFullStateVector) {
+                stateVector1[index] = Float.NaN;
+                stateVector2[index] = Float.NaN;
+            }
+        }
+
+        void write(Map<Band, Tile> targetTiles, Band surfaceTypeFlagBand) {
+            targetTiles.get(tcwvBand).setSamples(tcwv);
+            targetTiles.get(tcwvUncertaintyBand).setSamples(tcwvUncertainty);
+            targetTiles.get(tcwvQualityFlagBand).setSamples(qualityFlags);
+            targetTiles.get(surfaceTypeFlagBand).setSamples(surfaceTypeFlags);
+            if (writeCostFunctionValue) {
+                targetTiles.get(costFunctionBand).setSamples(costFunction);
+            }
+            if (writeFullStateVector) {
+                targetTiles.get(stateVector1Band).setSamples(stateVector1);
+                targetTiles.get(stateVector2Band).setSamples(stateVector2);
+            }
+        }
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
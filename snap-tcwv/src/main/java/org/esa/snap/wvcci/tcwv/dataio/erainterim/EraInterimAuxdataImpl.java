@@ -18,27 +18,42 @@ package org.esa.snap.wvcci.tcwv.dataio.erainterim;
 
 import org.esa.snap.core.datamodel.*;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
+/**
+ * ERA-Interim auxdata (surface pressure, ozone), interpolated in space (Gaussian weights of the 3x3 grid cells
+ * around the position) and linearly in time between the two bracketing 6-hourly time steps.
+ * <p>
+ * The bracketing time steps of all variables are held as primitive arrays. If the ERA grid is a regular lat/lon
+ * grid (as usual), grid positions are computed arithmetically instead of by the geocoding.
+ */
 public class EraInterimAuxdataImpl implements AtmosphericAuxdata {
 
+    // at most 3 x 3 grid cells contribute to an interpolated value
+    private static final int MAX_NEIGHBOURS = 9;
+
     private final GeoCoding geoCoding;
-    private final Band[] press;
-    private final Band[] ozone;
+    private final RegularLatLonGrid regularGrid;
+    private final int width;
+    private final int height;
+    private final float[][] press;
+    private final float[][] ozone;
     private final double fraction;
 
-    private EraInterimAuxdataImpl(Date date, Product eraInterimStart, Product eraInterimEnd) {
+    private EraInterimAuxdataImpl(Date date, Product eraInterimStart, Product eraInterimEnd) throws IOException {
         this.geoCoding = eraInterimStart.getSceneGeoCoding();
+        width = eraInterimStart.getSceneRasterWidth();
+        height = eraInterimStart.getSceneRasterHeight();
+        regularGrid = RegularLatLonGrid.detect(geoCoding, width, height);
 
         Calendar cal = ProductData.UTC.createCalendar();
         cal.setTime(date);
         int hoursBy6 = (cal.get(Calendar.HOUR_OF_DAY) / 6); // 0,1,2,3 -> time_band
 
-        press = getBandPair(eraInterimStart, eraInterimEnd, hoursBy6, "Mean_sea_level_pressure_surface");
-        ozone = getBandPair(eraInterimStart, eraInterimEnd, hoursBy6, "Total_column_ozone_surface");
+        press = readBandPair(eraInterimStart, eraInterimEnd, hoursBy6, "Mean_sea_level_pressure_surface");
+        ozone = readBandPair(eraInterimStart, eraInterimEnd, hoursBy6, "Total_column_ozone_surface");
 
         // interpolation factor
         cal.set(Calendar.HOUR_OF_DAY, hoursBy6 * 6);
@@ -49,7 +64,8 @@ public class EraInterimAuxdataImpl implements AtmosphericAuxdata {
         fraction = (time - d0) / (double)(d1 - d0);
     }
 
-    private Band[] getBandPair(Product startProduct, Product endProduct, int hoursBy6, String name) {
+    private float[][] readBandPair(Product startProduct, Product endProduct, int hoursBy6, String name)
+            throws IOException {
         Band[] bandPair = new Band[2];
         bandPair[0] = startProduct.getBand(String.format("%s_time%d", name, hoursBy6 + 1));
         if (hoursBy6 == 3) {
@@ -57,7 +73,11 @@ public class EraInterimAuxdataImpl implements AtmosphericAuxdata {
         } else {
             bandPair[1] = startProduct.getBand(String.format("%s_time%d", name, hoursBy6 + 2));
         }
-        return bandPair;
+        final float[][] data = new float[2][];
+        for (int i = 0; i < bandPair.length; i++) {
+            data[i] = bandPair[i].readPixels(0, 0, width, height, new float[width * height]);
+        }
+        return data;
     }
 
     @Override
@@ -74,54 +94,172 @@ public class EraInterimAuxdataImpl implements AtmosphericAuxdata {
         return pressure / 100.0;
     }
 
+    private double getInterpolatedValue(double lat, double lon, float[][] dataPair) {
+        final double[] pixelPos = new double[2];
+        getPixelPos(lat, lon, pixelPos);
+        final int[] gridIndices = new int[MAX_NEIGHBOURS];
+        final double[] weights = new double[MAX_NEIGHBOURS];
+        final int numNeighbours = computeNeighbours(pixelPos[0], pixelPos[1], width, height, gridIndices, weights);
 
-    private double getInterpolatedValue(double lat, double lon, Band[] bandPair) {
-        PixelPos pixelPos = geoCoding.getPixelPos(new GeoPos((float) lat, (float) lon), null);
-
-        float v0 = interpolateSpatial(bandPair[0], pixelPos.getX(), pixelPos.getY());
-        float v1 = interpolateSpatial(bandPair[1], pixelPos.getX(), pixelPos.getY());
+        float v0 = interpolateSpatial(dataPair[0], gridIndices, weights, numNeighbours);
+        float v1 = interpolateSpatial(dataPair[1], gridIndices, weights, numNeighbours);
         return interpolateTemporal(v0, v1);
     }
 
+    private void getPixelPos(double lat, double lon, double[] pixelPos) {
+        if (regularGrid != null) {
+            pixelPos[0] = regularGrid.getPixelX(lon);
+            pixelPos[1] = regularGrid.getPixelY(lat);
+        } else {
+            final PixelPos geoCodingPixelPos = geoCoding.getPixelPos(new GeoPos((float) lat, (float) lon), null);
+            pixelPos[0] = geoCodingPixelPos.getX();
+            pixelPos[1] = geoCodingPixelPos.getY();
+        }
+    }
+
     private double interpolateTemporal(double startValue, double endValue) {
         return (1.0 - fraction) * startValue + fraction * endValue;
     }
 
-    private static float interpolateSpatial(Band band, double pixelX, double pixelY) {
-        List<Float> pixelValues = new ArrayList<>();
-        List<Double> weights = new ArrayList<>();
+    private static float interpolateSpatial(float[] data, int[] gridIndices, double[] weights, int numNeighbours) {
+        float interpolatedValue = 0;
+        for (int i = 0; i < numNeighbours; i++) {
+            interpolatedValue += data[gridIndices[i]] * weights[i];
+        }
+        return interpolatedValue;
+    }
+
+    /**
+     * Computes the grid cells around a pixel position (3 x 3, wrapped in x, cut at the y borders) and their
+     * normalised Gaussian weights.
+     *
+     * @param pixelX      - pixel x position in the grid
+     * @param pixelY      - pixel y position in the grid
+     * @param width       - grid width
+     * @param height      - grid height
+     * @param gridIndices - the grid cell indices (y * width + x)
+     * @param weights     - the normalised weights
+     * @return the number of grid cells
+     */
+    static int computeNeighbours(double pixelX, double pixelY, int width, int height,
+                                 int[] gridIndices, double[] weights) {
         final double xFloor = Math.floor(pixelX);
         final double yFloor = Math.floor(pixelY);
-        int xStart = -1;
-        int xEnd = 1;
-        int yStart = -1;
-        int yEnd = 1;
         double totalSumOfWeights = 0;
-        for (int i = xStart; i <= xEnd; i++) {
+        int numNeighbours = 0;
+        for (int i = -1; i <= 1; i++) {
             int origX = (int) xFloor + i;
-            int x = origX % band.getRasterWidth();
+            int x = origX % width;
             if (x < 0) {
-                x = band.getRasterWidth() - 1;
+                x = width - 1;
             }
-            for (int j = yStart; j <= yEnd; j++) {
+            for (int j = -1; j <= 1; j++) {
                 int y = (int) yFloor + j;
-                if (y >= 0 && y < band.getRasterHeight()) {
-                    pixelValues.add(band.getSampleFloat(x, y));
-                    final double distanceToPixelCenter = Math.pow(pixelX - (origX + 0.5), 2) +
-                                                         Math.pow(pixelY - (y + 0.5), 2);
-                    final double weight = Math.exp(-Math.pow(distanceToPixelCenter / 0.5, 2));
-                    weights.add(weight);
+                if (y >= 0 && y < height) {
+                    final double dx = pixelX - (origX + 0.5);
+                    final double dy = pixelY - (y + 0.5);
+                    final double distanceToPixelCenter = dx * dx + dy * dy;
+                    final double scaledDistance = distanceToPixelCenter / 0.5;
+                    final double weight = Math.exp(-scaledDistance * scaledDistance);
+                    gridIndices[numNeighbours] = y * width + x;
+                    weights[numNeighbours] = weight;
                     totalSumOfWeights += weight;
+                    numNeighbours++;
                 }
             }
         }
-        float interpolatedValue = 0;
-        for (int i = 0; i < weights.size(); i++) {
-            interpolatedValue += pixelValues.get(i) * (weights.get(i) / totalSumOfWeights);
+        for (int i = 0; i < numNeighbours; i++) {
+            weights[i] /= totalSumOfWeights;
         }
-        return interpolatedValue;
+        return numNeighbours;
     }
 
+    /**
+     * Regular lat/lon grid: lat and lon of the pixel centers are linear in y and x.
+     */
+    static class RegularLatLonGrid {
+
+        // tolerance in degrees for the detection
+        private static final double TOLERANCE = 1.0E-4;
+
+        private final double lon0;
+        private final double deltaLon;
+        private final double lat0;
+        private final double deltaLat;
+        private final int width;
+        private final boolean global;
+
+        /**
+         * @param lon0     - longitude of the center of the first column
+         * @param deltaLon - longitude step
+         * @param lat0     - latitude of the center of the first row
+         * @param deltaLat - latitude step
+         * @param width    - number of columns
+         */
+        RegularLatLonGrid(double lon0, double deltaLon, double lat0, double deltaLat, int width) {
+            this.lon0 = lon0;
+            this.deltaLon = deltaLon;
+            this.lat0 = lat0;
+            this.deltaLat = deltaLat;
+            this.width = width;
+            global = Math.abs(Math.abs(width * deltaLon) - 360.0) < TOLERANCE;
+        }
+
+        /**
+         * Detects a regular lat/lon grid from the geocoding, by its pixel centers of the first row and column and
+         * the grid corners.
+         *
+         * @param geoCoding - the geocoding
+         * @param width     - grid width
+         * @param height    - grid height
+         * @return the grid, or null if the geocoding does not describe a regular lat/lon grid
+         */
+        static RegularLatLonGrid detect(GeoCoding geoCoding, int width, int height) {
+            if (geoCoding == null || width < 2 || height < 2) {
+                return null;
+            }
+            final GeoPos origin = getGeoPos(geoCoding, 0, 0);
+            final double deltaLon = normaliseLon(getGeoPos(geoCoding, 1, 0).getLon() - origin.getLon());
+            final double deltaLat = getGeoPos(geoCoding, 0, 1).getLat() - origin.getLat();
+            if (!(Math.abs(deltaLon) > TOLERANCE && Math.abs(deltaLat) > TOLERANCE)) {
+                return null;
+            }
+            final RegularLatLonGrid grid =
+                    new RegularLatLonGrid(origin.getLon(), deltaLon, origin.getLat(), deltaLat, width);
+            final int[][] checkPixels = {{width - 1, 0}, {0, height - 1}, {width - 1, height - 1},
+                    {width / 2, height / 2}};
+            for (int[] checkPixel : checkPixels) {
+                final GeoPos geoPos = getGeoPos(geoCoding, checkPixel[0], checkPixel[1]);
+                if (Math.abs(grid.getPixelX(geoPos.getLon()) - (checkPixel[0] + 0.5)) > TOLERANCE ||
+                        Math.abs(grid.getPixelY(geoPos.getLat()) - (checkPixel[1] + 0.5)) > TOLERANCE) {
+                    return null;
+                }
+            }
+            return grid;
+        }
+
+        double getPixelX(double lon) {
+            double x = normaliseLon(lon - lon0) / deltaLon;
+            if (global) {
+                // any position in [0, width), the spatial interpolation wraps in x
+                x -= width * Math.floor(x / width);
+            }
+            return x + 0.5;
+        }
+
+        double getPixelY(double lat) {
+            return (lat - lat0) / deltaLat + 0.5;
+        }
+
+        private static GeoPos getGeoPos(GeoCoding geoCoding, int x, int y) {
+            return geoCoding.getGeoPos(new PixelPos(x + 0.5, y + 0.5), null);
+        }
+
+        // longitude difference in [-180, 180)
+        private static double normaliseLon(double lonDifference) {
+            return lonDifference - 360.0 * Math.floor((lonDifference + 180.0) / 360.0);
+        }
+    }
 
     public static void main(String[] args) throws Exception {
         EraInterimProductReaderPlugin plugin = new EraInterimProductReaderPlugin();
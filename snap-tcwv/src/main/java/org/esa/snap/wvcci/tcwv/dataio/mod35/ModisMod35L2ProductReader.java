@@ -17,9 +17,9 @@
 package org.esa.snap.wvcci.tcwv.dataio.mod35;
 
 import com.bc.ceres.core.ProgressMonitor;
+import ncsa.hdf.hdflib.HDFException;
 import ncsa.hdf.object.Attribute;
 import ncsa.hdf.object.FileFormat;
-import ncsa.hdf.object.h4.H4Datatype;
 import ncsa.hdf.object.h4.H4Group;
 import ncsa.hdf.object.h4.H4SDS;
 import org.esa.snap.core.dataio.AbstractProductReader;
@@ -31,6 +31,7 @@ import org.esa.snap.raster.gpf.FlipOp;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreeNode;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.logging.Level;
 
@@ -38,6 +39,11 @@ import java.util.logging.Level;
  * Product reader responsible for reading MODIS MOD35 or MYD35 L2 cloud mask HDF products.
  * Example: MOD35_L2.A2011196.1055.061.2017325012717.hdf
  * See https://modis.gsfc.nasa.gov/data/dataprod/mod35.php
+ * <p>
+ * The cloud mask and quality assurance bands are read lazily: the HDF4 file stays open until the reader is
+ * closed, and only the rectangles actually requested (e.g. the tiles touched by the TCWV operator) are read
+ * as hyperslabs of the 'Cloud_Mask' and 'Quality_Assurance' datasets. For MYD35 granules, the flipped product
+ * is the one returned, so this reader is attached to it: disposing it closes the HDF4 file.
  *
  * @author Olaf Danne
  */
@@ -56,6 +62,14 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
     private TreeNode h4RootNode;
     private TreeNode mod35Node;
 
+    private H4SDS cloudMaskDS;
+    private H4SDS qualityAssuranceDS;
+    private Band cloudMaskByteBand;
+    private Band qualityAssuranceQaDimBand;
+
+    private FlipOp mydFlipOp;
+    private Product unflippedMydProduct;
+
     /**
      * ModisMod35L2ProductReader constructor
      *
@@ -91,14 +105,7 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
                 targetProduct = createTargetProduct(mod35File);
             } catch (Exception e) {
                 e.printStackTrace();
-            } finally {
-                if (h4File != null) {
-                    try {
-                        h4File.close();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+                closeH4File();
             }
         }
 
@@ -106,25 +113,105 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
     }
 
     @Override
-    protected void readBandRasterDataImpl(int sourceOffsetX,
-                                          int sourceOffsetY,
-                                          int sourceWidth,
-                                          int sourceHeight,
-                                          int sourceStepX,
-                                          int sourceStepY,
-                                          Band targetBand,
-                                          int targetOffsetX,
-                                          int targetOffsetY,
-                                          int targetWidth,
-                                          int targetHeight,
-                                          ProductData targetBuffer,
-                                          ProgressMonitor pm) {
-        throw new IllegalStateException(String.format("No source to read from for band '%s'.", targetBand.getName()));
+    protected synchronized void readBandRasterDataImpl(int sourceOffsetX,
+                                                       int sourceOffsetY,
+                                                       int sourceWidth,
+                                                       int sourceHeight,
+                                                       int sourceStepX,
+                                                       int sourceStepY,
+                                                       Band targetBand,
+                                                       int targetOffsetX,
+                                                       int targetOffsetY,
+                                                       int targetWidth,
+                                                       int targetHeight,
+                                                       ProductData targetBuffer,
+                                                       ProgressMonitor pm) throws IOException {
+        // the HDF4 library is not thread safe, and the hyperslab selection is state of the datasets,
+        // so the reads are synchronized
+        if (h4File == null) {
+            throw new IOException(String.format("Cannot read band '%s': reader is closed.", targetBand.getName()));
+        }
+        final byte[] targetData = (byte[]) targetBuffer.getElems();
+        try {
+            if (targetBand == cloudMaskByteBand) {
+                // 'Cloud_Mask' is (byte segment, y, x): the first byte segment of the rectangle
+                final long[][] hyperslab = ModisMod35L2Utils.getCloudMaskHyperslab(sourceOffsetX, sourceOffsetY,
+                                                                                   targetWidth, targetHeight,
+                                                                                   sourceStepX, sourceStepY);
+                final byte[] cloudMaskData = (byte[]) ModisMod35L2Utils.readHyperslab(cloudMaskDS,
+                        hyperslab[0], hyperslab[1], hyperslab[2]);
+                System.arraycopy(cloudMaskData, 0, targetData, 0, targetWidth * targetHeight);
+            } else if (targetBand == qualityAssuranceQaDimBand) {
+                // 'Quality_Assurance' is (y, x, QA dimension): de-interleave the first QA byte of the rectangle
+                final long[][] hyperslab = ModisMod35L2Utils.getQualityAssuranceHyperslab(sourceOffsetX,
+                                                                                          sourceOffsetY,
+                                                                                          targetWidth, targetHeight,
+                                                                                          sourceStepX, sourceStepY,
+                                                                                          qualityAssuranceDim);
+                final byte[] qualityAssuranceData = (byte[]) ModisMod35L2Utils.readHyperslab(qualityAssuranceDS,
+                        hyperslab[0], hyperslab[1], hyperslab[2]);
+                ModisMod35L2Utils.extractQualityAssuranceDimension(qualityAssuranceData, qualityAssuranceDim, 0,
+                                                                   targetData, targetWidth * targetHeight);
+            } else {
+                throw new IllegalStateException(String.format("No source to read from for band '%s'.",
+                                                              targetBand.getName()));
+            }
+        } catch (HDFException e) {
+            throw new IOException(String.format("Cannot read band '%s': %s", targetBand.getName(), e.getMessage()),
+                                  e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeH4File();
+        if (mydFlipOp != null) {
+            // the flipped MYD35 product has been disposed: also dispose the flip operator and the unflipped
+            // product (which closes this reader once more, so the fields are reset first)
+            final FlipOp flipOp = mydFlipOp;
+            final Product unflippedProduct = unflippedMydProduct;
+            mydFlipOp = null;
+            unflippedMydProduct = null;
+            flipOp.dispose();
+            unflippedProduct.dispose();
+        }
+        super.close();
+    }
+
+    /**
+     * Flips a MYD35 product horizontally and vertically. This reader is attached to the flipped product, so that
+     * disposing it closes the reader and disposes the unflipped product.
+     *
+     * @param targetProduct - the unflipped product read by this reader
+     * @return the flipped product
+     */
+    Product flipMydProduct(Product targetProduct) {
+        mydFlipOp = new FlipOp();
+        mydFlipOp.setParameterDefaultValues();
+        mydFlipOp.setSourceProduct(targetProduct);
+        mydFlipOp.setParameter("flipType", "Horizontal and Vertical");
+        final Product flippedMydProduct = mydFlipOp.getTargetProduct();
+        flippedMydProduct.setName(targetProduct.getName());
+        // the bands of the flipped product are computed by the operator, not read by this reader
+        flippedMydProduct.setProductReader(this);
+        unflippedMydProduct = targetProduct;
+        return flippedMydProduct;
     }
 
 
 //////////// private methods //////////////////
 
+    private synchronized void closeH4File() {
+        if (h4File != null) {
+            try {
+                h4File.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            h4File = null;
+        }
+    }
+
     private static Band createTargetBand(Product product, List<Attribute> metadata, String bandName, int dataType) {
         final double scaleFactorAttr = ModisMod35L2Utils.getDoubleAttributeValue(metadata, "SCALE");
         final double scaleFactor = Double.isNaN(scaleFactorAttr) ? 1.0f : scaleFactorAttr;
@@ -150,6 +237,8 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
 
         targetProduct.setDescription(ModisMod35L2Constants.MOD35_l2_PRODUCT_DESCR);
         targetProduct.setFileLocation(inputFile);
+        // the cloud mask bands are read by this reader, also if the product is flipped below
+        targetProduct.setProductReader(this);
 
         for (int i = 0; i < mod35Node.getChildCount(); i++) {
             // we have: 'Geolocation Fields', 'Data Fields'
@@ -183,13 +272,7 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
 
         // MYD35_L2 products are flipped, but MOD35_L2 are not...
         if (inputFile.getName().startsWith("MYD")) {
-            FlipOp flipOp = new FlipOp();
-            flipOp.setParameterDefaultValues();
-            flipOp.setSourceProduct(targetProduct);
-            flipOp.setParameter("flipType", "Horizontal and Vertical");
-            final Product flippedMydProduct = flipOp.getTargetProduct();
-            flippedMydProduct.setName(targetProduct.getName());
-            return flippedMydProduct;
+            return flipMydProduct(targetProduct);
         } else {
             return targetProduct;
         }
@@ -326,42 +409,27 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
         final MetadataElement rootMetadataElement = product.getMetadataRoot().
                 getElement(ModisMod35L2Constants.DATA_FIELDS_GROUP_NAME);
 
-        H4SDS cloudMaskDS = null;
         for (int j = 0; j < fieldsNode.getChildCount(); j++) {
             final TreeNode dataChildNode = fieldsNode.getChildAt(j);
             final String dataChildNodeName = dataChildNode.toString();
             if (dataChildNodeName.equals(ModisMod35L2Constants.CLOUD_MASK_BAND_NAME)) {
-                // we only need the first of six byte segment to build the cloud flag for our purpose:
-                final int requiredByteSegments = 1;
-                cloudMaskDS = ModisMod35L2Utils.getH4ScalarDSForCloudMask(dataChildNode,
-                        requiredByteSegments, productHeight, productWidth);
+                // the data is read on demand, see readBandRasterDataImpl
+                cloudMaskDS = ModisMod35L2Utils.getH4ScalarDS(dataChildNode);
             }
         }
         final List<Attribute> cloudMaskDSMetadata = cloudMaskDS.getMetadata();
 
-        final byte[] cloudMaskData3DArr = (byte[]) cloudMaskDS.getData();
-        byte[] tmpArr = new byte[productWidth * productHeight];
         // for pixel classification we need segment 1 only:
-        for (int i = 0; i < 1; i++) {
-            ProductData productData = ModisMod35L2Utils.getDataBufferForH4DataRead(H4Datatype.CLASS_CHAR,
-                    productWidth, productHeight);
-            final String cloudMaskByteBandName = ModisMod35L2Constants.CLOUD_MASK_BYTE_TARGET_BAND_NAME + (i + 1);
-            final Band cloudMaskByteBand = createTargetBand(product,
-                    cloudMaskDSMetadata,
-                    cloudMaskByteBandName,
-                    productData.getType());
-            ModisMod35L2Utils.setUnitAndDescription(cloudMaskDSMetadata, cloudMaskByteBand);
-            cloudMaskByteBand.setNoDataValue(ModisMod35L2Constants.CHAR_NO_DATA_VALUE);
-            cloudMaskByteBand.setNoDataValueUsed(true);
-            final int offset = i * productWidth * productHeight;
-            System.arraycopy(cloudMaskData3DArr, offset, tmpArr, 0, tmpArr.length);
-            productData.setElems(tmpArr);
-            cloudMaskByteBand.setRasterData(productData);
-            if (cloudMaskDSMetadata != null) {
-                ModisMod35L2Utils.addMetadataElementWithAttributes(cloudMaskDSMetadata,
-                        rootMetadataElement,
-                        cloudMaskByteBandName);
-            }
+        final String cloudMaskByteBandName = ModisMod35L2Constants.CLOUD_MASK_BYTE_TARGET_BAND_NAME + 1;
+        cloudMaskByteBand = createTargetBand(product, cloudMaskDSMetadata, cloudMaskByteBandName,
+                                             ProductData.TYPE_INT8);
+        ModisMod35L2Utils.setUnitAndDescription(cloudMaskDSMetadata, cloudMaskByteBand);
+        cloudMaskByteBand.setNoDataValue(ModisMod35L2Constants.CHAR_NO_DATA_VALUE);
+        cloudMaskByteBand.setNoDataValueUsed(true);
+        if (cloudMaskDSMetadata != null) {
+            ModisMod35L2Utils.addMetadataElementWithAttributes(cloudMaskDSMetadata,
+                    rootMetadataElement,
+                    cloudMaskByteBandName);
         }
     }
 
@@ -370,55 +438,27 @@ public class ModisMod35L2ProductReader extends AbstractProductReader {
         final MetadataElement rootMetadataElement = product.getMetadataRoot().
                 getElement(ModisMod35L2Constants.DATA_FIELDS_GROUP_NAME);
 
-        H4SDS qualityAssuranceDS = null;
         for (int j = 0; j < fieldsNode.getChildCount(); j++) {
             final TreeNode dataChildNode = fieldsNode.getChildAt(j);
             final String dataChildNodeName = dataChildNode.toString();
             if (dataChildNodeName.equals(ModisMod35L2Constants.QUALITY_ASSURANCE_BAND_NAME)) {
-                // we need to read all dimensions because the array nesting is different
-                // from the one for 'Cloud_Mask'
-                qualityAssuranceDS = ModisMod35L2Utils.getH4ScalarDSForQualityAssurance(dataChildNode,
-                        qualityAssuranceDim,
-                        productHeight,
-                        productWidth);
+                // the data is read on demand, see readBandRasterDataImpl
+                qualityAssuranceDS = ModisMod35L2Utils.getH4ScalarDS(dataChildNode);
             }
         }
         final List<Attribute> qualityAssuranceDSMetadata = qualityAssuranceDS.getMetadata();
 
-        final byte[] qualityAssuranceData3DArr = (byte[]) qualityAssuranceDS.getData();
-        byte[] tmpArr = new byte[productWidth * productHeight];
         // for confidence levels we need dimension 1 only:
-        for (int i = 0; i < 1; i++) {
-            ProductData productData = ModisMod35L2Utils.getDataBufferForH4DataRead(H4Datatype.CLASS_CHAR,
-                    productWidth, productHeight);
-            final String qualityAssuranceQaDimBandName = ModisMod35L2Constants.QUALITY_ASSURANCE_QA_DIMENSION_BAND_NAME + (i + 1);
-            final Band qualityAssuranceQaDimBand = createTargetBand(product,
-                    qualityAssuranceDSMetadata,
-                    qualityAssuranceQaDimBandName,
-                    productData.getType());
-            ModisMod35L2Utils.setUnitAndDescription(qualityAssuranceDSMetadata, qualityAssuranceQaDimBand);
-            qualityAssuranceQaDimBand.setNoDataValue(ModisMod35L2Constants.CHAR_NO_DATA_VALUE);
-            qualityAssuranceQaDimBand.setNoDataValueUsed(true);
-
-            // we need to resort because the array nesting is different from the one for 'Cloud_Mask'
-            int tmpArrIndex = 0;
-            int qa3DArrIndex = i;
-            for (int j = 0; j < productHeight; j++) {
-                for (int k = 0; k < productWidth; k++) {
-                    tmpArr[tmpArrIndex] = qualityAssuranceData3DArr[qa3DArrIndex];
-                    tmpArrIndex++;
-                    qa3DArrIndex += qualityAssuranceDim;
-                }
-            }
-
-            productData.setElems(tmpArr);
-            qualityAssuranceQaDimBand.setRasterData(productData);
-            if (qualityAssuranceDSMetadata != null) {
-                ModisMod35L2Utils.addMetadataElementWithAttributes(qualityAssuranceDSMetadata,
-                        rootMetadataElement,
-                        qualityAssuranceQaDimBandName);
-            }
+        final String qualityAssuranceQaDimBandName = ModisMod35L2Constants.QUALITY_ASSURANCE_QA_DIMENSION_BAND_NAME + 1;
+        qualityAssuranceQaDimBand = createTargetBand(product, qualityAssuranceDSMetadata,
+                                                     qualityAssuranceQaDimBandName, ProductData.TYPE_INT8);
+        ModisMod35L2Utils.setUnitAndDescription(qualityAssuranceDSMetadata, qualityAssuranceQaDimBand);
+        qualityAssuranceQaDimBand.setNoDataValue(ModisMod35L2Constants.CHAR_NO_DATA_VALUE);
+        qualityAssuranceQaDimBand.setNoDataValueUsed(true);
+        if (qualityAssuranceDSMetadata != null) {
+            ModisMod35L2Utils.addMetadataElementWithAttributes(qualityAssuranceDSMetadata,
+                    rootMetadataElement,
+                    qualityAssuranceQaDimBandName);
         }
     }
 }
-
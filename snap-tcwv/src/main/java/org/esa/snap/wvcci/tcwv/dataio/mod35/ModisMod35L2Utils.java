@@ -3,7 +3,6 @@ package org.esa.snap.wvcci.tcwv.dataio.mod35;
 import ncsa.hdf.hdflib.HDFException;
 import ncsa.hdf.object.Attribute;
 import ncsa.hdf.object.Datatype;
-import ncsa.hdf.object.h4.H4Datatype;
 import ncsa.hdf.object.h4.H4Group;
 import ncsa.hdf.object.h4.H4SDS;
 import org.esa.snap.core.datamodel.*;
@@ -61,53 +60,91 @@ class ModisMod35L2Utils {
     }
 
     /**
-     * Provides a HDF4 scalar dataset corresponding to 'Cloud_Mask' node
+     * Reads a hyperslab of a HDF4 scalar dataset. The selection is state of the dataset, so concurrent reads
+     * of the same dataset must be synchronized by the caller.
      *
-     * @param node - the data node
-     * @param byteSegmentSize - number of byte segments needed (max. 6)
-     * @param productHeight - productHeight
-     * @param productWidth - productWidth
+     * @param scalarDS - the data set, opened and initialised (see {@link #getH4ScalarDS(TreeNode)})
+     * @param start    - start index per dimension
+     * @param count    - number of elements per dimension
+     * @param stride   - stride per dimension
      *
-     * @return - the data set (H4SDS)
+     * @return the data of the hyperslab, as 1D array of the dataset type
      * @throws HDFException -
      */
-    static H4SDS getH4ScalarDSForCloudMask(TreeNode node,
-                                                  int byteSegmentSize,
-                                                  int productHeight, int productWidth) throws HDFException {
-        H4SDS scalarDS = (H4SDS) ((DefaultMutableTreeNode) node).getUserObject();
-        scalarDS.open();
-        scalarDS.init();
-        long[] selectedDims = scalarDS.getSelectedDims();
-        selectedDims[0] = byteSegmentSize;
-        selectedDims[1] = productHeight;
-        selectedDims[2] = productWidth;
-        scalarDS.read();
-        return scalarDS;
+    static Object readHyperslab(H4SDS scalarDS, long[] start, long[] count, long[] stride) throws HDFException {
+        final long[] startDims = scalarDS.getStartDims();
+        final long[] selectedDims = scalarDS.getSelectedDims();
+        final long[] strideDims = scalarDS.getStride();
+        for (int i = 0; i < start.length; i++) {
+            startDims[i] = start[i];
+            selectedDims[i] = count[i];
+            strideDims[i] = stride[i];
+        }
+        return scalarDS.read();
     }
 
     /**
-     * Provides a HDF4 scalar dataset corresponding to 'Quality_Assurance' node
+     * Provides the hyperslab of the 'Cloud_Mask' dataset (byte segment, y, x) holding the first byte segment
+     * of a source rectangle, subsampled by the given steps.
      *
-     * @param node - the data node
-     * @param qualityAssuranceDim - number of quality assurance dimensions needed (usually 10)
-     * @param productHeight - productHeight
-     * @param productWidth - productWidth
+     * @param sourceOffsetX - x offset of the source rectangle
+     * @param sourceOffsetY - y offset of the source rectangle
+     * @param width         - number of pixels to read in x
+     * @param height        - number of pixels to read in y
+     * @param sourceStepX   - subsampling in x
+     * @param sourceStepY   - subsampling in y
      *
-     * @return - the data set (H4SDS)
-     * @throws HDFException -
+     * @return start, count and stride per dimension, see {@link #readHyperslab(H4SDS, long[], long[], long[])}
      */
-    static H4SDS getH4ScalarDSForQualityAssurance(TreeNode node,
-                                                  int qualityAssuranceDim,
-                                                  int productHeight, int productWidth) throws HDFException {
-        H4SDS scalarDS = (H4SDS) ((DefaultMutableTreeNode) node).getUserObject();
-        scalarDS.open();
-        scalarDS.init();
-        long[] selectedDims = scalarDS.getSelectedDims();
-        selectedDims[0] = productHeight;
-        selectedDims[1] = productWidth;
-        selectedDims[2] = qualityAssuranceDim;
-        scalarDS.read();
-        return scalarDS;
+    static long[][] getCloudMaskHyperslab(int sourceOffsetX, int sourceOffsetY, int width, int height,
+                                          int sourceStepX, int sourceStepY) {
+        return new long[][]{
+                {0, sourceOffsetY, sourceOffsetX},
+                {1, height, width},
+                {1, sourceStepY, sourceStepX}
+        };
+    }
+
+    /**
+     * Provides the hyperslab of the 'Quality_Assurance' dataset (y, x, QA dimension) holding the complete QA
+     * vectors of a source rectangle, subsampled by the given steps.
+     *
+     * @param sourceOffsetX       - x offset of the source rectangle
+     * @param sourceOffsetY       - y offset of the source rectangle
+     * @param width               - number of pixels to read in x
+     * @param height              - number of pixels to read in y
+     * @param sourceStepX         - subsampling in x
+     * @param sourceStepY         - subsampling in y
+     * @param qualityAssuranceDim - size of the QA dimension (usually 10)
+     *
+     * @return start, count and stride per dimension, see {@link #readHyperslab(H4SDS, long[], long[], long[])}
+     */
+    static long[][] getQualityAssuranceHyperslab(int sourceOffsetX, int sourceOffsetY, int width, int height,
+                                                 int sourceStepX, int sourceStepY, int qualityAssuranceDim) {
+        return new long[][]{
+                {sourceOffsetY, sourceOffsetX, 0},
+                {height, width, qualityAssuranceDim},
+                {sourceStepY, sourceStepX, 1}
+        };
+    }
+
+    /**
+     * Extracts one element of the QA dimension from 'Quality_Assurance' data, where the QA dimension varies
+     * fastest (y, x, QA dimension).
+     *
+     * @param qualityAssuranceData - the interleaved data
+     * @param qualityAssuranceDim  - size of the QA dimension (usually 10)
+     * @param qaIndex              - index in the QA dimension
+     * @param dest                 - the extracted data
+     * @param numPixels            - number of pixels
+     */
+    static void extractQualityAssuranceDimension(byte[] qualityAssuranceData, int qualityAssuranceDim, int qaIndex,
+                                                 byte[] dest, int numPixels) {
+        int qa3DArrIndex = qaIndex;
+        for (int i = 0; i < numPixels; i++) {
+            dest[i] = qualityAssuranceData[qa3DArrIndex];
+            qa3DArrIndex += qualityAssuranceDim;
+        }
     }
 
     /**
@@ -154,28 +191,6 @@ class ModisMod35L2Utils {
         node.setUnit(ModisMod35L2Utils.getStringAttributeValue(metadata, "units"));
     }
 
-    /**
-     * Provides a ProductData instance according to given HDF5 data type
-     *
-     * @param datatypeClass - the HDF4 data type
-     * @param width         - buffer width
-     * @param height        - buffer height
-     * @return the data buffer
-     */
-    static ProductData getDataBufferForH4DataRead(int datatypeClass, int width, int height) {
-        switch (datatypeClass) {
-            case H4Datatype.CLASS_CHAR:
-                return ProductData.createInstance(new byte[width * height]);
-            case H4Datatype.CLASS_FLOAT:
-                return ProductData.createInstance(new float[width * height]);
-            case H4Datatype.CLASS_INTEGER:
-                return ProductData.createInstance(new short[width * height]);
-            default:
-                break;
-        }
-        return null;
-    }
-
     /**
      * Provides the size of a HDF4 dimension from the StructMetadata.0 element
      *
@@ -0,0 +1,181 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import org.esa.snap.wvcci.tcwv.TcwvFunction;
+
+import java.util.Arrays;
+
+/**
+ * Forward function and analytic Jacobi function of a TCWV forward LUT, as alternative to the stored Jacobi LUT.
+ * <p>
+ * The Jacobi matrix is computed as the derivative of the multilinear interpolation of the forward LUT with
+ * respect to the state (the first axes of the LUT), from the interpolation weights of the cell which is located
+ * for the forward function anyway (see
+ * {@link MultiOutputLookupTable#getValuesAndDerivatives(double[], double[], double[], double[])}).
+ * Forward values and derivatives are computed in one pass when the forward function is called, and are kept
+ * per thread, so that the subsequent call of the Jacobi function for the same state and parameters (as in each
+ * OE iteration) needs no further LUT access. The Jacobi LUT (ny * 3 values per node, versus ny values per node
+ * in the forward LUT) is not needed at all.
+ * <p>
+ * In contrast to the stored Jacobi LUT (derivatives of the radiative transfer model at the LUT nodes), the
+ * analytic Jacobian is the exact derivative of the interpolated forward model as seen by the OE, but it is
+ * piecewise constant along each state axis. See {@link JacobiAccuracyReport} for the deviations between both.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @author olafd
+ */
+public class AnalyticJacobiLookup {
+
+    private final MultiOutputLookupTable lut;
+    private final int numStateDims;
+    private final double[] stateMin;
+    private final double[] stateMax;
+    // the per-thread evaluations must not refer to this lookup (and its LUT): the worker threads outlive it
+    private final ThreadLocal<Evaluation> lastEvaluation;
+
+    /**
+     * @param lut          - the forward LUT
+     * @param numStateDims - number of state dimensions, i.e. the first axes of the LUT
+     */
+    public AnalyticJacobiLookup(MultiOutputLookupTable lut, int numStateDims) {
+        if (numStateDims < 1 || numStateDims > lut.getNumDims()) {
+            throw new IllegalArgumentException("Number of state dimensions must be in [1, " +
+                                                       lut.getNumDims() + "].");
+        }
+        this.lut = lut;
+        this.numStateDims = numStateDims;
+        stateMin = new double[numStateDims];
+        stateMax = new double[numStateDims];
+        for (int i = 0; i < numStateDims; i++) {
+            final double[] axis = lut.getAxes()[i];
+            stateMin[i] = axis[0];
+            stateMax[i] = axis[axis.length - 1];
+        }
+        final int numOutputs = lut.getNumOutputs();
+        final double[] min = stateMin;
+        final double[] max = stateMax;
+        lastEvaluation = ThreadLocal.withInitial(() -> new Evaluation(numOutputs, numStateDims, min, max));
+    }
+
+    /**
+     * @return the forward function, equivalent to {@link TcwvInterpolation#lut2Function(MultiOutputLookupTable)}
+     */
+    public TcwvFunction getForwardFunction() {
+        return new TcwvFunction() {
+            @Override
+            public double[] f(double[] x, double[] params) {
+                return evaluate(x, params).values.clone();
+            }
+
+            @Override
+            public void f(double[] x, double[] params, double[] result) {
+                final double[] values = evaluate(x, params).values;
+                System.arraycopy(values, 0, result, 0, values.length);
+            }
+        };
+    }
+
+    /**
+     * @return the Jacobi function (ny * numStateDims), reusing the derivatives of the last forward function call
+     * of the same thread if state and parameters are the same
+     */
+    public JacobiFunction getJacobiFunction() {
+        return new JacobiFunction() {
+            @Override
+            public double[][] f(double[] x, double[] params) {
+                final double[][] jaco = new double[lut.getNumOutputs()][numStateDims];
+                f(x, params, jaco);
+                return jaco;
+            }
+
+            @Override
+            public void f(double[] x, double[] params, double[][] jaco) {
+                Evaluation evaluation = lastEvaluation.get();
+                if (!evaluation.matches(x, params)) {
+                    evaluation = evaluate(x, params);
+                }
+                evaluation.copyJacobi(jaco);
+            }
+        };
+    }
+
+    /**
+     * @return the forward LUT
+     */
+    public MultiOutputLookupTable getLookupTable() {
+        return lut;
+    }
+
+    private Evaluation evaluate(double[] x, double[] params) {
+        final Evaluation evaluation = lastEvaluation.get();
+        evaluation.set(x, params);
+        lut.getValuesAndDerivatives(x, params, evaluation.values, evaluation.derivatives);
+        return evaluation;
+    }
+
+    // forward values and derivatives for the last state and parameters of one thread
+    private static class Evaluation {
+        final int numStateDims;
+        final double[] stateMin;
+        final double[] stateMax;
+        final double[] values;
+        final double[] derivatives;
+        final double[] clampedState;
+        final double[] scratch;
+        double[] params;
+        boolean valid;
+
+        Evaluation(int numOutputs, int numStateDims, double[] stateMin, double[] stateMax) {
+            this.numStateDims = numStateDims;
+            this.stateMin = stateMin;
+            this.stateMax = stateMax;
+            values = new double[numOutputs];
+            derivatives = new double[numOutputs * numStateDims];
+            clampedState = new double[numStateDims];
+            scratch = new double[numStateDims];
+        }
+
+        void set(double[] x, double[] params) {
+            checkStateDimension(x);
+            clamp(x, clampedState);
+            if (params == null) {
+                this.params = null;
+            } else if (this.params != null && this.params.length == params.length) {
+                // reused, as the parameters change per pixel
+                System.arraycopy(params, 0, this.params, 0, params.length);
+            } else {
+                this.params = params.clone();
+            }
+            valid = true;
+        }
+
+        // states which differ only outside the LUT ranges (e.g. clipped and not clipped) share the evaluation
+        boolean matches(double[] x, double[] params) {
+            if (!valid) {
+                return false;
+            }
+            checkStateDimension(x);
+            clamp(x, scratch);
+            return Arrays.equals(scratch, clampedState) && Arrays.equals(params, this.params);
+        }
+
+        void copyJacobi(double[][] jaco) {
+            for (int i = 0; i < values.length; i++) {
+                System.arraycopy(derivatives, i * numStateDims, jaco[i], 0, numStateDims);
+            }
+        }
+
+        private void clamp(double[] x, double[] clamped) {
+            for (int i = 0; i < numStateDims; i++) {
+                clamped[i] = Math.min(Math.max(x[i], stateMin[i]), stateMax[i]);
+            }
+        }
+
+        private void checkStateDimension(double[] x) {
+            if (x.length != numStateDims) {
+                throw new IllegalArgumentException("State dimension " + x.length + " does not match " +
+                                                           numStateDims + ".");
+            }
+        }
+    }
+}
@@ -18,12 +18,28 @@ public class ClippedDifferenceFunction implements TcwvFunction {
     private double[] b;
     private double[] yDiff;
     private TcwvFunction func;
+    private double[] clippedX;      // scratch for the allocation-free variant
 
     public ClippedDifferenceFunction(double[] a, double[] b, TcwvFunction func, double[] yDiff) {
+        set(a, b, func, yDiff);
+    }
+
+    /**
+     * Re-arms the function for another inversion (e.g. the next pixel), so that no new instance is needed.
+     *
+     * @param a     - lower bound of state
+     * @param b     - upper bound of state
+     * @param func  - the forward function
+     * @param yDiff - the measurements
+     */
+    public void set(double[] a, double[] b, TcwvFunction func, double[] yDiff) {
         this.a = a;
         this.b = b;
         this.func = func;
         this.yDiff = yDiff;
+        if (clippedX == null || clippedX.length != a.length) {
+            clippedX = new double[a.length];
+        }
     }
 
     @Override
@@ -36,4 +52,18 @@ public class ClippedDifferenceFunction implements TcwvFunction {
         }
         return clippedDiffResult;
     }
+
+    /**
+     * Same as {@link #f(double[], double[])}, without allocations. Not thread safe.
+     */
+    @Override
+    public void f(double[] x, double[] params, double[] result) {
+        for (int i = 0; i < clippedX.length; i++) {
+            clippedX[i] = Math.min(Math.max(x[i], a[i]), b[i]);
+        }
+        func.f(clippedX, params, result);
+        for (int i = 0; i < yDiff.length; i++) {
+            result[i] -= yDiff[i];
+        }
+    }
 }
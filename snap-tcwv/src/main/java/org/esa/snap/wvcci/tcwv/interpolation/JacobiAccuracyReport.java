@@ -0,0 +1,140 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the analytic Jacobian computed from the forward LUT (see {@link AnalyticJacobiLookup}) with the
+ * interpolated stored Jacobi LUT, at random points within the LUT axis ranges. For each state column, the
+ * maximum and RMS absolute deviation and the RMS of the stored Jacobi elements are given.
+ *
+ * @author olafd
+ */
+public class JacobiAccuracyReport {
+
+    private final int numSamples;
+    private final int numForwardOutputs;
+    private final int numJacobiOutputs;
+    private final double[] maxDeviation;
+    private final double[] rmsDeviation;
+    private final double[] rmsStored;
+
+    private JacobiAccuracyReport(int numSamples, int numForwardOutputs, int numJacobiOutputs, int numStateDims) {
+        this.numSamples = numSamples;
+        this.numForwardOutputs = numForwardOutputs;
+        this.numJacobiOutputs = numJacobiOutputs;
+        maxDeviation = new double[numStateDims];
+        rmsDeviation = new double[numStateDims];
+        rmsStored = new double[numStateDims];
+    }
+
+    /**
+     * Computes the report.
+     *
+     * @param forwardLut   - the forward LUT (ny outputs)
+     * @param jacobiLut    - the stored Jacobi LUT (ny * numStateDims outputs, row by row), same axes
+     * @param numStateDims - number of state dimensions, i.e. the first axes of the LUTs
+     * @param numSamples   - number of random sample points
+     * @param seed         - seed for the sample points
+     * @return the report
+     */
+    public static JacobiAccuracyReport compute(MultiOutputLookupTable forwardLut, MultiOutputLookupTable jacobiLut,
+                                               int numStateDims, int numSamples, long seed) {
+        final int ny = forwardLut.getNumOutputs();
+        if (jacobiLut.getNumOutputs() != ny * numStateDims || jacobiLut.getNumDims() != forwardLut.getNumDims()) {
+            throw new IllegalArgumentException("Jacobi LUT does not match forward LUT.");
+        }
+        if (numSamples < 1) {
+            throw new IllegalArgumentException("Number of samples must be positive.");
+        }
+        final double[][] axes = forwardLut.getAxes();
+        final double[] x = new double[numStateDims];
+        final double[] params = new double[axes.length - numStateDims];
+        final double[] values = new double[ny];
+        final double[] analytic = new double[ny * numStateDims];
+        final double[] stored = new double[ny * numStateDims];
+
+        final JacobiAccuracyReport report =
+                new JacobiAccuracyReport(numSamples, ny, jacobiLut.getNumOutputs(), numStateDims);
+        final Random random = new Random(seed);
+        for (int s = 0; s < numSamples; s++) {
+            for (int i = 0; i < axes.length; i++) {
+                final double[] axis = axes[i];
+                final double value = axis[0] + random.nextDouble() * (axis[axis.length - 1] - axis[0]);
+                if (i < numStateDims) {
+                    x[i] = value;
+                } else {
+                    params[i - numStateDims] = value;
+                }
+            }
+            forwardLut.getValuesAndDerivatives(x, params, values, analytic);
+            jacobiLut.getValues(x, params, stored);
+            for (int k = 0; k < ny; k++) {
+                for (int j = 0; j < numStateDims; j++) {
+                    final int index = k * numStateDims + j;
+                    final double deviation = Math.abs(analytic[index] - stored[index]);
+                    report.maxDeviation[j] = Math.max(report.maxDeviation[j], deviation);
+                    report.rmsDeviation[j] += deviation * deviation;
+                    report.rmsStored[j] += stored[index] * stored[index];
+                }
+            }
+        }
+        final int n = numSamples * ny;
+        for (int j = 0; j < numStateDims; j++) {
+            report.rmsDeviation[j] = Math.sqrt(report.rmsDeviation[j] / n);
+            report.rmsStored[j] = Math.sqrt(report.rmsStored[j] / n);
+        }
+        return report;
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    /**
+     * @param column - the state column
+     * @return the maximum absolute deviation between analytic and stored Jacobi elements of the column
+     */
+    public double getMaxDeviation(int column) {
+        return maxDeviation[column];
+    }
+
+    /**
+     * @param column - the state column
+     * @return the RMS absolute deviation between analytic and stored Jacobi elements of the column
+     */
+    public double getRmsDeviation(int column) {
+        return rmsDeviation[column];
+    }
+
+    /**
+     * @param column - the state column
+     * @return the RMS deviation relative to the RMS of the stored Jacobi elements of the column
+     */
+    public double getRelativeRmsDeviation(int column) {
+        return rmsStored[column] > 0.0 ? rmsDeviation[column] / rmsStored[column] : 0.0;
+    }
+
+    /**
+     * @return the fraction of the flattened LUT values (forward and used Jacobi elements) which is not needed
+     * with the analytic Jacobian
+     */
+    public double getSavedLutFraction() {
+        return numJacobiOutputs / (double) (numForwardOutputs + numJacobiOutputs);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH,
+                                "Analytic vs. stored Jacobian (%d samples, LUT values saved: %.0f%%)%n",
+                                numSamples, 100.0 * getSavedLutFraction()));
+        for (int j = 0; j < maxDeviation.length; j++) {
+            sb.append(String.format(Locale.ENGLISH,
+                                    "  column %d: max dev %.4g, RMS dev %.4g, RMS stored %.4g (rel. RMS dev %.2f%%)%n",
+                                    j, maxDeviation[j], rmsDeviation[j], rmsStored[j],
+                                    100.0 * getRelativeRmsDeviation(j)));
+        }
+        return sb.toString();
+    }
+}
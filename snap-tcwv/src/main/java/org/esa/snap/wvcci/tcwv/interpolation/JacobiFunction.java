@@ -8,4 +8,19 @@ package org.esa.snap.wvcci.tcwv.interpolation;
 public interface JacobiFunction {
 
     double[][] f(double[] x, double[] params);
+
+    /**
+     * Same as {@link #f(double[], double[])}, but writes the Jacobi matrix into the given array. Implementations
+     * evaluated per OE iteration override this to avoid the allocation of the result.
+     *
+     * @param x      - state vector
+     * @param params - parameters
+     * @param jaco   - array receiving the Jacobi matrix (ny x nx)
+     */
+    default void f(double[] x, double[] params, double[][] jaco) {
+        final double[][] values = f(x, params);
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(values[i], 0, jaco[i], 0, values[i].length);
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+/**
+ * Enumeration for the storage precision of the values of a {@link MultiOutputLookupTable}.
+ * <p>
+ * The interpolation itself is always done in double precision, so the error of an interpolated value is bounded
+ * by the storage error of the node values (the corner weights are non-negative and sum up to 1):
+ * <ul>
+ * <li>DOUBLE: no storage error (8 bytes per value)</li>
+ * <li>FLOAT: relative error of each node value at most 2^-24 (about 6e-8), i.e. the absolute error of an
+ * interpolated value is at most 2^-24 times the largest absolute corner value (4 bytes per value)</li>
+ * <li>SCALED_SHORT: 16 bit integers with scale and offset per output, the absolute error of an interpolated value
+ * is at most half a quantisation step, i.e. (max - min) / 131070 of the values of this output (2 bytes per value)</li>
+ * </ul>
+ * The error of a cell derivative (see {@link AnalyticJacobiLookup}) is at most twice the above bound,
+ * divided by the cell width.
+ *
+ * @author olafd
+ */
+public enum LutPrecision {
+    DOUBLE("DOUBLE", 8),
+    FLOAT("FLOAT", 4),
+    SCALED_SHORT("SCALED_SHORT", 2);
+
+    private final String name;
+    private final int bytesPerValue;
+
+    LutPrecision(String name, int bytesPerValue) {
+        this.name = name;
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+}
@@ -0,0 +1,271 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Storage of the interleaved values of a {@link MultiOutputLookupTable} in a given {@link LutPrecision}.
+ * The output values of a grid node are always accessed together, so that the (virtual) call and the decoding
+ * setup are done once per node, and the loop over the outputs is specific to the storage type.
+ *
+ * @author olafd
+ */
+abstract class LutValues {
+
+    final int numOutputs;
+
+    LutValues(int numOutputs) {
+        this.numOutputs = numOutputs;
+    }
+
+    /**
+     * @return the storage precision
+     */
+    abstract LutPrecision getPrecision();
+
+    /**
+     * @return number of values
+     */
+    abstract int size();
+
+    /**
+     * @param index - value index
+     * @return the decoded value
+     */
+    abstract double get(int index);
+
+    /**
+     * @return the decoded values, as read-only buffer
+     */
+    DoubleBuffer getDoubleBuffer() {
+        final double[] doubles = new double[size()];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = get(i);
+        }
+        return DoubleBuffer.wrap(doubles).asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds the weighted values of one grid node: target[targetOffset + k * targetStride] += weight * value_k
+     * for all outputs k.
+     *
+     * @param nodeOffset   - index of the first value of the node
+     * @param weight       - the weight
+     * @param target       - the target array
+     * @param targetOffset - target index for output 0
+     * @param targetStride - target index increment per output
+     */
+    abstract void addWeighted(int nodeOffset, double weight, double[] target, int targetOffset, int targetStride);
+
+    /**
+     * Provides the concatenation of runs of values, in the same precision (and the same scaling, if any).
+     *
+     * @param runOffsets - index of the first value per run, multiple of numOutputs
+     * @param runLength  - number of values per run, multiple of numOutputs
+     * @return the copied values
+     */
+    abstract LutValues copyRuns(int[] runOffsets, int runLength);
+
+    static LutValues of(DoubleBuffer values, int numOutputs) {
+        return new DoubleValues(values, numOutputs);
+    }
+
+    /**
+     * Converts values into the given precision. Returns the values themselves if they already have this precision.
+     *
+     * @param values    - the values
+     * @param precision - the precision
+     * @return the converted values (a heap copy)
+     */
+    static LutValues convert(LutValues values, LutPrecision precision) {
+        if (values.getPrecision() == precision) {
+            return values;
+        }
+        final int size = values.size();
+        switch (precision) {
+            case DOUBLE:
+                return new DoubleValues(values.getDoubleBuffer(), values.numOutputs);
+            case FLOAT:
+                final float[] floats = new float[size];
+                for (int i = 0; i < size; i++) {
+                    floats[i] = (float) values.get(i);
+                }
+                return new FloatValues(floats, values.numOutputs);
+            case SCALED_SHORT:
+                return ScaledShortValues.quantise(values);
+            default:
+                throw new IllegalArgumentException("Unsupported LUT precision " + precision + ".");
+        }
+    }
+
+    private static class DoubleValues extends LutValues {
+        private final DoubleBuffer values;  // heap array or read-only memory mapped file
+
+        DoubleValues(DoubleBuffer values, int numOutputs) {
+            super(numOutputs);
+            this.values = values;
+        }
+
+        @Override
+        LutPrecision getPrecision() {
+            return LutPrecision.DOUBLE;
+        }
+
+        @Override
+        int size() {
+            return values.limit();
+        }
+
+        @Override
+        double get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        DoubleBuffer getDoubleBuffer() {
+            return values.asReadOnlyBuffer();
+        }
+
+        @Override
+        void addWeighted(int nodeOffset, double weight, double[] target, int targetOffset, int targetStride) {
+            for (int k = 0; k < numOutputs; k++) {
+                target[targetOffset + k * targetStride] += weight * values.get(nodeOffset + k);
+            }
+        }
+
+        @Override
+        LutValues copyRuns(int[] runOffsets, int runLength) {
+            final double[] copy = new double[runOffsets.length * runLength];
+            for (int r = 0; r < runOffsets.length; r++) {
+                for (int i = 0; i < runLength; i++) {
+                    copy[r * runLength + i] = values.get(runOffsets[r] + i);
+                }
+            }
+            return new DoubleValues(DoubleBuffer.wrap(copy), numOutputs);
+        }
+    }
+
+    private static class FloatValues extends LutValues {
+        private final float[] values;
+
+        FloatValues(float[] values, int numOutputs) {
+            super(numOutputs);
+            this.values = values;
+        }
+
+        @Override
+        LutPrecision getPrecision() {
+            return LutPrecision.FLOAT;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        @Override
+        double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        void addWeighted(int nodeOffset, double weight, double[] target, int targetOffset, int targetStride) {
+            for (int k = 0; k < numOutputs; k++) {
+                target[targetOffset + k * targetStride] += weight * values[nodeOffset + k];
+            }
+        }
+
+        @Override
+        LutValues copyRuns(int[] runOffsets, int runLength) {
+            final float[] copy = new float[runOffsets.length * runLength];
+            for (int r = 0; r < runOffsets.length; r++) {
+                System.arraycopy(values, runOffsets[r], copy, r * runLength, runLength);
+            }
+            return new FloatValues(copy, numOutputs);
+        }
+    }
+
+    private static class ScaledShortValues extends LutValues {
+        private final short[] values;
+        private final double[] scales;     // per output
+        private final double[] offsets;    // per output, value for 0
+
+        ScaledShortValues(short[] values, double[] scales, double[] offsets) {
+            super(scales.length);
+            this.values = values;
+            this.scales = scales;
+            this.offsets = offsets;
+        }
+
+        // maps the range [min, max] of each output onto [Short.MIN_VALUE, Short.MAX_VALUE]
+        static ScaledShortValues quantise(LutValues source) {
+            final int numOutputs = source.numOutputs;
+            final int size = source.size();
+            final double[] min = new double[numOutputs];
+            final double[] max = new double[numOutputs];
+            for (int k = 0; k < numOutputs; k++) {
+                min[k] = Double.POSITIVE_INFINITY;
+                max[k] = Double.NEGATIVE_INFINITY;
+            }
+            for (int i = 0; i < size; i++) {
+                final double value = source.get(i);
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    throw new IllegalArgumentException("LUT value " + value + " at index " + i +
+                                                               " cannot be stored as scaled short.");
+                }
+                final int k = i % numOutputs;
+                min[k] = Math.min(min[k], value);
+                max[k] = Math.max(max[k], value);
+            }
+            final double[] scales = new double[numOutputs];
+            final double[] offsets = new double[numOutputs];
+            for (int k = 0; k < numOutputs; k++) {
+                scales[k] = (max[k] - min[k]) / (Short.MAX_VALUE - Short.MIN_VALUE);
+                offsets[k] = min[k] - Short.MIN_VALUE * scales[k];
+            }
+            final short[] values = new short[size];
+            for (int i = 0; i < size; i++) {
+                final int k = i % numOutputs;
+                if (scales[k] > 0.0) {
+                    final long quantised = Math.round((source.get(i) - offsets[k]) / scales[k]);
+                    values[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, quantised));
+                } else {
+                    // constant output
+                    values[i] = 0;
+                }
+            }
+            return new ScaledShortValues(values, scales, offsets);
+        }
+
+        @Override
+        LutPrecision getPrecision() {
+            return LutPrecision.SCALED_SHORT;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        @Override
+        double get(int index) {
+            final int k = index % numOutputs;
+            return offsets[k] + scales[k] * values[index];
+        }
+
+        @Override
+        void addWeighted(int nodeOffset, double weight, double[] target, int targetOffset, int targetStride) {
+            for (int k = 0; k < numOutputs; k++) {
+                target[targetOffset + k * targetStride] += weight * (offsets[k] + scales[k] * values[nodeOffset + k]);
+            }
+        }
+
+        @Override
+        LutValues copyRuns(int[] runOffsets, int runLength) {
+            final short[] copy = new short[runOffsets.length * runLength];
+            for (int r = 0; r < runOffsets.length; r++) {
+                System.arraycopy(values, runOffsets[r], copy, r * runLength, runLength);
+            }
+            return new ScaledShortValues(copy, scales, offsets);
+        }
+    }
+}
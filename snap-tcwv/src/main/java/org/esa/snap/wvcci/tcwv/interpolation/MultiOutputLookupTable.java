@@ -0,0 +1,520 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Multilinear lookup table providing several output values (e.g. all bands of the TCWV forward model,
+ * or all elements of the Jacobi matrix) at once.
+ * <p>
+ * In contrast to one {@link org.esa.snap.core.util.math.LookupTable} per output, the hypercube cell
+ * and the corner weights are computed only once per call, and all outputs are accumulated in one pass
+ * over a contiguous array in which the output values of each grid node are stored consecutively
+ * ('interleaved'). Coordinates outside the axis ranges are clamped to the boundaries, as in
+ * {@link org.esa.snap.core.util.math.LookupTable}.
+ * <p>
+ * The values may be backed by a heap array or by a (memory mapped) {@link DoubleBuffer}, see
+ * {@link org.esa.snap.wvcci.tcwv.TcwvLutBinaryIO}. A copy with values stored in reduced precision
+ * (less memory and memory bandwidth) is provided by {@link #withPrecision(LutPrecision)}.
+ * <p>
+ * Instances are immutable and thread safe.
+ *
+ * @author olafd
+ */
+public class MultiOutputLookupTable {
+
+    private final double[][] axes;
+    private final int numDims;
+    private final int numOutputs;
+    private final LutValues values;     // heap array or read-only memory mapped file, or reduced precision
+    private final int[] strides;        // in units of values, i.e. multiplied by numOutputs
+    private final int[] cornerOffsets;  // offsets of the 2^numDims cell corners relative to the lower corner
+
+    // the per-thread workspaces must not refer to this table: the worker threads outlive the table
+    private final ThreadLocal<Workspace> workspace;
+
+    /**
+     * Creates a lookup table from separate 1D arrays, one per output (as used for
+     * {@link org.esa.snap.core.util.math.LookupTable}).
+     *
+     * @param luts - array of lookup tables, each LUT is a 1D double array here
+     * @param axes - array of axes, each axis is a 1D double array here
+     */
+    public MultiOutputLookupTable(double[][] luts, double[][] axes) {
+        this(interleave(luts), luts.length, axes);
+    }
+
+    /**
+     * Creates a lookup table from an interleaved array, i.e. the last (fastest varying) dimension
+     * is the output index.
+     *
+     * @param values     - interleaved LUT values
+     * @param numOutputs - number of output values per grid node
+     * @param axes       - array of axes, each axis is a 1D double array here
+     */
+    public MultiOutputLookupTable(double[] values, int numOutputs, double[][] axes) {
+        this(DoubleBuffer.wrap(values), numOutputs, axes);
+    }
+
+    /**
+     * Creates a lookup table from an interleaved buffer, i.e. the last (fastest varying) dimension
+     * is the output index. The buffer is accessed with absolute indices and must not be modified afterwards.
+     *
+     * @param values     - interleaved LUT values, e.g. from a read-only memory mapped file
+     * @param numOutputs - number of output values per grid node
+     * @param axes       - array of axes, each axis is a 1D double array here
+     */
+    public MultiOutputLookupTable(DoubleBuffer values, int numOutputs, double[][] axes) {
+        this(LutValues.of(values, numOutputs), numOutputs, axes);
+    }
+
+    private MultiOutputLookupTable(LutValues values, int numOutputs, double[][] axes) {
+        this.axes = axes;
+        this.numDims = axes.length;
+        this.numOutputs = numOutputs;
+        this.values = values;
+
+        int size = numOutputs;
+        strides = new int[numDims];
+        for (int i = numDims - 1; i >= 0; i--) {
+            if (axes[i].length < 2) {
+                throw new IllegalArgumentException("Axis " + i + " must have at least 2 nodes.");
+            }
+            if (!TcwvInterpolationUtils.isMontonicallyIncreasing(axes[i])) {
+                throw new IllegalArgumentException("Axis " + i + " is not monotonically increasing.");
+            }
+            strides[i] = size;
+            size *= axes[i].length;
+        }
+        if (size != values.size()) {
+            throw new IllegalArgumentException("LUT size " + values.size() +
+                                                       " does not match axes and number of outputs (" + size + ").");
+        }
+
+        cornerOffsets = computeCornerOffsets(strides, 0, numDims);
+
+        final int workspaceDims = numDims;
+        workspace = ThreadLocal.withInitial(() -> new Workspace(workspaceDims));
+    }
+
+    public int getNumOutputs() {
+        return numOutputs;
+    }
+
+    public int getNumDims() {
+        return numDims;
+    }
+
+    public double[][] getAxes() {
+        return axes;
+    }
+
+    /**
+     * @return read-only view of the interleaved LUT values (decoded copy for reduced precision)
+     */
+    public DoubleBuffer getValueBuffer() {
+        return values.getDoubleBuffer();
+    }
+
+    /**
+     * @return the storage precision of the LUT values
+     */
+    public LutPrecision getPrecision() {
+        return values.getPrecision();
+    }
+
+    /**
+     * @return memory size of the LUT values in bytes
+     */
+    public long getValueBytes() {
+        return (long) values.size() * values.getPrecision().getBytesPerValue();
+    }
+
+    /**
+     * Provides this lookup table with values stored in the given precision (see {@link LutPrecision} for the
+     * error bounds). The values are converted into a heap copy, unless they already have this precision.
+     *
+     * @param precision - the storage precision
+     * @return the lookup table in given precision (this, if it already has the precision)
+     */
+    public MultiOutputLookupTable withPrecision(LutPrecision precision) {
+        if (values.getPrecision() == precision) {
+            return this;
+        }
+        return new MultiOutputLookupTable(LutValues.convert(values, precision), numOutputs, axes);
+    }
+
+    /**
+     * Provides the sub-table over the given node index ranges (e.g. the geometry range of a granule), as a
+     * heap copy in the same precision. Within the sub-table, the interpolated values are the same as in this table.
+     *
+     * @param fromIndices - first node index per axis
+     * @param toIndices   - last node index per axis (inclusive), at least one node after the first
+     * @return the sub-table
+     */
+    public MultiOutputLookupTable getSubTable(int[] fromIndices, int[] toIndices) {
+        if (fromIndices.length != numDims || toIndices.length != numDims) {
+            throw new IllegalArgumentException("Number of index ranges does not match LUT dimensions.");
+        }
+        final double[][] subAxes = new double[numDims][];
+        int size = numOutputs;
+        for (int i = 0; i < numDims; i++) {
+            if (fromIndices[i] < 0 || toIndices[i] >= axes[i].length || toIndices[i] <= fromIndices[i]) {
+                throw new IllegalArgumentException("Invalid index range [" + fromIndices[i] + ", " +
+                                                           toIndices[i] + "] for axis " + i + ".");
+            }
+            subAxes[i] = Arrays.copyOfRange(axes[i], fromIndices[i], toIndices[i] + 1);
+            size *= subAxes[i].length;
+        }
+
+        // copy runs along the last axis, which are contiguous in both tables
+        final int last = numDims - 1;
+        final int runLength = subAxes[last].length * numOutputs;
+        final int[] runOffsets = new int[size / runLength];
+        final int[] index = fromIndices.clone();
+        for (int r = 0; r < runOffsets.length; r++) {
+            int offset = 0;
+            for (int i = 0; i < numDims; i++) {
+                offset += index[i] * strides[i];
+            }
+            runOffsets[r] = offset;
+            // next run: increment the node index of the outer axes
+            for (int i = last - 1; i >= 0; i--) {
+                if (index[i] < toIndices[i]) {
+                    index[i]++;
+                    break;
+                }
+                index[i] = fromIndices[i];
+            }
+        }
+        return new MultiOutputLookupTable(values.copyRuns(runOffsets, runLength), numOutputs, subAxes);
+    }
+
+    /**
+     * Provides the interpolated values for all outputs. The coordinates are given as two parts, which are
+     * concatenated virtually (e.g. state vector x and parameters), to avoid the copy in
+     * {@link TcwvInterpolationUtils#concat1DArrays(double[], double[])}.
+     * <p>
+     * If parameters are given, the LUT is reduced along the parameter axes into a slice over the x axes
+     * (e.g. the 3D state space wvc, al0/aot, al1/wsp for fixed geometry, aot, pressure, t2m). This slice is
+     * kept per thread as long as the same parameters are passed, which is the case for all iterations of one
+     * pixel inversion. The slice is filled lazily, i.e. only the nodes actually needed by the state vectors
+     * are reduced, so subsequent calls for the same pixel are cheap low-dimensional lookups.
+     *
+     * @param x      - first part of the coordinates
+     * @param params - second part of the coordinates (may be null)
+     * @param result - the interpolated values, length numOutputs
+     */
+    public void getValues(double[] x, double[] params, double[] result) {
+        final Workspace ws = workspace.get();
+        if (params == null || params.length == 0 || x.length == 0) {
+            final int base = locateCell(x, params, 0, numDims, ws.weights, null, null);
+            accumulate(base, cornerOffsets, ws.weights, result);
+        } else {
+            getValuesFromSlice(x, params, ws, result, null);
+        }
+    }
+
+    /**
+     * Provides the interpolated values for all outputs as {@link #getValues(double[], double[], double[])},
+     * together with their partial derivatives with respect to the coordinates in x (e.g. the state vector),
+     * i.e. the gradient of the multilinear interpolant within the located cell. The derivatives are accumulated
+     * in the same pass over the cell corners as the values, so no further cell lookup is needed.
+     * <p>
+     * For coordinates on or outside the axis boundaries, the derivatives of the boundary cell are provided
+     * (whereas the interpolated values are clamped there).
+     *
+     * @param x           - first part of the coordinates, the derivatives refer to these
+     * @param params      - second part of the coordinates (may be null)
+     * @param result      - the interpolated values, length numOutputs
+     * @param derivatives - the partial derivatives, length numOutputs * x.length, output by output
+     *                      (d result[k] / d x[j] at index k * x.length + j)
+     */
+    public void getValuesAndDerivatives(double[] x, double[] params, double[] result, double[] derivatives) {
+        final Workspace ws = workspace.get();
+        Arrays.fill(derivatives, 0, numOutputs * x.length, 0.0);
+        if (params == null || params.length == 0 || x.length == 0) {
+            final int base = locateCell(x, params, 0, numDims, ws.weights, ws.fracs, ws.invWidths);
+            final double[] derivativeWeights = ws.getDerivativeWeights(numDims, x.length);
+            accumulate(base, cornerOffsets, ws.weights, result);
+            accumulateDerivatives(base, cornerOffsets, x.length, derivativeWeights, derivatives);
+        } else {
+            getValuesFromSlice(x, params, ws, result, derivatives);
+        }
+    }
+
+    // derivatives may be null if not needed
+    private void getValuesFromSlice(double[] x, double[] params, Workspace ws, double[] result, double[] derivatives) {
+        final int numStateDims = x.length;
+        if (numStateDims + params.length != numDims) {
+            throw new IllegalArgumentException("Number of coordinates does not match LUT dimensions.");
+        }
+        final Slice slice = ws.getSlice(numStateDims, axes, strides, numOutputs);
+        if (!Arrays.equals(params, slice.params)) {
+            // new pixel: locate the parameter cell once, invalidate all slice nodes
+            if (slice.params == null || slice.params.length != params.length) {
+                slice.params = params.clone();
+            } else {
+                System.arraycopy(params, 0, slice.params, 0, params.length);
+            }
+            slice.paramBase = locateCell(x, params, numStateDims, numDims, slice.paramWeights, null, null);
+            slice.nextGeneration();
+        }
+
+        for (int k = 0; k < numOutputs; k++) {
+            result[k] = 0.0;
+        }
+        final int stateBase;
+        final double[] derivativeWeights;
+        if (derivatives != null) {
+            stateBase = locateCell(x, params, 0, numStateDims, ws.weights, ws.fracs, ws.invWidths);
+            derivativeWeights = ws.getDerivativeWeights(numStateDims, numStateDims);
+        } else {
+            stateBase = locateCell(x, params, 0, numStateDims, ws.weights, null, null);
+            derivativeWeights = null;
+        }
+        final int numCorners = slice.stateCornerOffsets.length;
+        final int nodeStride = strides[numStateDims - 1];
+        for (int c = 0; c < numCorners; c++) {
+            final double w = ws.weights[c];
+            // corners with zero weight still contribute to the derivatives (e.g. on a node)
+            if (w != 0.0 || derivatives != null) {
+                final int nodeOffset = stateBase + slice.stateCornerOffsets[c];
+                final int node = nodeOffset / nodeStride;
+                final int sliceOffset = node * numOutputs;
+                if (slice.stamps[node] != slice.generation) {
+                    // reduce the LUT along the parameter axes for this state node
+                    for (int k = 0; k < numOutputs; k++) {
+                        slice.values[sliceOffset + k] = 0.0;
+                    }
+                    for (int p = 0; p < slice.paramCornerOffsets.length; p++) {
+                        final double wp = slice.paramWeights[p];
+                        if (wp != 0.0) {
+                            final int offset = nodeOffset + slice.paramBase + slice.paramCornerOffsets[p];
+                            values.addWeighted(offset, wp, slice.values, sliceOffset, 1);
+                        }
+                    }
+                    slice.stamps[node] = slice.generation;
+                }
+                if (w != 0.0) {
+                    for (int k = 0; k < numOutputs; k++) {
+                        result[k] += w * slice.values[sliceOffset + k];
+                    }
+                }
+                if (derivatives != null) {
+                    for (int j = 0; j < numStateDims; j++) {
+                        final double dw = derivativeWeights[j * numCorners + c];
+                        for (int k = 0; k < numOutputs; k++) {
+                            derivatives[k * numStateDims + j] += dw * slice.values[sliceOffset + k];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // finds the cell for dimensions [fromDim, toDim), fills the 2^(toDim-fromDim) corner weights and returns
+    // the offset of the lower corner. If fracs and invWidths are given, the fractional position in the cell and
+    // the inverse cell width are stored for each dimension (as needed for the derivatives).
+    private int locateCell(double[] x, double[] params, int fromDim, int toDim, double[] weights,
+                           double[] fracs, double[] invWidths) {
+        int base = 0;
+        weights[0] = 1.0;
+        int numWeights = 1;
+        for (int i = fromDim; i < toDim; i++) {
+            final double coordinate = i < x.length ? x[i] : params[i - x.length];
+            final double[] axis = axes[i];
+            final int last = axis.length - 1;
+            final int index;
+            final double frac;
+            if (coordinate <= axis[0]) {
+                index = 0;
+                frac = 0.0;
+            } else if (coordinate >= axis[last]) {
+                index = last - 1;
+                frac = 1.0;
+            } else {
+                int lo = 0;
+                int hi = last;
+                while (hi - lo > 1) {
+                    final int mid = (lo + hi) >>> 1;
+                    if (coordinate < axis[mid]) {
+                        hi = mid;
+                    } else {
+                        lo = mid;
+                    }
+                }
+                index = lo;
+                frac = (coordinate - axis[lo]) / (axis[hi] - axis[lo]);
+            }
+            base += index * strides[i];
+            if (fracs != null) {
+                fracs[i] = frac;
+                invWidths[i] = 1.0 / (axis[index + 1] - axis[index]);
+            }
+
+            // weights of the corners: bit (toDim-1-i) set means upper node in dimension i.
+            // Doubling the weight array per dimension keeps corner index bit order consistent with corner offsets.
+            final double w0 = 1.0 - frac;
+            for (int c = numWeights - 1; c >= 0; c--) {
+                final double w = weights[c];
+                weights[2 * c + 1] = w * frac;
+                weights[2 * c] = w * w0;
+            }
+            numWeights *= 2;
+        }
+        return base;
+    }
+
+    private void accumulate(int base, int[] offsets, double[] weights, double[] result) {
+        for (int k = 0; k < numOutputs; k++) {
+            result[k] = 0.0;
+        }
+        for (int c = 0; c < offsets.length; c++) {
+            final double w = weights[c];
+            if (w != 0.0) {
+                values.addWeighted(base + offsets[c], w, result, 0, 1);
+            }
+        }
+    }
+
+    private void accumulateDerivatives(int base, int[] offsets, int numDerivativeDims, double[] derivativeWeights,
+                                       double[] derivatives) {
+        final int numCorners = offsets.length;
+        for (int c = 0; c < numCorners; c++) {
+            final int offset = base + offsets[c];
+            for (int j = 0; j < numDerivativeDims; j++) {
+                final double dw = derivativeWeights[j * numCorners + c];
+                if (dw != 0.0) {
+                    values.addWeighted(offset, dw, derivatives, j, numDerivativeDims);
+                }
+            }
+        }
+    }
+
+    // derivatives of the 2^numCornerDims corner weights with respect to the coordinates of the first
+    // numDerivativeDims dimensions, at index j * 2^numCornerDims + c (same corner bit order as the weights)
+    private static void computeDerivativeWeights(int numCornerDims, int numDerivativeDims,
+                                                 double[] fracs, double[] invWidths, double[] derivativeWeights) {
+        final int numCorners = 1 << numCornerDims;
+        for (int j = 0; j < numDerivativeDims; j++) {
+            for (int c = 0; c < numCorners; c++) {
+                double dw = 1.0;
+                for (int i = 0; i < numCornerDims; i++) {
+                    final boolean upper = (c & (1 << (numCornerDims - 1 - i))) != 0;
+                    if (i == j) {
+                        dw *= upper ? invWidths[i] : -invWidths[i];
+                    } else {
+                        dw *= upper ? fracs[i] : 1.0 - fracs[i];
+                    }
+                }
+                derivativeWeights[j * numCorners + c] = dw;
+            }
+        }
+    }
+
+    // offsets of the 2^(toDim-fromDim) cell corners relative to the lower corner,
+    // bit j of the corner index refers to dimension toDim-1-j (last dimension varies fastest)
+    private static int[] computeCornerOffsets(int[] strides, int fromDim, int toDim) {
+        final int numCornerDims = toDim - fromDim;
+        final int numCorners = 1 << numCornerDims;
+        int[] offsets = new int[numCorners];
+        for (int c = 0; c < numCorners; c++) {
+            int offset = 0;
+            for (int j = 0; j < numCornerDims; j++) {
+                if ((c & (1 << j)) != 0) {
+                    offset += strides[toDim - 1 - j];
+                }
+            }
+            offsets[c] = offset;
+        }
+        return offsets;
+    }
+
+    /**
+     * Converts separate 1D LUT arrays (one per output) into one interleaved array.
+     *
+     * @param luts - array of lookup tables, all of same length
+     * @return interleaved array
+     */
+    static double[] interleave(double[][] luts) {
+        final int numOutputs = luts.length;
+        final int numNodes = luts[0].length;
+        double[] result = new double[numOutputs * numNodes];
+        for (int k = 0; k < numOutputs; k++) {
+            if (luts[k].length != numNodes) {
+                throw new IllegalArgumentException("LUTs must have same length.");
+            }
+            for (int i = 0; i < numNodes; i++) {
+                result[i * numOutputs + k] = luts[k][i];
+            }
+        }
+        return result;
+    }
+
+    private static class Workspace {
+        final double[] weights;
+        final double[] fracs;
+        final double[] invWidths;
+        double[] derivativeWeights;
+        Slice slice;
+
+        Workspace(int numDims) {
+            weights = new double[1 << numDims];
+            fracs = new double[numDims];
+            invWidths = new double[numDims];
+        }
+
+        // derivative weights for the cell located last (fracs and invWidths must be filled)
+        double[] getDerivativeWeights(int numCornerDims, int numDerivativeDims) {
+            final int size = numDerivativeDims << numCornerDims;
+            if (derivativeWeights == null || derivativeWeights.length < size) {
+                derivativeWeights = new double[size];
+            }
+            computeDerivativeWeights(numCornerDims, numDerivativeDims, fracs, invWidths, derivativeWeights);
+            return derivativeWeights;
+        }
+
+        Slice getSlice(int numStateDims, double[][] axes, int[] strides, int numOutputs) {
+            if (slice == null || slice.numStateDims != numStateDims) {
+                slice = new Slice(numStateDims, axes, strides, numOutputs);
+            }
+            return slice;
+        }
+    }
+
+    // LUT reduced along the parameter axes, for the current parameters of one thread.
+    // Only derived arrays are kept, not the axes or the values of the table.
+    private static class Slice {
+        final int numStateDims;
+        final int[] stateCornerOffsets;
+        final int[] paramCornerOffsets;
+        final double[] paramWeights;
+        final double[] values;     // reduced values, numOutputs per state node
+        final int[] stamps;        // generation for which a state node is valid
+        int generation;
+        double[] params;
+        int paramBase;
+
+        Slice(int numStateDims, double[][] axes, int[] strides, int numOutputs) {
+            this.numStateDims = numStateDims;
+            stateCornerOffsets = computeCornerOffsets(strides, 0, numStateDims);
+            paramCornerOffsets = computeCornerOffsets(strides, numStateDims, axes.length);
+            paramWeights = new double[paramCornerOffsets.length];
+            int numStateNodes = 1;
+            for (int i = 0; i < numStateDims; i++) {
+                numStateNodes *= axes[i].length;
+            }
+            values = new double[numStateNodes * numOutputs];
+            stamps = new int[numStateNodes];
+        }
+
+        void nextGeneration() {
+            generation++;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
+    }
+}
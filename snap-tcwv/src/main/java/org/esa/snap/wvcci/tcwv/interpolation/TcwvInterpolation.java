@@ -1,6 +1,5 @@
 package org.esa.snap.wvcci.tcwv.interpolation;
 
-import org.esa.snap.core.util.math.LookupTable;
 import org.esa.snap.wvcci.tcwv.TcwvFunction;
 import org.esa.snap.wvcci.tcwv.TcwvLandLut;
 import org.esa.snap.wvcci.tcwv.TcwvOceanLut;
@@ -21,20 +20,29 @@ public class TcwvInterpolation {
      * @return TCWV function
      */
     public static TcwvFunction lut2Function(double[][] luts, final double[][] axes) {
+        return lut2Function(new MultiOutputLookupTable(luts, axes));
+    }
 
-        LookupTable[] lookupTables = new LookupTable[luts.length];
-        for (int i = 0; i < luts.length; i++) {
-            lookupTables[i] = new LookupTable(luts[i], axes);
-        }
+    /**
+     * Provides a {@link TcwvFunction} object implementing the 'lut2func' logic from Python breadboard.
+     *
+     * @param lut - lookup table providing all bands in one call
+     *
+     * @return TCWV function
+     */
+    public static TcwvFunction lut2Function(final MultiOutputLookupTable lut) {
+        return new TcwvFunction() {
+            @Override
+            public double[] f(double[] x, double[] params) {
+                double[] values = new double[lut.getNumOutputs()];
+                lut.getValues(x, params, values);
+                return values;
+            }
 
-        return (x, params) -> {
-            double[] values = new double[luts.length];
-            double[] xNew;
-            xNew = TcwvInterpolationUtils.concat1DArrays(x, params);
-            for (int i = 0; i < lookupTables.length; i++) {
-                values[i] = lookupTables[i].getValue(xNew);
+            @Override
+            public void f(double[] x, double[] params, double[] result) {
+                lut.getValues(x, params, result);
             }
-            return values;
         };
     }
 
@@ -57,34 +65,58 @@ public class TcwvInterpolation {
             throw new IllegalStateException("Jacobi matrix dimensions do not match.");
         }
 
-        LookupTable[] lookupTables = new LookupTable[luts.length];
-        for (int i = 0; i < luts.length; i++) {
-            lookupTables[i] = new LookupTable(luts[i], axes);
+        // only the first 3 columns are used (see below), so we do not interpolate the others at all
+        double[][] usedLuts = new double[ny * 3][];
+        for (int i = 0; i < ny; i++) {
+            for (int j = 0; j < 3; j++) {
+                usedLuts[i * 3 + j] = luts[i * nx + j];
+            }
         }
 
-        return (x, params) -> {
+        return jacobiLut2Function(new MultiOutputLookupTable(usedLuts, axes), ny);
+    }
+
+    /**
+     * Provides a {@link JacobiFunction} object implementing the 'jlut2func' logic from Python breadboard.
+     *
+     * @param jlut - lookup table providing the used ny * 3 Jacobi elements (row by row) in one call
+     * @param ny - y dimension of Jacobi matrix
+     *
+     * @return Jacobi function
+     */
+    public static JacobiFunction jacobiLut2Function(final MultiOutputLookupTable jlut, int ny) {
+        if (jlut.getNumOutputs() != ny * 3) {
+            // should never happen!
+            throw new IllegalStateException("Jacobi matrix dimensions do not match.");
+        }
 
-            double[] values = new double[luts.length];
-            double[] xNew = TcwvInterpolationUtils.concat1DArrays(x, params);
-            for (int i = 0; i < lookupTables.length; i++) {
-                values[i] = lookupTables[i].getValue(xNew);
+        // interpolated values per thread, for the allocation-free variant
+        final ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[jlut.getNumOutputs()]);
+        return new JacobiFunction() {
+            @Override
+            public double[][] f(double[] x, double[] params) {
+                double[][] jaco = new double[ny][3];
+                f(x, params, jaco);
+                return jaco;
             }
 
-            // resort as ny * 3 array, ignore rest in nx dimension, as in breadboard (todo: ask RP what this means...)
-            // ny=4, nx=6 --> ny=4, nx=3     (MODIS ocean)
-            // ny=5, nx=9 --> ny=5, nx=3     (MODIS land)
-            // ny=3, nx=6 --> ny=3, nx=3      (MERIS ocean)
-            // ny=3, nx=9 --> ny=3, nx=3      (MERIS land)
-            double[][] jaco = new double[ny][3];
-            int index = 0;
-            for (int i = 0; i < ny; i++) {
-                for (int j = 0; j < 3; j++) {
-                    jaco[i][j] = values[index++];
+            @Override
+            public void f(double[] x, double[] params, double[][] jaco) {
+                final double[] values = scratch.get();
+                jlut.getValues(x, params, values);
+
+                // resort as ny * 3 array, ignore rest in nx dimension, as in breadboard (todo: ask RP what this means...)
+                // ny=4, nx=6 --> ny=4, nx=3     (MODIS ocean)
+                // ny=5, nx=9 --> ny=5, nx=3     (MODIS land)
+                // ny=3, nx=6 --> ny=3, nx=3      (MERIS ocean)
+                // ny=3, nx=9 --> ny=3, nx=3      (MERIS land)
+                int index = 0;
+                for (int i = 0; i < ny; i++) {
+                    for (int j = 0; j < 3; j++) {
+                        jaco[i][j] = values[index++];
+                    }
                 }
-                index += (nx-3);
             }
-
-            return jaco;
         };
     }
 
@@ -96,18 +128,8 @@ public class TcwvInterpolation {
      * @return TCWV function
      */
     public static TcwvFunction getForwardFunctionOcean(TcwvOceanLut tcwvOceanLut) {
-        // e.g. 6*6*11*11*9*9*3 --> 3*6*6*11*11*9*9 :
-        // we will store 3 (6*6*11*11*9*9) LUTs, each one holding one element for one band
-        final double[][][][][][][] lutArraySwapped =
-                TcwvInterpolationUtils.change7DArrayLastToFirstDimension(tcwvOceanLut.getLutArray());
-        final double[][] lutArrays1D = new double[lutArraySwapped.length][];
-        for (int i = 0; i < lutArraySwapped.length; i++) {
-            lutArrays1D[i] = TcwvInterpolationUtils.convert6Dto1DArray(lutArraySwapped[i]);
-        }
-
-        final double[][] axes = tcwvOceanLut.getAxes();
         // Python: self._forward
-        return lut2Function(lutArrays1D, axes);
+        return lut2Function(getForwardLookupTable(tcwvOceanLut));
     }
 
     /**
@@ -118,16 +140,7 @@ public class TcwvInterpolation {
      * @return TCWV function
      */
     public static TcwvFunction getForwardFunctionLand(TcwvLandLut tcwvLandLut) {
-        // same as for ocean, but 10D
-        final double[][][][][][][][][][] lutArraySwapped =
-                TcwvInterpolationUtils.change10DArrayLastToFirstDimension(tcwvLandLut.getLutArray());
-        final double[][] lutArrays1D = new double[lutArraySwapped.length][];
-        for (int i = 0; i < lutArraySwapped.length; i++) {
-            lutArrays1D[i] = TcwvInterpolationUtils.convert9Dto1DArray(lutArraySwapped[i], tcwvLandLut.getSensor());
-        }
-
-        final double[][] axes = tcwvLandLut.getAxes();
-        return lut2Function(lutArrays1D, axes);
+        return lut2Function(getForwardLookupTable(tcwvLandLut));
     }
 
     /**
@@ -138,20 +151,8 @@ public class TcwvInterpolation {
      * @return Jacobi function
      */
     public static JacobiFunction getJForwardFunctionOcean(TcwvOceanLut tcwvOceanLut) {
-        // 6*6*11*11*9*9*18 --> 18*6*6*11*11*9*9 :
-        // we will store 18 (6*6*11*11*9*9) LUTs, each one holding one Jacobi element
-        final double[][][][][][][] jlutArraySwapped =
-                TcwvInterpolationUtils.change7DArrayLastToFirstDimension(tcwvOceanLut.getJlutArray());
-        final double[][] jlutArrays1D = new double[jlutArraySwapped.length][];
-        for (int i = 0; i < jlutArraySwapped.length; i++) {
-            jlutArrays1D[i] = TcwvInterpolationUtils.convert6Dto1DArray(jlutArraySwapped[i]);
-        }
-
         // Python: self._jacobi
-        return jacobiLut2Function(jlutArrays1D,
-                                  tcwvOceanLut.getAxes(),   // jaxes = axes
-                                  tcwvOceanLut.getJaco()[0],
-                                  tcwvOceanLut.getJaco()[1]);
+        return jacobiLut2Function(getJacobiLookupTable(tcwvOceanLut), tcwvOceanLut.getJaco()[0]);
     }
 
     /**
@@ -162,20 +163,133 @@ public class TcwvInterpolation {
      * @return Jacobi function
      */
     public static JacobiFunction getJForwardFunctionLand(TcwvLandLut tcwvLandLut) {
+        return jacobiLut2Function(getJacobiLookupTable(tcwvLandLut), tcwvLandLut.getJaco()[0]);
+    }
+
+    /**
+     * Provides forward and Jacobi function for ocean, where the Jacobian is computed analytically from the
+     * forward LUT (see {@link AnalyticJacobiLookup}), i.e. the Jacobi LUT is not used.
+     *
+     * @param tcwvOceanLut - LUT for ocean, provided as a {@link TcwvOceanLut}
+     *
+     * @return the forward and Jacobi functions
+     */
+    public static AnalyticJacobiLookup getAnalyticJacobiLookup(TcwvOceanLut tcwvOceanLut) {
+        // state: wvc, aot, wsp
+        return new AnalyticJacobiLookup(getForwardLookupTable(tcwvOceanLut), 3);
+    }
+
+    /**
+     * Provides forward and Jacobi function for land, where the Jacobian is computed analytically from the
+     * forward LUT (see {@link AnalyticJacobiLookup}), i.e. the Jacobi LUT is not used.
+     *
+     * @param tcwvLandLut - LUT for land, provided as a {@link TcwvLandLut}
+     *
+     * @return the forward and Jacobi functions
+     */
+    public static AnalyticJacobiLookup getAnalyticJacobiLookup(TcwvLandLut tcwvLandLut) {
+        // state: wvc, al0, al1
+        return new AnalyticJacobiLookup(getForwardLookupTable(tcwvLandLut), 3);
+    }
+
+    /**
+     * Provides the flattened forward LUT for ocean, either as already given in the {@link TcwvOceanLut}
+     * (binary LUT file), or converted from the LUT array read from NetCDF.
+     *
+     * @param tcwvOceanLut - LUT for ocean, provided as a {@link TcwvOceanLut}
+     *
+     * @return the lookup table
+     */
+    public static MultiOutputLookupTable getForwardLookupTable(TcwvOceanLut tcwvOceanLut) {
+        if (tcwvOceanLut.getForwardLookupTable() != null) {
+            return tcwvOceanLut.getForwardLookupTable();
+        }
+        // e.g. 6*6*11*11*9*9*3: the band is the last dimension, so the LUT array is already
+        // 'interleaved' as needed for the MultiOutputLookupTable (no dimension swap needed)
+        final double[][][][][][][] lutArray = tcwvOceanLut.getLutArray();
+        final int numBands = lutArray[0][0][0][0][0][0].length;
+        final double[] lutArray1D = TcwvInterpolationUtils.convertNDto1DArray(lutArray, null);
+
+        return new MultiOutputLookupTable(lutArray1D, numBands, tcwvOceanLut.getAxes());
+    }
+
+    /**
+     * Provides the flattened forward LUT for land, either as already given in the {@link TcwvLandLut}
+     * (binary LUT file), or converted from the LUT array read from NetCDF.
+     *
+     * @param tcwvLandLut - LUT for land, provided as a {@link TcwvLandLut}
+     *
+     * @return the lookup table
+     */
+    public static MultiOutputLookupTable getForwardLookupTable(TcwvLandLut tcwvLandLut) {
+        if (tcwvLandLut.getForwardLookupTable() != null) {
+            return tcwvLandLut.getForwardLookupTable();
+        }
         // same as for ocean, but 10D
-        final double[][][][][][][][][][] jlutArraySwapped =
-                TcwvInterpolationUtils.change10DArrayLastToFirstDimension(tcwvLandLut.getJlutArray());
-        final double[][] jlutArrays1D = new double[jlutArraySwapped.length][];
-        for (int i = 0; i < jlutArraySwapped.length; i++) {
-            jlutArrays1D[i] = TcwvInterpolationUtils.convert9Dto1DArray(jlutArraySwapped[i], tcwvLandLut.getSensor());
+        final double[][][][][][][][][][] lutArray = tcwvLandLut.getLutArray();
+        final int numBands = lutArray[0][0][0][0][0][0][0][0][0].length;
+        final double[] lutArray1D = TcwvInterpolationUtils.convertNDto1DArray(lutArray, null);
+
+        return new MultiOutputLookupTable(lutArray1D, numBands, tcwvLandLut.getAxes());
+    }
+
+    /**
+     * Provides the flattened Jacobi LUT for ocean (used ny*3 elements only), either as already given in the
+     * {@link TcwvOceanLut} (binary LUT file), or converted from the Jacobi LUT array read from NetCDF.
+     *
+     * @param tcwvOceanLut - LUT for ocean, provided as a {@link TcwvOceanLut}
+     *
+     * @return the lookup table
+     */
+    public static MultiOutputLookupTable getJacobiLookupTable(TcwvOceanLut tcwvOceanLut) {
+        if (tcwvOceanLut.getJacobiLookupTable() != null) {
+            return tcwvOceanLut.getJacobiLookupTable();
+        }
+        if (tcwvOceanLut.getJlutArray() == null) {
+            throw new IllegalStateException("Jacobi LUT for ocean was not read.");
         }
+        // 6*6*11*11*9*9*18: Jacobi elements in last dimension, we only keep the ny*3 elements actually used
+        final int ny = tcwvOceanLut.getJaco()[0];
+        final int nx = tcwvOceanLut.getJaco()[1];
+        final double[] jlutArray1D =
+                TcwvInterpolationUtils.convertNDto1DArray(tcwvOceanLut.getJlutArray(), getUsedJacobiIndices(ny, nx));
 
-        return jacobiLut2Function(jlutArrays1D,
-                                  tcwvLandLut.getAxes(),   // jaxes = axes
-                                  tcwvLandLut.getJaco()[0],
-                                  tcwvLandLut.getJaco()[1]);
+        return new MultiOutputLookupTable(jlutArray1D, ny * 3, tcwvOceanLut.getAxes());
     }
 
+    /**
+     * Provides the flattened Jacobi LUT for land (used ny*3 elements only), either as already given in the
+     * {@link TcwvLandLut} (binary LUT file), or converted from the Jacobi LUT array read from NetCDF.
+     *
+     * @param tcwvLandLut - LUT for land, provided as a {@link TcwvLandLut}
+     *
+     * @return the lookup table
+     */
+    public static MultiOutputLookupTable getJacobiLookupTable(TcwvLandLut tcwvLandLut) {
+        if (tcwvLandLut.getJacobiLookupTable() != null) {
+            return tcwvLandLut.getJacobiLookupTable();
+        }
+        if (tcwvLandLut.getJlutArray() == null) {
+            throw new IllegalStateException("Jacobi LUT for land was not read.");
+        }
+        // same as for ocean, but 10D
+        final int ny = tcwvLandLut.getJaco()[0];
+        final int nx = tcwvLandLut.getJaco()[1];
+        final double[] jlutArray1D =
+                TcwvInterpolationUtils.convertNDto1DArray(tcwvLandLut.getJlutArray(), getUsedJacobiIndices(ny, nx));
 
+        return new MultiOutputLookupTable(jlutArray1D, ny * 3, tcwvLandLut.getAxes());
+    }
+
+    // indices (row by row) of the first 3 columns of a ny * nx Jacobi matrix stored as 1D array
+    private static int[] getUsedJacobiIndices(int ny, int nx) {
+        int[] indices = new int[ny * 3];
+        for (int i = 0; i < ny; i++) {
+            for (int j = 0; j < 3; j++) {
+                indices[i * 3 + j] = i * nx + j;
+            }
+        }
+        return indices;
+    }
 
 }
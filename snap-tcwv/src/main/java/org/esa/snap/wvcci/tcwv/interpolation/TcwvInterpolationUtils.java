@@ -171,6 +171,50 @@ public class TcwvInterpolationUtils {
         return result;
     }
 
+    /**
+     * Converts N-D input array (nested double arrays) to 1D array, keeping the storage order, i.e. the last
+     * dimension varies fastest. Optionally, only a subset of the elements of the last dimension is kept.
+     *
+     * @param src            - N-D input array of doubles
+     * @param lastDimIndices - indices of the last dimension to keep, or null to keep all
+     * @return 1D result array
+     */
+    public static double[] convertNDto1DArray(Object src, int[] lastDimIndices) {
+        int numOuter = 1;
+        Object sub = src;
+        while (sub instanceof Object[]) {
+            numOuter *= ((Object[]) sub).length;
+            sub = ((Object[]) sub)[0];
+        }
+        final int numLast = lastDimIndices != null ? lastDimIndices.length : ((double[]) sub).length;
+
+        double[] result = new double[numOuter * numLast];
+        final int size = flattenInto(src, lastDimIndices, result, 0);
+        if (size != result.length) {
+            // should never happen for non-ragged arrays
+            throw new IllegalArgumentException("Input array is ragged.");
+        }
+        return result;
+    }
+
+    private static int flattenInto(Object src, int[] lastDimIndices, double[] result, int index) {
+        if (src instanceof double[]) {
+            final double[] srcArr = (double[]) src;
+            if (lastDimIndices == null) {
+                System.arraycopy(srcArr, 0, result, index, srcArr.length);
+                return index + srcArr.length;
+            }
+            for (int lastDimIndex : lastDimIndices) {
+                result[index++] = srcArr[lastDimIndex];
+            }
+            return index;
+        }
+        for (Object srcSubArr : (Object[]) src) {
+            index = flattenInto(srcSubArr, lastDimIndices, result, index);
+        }
+        return index;
+    }
+
     /**
      * Extracts 1D Netcdf integer variable as primitive 1D int[]
      *
@@ -0,0 +1,205 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.CrsGeoCoding;
+import org.esa.snap.core.datamodel.GeoCoding;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.common.resample.ResamplingOp;
+import org.esa.snap.core.image.ImageManager;
+import org.esa.snap.core.image.ResolutionLevel;
+import org.esa.snap.core.image.SingleBandedOpImage;
+import org.esa.snap.core.util.ProductUtils;
+
+import javax.media.jai.PlanarImage;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resampling of the coarser auxiliary products (HOAPS, land/sea mask, sea ice) onto the grid of the NIR product in
+ * the L3 daily merge operators.
+ * <p>
+ * If the target grid is an exact integer multiple of the source grid (e.g. 0.5 deg onto 0.05 deg, factor 10), each
+ * target pixel (x, y) is taken from the source cell (x / factor, y / factor), i.e. nearest neighbour without any
+ * geometry computations. The source raster is read once, on first use. Upsampled images of products read from a
+ * file are kept in a small shared cache, so that e.g. the same land mask is resampled only once for all days
+ * processed in the same VM.
+ * For all other grids, the generic {@link ResamplingOp} is used as before.
+ *
+ * @author olafd
+ */
+class IntegerFactorUpsampling {
+
+    private static final int MAX_CACHED_IMAGES = 64;
+
+    private static final Map<String, UpsampledImage> imageCache =
+            Collections.synchronizedMap(new LinkedHashMap<String, UpsampledImage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, UpsampledImage> eldest) {
+                    return size() > MAX_CACHED_IMAGES;
+                }
+            });
+
+    /**
+     * Provides the given product on the target grid.
+     *
+     * @param sourceProduct - the source product
+     * @param width         - the target width
+     * @param height        - the target height
+     * @return the resampled product
+     */
+    static Product getResampledProduct(Product sourceProduct, int width, int height) {
+        final int factor = getIntegerFactor(sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight(),
+                                            width, height);
+        if (factor < 0) {
+            ResamplingOp resamplingOp = new ResamplingOp();
+            resamplingOp.setSourceProduct(sourceProduct);
+            resamplingOp.setParameterDefaultValues();
+            resamplingOp.setParameter("targetWidth", width);
+            resamplingOp.setParameter("targetHeight", height);
+            return resamplingOp.getTargetProduct();
+        }
+        return getUpsampledProduct(sourceProduct, factor);
+    }
+
+    /**
+     * @param sourceWidth  - the source width
+     * @param sourceHeight - the source height
+     * @param targetWidth  - the target width
+     * @param targetHeight - the target height
+     * @return the common integer factor (at least 1) of the target to the source dimensions, or -1 if there is none
+     */
+    static int getIntegerFactor(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 ||
+                targetWidth % sourceWidth != 0 || targetHeight % sourceHeight != 0) {
+            return -1;
+        }
+        final int factor = targetWidth / sourceWidth;
+        return factor >= 1 && factor == targetHeight / sourceHeight ? factor : -1;
+    }
+
+    static Product getUpsampledProduct(Product sourceProduct, int factor) {
+        final int width = sourceProduct.getSceneRasterWidth() * factor;
+        final int height = sourceProduct.getSceneRasterHeight() * factor;
+        final Product upsampledProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
+                                                     width, height);
+        upsampledProduct.setStartTime(sourceProduct.getStartTime());
+        upsampledProduct.setEndTime(sourceProduct.getEndTime());
+        upsampledProduct.setFileLocation(sourceProduct.getFileLocation());
+        ProductUtils.copyFlagCodings(sourceProduct, upsampledProduct);
+        setUpsampledGeoCoding(sourceProduct.getSceneGeoCoding(), upsampledProduct, factor);
+
+        final Dimension tileSize = ImageManager.getPreferredTileSize(upsampledProduct);
+        for (Band sourceBand : sourceProduct.getBands()) {
+            final Band band = new Band(sourceBand.getName(), sourceBand.getDataType(), width, height);
+            ProductUtils.copyRasterDataNodeProperties(sourceBand, band);
+            if (sourceBand.isFlagBand()) {
+                band.setSampleCoding(upsampledProduct.getFlagCodingGroup().get(sourceBand.getFlagCoding().getName()));
+            }
+            band.setSourceImage(getUpsampledImage(sourceProduct.getFileLocation(), sourceBand, factor, tileSize));
+            upsampledProduct.addBand(band);
+        }
+        return upsampledProduct;
+    }
+
+    static void clearCache() {
+        imageCache.clear();
+    }
+
+    private static RenderedImage getUpsampledImage(File fileLocation, Band sourceBand, int factor,
+                                                   Dimension tileSize) {
+        if (fileLocation == null) {
+            return new UpsampledImage(sourceBand, factor, tileSize);
+        }
+        final String key = fileLocation.getAbsolutePath() + ":" + fileLocation.lastModified() + ":" +
+                sourceBand.getName() + ":" + factor + ":" + tileSize.width + "x" + tileSize.height;
+        synchronized (imageCache) {
+            UpsampledImage image = imageCache.get(key);
+            // an image which has not yet read its source still refers to the band of an earlier product instance,
+            // which may have been disposed in the meantime
+            if (image == null || !image.isSourceDataRead()) {
+                image = new UpsampledImage(sourceBand, factor, tileSize);
+                imageCache.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    private static void setUpsampledGeoCoding(GeoCoding sourceGeoCoding, Product upsampledProduct, int factor) {
+        if (sourceGeoCoding instanceof CrsGeoCoding &&
+                sourceGeoCoding.getImageToMapTransform() instanceof AffineTransform) {
+            final AffineTransform imageToMap =
+                    new AffineTransform((AffineTransform) sourceGeoCoding.getImageToMapTransform());
+            imageToMap.scale(1.0 / factor, 1.0 / factor);
+            try {
+                upsampledProduct.setSceneGeoCoding(
+                        new CrsGeoCoding(sourceGeoCoding.getMapCRS(),
+                                         new Rectangle(upsampledProduct.getSceneRasterWidth(),
+                                                       upsampledProduct.getSceneRasterHeight()),
+                                         imageToMap));
+            } catch (Exception e) {
+                throw new OperatorException("Cannot create geocoding of upsampled product '" +
+                                                    upsampledProduct.getName() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Nearest neighbour upsampling by an integer factor: target pixel (x, y) is source pixel (x / factor, y / factor).
+     */
+    private static class UpsampledImage extends SingleBandedOpImage {
+
+        private final int factor;
+        private Band sourceBand;
+        private Raster sourceData;
+
+        UpsampledImage(Band sourceBand, int factor, Dimension tileSize) {
+            super(ImageManager.getDataBufferType(sourceBand.getDataType()),
+                  sourceBand.getRasterWidth() * factor, sourceBand.getRasterHeight() * factor,
+                  tileSize, null, ResolutionLevel.MAXRES);
+            this.sourceBand = sourceBand;
+            this.factor = factor;
+        }
+
+        synchronized boolean isSourceDataRead() {
+            return sourceData != null;
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+            final Raster source = getSourceData();
+            final int sourceX0 = destRect.x / factor;
+            final int sourceX1 = (destRect.x + destRect.width - 1) / factor;
+            final double[] sourceRow = new double[sourceX1 - sourceX0 + 1];
+            final double[] targetRow = new double[destRect.width];
+            int lastSourceY = -1;
+            for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+                final int sourceY = y / factor;
+                if (sourceY != lastSourceY) {
+                    source.getSamples(sourceX0, sourceY, sourceRow.length, 1, 0, sourceRow);
+                    for (int i = 0; i < destRect.width; i++) {
+                        targetRow[i] = sourceRow[(destRect.x + i) / factor - sourceX0];
+                    }
+                    lastSourceY = sourceY;
+                }
+                tile.setSamples(destRect.x, y, destRect.width, 1, 0, targetRow);
+            }
+        }
+
+        private synchronized Raster getSourceData() {
+            if (sourceData == null) {
+                // the coarse source is small, so read it completely once and release the band afterwards
+                sourceData = sourceBand.getSourceImage().getData();
+                sourceBand = null;
+            }
+            return sourceData;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import org.esa.snap.core.datamodel.ProductData;
+
+/**
+ * Pixel merge rules of the TCWV L3 daily merge, shared by the NIR/NIR and NIR/HOAPS phase operators and by the
+ * fused {@link L3DailyMergeOp}, so that all of them compute identical values.
+ *
+ * @author olafd
+ */
+class L3DailyMergeKernel {
+
+    private L3DailyMergeKernel() {
+    }
+
+    /**
+     * NIR/NIR merge: sum of the possible numbers of observations of both sources.
+     *
+     * @param srcNumObs           - possible numbers of observations of the two sources
+     * @param srcTcwvNumObsNodata - the corresponding no-data values
+     * @return the merged possible number of observations
+     */
+    static int mergeNirPossibleNumObs(int[] srcNumObs, int[] srcTcwvNumObsNodata) {
+        int numObs = 0;
+        for (int i = 0; i < 2; i++) {
+            if (srcNumObs[i] != srcTcwvNumObsNodata[i]) {
+                numObs += srcNumObs[i];
+            }
+        }
+        return numObs;
+    }
+
+    /**
+     * NIR/NIR merge: mean of a TCWV quantity of both sources, weighted by the TCWV retrieval counts.
+     *
+     * @param srcTcwv             - the quantity of the two sources
+     * @param srcTcwvCounts       - the TCWV retrieval counts of the two sources
+     * @param srcTcwvNodata       - the TCWV no-data values
+     * @param srcTcwvCountsNodata - the counts no-data values
+     * @return {weighted mean, sum of counts}
+     */
+    static double[] mergeNirTcwv(double[] srcTcwv, double[] srcTcwvCounts,
+                                 double[] srcTcwvNodata, double[] srcTcwvCountsNodata) {
+        double tcwv = 0.0;
+        double tcwvCounts = 0.0;
+
+        for (int i = 0; i < 2; i++) {
+            if (isValidNir(srcTcwv[i], srcTcwvCounts[i], srcTcwvNodata[i], srcTcwvCountsNodata[i])) {
+                tcwv += srcTcwvCounts[i] * srcTcwv[i];
+                tcwvCounts += srcTcwvCounts[i];
+            }
+        }
+        tcwv /= tcwvCounts;
+
+        return new double[]{tcwv, tcwvCounts};
+    }
+
+    /**
+     * NIR/NIR merge: flag of the source with the majority of TCWV retrievals.
+     *
+     * @param srcFlags            - the flags of the two sources
+     * @param srcTcwvCounts       - the TCWV retrieval counts of the two sources
+     * @param srcTcwvCountsNodata - the no-data values to test the counts against
+     * @return the merged flag
+     */
+    static int mergeNirFlag(int[] srcFlags, double[] srcTcwvCounts, double[] srcTcwvCountsNodata) {
+        for (int i = 0; i <= 1; i++) {
+            if (Double.isNaN(srcTcwvCounts[i]) || (srcTcwvCounts[i] == srcTcwvCountsNodata[i])) {
+                return srcFlags[1 - i];
+            }
+        }
+        final int majorityIndex = srcTcwvCounts[0] >= srcTcwvCounts[1] ? 0 : 1;
+        return srcFlags[majorityIndex];
+    }
+
+    /**
+     * NIR/HOAPS merge: HOAPS number of observations if available, NIR number of observations otherwise.
+     *
+     * @param srcNirNumObs         - the NIR possible number of observations
+     * @param srcHoapsNumObs       - the HOAPS number of observations
+     * @param srcHoapsNumObsNodata - the HOAPS number of observations no-data value
+     * @return the merged possible number of observations
+     */
+    static int mergeHoapsPossibleNumObs(int srcNirNumObs, int srcHoapsNumObs, int srcHoapsNumObsNodata) {
+        final boolean hoapsAvailable = srcHoapsNumObs > 0 && srcHoapsNumObs != srcHoapsNumObsNodata;
+        if (hoapsAvailable) {
+            // HOAPS samples available
+            return srcHoapsNumObs;
+        } else {
+            // only NIR samples, no HOAPS samples (land, coastal, sea ice)
+            // todo: ingest coastal zone mask when available. Then set to srcNirNumObsNodata if no HOAPS,
+            // no land, no coast no seaice --> this condition only applies for gaps in SSMI swaths
+            return srcNirNumObs;
+        }
+    }
+
+    /**
+     * @param srcValue       - the source value
+     * @param srcNodataValue - the source no-data value
+     * @return the source value, or NaN if it is no-data
+     */
+    static double useOriginal(double srcValue, double srcNodataValue) {
+        if (!Double.isNaN(srcValue) && srcValue != srcNodataValue) {
+            return srcValue;
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * NIR/HOAPS merge of a TCWV quantity.
+     *
+     * @param srcNir               - the NIR value
+     * @param srcNirNodata         - the NIR no-data value
+     * @param srcHoaps             - the HOAPS value
+     * @param srcHoapsNodata       - the HOAPS no-data value
+     * @param srcHoapsNumObs       - the HOAPS number of observations
+     * @param srcHoapsNumObsNodata - the HOAPS number of observations no-data value
+     * @param srcLandMask          - the land mask value
+     * @param srcSeaiceMask        - the sea ice mask value, -1 if there is no sea ice product
+     * @return the merged value
+     */
+    static double mergeHoapsTcwv(double srcNir, double srcNirNodata,
+                                 double srcHoaps, double srcHoapsNodata,
+                                 int srcHoapsNumObs, int srcHoapsNumObsNodata,
+                                 int srcLandMask, int srcSeaiceMask) {
+
+        // we want (required by DWD):
+        // if HOAPS available, set HOAPS value (over ocean excl. coast sea ice)
+        // if no HOAPS, set NIR value if land, coastal, sea ice, otherwise set to NaN
+        // if no HOAPS because of coverage gaps (no land nor coastal nor sea ice), set to NaN
+        final boolean nirAvailable = !Double.isNaN(srcNir) && srcNir != srcNirNodata;
+        final boolean hoapsAvailable = srcHoaps != srcHoapsNodata && srcHoapsNumObs > 0 &&
+                srcHoapsNumObs != srcHoapsNumObsNodata;
+        final boolean hoapsNotAvailableNotOcean = srcLandMask > 0 || srcSeaiceMask > 0;
+        if (hoapsAvailable) {
+            return srcHoaps;
+        } else if (hoapsNotAvailableNotOcean && nirAvailable) {
+            return srcNir;
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * NIR/HOAPS merge of a quality flag.
+     *
+     * @param srcNirQualityFlag    - the NIR quality flag
+     * @param srcHoapsNumObs       - the HOAPS number of observations
+     * @param srcHoapsNumObsNodata - the HOAPS number of observations no-data value
+     * @return the merged quality flag
+     */
+    static int mergeHoapsQualityFlag(int srcNirQualityFlag, int srcHoapsNumObs, int srcHoapsNumObsNodata) {
+        // we want:
+        // if HOAPS, set quality flag to NaN
+        // if no HOAPS, keep it as is for land, coastal (todo: ingest), sea ice, otherwise set to NaN
+        final boolean hoapsAvailable = srcHoapsNumObs > 0 && srcHoapsNumObs != srcHoapsNumObsNodata;
+        if (hoapsAvailable) {
+            // HOAPS samples available
+            return -1;
+        } else {
+            return srcNirQualityFlag;
+        }
+    }
+
+    // Row versions of the merge rules, used by L3DailyMergeOp. They do not allocate, and they write the merged row
+    // element by element after reading the sources, so the merged row may be one of the source rows.
+
+    /**
+     * Row version of {@link #mergeNirPossibleNumObs(int[], int[])}.
+     *
+     * @param srcNumObs1          - possible numbers of observations of the first source
+     * @param srcNumObs2          - possible numbers of observations of the second source
+     * @param srcTcwvNumObsNodata - the no-data values of the two sources
+     * @param merged              - receives the merged possible numbers of observations
+     */
+    static void mergeNirPossibleNumObs(int[] srcNumObs1, int[] srcNumObs2, int[] srcTcwvNumObsNodata, int[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            int numObs = 0;
+            if (srcNumObs1[i] != srcTcwvNumObsNodata[0]) {
+                numObs += srcNumObs1[i];
+            }
+            if (srcNumObs2[i] != srcTcwvNumObsNodata[1]) {
+                numObs += srcNumObs2[i];
+            }
+            merged[i] = numObs;
+        }
+    }
+
+    /**
+     * Row version of the weighted mean of {@link #mergeNirTcwv(double[], double[], double[], double[])}.
+     *
+     * @param srcTcwv1            - the quantity of the first source
+     * @param srcTcwv2            - the quantity of the second source
+     * @param srcTcwvCounts1      - the TCWV retrieval counts of the first source
+     * @param srcTcwvCounts2      - the TCWV retrieval counts of the second source
+     * @param srcTcwvNodata       - the TCWV no-data values of the two sources
+     * @param srcTcwvCountsNodata - the counts no-data values of the two sources
+     * @param merged              - receives the weighted means
+     */
+    static void mergeNirTcwv(double[] srcTcwv1, double[] srcTcwv2, double[] srcTcwvCounts1, double[] srcTcwvCounts2,
+                             double[] srcTcwvNodata, double[] srcTcwvCountsNodata, double[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            double tcwv = 0.0;
+            double tcwvCounts = 0.0;
+            if (isValidNir(srcTcwv1[i], srcTcwvCounts1[i], srcTcwvNodata[0], srcTcwvCountsNodata[0])) {
+                tcwv += srcTcwvCounts1[i] * srcTcwv1[i];
+                tcwvCounts += srcTcwvCounts1[i];
+            }
+            if (isValidNir(srcTcwv2[i], srcTcwvCounts2[i], srcTcwvNodata[1], srcTcwvCountsNodata[1])) {
+                tcwv += srcTcwvCounts2[i] * srcTcwv2[i];
+                tcwvCounts += srcTcwvCounts2[i];
+            }
+            merged[i] = tcwv / tcwvCounts;
+        }
+    }
+
+    /**
+     * Row version of the sum of counts of {@link #mergeNirTcwv(double[], double[], double[], double[])}.
+     *
+     * @param srcTcwv1            - the quantity of the first source
+     * @param srcTcwv2            - the quantity of the second source
+     * @param srcTcwvCounts1      - the TCWV retrieval counts of the first source
+     * @param srcTcwvCounts2      - the TCWV retrieval counts of the second source
+     * @param srcTcwvNodata       - the TCWV no-data values of the two sources
+     * @param srcTcwvCountsNodata - the counts no-data values of the two sources
+     * @param merged              - receives the sums of the counts of the valid sources
+     */
+    static void mergeNirTcwvCounts(double[] srcTcwv1, double[] srcTcwv2,
+                                   double[] srcTcwvCounts1, double[] srcTcwvCounts2,
+                                   double[] srcTcwvNodata, double[] srcTcwvCountsNodata, double[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            double tcwvCounts = 0.0;
+            if (isValidNir(srcTcwv1[i], srcTcwvCounts1[i], srcTcwvNodata[0], srcTcwvCountsNodata[0])) {
+                tcwvCounts += srcTcwvCounts1[i];
+            }
+            if (isValidNir(srcTcwv2[i], srcTcwvCounts2[i], srcTcwvNodata[1], srcTcwvCountsNodata[1])) {
+                tcwvCounts += srcTcwvCounts2[i];
+            }
+            merged[i] = tcwvCounts;
+        }
+    }
+
+    /**
+     * Row version of {@link #mergeNirFlag(int[], double[], double[])}.
+     *
+     * @param srcFlags1           - the flags of the first source
+     * @param srcFlags2           - the flags of the second source
+     * @param srcTcwvCounts1      - the TCWV retrieval counts of the first source
+     * @param srcTcwvCounts2      - the TCWV retrieval counts of the second source
+     * @param srcTcwvCountsNodata - the no-data values to test the counts of the two sources against
+     * @param merged              - receives the merged flags
+     */
+    static void mergeNirFlag(int[] srcFlags1, int[] srcFlags2, double[] srcTcwvCounts1, double[] srcTcwvCounts2,
+                             double[] srcTcwvCountsNodata, int[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            if (Double.isNaN(srcTcwvCounts1[i]) || srcTcwvCounts1[i] == srcTcwvCountsNodata[0]) {
+                merged[i] = srcFlags2[i];
+            } else if (Double.isNaN(srcTcwvCounts2[i]) || srcTcwvCounts2[i] == srcTcwvCountsNodata[1]) {
+                merged[i] = srcFlags1[i];
+            } else {
+                merged[i] = srcTcwvCounts1[i] >= srcTcwvCounts2[i] ? srcFlags1[i] : srcFlags2[i];
+            }
+        }
+    }
+
+    /**
+     * Row version of {@link #useOriginal(double, double)}.
+     *
+     * @param src            - the source values
+     * @param srcNodataValue - the source no-data value
+     * @param merged         - receives the source values, or NaN where they are no-data
+     */
+    static void useOriginal(double[] src, double srcNodataValue, double[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = useOriginal(src[i], srcNodataValue);
+        }
+    }
+
+    /**
+     * Row version of {@link #mergeHoapsTcwv(double, double, double, double, int, int, int, int)}.
+     *
+     * @param srcNir               - the NIR values
+     * @param srcNirNodata         - the NIR no-data value
+     * @param srcHoaps             - the HOAPS values
+     * @param srcHoapsNodata       - the HOAPS no-data value
+     * @param srcHoapsNumObs       - the HOAPS numbers of observations
+     * @param srcHoapsNumObsNodata - the HOAPS number of observations no-data value
+     * @param srcLandMask          - the land mask values
+     * @param srcSeaiceMask        - the sea ice mask values, null if there is no sea ice product
+     * @param merged               - receives the merged values
+     */
+    static void mergeHoapsTcwv(double[] srcNir, double srcNirNodata, double[] srcHoaps, double srcHoapsNodata,
+                               int[] srcHoapsNumObs, int srcHoapsNumObsNodata,
+                               int[] srcLandMask, int[] srcSeaiceMask, double[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = mergeHoapsTcwv(srcNir[i], srcNirNodata, srcHoaps[i], srcHoapsNodata,
+                                       srcHoapsNumObs[i], srcHoapsNumObsNodata,
+                                       srcLandMask[i], srcSeaiceMask != null ? srcSeaiceMask[i] : -1);
+        }
+    }
+
+    /**
+     * Row version of {@link #mergeHoapsQualityFlag(int, int, int)}.
+     *
+     * @param srcNirQualityFlags   - the NIR quality flags
+     * @param srcHoapsNumObs       - the HOAPS numbers of observations
+     * @param srcHoapsNumObsNodata - the HOAPS number of observations no-data value
+     * @param merged               - receives the merged quality flags
+     */
+    static void mergeHoapsQualityFlag(int[] srcNirQualityFlags, int[] srcHoapsNumObs, int srcHoapsNumObsNodata,
+                                      int[] merged) {
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = mergeHoapsQualityFlag(srcNirQualityFlags[i], srcHoapsNumObs[i], srcHoapsNumObsNodata);
+        }
+    }
+
+    /**
+     * Row version of {@link #store(double, int, double, double)}, in place.
+     *
+     * @param values        - the (geophysical) values, replaced by the stored values
+     * @param dataType      - the band data type, one of the {@code ProductData.TYPE_*} constants
+     * @param scalingFactor - the band scaling factor
+     * @param scalingOffset - the band scaling offset
+     */
+    static void store(double[] values, int dataType, double scalingFactor, double scalingOffset) {
+        if (dataType == ProductData.TYPE_FLOAT64 && scalingFactor == 1.0 && scalingOffset == 0.0) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = store(values[i], dataType, scalingFactor, scalingOffset);
+        }
+    }
+
+    /**
+     * Row version of {@link #store(double, int, double, double)} for flags, in place.
+     *
+     * @param values        - the flag values, replaced by the stored values
+     * @param dataType      - the band data type, one of the {@code ProductData.TYPE_*} constants
+     * @param scalingFactor - the band scaling factor
+     * @param scalingOffset - the band scaling offset
+     */
+    static void store(int[] values, int dataType, double scalingFactor, double scalingOffset) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (int) store(values[i], dataType, scalingFactor, scalingOffset);
+        }
+    }
+
+    private static boolean isValidNir(double srcTcwv, double srcTcwvCounts,
+                                      double srcTcwvNodata, double srcTcwvCountsNodata) {
+        return !Double.isNaN(srcTcwv) && !Double.isNaN(srcTcwvCounts) &&
+                srcTcwv != srcTcwvNodata && srcTcwvCounts != srcTcwvCountsNodata;
+    }
+
+    /**
+     * Provides a value as it is read back from a band of the given data type and scaling after it has been set to
+     * a target tile. Used for the intermediate NIR/NIR merge results, which were stored in intermediate products
+     * in the chain of phase operators.
+     *
+     * @param value         - the (geophysical) value
+     * @param dataType      - the band data type, one of the {@code ProductData.TYPE_*} constants
+     * @param scalingFactor - the band scaling factor
+     * @param scalingOffset - the band scaling offset
+     * @return the stored value
+     */
+    static double store(double value, int dataType, double scalingFactor, double scalingOffset) {
+        final boolean scaled = scalingFactor != 1.0 || scalingOffset != 0.0;
+        final double raw = scaled ? (value - scalingOffset) / scalingFactor : value;
+        final double storedRaw;
+        switch (dataType) {
+            case ProductData.TYPE_FLOAT64:
+                storedRaw = raw;
+                break;
+            case ProductData.TYPE_FLOAT32:
+                storedRaw = (float) raw;
+                break;
+            case ProductData.TYPE_INT8:
+                storedRaw = (byte) (int) raw;
+                break;
+            case ProductData.TYPE_UINT8:
+                storedRaw = ((int) raw) & 0xff;
+                break;
+            case ProductData.TYPE_INT16:
+                storedRaw = (short) (int) raw;
+                break;
+            case ProductData.TYPE_UINT16:
+                storedRaw = ((int) raw) & 0xffff;
+                break;
+            case ProductData.TYPE_INT32:
+                storedRaw = (int) raw;
+                break;
+            case ProductData.TYPE_UINT32:
+                storedRaw = ((int) raw) & 0xffffffffL;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+        return scaled ? storedRaw * scalingFactor + scalingOffset : storedRaw;
+    }
+}
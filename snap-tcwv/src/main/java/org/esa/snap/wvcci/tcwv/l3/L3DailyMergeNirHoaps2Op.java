@@ -10,7 +10,6 @@ import org.esa.snap.core.gpf.Tile;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.common.resample.ResamplingOp;
 import org.esa.snap.core.util.ProductUtils;
 import org.esa.snap.wvcci.tcwv.TcwvConstants;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
@@ -96,14 +95,14 @@ public class L3DailyMergeNirHoaps2Op extends Operator {
         validate();
 
         if (landmaskProduct.getSceneRasterWidth() != width || landmaskProduct.getSceneRasterHeight() != height) {
-            landMaskProductToUse = getResampledProduct(landmaskProduct);
+            landMaskProductToUse = IntegerFactorUpsampling.getResampledProduct(landmaskProduct, width, height);
         } else {
             landMaskProductToUse = landmaskProduct;
         }
 
         if (seaiceProduct != null) {
             if (seaiceProduct.getSceneRasterWidth() != width || seaiceProduct.getSceneRasterHeight() != height) {
-                seaiceProductToUse = getResampledProduct(seaiceProduct);
+                seaiceProductToUse = IntegerFactorUpsampling.getResampledProduct(seaiceProduct, width, height);
             } else {
                 seaiceProductToUse = seaiceProduct;
             }
@@ -361,15 +360,6 @@ public class L3DailyMergeNirHoaps2Op extends Operator {
     }
 
 
-    private Product getResampledProduct(Product inputProduct) {
-        ResamplingOp resamplingOp = new ResamplingOp();
-        resamplingOp.setSourceProduct(inputProduct);
-        resamplingOp.setParameterDefaultValues();
-        resamplingOp.setParameter("targetWidth", width);
-        resamplingOp.setParameter("targetHeight", height);
-        return resamplingOp.getTargetProduct();
-    }
-
     private void validate() {
         // product dimensions
         final int width2 = mergeInputProducts[1].getSceneRasterWidth();
@@ -7,7 +7,6 @@ import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.common.resample.ResamplingOp;
 import org.esa.snap.core.gpf.pointop.*;
 import org.esa.snap.wvcci.tcwv.TcwvConstants;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
@@ -97,29 +96,20 @@ public class L3DailyMergeNirHoapsOp extends PixelOperator {
         validate();
 
         if (landmaskProduct.getSceneRasterWidth() != width || landmaskProduct.getSceneRasterHeight() != height) {
-            landMaskProductToUse = getResampledProduct(landmaskProduct);
+            landMaskProductToUse = IntegerFactorUpsampling.getResampledProduct(landmaskProduct, width, height);
         } else {
             landMaskProductToUse = landmaskProduct;
         }
 
         if (seaiceProduct != null) {
             if (seaiceProduct.getSceneRasterWidth() != width || seaiceProduct.getSceneRasterHeight() != height) {
-                seaiceProductToUse = getResampledProduct(seaiceProduct);
+                seaiceProductToUse = IntegerFactorUpsampling.getResampledProduct(seaiceProduct, width, height);
             } else {
                 seaiceProductToUse = seaiceProduct;
             }
         }
     }
 
-    private Product getResampledProduct(Product inputProduct) {
-        ResamplingOp resamplingOp = new ResamplingOp();
-        resamplingOp.setSourceProduct(inputProduct);
-        resamplingOp.setParameterDefaultValues();
-        resamplingOp.setParameter("targetWidth", width);
-        resamplingOp.setParameter("targetHeight", height);
-        return resamplingOp.getTargetProduct();
-    }
-
     @Override
     protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
 
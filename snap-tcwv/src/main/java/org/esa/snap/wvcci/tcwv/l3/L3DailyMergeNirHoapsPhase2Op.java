@@ -10,7 +10,6 @@ import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.common.resample.ResamplingOp;
 import org.esa.snap.core.gpf.pointop.*;
 import org.esa.snap.wvcci.tcwv.TcwvConstants;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
@@ -112,7 +111,7 @@ public class L3DailyMergeNirHoapsPhase2Op extends PixelOperator {
 
         // from 2017 onwards we only have Hoaps 05deg products, so resample here in case of 005deg
         if (hoapsProduct.getSceneRasterWidth() != width || hoapsProduct.getSceneRasterHeight() != height) {
-            hoapsProductToUse = getResampledProduct(hoapsProduct);
+            hoapsProductToUse = IntegerFactorUpsampling.getResampledProduct(hoapsProduct, width, height);
         } else {
             hoapsProductToUse = hoapsProduct;
         }
@@ -126,29 +125,20 @@ public class L3DailyMergeNirHoapsPhase2Op extends PixelOperator {
         SRC_NIR_NUM_OBS = new int[srcNirNumObsBandNames.length];
 
         if (landmaskProduct.getSceneRasterWidth() != width || landmaskProduct.getSceneRasterHeight() != height) {
-            landMaskProductToUse = getResampledProduct(landmaskProduct);
+            landMaskProductToUse = IntegerFactorUpsampling.getResampledProduct(landmaskProduct, width, height);
         } else {
             landMaskProductToUse = landmaskProduct;
         }
 
         if (seaiceProduct != null) {
             if (seaiceProduct.getSceneRasterWidth() != width || seaiceProduct.getSceneRasterHeight() != height) {
-                seaiceProductToUse = getResampledProduct(seaiceProduct);
+                seaiceProductToUse = IntegerFactorUpsampling.getResampledProduct(seaiceProduct, width, height);
             } else {
                 seaiceProductToUse = seaiceProduct;
             }
         }
     }
 
-    private Product getResampledProduct(Product inputProduct) {
-        ResamplingOp resamplingOp = new ResamplingOp();
-        resamplingOp.setSourceProduct(inputProduct);
-        resamplingOp.setParameterDefaultValues();
-        resamplingOp.setParameter("targetWidth", width);
-        resamplingOp.setParameter("targetHeight", height);
-        return resamplingOp.getTargetProduct();
-    }
-
     @Override
     protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
 
@@ -193,8 +183,10 @@ public class L3DailyMergeNirHoapsPhase2Op extends PixelOperator {
             final double srcHoapsTcwvPropagErrNodata = hoapsProductToUse.getBand(TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME).getNoDataValue();
             final double srcHoapsTcwvRandomErr = sourceSamples[SRC_HOAPS_TCWV_RANDOM_ERR].getDouble();
             final double srcHoapsTcwvRandomErrNodata = hoapsProductToUse.getBand(TcwvConstants.TCWV_RANDOM_ERR_HOAPS_BAND_NAME).getNoDataValue();
-            final double tcwvPropagErrMerge = useOriginal(srcHoapsTcwvPropagErr, srcHoapsTcwvPropagErrNodata);
-            final double tcwvRandomErrMerge = useOriginal(srcHoapsTcwvRandomErr, srcHoapsTcwvRandomErrNodata);
+            final double tcwvPropagErrMerge =
+                    L3DailyMergeKernel.useOriginal(srcHoapsTcwvPropagErr, srcHoapsTcwvPropagErrNodata);
+            final double tcwvRandomErrMerge =
+                    L3DailyMergeKernel.useOriginal(srcHoapsTcwvRandomErr, srcHoapsTcwvRandomErrNodata);
             targetSamples[TRG_TCWV_PROPAG_ERR].set(tcwvPropagErrMerge);
             targetSamples[TRG_TCWV_RANDOM_ERR].set(tcwvRandomErrMerge);
         }
@@ -202,19 +194,24 @@ public class L3DailyMergeNirHoapsPhase2Op extends PixelOperator {
         final int srcLandMask = sourceSamples[SRC_LANDMASK_MASK].getInt();
         final int srcSeaiceMask = seaiceProduct != null ? sourceSamples[SRC_SEAICE_MASK].getInt() : -1;
 
-        final int possibleNirNumObsMerge =
-                mergePossibleNumObs(srcPossibleNirNumObs, srcPossibleNirNumObsNodata, srcHoapsNumObsNodata);
-        final double tcwvMerge = merge(srcNirTcwvMean, srcNirTcwvNodata, srcHoapsTcwv, srcHoapsTcwvNodata,
-                srcHoapsNumObs, srcHoapsNumObsNodata, srcLandMask, srcSeaiceMask);
-        final double tcwvSigmaMerge = merge(srcNirTcwvSigma, srcNirTcwvNodata, srcHoapsTcwvSigma, srcHoapsTcwvNodata,
-                srcHoapsNumObs, srcHoapsNumObsNodata, srcLandMask, srcSeaiceMask);
-        final double tcwvUncertaintyMeanMerge = useOriginal(srcNirTcwvUncertaintyMean, srcNirTcwvNodata);
-        final double tcwvUncertaintyCountsMerge = useOriginal(srcNirTcwvUncertaintyCounts, srcNirTcwvCountsNodata);
-        final double tcwvSumsSumMerge = useOriginal(srcNirTcwvSumsSum, srcNirTcwvNodata);
-        final double tcwvSumsSumSqMerge = useOriginal(srcNirTcwvSumsSumSq, srcNirTcwvNodata);
-        final int qualityFlagMajorityMerge = mergeQualityFlag(srcNirQualityMajorityFlag, srcHoapsNumObs, srcHoapsNumObsNodata);
-        final int qualityFlagMinMerge = mergeQualityFlag(srcNirQualityMinFlag, srcHoapsNumObs, srcHoapsNumObsNodata);
-        final int qualityFlagMaxMerge = mergeQualityFlag(srcNirQualityMaxFlag, srcHoapsNumObs, srcHoapsNumObsNodata);
+        final int possibleNirNumObsMerge = L3DailyMergeKernel.mergeHoapsPossibleNumObs(srcPossibleNirNumObs,
+                srcPossibleNirNumObsNodata, srcHoapsNumObsNodata);
+        final double tcwvMerge = L3DailyMergeKernel.mergeHoapsTcwv(srcNirTcwvMean, srcNirTcwvNodata,
+                srcHoapsTcwv, srcHoapsTcwvNodata, srcHoapsNumObs, srcHoapsNumObsNodata, srcLandMask, srcSeaiceMask);
+        final double tcwvSigmaMerge = L3DailyMergeKernel.mergeHoapsTcwv(srcNirTcwvSigma, srcNirTcwvNodata,
+                srcHoapsTcwvSigma, srcHoapsTcwvNodata, srcHoapsNumObs, srcHoapsNumObsNodata, srcLandMask, srcSeaiceMask);
+        final double tcwvUncertaintyMeanMerge =
+                L3DailyMergeKernel.useOriginal(srcNirTcwvUncertaintyMean, srcNirTcwvNodata);
+        final double tcwvUncertaintyCountsMerge =
+                L3DailyMergeKernel.useOriginal(srcNirTcwvUncertaintyCounts, srcNirTcwvCountsNodata);
+        final double tcwvSumsSumMerge = L3DailyMergeKernel.useOriginal(srcNirTcwvSumsSum, srcNirTcwvNodata);
+        final double tcwvSumsSumSqMerge = L3DailyMergeKernel.useOriginal(srcNirTcwvSumsSumSq, srcNirTcwvNodata);
+        final int qualityFlagMajorityMerge = L3DailyMergeKernel.mergeHoapsQualityFlag(srcNirQualityMajorityFlag,
+                srcHoapsNumObs, srcHoapsNumObsNodata);
+        final int qualityFlagMinMerge = L3DailyMergeKernel.mergeHoapsQualityFlag(srcNirQualityMinFlag,
+                srcHoapsNumObs, srcHoapsNumObsNodata);
+        final int qualityFlagMaxMerge = L3DailyMergeKernel.mergeHoapsQualityFlag(srcNirQualityMaxFlag,
+                srcHoapsNumObs, srcHoapsNumObsNodata);
 
         targetSamples[TRG_NUM_OBS[0]].set(srcNirNumObs[0]);
         if (srcNirNumObsBandNames.length == 4) {
@@ -389,63 +386,6 @@ public class L3DailyMergeNirHoapsPhase2Op extends PixelOperator {
         configurator.defineSample(TRG_NUM_OBS[4], TcwvConstants.NUM_OBS_L3_BAND_NAME + "_" + sensor2Name);
     }
 
-    private static int mergePossibleNumObs(int srcNirNumObs, int srcHoapsNumObs, int srcHoapsNumObsNodata) {
-        final boolean hoapsAvailable = srcHoapsNumObs > 0 && srcHoapsNumObs != srcHoapsNumObsNodata;
-        if (hoapsAvailable) {
-            // HOAPS samples available
-            return srcHoapsNumObs;
-        } else {
-            // only NIR samples, no HOAPS samples (land, coastal, sea ice)
-            // todo: ingest coastal zone mask when available. Then set to srcNirNumObsNodata if no HOAPS,
-            // no land, no coast no seaice --> this condition only applies for gaps in SSMI swaths
-            return srcNirNumObs;
-        }
-    }
-
-
-    private static double useOriginal(double srcValue, double srcNodataValue) {
-        if (!Double.isNaN(srcValue) && srcValue != srcNodataValue) {
-            return srcValue;
-        } else {
-            return Double.NaN;
-        }
-    }
-
-    private static double merge(double srcNir, double srcNirNodata,
-                                double srcHoaps, double srcHoapsNodata,
-                                int srcHoapsNumObs, int srcHoapsNumObsNodata,
-                                int srcLandMask, int srcSeaiceMask) {
-
-        // we want (required by DWD):
-        // if HOAPS available, set HOAPS value (over ocean excl. coast sea ice)
-        // if no HOAPS, set NIR value if land, coastal, sea ice, otherwise set to NaN
-        // if no HOAPS because of coverage gaps (no land nor coastal nor sea ice), set to NaN
-        final boolean nirAvailable = !Double.isNaN(srcNir) && srcNir != srcNirNodata;
-        final boolean hoapsAvailable = srcHoaps != srcHoapsNodata && srcHoapsNumObs > 0 &&
-                srcHoapsNumObs != srcHoapsNumObsNodata;
-        final boolean hoapsNotAvailableNotOcean = srcLandMask > 0 || srcSeaiceMask > 0;
-        if (hoapsAvailable) {
-            return srcHoaps;
-        } else if (hoapsNotAvailableNotOcean && nirAvailable) {
-            return srcNir;
-        } else {
-            return Double.NaN;
-        }
-    }
-
-    private static int mergeQualityFlag(int srcNirQualityFlag, int srcHoapsNumObs, int srcHoapsNumObsNodata) {
-        // we want:
-        // if HOAPS, set quality flag to NaN
-        // if no HOAPS, keep it as is for land, coastal (todo: ingest), sea ice, otherwise set to NaN
-        final boolean hoapsAvailable = srcHoapsNumObs > 0 && srcHoapsNumObs != srcHoapsNumObsNodata;
-        if (hoapsAvailable) {
-            // HOAPS samples available
-            return -1;
-        } else {
-            return srcNirQualityFlag;
-        }
-    }
-
     private void validate() {
         // product dimensions
         final int width2 = mergeInputProducts[1].getSceneRasterWidth();
@@ -163,23 +163,34 @@ public class L3DailyMergeNirNirPhase3Op extends PixelOperator {
             srcSurfaceTypeFlag[i] = sourceSamples[SRC_TCWV_SURFACE_TYPE_FLAGS_MAJORITY[i]].getInt();
         }
 
-        final int possibleNumObsMerge = mergePossibeNumObs(srcPossibleNumObs, srcPossibleNumObsNodata);
+        final int possibleNumObsMerge =
+                L3DailyMergeKernel.mergeNirPossibleNumObs(srcPossibleNumObs, srcPossibleNumObsNodata);
         final double[] tcwvMeanMerge =
-                mergeTcwv(srcTcwvMean, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvMean, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
         final double[] tcwvSigmaMerge =
-                mergeTcwv(srcTcwvSigma, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvSigma, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
         final double[] tcwvUncertaintyMeanMerge =
-                mergeTcwv(srcTcwvUncertaintyMean, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvUncertaintyMean, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
         final double[] tcwvUncertaintyCountsMerge =
-                mergeTcwv(srcTcwvUncertaintyMean, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvUncertaintyMean, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
         final double[] tcwvSumsSumMerge =
-                mergeTcwv(srcTcwvSumsSum, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvSumsSum, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
         final double[] tcwvSumsSumSqMerge =
-                mergeTcwv(srcTcwvSumsSumSq, srcTcwvUncertaintyCounts, srcTcwvNodata, srcTcwvCountsNodata);
-        final int qualityFlagMajorityMerge = mergeFlag(srcQualityFlagsMajority, srcTcwvUncertaintyCounts, srcTcwvNodata);
-        final int qualityFlagMinMerge = mergeFlag(srcQualityFlagsMin, srcTcwvUncertaintyCounts, srcTcwvNodata);
-        final int qualityFlagMaxMerge = mergeFlag(srcQualityFlagsMax, srcTcwvUncertaintyCounts, srcTcwvNodata);
-        final int surfaceTypeFlagMerge = mergeFlag(srcSurfaceTypeFlag, srcTcwvUncertaintyCounts, srcTcwvNodata);
+                L3DailyMergeKernel.mergeNirTcwv(srcTcwvSumsSumSq, srcTcwvUncertaintyCounts,
+                                                srcTcwvNodata, srcTcwvCountsNodata);
+        final int qualityFlagMajorityMerge =
+                L3DailyMergeKernel.mergeNirFlag(srcQualityFlagsMajority, srcTcwvUncertaintyCounts, srcTcwvNodata);
+        final int qualityFlagMinMerge =
+                L3DailyMergeKernel.mergeNirFlag(srcQualityFlagsMin, srcTcwvUncertaintyCounts, srcTcwvNodata);
+        final int qualityFlagMaxMerge =
+                L3DailyMergeKernel.mergeNirFlag(srcQualityFlagsMax, srcTcwvUncertaintyCounts, srcTcwvNodata);
+        final int surfaceTypeFlagMerge =
+                L3DailyMergeKernel.mergeNirFlag(srcSurfaceTypeFlag, srcTcwvUncertaintyCounts, srcTcwvNodata);
 
         targetSamples[TRG_NUM_OBS[0]].set(srcNumObs[0]);
         if (srcNumObsBandNames.length == 4) {
@@ -346,43 +357,6 @@ public class L3DailyMergeNirNirPhase3Op extends PixelOperator {
         configurator.defineSample(TRG_NUM_OBS[3], TcwvConstants.NUM_OBS_L3_BAND_NAME + "_" + sensor2Name);
     }
 
-    private static int mergePossibeNumObs(int[] srcNumObs, int[] srcTcwvNumObsNodata) {
-        int numObs = 0;
-        for (int i = 0; i < 2; i++) {
-            if (srcNumObs[i] != srcTcwvNumObsNodata[i]) {
-                numObs += srcNumObs[i];
-            }
-        }
-        return numObs;
-    }
-
-    private static double[] mergeTcwv(double[] srcTcwv, double[] srcTcwvCounts,
-                                      double[] srcTcwvNodata, double[] srcTcwvCountsNodata) {
-        double tcwv = 0.0;
-        double tcwvCounts = 0.0;
-
-        for (int i = 0; i < 2; i++) {
-            if (!Double.isNaN(srcTcwv[i]) && !Double.isNaN(srcTcwvCounts[i]) &&
-                    srcTcwv[i] != srcTcwvNodata[i] && srcTcwvCounts[i] != srcTcwvCountsNodata[i]) {
-                tcwv += srcTcwvCounts[i] * srcTcwv[i];
-                tcwvCounts += srcTcwvCounts[i];
-            }
-        }
-        tcwv /= tcwvCounts;
-
-        return new double[]{tcwv, tcwvCounts};
-    }
-
-    private static int mergeFlag(int[] srcFlags, double[] srcTcwvCounts, double[] srcTcwvCountsNodata) {
-        for (int i = 0; i <= 1; i++) {
-            if (Double.isNaN(srcTcwvCounts[i]) || (srcTcwvCounts[i] == srcTcwvCountsNodata[i])) {
-                return srcFlags[1 - i];
-            }
-        }
-        final int majorityIndex = srcTcwvCounts[0] >= srcTcwvCounts[1] ? 0 : 1;
-        return srcFlags[majorityIndex];
-    }
-
     private void validate() {
         // sensors
         if (sensor2Name.contains("-")) {
@@ -0,0 +1,621 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.Operator;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
+import org.esa.snap.core.gpf.annotations.OperatorMetadata;
+import org.esa.snap.core.gpf.annotations.Parameter;
+import org.esa.snap.core.gpf.annotations.SourceProduct;
+import org.esa.snap.core.util.ProductUtils;
+import org.esa.snap.wvcci.tcwv.TcwvConstants;
+import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
+import org.esa.snap.wvcci.tcwv.util.TileRowReader;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operator for the complete daily merge of TCWV L3 products of up to 4 NIR sensors (MERIS, MODIS_T, MODIS_A,
+ * OLCI_A, OLCI_B) and HOAPS SSM/I in one pass.
+ * <p>
+ * Gives the same result as the chain of {@link L3DailyMergeNirNirPhase3Op} (NIR sensor 1 with 2, the result with
+ * NIR sensor 3, ...) and {@link L3DailyMergeNirHoapsPhase3Op} (the NIR merge with HOAPS), but without writing and
+ * reading the intermediate NIR merge products. Per pixel, the NIR/NIR merges are applied in the same order as in the
+ * chain, and each intermediate result is rounded to the data type of the intermediate product band it would have
+ * been stored in.
+ * <p>
+ * The merge runs on whole tile rows: the source tiles are read row by row as primitive arrays, the row versions
+ * of the {@link L3DailyMergeKernel} rules are applied, and the target tiles are written from primitive buffers.
+ *
+ * @author olafd
+ */
+@OperatorMetadata(alias = "ESACCI.Tcwv.L3.Merge.Daily", version = "0.8",
+        authors = "O.Danne",
+        internal = true,
+        description = "Operator for merge of TCWV L3 NIR and HOAPS daily products in one pass, for Phase 2.")
+public class L3DailyMergeOp extends Operator {
+
+    @Parameter(description = "The NIR sensors (MERIS, MODIS_TERRA, MODIS_AQUA, OLCI_A or OLCI_B), in the order " +
+            "of the NIR source products, which is the merge order.")
+    private String[] nirSensorNames;
+
+    @Parameter(interval = "[1, 31]", defaultValue = "15",
+            description = "Day of month")
+    private int dayOfMonth;
+
+    // the first NIR product provides metadata, geocoding and band properties of the target product,
+    // as 'sourceProduct' of L3DailyMergeNirHoapsPhase3Op does
+    @SourceProduct(description = "NIR product of first sensor")
+    private Product sourceProduct;
+
+    @SourceProduct(description = "NIR product of second sensor", optional = true)
+    private Product nirProduct2;
+
+    @SourceProduct(description = "NIR product of third sensor", optional = true)
+    private Product nirProduct3;
+
+    @SourceProduct(description = "NIR product of fourth sensor", optional = true)
+    private Product nirProduct4;
+
+    @SourceProduct(description = "HOAPS product")
+    private Product hoapsProduct;
+
+    @SourceProduct(description = "Land/Sea mask product")
+    private Product landmaskProduct;
+
+    @SourceProduct(description = "Seaice product", optional = true)
+    private Product seaiceProduct;
+
+    private static final int MAX_NUM_NIR_SENSORS = 4;
+
+    private static final String HOAPS_SENSOR_NAME = "CMSAF_HOAPS";
+
+    private Product[] nirProducts;
+
+    private Product hoapsProductToUse;
+    private Product landMaskProductToUse;
+    private Product seaiceProductToUse;
+    private boolean hoapsErrorsAvailable;
+
+    private Product targetProduct;
+
+    private int width;
+    private int height;
+
+    // the source bands of each NIR product
+    private static final String[] SRC_NIR_BAND_NAMES = {
+            TcwvConstants.NUM_OBS_L3_BAND_NAME,
+            TcwvConstants.TCWV_L3_BAND_NAME,
+            TcwvConstants.TCWV_SIGMA_L3_BAND_NAME,
+            TcwvConstants.TCWV_UNCERTAINTY_L3_BAND_NAME,
+            TcwvConstants.TCWV_UNCERTAINTY_COUNTS_L3_BAND_NAME,
+            TcwvConstants.TCWV_SUMS_SUM_L3_BAND_NAME,
+            TcwvConstants.TCWV_SUMS_SUM_SQ_L3_BAND_NAME,
+            TcwvConstants.TCWV_QUALITY_FLAG_MAJORITY_L3_BAND_NAME,
+            TcwvConstants.TCWV_QUALITY_FLAG_MIN_L3_BAND_NAME,
+            TcwvConstants.TCWV_QUALITY_FLAG_MAX_L3_BAND_NAME,
+            TcwvConstants.SURFACE_TYPE_FLAG_L3_BAND_NAME
+    };
+    private static final int NUM_SRC_NIR = SRC_NIR_BAND_NAMES.length;
+    private static final int SRC_NIR_POSSIBLE_NUM_OBS = 0;
+    private static final int SRC_NIR_TCWV_MEAN = 1;
+    private static final int SRC_NIR_TCWV_SIGMA = 2;
+    private static final int SRC_NIR_TCWV_UNCERTAINTY_MEAN = 3;
+    private static final int SRC_NIR_TCWV_UNCERTAINTY_COUNTS = 4;
+    private static final int SRC_NIR_TCWV_SUMS_SUM = 5;
+    private static final int SRC_NIR_TCWV_SUMS_SUM_SQ = 6;
+    private static final int SRC_NIR_TCWV_QUALITY_FLAGS_MAJORITY = 7;
+    private static final int SRC_NIR_TCWV_QUALITY_FLAGS_MIN = 8;
+    private static final int SRC_NIR_TCWV_QUALITY_FLAGS_MAX = 9;
+    private static final int SRC_NIR_TCWV_SURFACE_TYPE_FLAGS_MAJORITY = 10;
+
+    // the NIR quantities merged as means weighted by the TCWV retrieval counts, and the merged flags
+    private static final int[] SRC_NIR_WEIGHTED_MEANS = {
+            SRC_NIR_TCWV_MEAN, SRC_NIR_TCWV_SIGMA, SRC_NIR_TCWV_UNCERTAINTY_MEAN,
+            SRC_NIR_TCWV_SUMS_SUM, SRC_NIR_TCWV_SUMS_SUM_SQ
+    };
+    private static final int[] SRC_NIR_FLAGS = {
+            SRC_NIR_TCWV_QUALITY_FLAGS_MAJORITY, SRC_NIR_TCWV_QUALITY_FLAGS_MIN,
+            SRC_NIR_TCWV_QUALITY_FLAGS_MAX, SRC_NIR_TCWV_SURFACE_TYPE_FLAGS_MAJORITY
+    };
+
+    // the source bands of HOAPS, land mask and sea ice
+    private static final int SRC_HOAPS_NUM_OBS = 0;
+    private static final int SRC_HOAPS_TCWV = 1;
+    private static final int SRC_HOAPS_TCWV_SIGMA = 2;
+    private static final int SRC_HOAPS_TCWV_PROPAG_ERR = 3;
+    private static final int SRC_HOAPS_TCWV_RANDOM_ERR = 4;
+    private static final int SRC_LANDMASK_MASK = 5;
+    private static final int SRC_SEAICE_MASK = 6;
+    private static final int NUM_SRC_HOAPS = 7;
+
+    private Band[][] nirBands;
+    private Band[] hoapsBands;
+
+    private static final int[] TRG_NUM_OBS = {0, 1, 2, 3, 4};
+    private static final int TRG_HOAPS_NUM_OBS = 4;
+    private static final int TRG_POSSIBLE_NUM_OBS = 5;
+    private static final int TRG_TCWV_MEAN = 6;
+    private static final int TRG_TCWV_SIGMA = 7;
+    private static final int TRG_TCWV_UNCERTAINTY_MEAN = 8;
+    private static final int TRG_TCWV_UNCERTAINTY_COUNTS = 9;
+    private static final int TRG_TCWV_SUMS_SUM = 10;
+    private static final int TRG_TCWV_SUMS_SUM_SQ = 11;
+    private static final int TRG_TCWV_QUALITY_FLAGS_MAJORITY = 12;
+    private static final int TRG_TCWV_QUALITY_FLAGS_MIN = 13;
+    private static final int TRG_TCWV_QUALITY_FLAGS_MAX = 14;
+    private static final int TRG_TCWV_SURFACE_TYPE_FLAGS_MAJORITY = 15;
+    private static final int TRG_TCWV_PROPAG_ERR = 16;
+    private static final int TRG_TCWV_RANDOM_ERR = 17;
+    private static final int NUM_TRG = 18;
+
+    private Band[] targetBands;
+
+    // no-data values of the NIR products
+    private int[] nirPossibleNumObsNodata;
+    private double[] nirTcwvNodata;
+    private double[] nirTcwvCountsNodata;
+
+    // no-data value of 'num_obs' in an intermediate NIR/NIR merge product
+    private static final int MERGED_NUM_OBS_NODATA = -1;
+
+    // no-data values of the two sources of the k-th NIR/NIR merge (the intermediate product and NIR product k)
+    private int[][] mergePossibleNumObsNodata;
+    private double[][] mergeTcwvNodata;
+    private double[][] mergeTcwvCountsNodata;
+    private int mergedPossibleNumObsNodata;
+
+    // data type and scaling of the intermediate NIR/NIR merge product bands, indexed as the NIR source samples
+    private int[] mergedDataTypes;
+    private double[] mergedScalingFactors;
+    private double[] mergedScalingOffsets;
+
+    private int hoapsNumObsNodata;
+    private double hoapsTcwvNodata;
+    private double hoapsTcwvPropagErrNodata;
+    private double hoapsTcwvRandomErrNodata;
+
+    @Override
+    public void initialize() throws OperatorException {
+        nirProducts = getNirProducts();
+
+        width = sourceProduct.getSceneRasterWidth();
+        height = sourceProduct.getSceneRasterHeight();
+
+        validate();
+
+        // from 2017 onwards we only have Hoaps 05deg products, so resample here in case of 005deg
+        hoapsProductToUse = getProductToUse(hoapsProduct);
+        landMaskProductToUse = getProductToUse(landmaskProduct);
+        seaiceProductToUse = seaiceProduct != null ? getProductToUse(seaiceProduct) : null;
+        hoapsErrorsAvailable = hoapsProductToUse.getBand(TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME) != null;
+
+        initSourceBands();
+        initNodataValues();
+
+        createTargetProduct();
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        final TileRowReader[][] nirReaders = new TileRowReader[nirProducts.length][];
+        for (int k = 0; k < nirProducts.length; k++) {
+            nirReaders[k] = getRowReaders(nirBands[k], targetRectangle);
+        }
+        final TileRowReader[] hoapsReaders = getRowReaders(hoapsBands, targetRectangle);
+
+        final MergeRows mergeRows = new MergeRows(targetRectangle.width);
+        final TargetData targetData = new TargetData(targetRectangle.width * targetRectangle.height);
+
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            checkForCancellation();
+            final int offset = (y - targetRectangle.y) * targetRectangle.width;
+            mergeNirRows(nirReaders, y, mergeRows, targetData, offset);
+            mergeHoapsRows(hoapsReaders, y, mergeRows, targetData, offset);
+        }
+
+        targetData.write(targetTiles);
+    }
+
+    private void mergeNirRows(TileRowReader[][] nirReaders, int y, MergeRows mergeRows, TargetData targetData,
+                              int offset) {
+        // The NIR/NIR merges, in the order of the phase chain: the first NIR product, then the merge of this with
+        // the second, and so on. After each step, the merge rows hold what was stored in the intermediate product.
+        // The number of observations per sensor is the number of TCWV retrievals (see PUG), as in the chain.
+        final double[][] merged = mergeRows.doubleRows;
+        final int[][] mergedInt = mergeRows.intRows;
+        final int n = mergeRows.width;
+
+        for (int j = 0; j < NUM_SRC_NIR; j++) {
+            if (merged[j] != null) {
+                System.arraycopy(nirReaders[0][j].readRow(y), 0, merged[j], 0, n);
+            } else {
+                System.arraycopy(nirReaders[0][j].readIntSampleRow(y), 0, mergedInt[j], 0, n);
+            }
+        }
+        targetData.putNumObs(TRG_NUM_OBS[0], merged[SRC_NIR_TCWV_UNCERTAINTY_COUNTS], offset);
+
+        final double[] mergedCounts = merged[SRC_NIR_TCWV_UNCERTAINTY_COUNTS];
+        for (int k = 1; k < nirProducts.length; k++) {
+            final TileRowReader[] readers = nirReaders[k];
+            final double[] srcCounts = readers[SRC_NIR_TCWV_UNCERTAINTY_COUNTS].readRow(y);
+            targetData.putNumObs(TRG_NUM_OBS[k], srcCounts, offset);
+
+            // the counts are weights of all other merges, so the merged counts go to the extra row first
+            L3DailyMergeKernel.mergeNirTcwvCounts(merged[SRC_NIR_TCWV_UNCERTAINTY_MEAN],
+                                                  readers[SRC_NIR_TCWV_UNCERTAINTY_MEAN].readRow(y),
+                                                  mergedCounts, srcCounts,
+                                                  mergeTcwvNodata[k], mergeTcwvCountsNodata[k], mergeRows.extraRow);
+            for (int j : SRC_NIR_WEIGHTED_MEANS) {
+                L3DailyMergeKernel.mergeNirTcwv(merged[j], readers[j].readRow(y), mergedCounts, srcCounts,
+                                                mergeTcwvNodata[k], mergeTcwvCountsNodata[k], merged[j]);
+                store(merged[j], j);
+            }
+            // as in the chain, the flags are tested against the TCWV no-data value
+            for (int j : SRC_NIR_FLAGS) {
+                L3DailyMergeKernel.mergeNirFlag(mergedInt[j], readers[j].readIntSampleRow(y),
+                                                mergedCounts, srcCounts, mergeTcwvNodata[k], mergedInt[j]);
+                store(mergedInt[j], j);
+            }
+            L3DailyMergeKernel.mergeNirPossibleNumObs(mergedInt[SRC_NIR_POSSIBLE_NUM_OBS],
+                                                      readers[SRC_NIR_POSSIBLE_NUM_OBS].readIntSampleRow(y),
+                                                      mergePossibleNumObsNodata[k],
+                                                      mergedInt[SRC_NIR_POSSIBLE_NUM_OBS]);
+
+            System.arraycopy(mergeRows.extraRow, 0, mergedCounts, 0, n);
+            store(mergedCounts, SRC_NIR_TCWV_UNCERTAINTY_COUNTS);
+        }
+    }
+
+    private void mergeHoapsRows(TileRowReader[] hoapsReaders, int y, MergeRows mergeRows, TargetData targetData,
+                                int offset) {
+        // the NIR/HOAPS merge, as in L3DailyMergeNirHoapsPhase3Op
+        final double[][] merged = mergeRows.doubleRows;
+        final int[][] mergedInt = mergeRows.intRows;
+        final int n = mergeRows.width;
+
+        final int[] srcHoapsNumObs = hoapsReaders[SRC_HOAPS_NUM_OBS].readIntSampleRow(y);
+        final int[] srcLandMask = hoapsReaders[SRC_LANDMASK_MASK].readIntSampleRow(y);
+        final int[] srcSeaiceMask =
+                seaiceProduct != null ? hoapsReaders[SRC_SEAICE_MASK].readIntSampleRow(y) : null;
+
+        if (hoapsErrorsAvailable) {
+            L3DailyMergeKernel.useOriginal(hoapsReaders[SRC_HOAPS_TCWV_PROPAG_ERR].readRow(y),
+                                           hoapsTcwvPropagErrNodata, mergeRows.extraRow);
+            targetData.put(TRG_TCWV_PROPAG_ERR, mergeRows.extraRow, offset);
+            L3DailyMergeKernel.useOriginal(hoapsReaders[SRC_HOAPS_TCWV_RANDOM_ERR].readRow(y),
+                                           hoapsTcwvRandomErrNodata, mergeRows.extraRow);
+            targetData.put(TRG_TCWV_RANDOM_ERR, mergeRows.extraRow, offset);
+        }
+
+        final int[] trgHoapsNumObs = targetData.intSamples[TRG_HOAPS_NUM_OBS];
+        final int[] trgPossibleNumObs = targetData.intSamples[TRG_POSSIBLE_NUM_OBS];
+        final int[] mergedPossibleNumObs = mergedInt[SRC_NIR_POSSIBLE_NUM_OBS];
+        for (int i = 0; i < n; i++) {
+            trgHoapsNumObs[offset + i] = Math.max(0, srcHoapsNumObs[i]);
+            // same arguments as in L3DailyMergeNirHoapsPhase3Op
+            trgPossibleNumObs[offset + i] = L3DailyMergeKernel.mergeHoapsPossibleNumObs(mergedPossibleNumObs[i],
+                    mergedPossibleNumObsNodata, hoapsNumObsNodata);
+        }
+
+        // the merge rows are not needed any more for this row, so the results can replace them
+        L3DailyMergeKernel.mergeHoapsTcwv(merged[SRC_NIR_TCWV_MEAN], nirTcwvNodata[0],
+                                          hoapsReaders[SRC_HOAPS_TCWV].readRow(y), hoapsTcwvNodata,
+                                          srcHoapsNumObs, hoapsNumObsNodata, srcLandMask, srcSeaiceMask,
+                                          merged[SRC_NIR_TCWV_MEAN]);
+        L3DailyMergeKernel.mergeHoapsTcwv(merged[SRC_NIR_TCWV_SIGMA], nirTcwvNodata[0],
+                                          hoapsReaders[SRC_HOAPS_TCWV_SIGMA].readRow(y), hoapsTcwvNodata,
+                                          srcHoapsNumObs, hoapsNumObsNodata, srcLandMask, srcSeaiceMask,
+                                          merged[SRC_NIR_TCWV_SIGMA]);
+        targetData.put(TRG_TCWV_MEAN, merged[SRC_NIR_TCWV_MEAN], offset);
+        targetData.put(TRG_TCWV_SIGMA, merged[SRC_NIR_TCWV_SIGMA], offset);
+
+        putOriginal(targetData, TRG_TCWV_UNCERTAINTY_MEAN, merged[SRC_NIR_TCWV_UNCERTAINTY_MEAN],
+                    nirTcwvNodata[0], offset);
+        putOriginal(targetData, TRG_TCWV_UNCERTAINTY_COUNTS, merged[SRC_NIR_TCWV_UNCERTAINTY_COUNTS],
+                    nirTcwvCountsNodata[0], offset);
+        putOriginal(targetData, TRG_TCWV_SUMS_SUM, merged[SRC_NIR_TCWV_SUMS_SUM], nirTcwvNodata[0], offset);
+        putOriginal(targetData, TRG_TCWV_SUMS_SUM_SQ, merged[SRC_NIR_TCWV_SUMS_SUM_SQ], nirTcwvNodata[0], offset);
+
+        putHoapsQualityFlag(targetData, TRG_TCWV_QUALITY_FLAGS_MAJORITY,
+                            mergedInt[SRC_NIR_TCWV_QUALITY_FLAGS_MAJORITY], srcHoapsNumObs, offset);
+        putHoapsQualityFlag(targetData, TRG_TCWV_QUALITY_FLAGS_MIN,
+                            mergedInt[SRC_NIR_TCWV_QUALITY_FLAGS_MIN], srcHoapsNumObs, offset);
+        putHoapsQualityFlag(targetData, TRG_TCWV_QUALITY_FLAGS_MAX,
+                            mergedInt[SRC_NIR_TCWV_QUALITY_FLAGS_MAX], srcHoapsNumObs, offset);
+        // take as is
+        targetData.put(TRG_TCWV_SURFACE_TYPE_FLAGS_MAJORITY, mergedInt[SRC_NIR_TCWV_SURFACE_TYPE_FLAGS_MAJORITY],
+                       offset);
+    }
+
+    private static void putOriginal(TargetData targetData, int targetIndex, double[] row, double nodataValue,
+                                    int offset) {
+        L3DailyMergeKernel.useOriginal(row, nodataValue, row);
+        targetData.put(targetIndex, row, offset);
+    }
+
+    private void putHoapsQualityFlag(TargetData targetData, int targetIndex, int[] row, int[] srcHoapsNumObs,
+                                     int offset) {
+        L3DailyMergeKernel.mergeHoapsQualityFlag(row, srcHoapsNumObs, hoapsNumObsNodata, row);
+        targetData.put(targetIndex, row, offset);
+    }
+
+    private void initSourceBands() {
+        nirBands = new Band[nirProducts.length][NUM_SRC_NIR];
+        for (int k = 0; k < nirProducts.length; k++) {
+            for (int j = 0; j < NUM_SRC_NIR; j++) {
+                nirBands[k][j] = nirProducts[k].getBand(SRC_NIR_BAND_NAMES[j]);
+            }
+        }
+
+        hoapsBands = new Band[NUM_SRC_HOAPS];
+        hoapsBands[SRC_HOAPS_NUM_OBS] = hoapsProductToUse.getBand(TcwvConstants.NUM_OBS_HOAPS_BAND_NAME);
+        hoapsBands[SRC_HOAPS_TCWV] = hoapsProductToUse.getBand(TcwvConstants.TCWV_HOAPS_BAND_NAME);
+        hoapsBands[SRC_HOAPS_TCWV_SIGMA] = hoapsProductToUse.getBand(TcwvConstants.TCWV_SIGMA_HOAPS_BAND_NAME);
+        if (hoapsErrorsAvailable) {
+            hoapsBands[SRC_HOAPS_TCWV_PROPAG_ERR] =
+                    hoapsProductToUse.getBand(TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME);
+            hoapsBands[SRC_HOAPS_TCWV_RANDOM_ERR] =
+                    hoapsProductToUse.getBand(TcwvConstants.TCWV_RANDOM_ERR_HOAPS_BAND_NAME);
+        }
+        hoapsBands[SRC_LANDMASK_MASK] = landMaskProductToUse.getBand("mask");
+        if (seaiceProduct != null) {
+            hoapsBands[SRC_SEAICE_MASK] = seaiceProductToUse.getBand("mask_time" + dayOfMonth);
+        }
+    }
+
+    private void initNodataValues() {
+        nirPossibleNumObsNodata = new int[nirProducts.length];
+        nirTcwvNodata = new double[nirProducts.length];
+        nirTcwvCountsNodata = new double[nirProducts.length];
+        for (int i = 0; i < nirProducts.length; i++) {
+            nirPossibleNumObsNodata[i] =
+                    (int) nirProducts[i].getBand(TcwvConstants.NUM_OBS_L3_BAND_NAME).getNoDataValue();
+            nirTcwvNodata[i] = nirProducts[i].getBand(TcwvConstants.TCWV_MEAN_BAND_NAME).getNoDataValue();
+            nirTcwvCountsNodata[i] =
+                    nirProducts[i].getBand(TcwvConstants.TCWV_UNCERTAINTY_COUNTS_L3_BAND_NAME).getNoDataValue();
+        }
+
+        // the intermediate product keeps the no-data values of the first NIR product, except for 'num_obs'
+        mergePossibleNumObsNodata = new int[nirProducts.length][];
+        mergeTcwvNodata = new double[nirProducts.length][];
+        mergeTcwvCountsNodata = new double[nirProducts.length][];
+        for (int k = 1; k < nirProducts.length; k++) {
+            final int possibleNumObsNodata = k == 1 ? nirPossibleNumObsNodata[0] : MERGED_NUM_OBS_NODATA;
+            mergePossibleNumObsNodata[k] = new int[]{possibleNumObsNodata, nirPossibleNumObsNodata[k]};
+            mergeTcwvNodata[k] = new double[]{nirTcwvNodata[0], nirTcwvNodata[k]};
+            mergeTcwvCountsNodata[k] = new double[]{nirTcwvCountsNodata[0], nirTcwvCountsNodata[k]};
+        }
+        mergedPossibleNumObsNodata = nirProducts.length > 1 ? MERGED_NUM_OBS_NODATA : nirPossibleNumObsNodata[0];
+
+        // the intermediate merge products take data types and properties of the first NIR product
+        mergedDataTypes = new int[NUM_SRC_NIR];
+        mergedScalingFactors = new double[NUM_SRC_NIR];
+        mergedScalingOffsets = new double[NUM_SRC_NIR];
+        for (int i = 0; i < NUM_SRC_NIR; i++) {
+            if (i == SRC_NIR_POSSIBLE_NUM_OBS) {
+                mergedDataTypes[i] = ProductData.TYPE_INT32;
+                mergedScalingFactors[i] = 1.0;
+                mergedScalingOffsets[i] = 0.0;
+            } else {
+                final Band band = sourceProduct.getBand(SRC_NIR_BAND_NAMES[i]);
+                mergedDataTypes[i] = band.getDataType();
+                mergedScalingFactors[i] = band.getScalingFactor();
+                mergedScalingOffsets[i] = band.getScalingOffset();
+            }
+        }
+
+        hoapsNumObsNodata =
+                (int) hoapsProductToUse.getBand(TcwvConstants.NUM_OBS_HOAPS_BAND_NAME).getNoDataValue();
+        hoapsTcwvNodata = hoapsProductToUse.getBand(TcwvConstants.TCWV_HOAPS_BAND_NAME).getNoDataValue();
+        if (hoapsErrorsAvailable) {
+            hoapsTcwvPropagErrNodata =
+                    hoapsProductToUse.getBand(TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME).getNoDataValue();
+            hoapsTcwvRandomErrNodata =
+                    hoapsProductToUse.getBand(TcwvConstants.TCWV_RANDOM_ERR_HOAPS_BAND_NAME).getNoDataValue();
+        }
+    }
+
+    private void createTargetProduct() {
+        targetProduct = new Product(getId(), getClass().getName(), width, height);
+
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        targetBands = new Band[NUM_TRG];
+        for (int i = 0; i < nirSensorNames.length; i++) {
+            targetBands[TRG_NUM_OBS[i]] = targetProduct.addBand(
+                    TcwvConstants.NUM_OBS_L3_BAND_NAME + "_" + nirSensorNames[i], ProductData.TYPE_INT32);
+        }
+        targetBands[TRG_HOAPS_NUM_OBS] = targetProduct.addBand(
+                TcwvConstants.NUM_OBS_L3_BAND_NAME + "_" + HOAPS_SENSOR_NAME, ProductData.TYPE_INT32);
+
+        final boolean nirMerged = nirProducts.length > 1;
+        targetBands[TRG_POSSIBLE_NUM_OBS] = targetProduct.addBand(TcwvConstants.NUM_OBS_L3_BAND_NAME,
+                nirMerged ? ProductData.TYPE_INT32 :
+                        sourceProduct.getBand(TcwvConstants.NUM_OBS_L3_BAND_NAME).getDataType());
+        for (int i = SRC_NIR_TCWV_MEAN; i < NUM_SRC_NIR; i++) {
+            // the target indices follow the NIR source indices
+            targetBands[TRG_POSSIBLE_NUM_OBS + i] = targetProduct.addBand(SRC_NIR_BAND_NAMES[i],
+                    sourceProduct.getBand(SRC_NIR_BAND_NAMES[i]).getDataType());
+        }
+        if (hoapsErrorsAvailable) {
+            targetBands[TRG_TCWV_PROPAG_ERR] = targetProduct.addBand(TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME,
+                    hoapsBands[SRC_HOAPS_TCWV_PROPAG_ERR].getDataType());
+            targetBands[TRG_TCWV_RANDOM_ERR] = targetProduct.addBand(TcwvConstants.TCWV_RANDOM_ERR_HOAPS_BAND_NAME,
+                    hoapsBands[SRC_HOAPS_TCWV_RANDOM_ERR].getDataType());
+        }
+
+        // band properties as set by the phase chain: from the (intermediate) NIR product, else from HOAPS
+        final String hoapsNumObsBandName = TcwvConstants.NUM_OBS_L3_BAND_NAME + "_" + HOAPS_SENSOR_NAME;
+        for (Band b : targetProduct.getBands()) {
+            if (b.getName().startsWith(TcwvConstants.NUM_OBS_L3_BAND_NAME)) {
+                // the 'num_obs*' bands of an intermediate merge product only have their no-data value set
+                final Band sourceBand = nirMerged ? null : sourceProduct.getBand(b.getName());
+                if (sourceBand != null) {
+                    TcwvUtils.copyBandProperties(b, sourceBand);
+                }
+                if (sourceBand != null || (nirMerged && !b.getName().equals(hoapsNumObsBandName))) {
+                    b.setNoDataValue(MERGED_NUM_OBS_NODATA);
+                    b.setNoDataValueUsed(true);
+                }
+            } else {
+                Band sourceBand = sourceProduct.getBand(b.getName());
+                if (sourceBand == null) {
+                    sourceBand = hoapsProductToUse.getBand(b.getName());
+                }
+                if (sourceBand != null) {
+                    TcwvUtils.copyBandProperties(b, sourceBand);
+                }
+            }
+        }
+
+        setTargetProduct(targetProduct);
+    }
+
+    private Product[] getNirProducts() {
+        final List<Product> products = new ArrayList<>();
+        for (Product product : new Product[]{sourceProduct, nirProduct2, nirProduct3, nirProduct4}) {
+            if (product != null) {
+                products.add(product);
+            }
+        }
+        return products.toArray(new Product[0]);
+    }
+
+    private Product getProductToUse(Product product) {
+        if (product.getSceneRasterWidth() != width || product.getSceneRasterHeight() != height) {
+            return IntegerFactorUpsampling.getResampledProduct(product, width, height);
+        } else {
+            return product;
+        }
+    }
+
+    private TileRowReader[] getRowReaders(Band[] bands, Rectangle rectangle) {
+        final TileRowReader[] readers = new TileRowReader[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            if (bands[i] != null) {
+                readers[i] = new TileRowReader(getSourceTile(bands[i], rectangle), rectangle);
+            }
+        }
+        return readers;
+    }
+
+    private void store(double[] row, int nirIndex) {
+        L3DailyMergeKernel.store(row, mergedDataTypes[nirIndex],
+                                 mergedScalingFactors[nirIndex], mergedScalingOffsets[nirIndex]);
+    }
+
+    private void store(int[] row, int nirIndex) {
+        L3DailyMergeKernel.store(row, mergedDataTypes[nirIndex],
+                                 mergedScalingFactors[nirIndex], mergedScalingOffsets[nirIndex]);
+    }
+
+    private void validate() {
+        // sensors
+        if (nirSensorNames == null || nirSensorNames.length != nirProducts.length) {
+            throw new OperatorException("Number of NIR sensor names does not match number of NIR products (" +
+                                                nirProducts.length + ").");
+        }
+        if (nirProducts.length > MAX_NUM_NIR_SENSORS) {
+            throw new OperatorException("Cannot merge more than " + MAX_NUM_NIR_SENSORS + " NIR sensors.");
+        }
+        for (String nirSensorName : nirSensorNames) {
+            if (nirSensorName.contains("-")) {
+                throw new OperatorException("NIR sensor '" + nirSensorName +
+                                                    "' must be a single sensor, no previous merge!");
+            }
+        }
+
+        // product dimensions
+        for (int i = 1; i < nirProducts.length; i++) {
+            final int width2 = nirProducts[i].getSceneRasterWidth();
+            final int height2 = nirProducts[i].getSceneRasterHeight();
+            if (width != width2 || height != height2) {
+                throw new OperatorException("Dimension of first NIR product (" + width + "/" + height +
+                        ") differs from NIR product " + (i + 1) + " (" + width2 + "/" + height2 + ").");
+            }
+        }
+    }
+
+    // The rows of the (intermediate) NIR/NIR merge, indexed as the NIR source bands, plus an extra row.
+    private static class MergeRows {
+        final int width;
+        final double[][] doubleRows = new double[NUM_SRC_NIR][];
+        final int[][] intRows = new int[NUM_SRC_NIR][];
+        final double[] extraRow;
+
+        MergeRows(int width) {
+            this.width = width;
+            for (int j = 0; j < NUM_SRC_NIR; j++) {
+                if (j == SRC_NIR_POSSIBLE_NUM_OBS || j >= SRC_NIR_TCWV_QUALITY_FLAGS_MAJORITY) {
+                    intRows[j] = new int[width];
+                } else {
+                    doubleRows[j] = new double[width];
+                }
+            }
+            extraRow = new double[width];
+        }
+    }
+
+    // The samples of the target tiles. Numbers of observations and flags are set as integers, the rest as doubles.
+    private class TargetData {
+        final int[][] intSamples = new int[NUM_TRG][];
+        final double[][] doubleSamples = new double[NUM_TRG][];
+
+        TargetData(int numPixels) {
+            for (int i = 0; i < NUM_TRG; i++) {
+                if (targetBands[i] != null) {
+                    if (i <= TRG_POSSIBLE_NUM_OBS || (i >= TRG_TCWV_QUALITY_FLAGS_MAJORITY &&
+                            i <= TRG_TCWV_SURFACE_TYPE_FLAGS_MAJORITY)) {
+                        intSamples[i] = new int[numPixels];
+                    } else {
+                        doubleSamples[i] = new double[numPixels];
+                    }
+                }
+            }
+        }
+
+        void put(int targetIndex, double[] row, int offset) {
+            System.arraycopy(row, 0, doubleSamples[targetIndex], offset, row.length);
+        }
+
+        void put(int targetIndex, int[] row, int offset) {
+            System.arraycopy(row, 0, intSamples[targetIndex], offset, row.length);
+        }
+
+        void putNumObs(int targetIndex, double[] tcwvCounts, int offset) {
+            final int[] numObs = intSamples[targetIndex];
+            for (int i = 0; i < tcwvCounts.length; i++) {
+                numObs[offset + i] = (int) tcwvCounts[i];
+            }
+        }
+
+        void write(Map<Band, Tile> targetTiles) {
+            for (int i = 0; i < NUM_TRG; i++) {
+                if (intSamples[i] != null) {
+                    targetTiles.get(targetBands[i]).setSamples(intSamples[i]);
+                } else if (doubleSamples[i] != null) {
+                    targetTiles.get(targetBands[i]).setSamples(doubleSamples[i]);
+                }
+            }
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(L3DailyMergeOp.class);
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package org.esa.snap.wvcci.tcwv.l3;
 
+import com.bc.ceres.core.ProgressMonitor;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.Operator;
 import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.pointop.*;
+import org.esa.snap.core.util.ProductUtils;
 import org.esa.snap.wvcci.tcwv.TcwvConstants;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
+import org.esa.snap.wvcci.tcwv.util.TileRowReader;
+
+import java.awt.*;
+import java.util.Map;
 
 /**
  * Operator for sensor merging of TCWV L3 products of 2 or 3 sensors.
@@ -23,7 +30,7 @@ import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
         authors = "O.Danne",
         internal = true,
         description = "Operator for post-processing of TCWV L3 daily products.")
-public class L3MergeSensorsOp extends PixelOperator {
+public class L3MergeSensorsOp extends Operator {
 
     @Parameter(valueSet = {"0", "1", "2", "3"}, defaultValue = "0",
             description = "Aggregation mode: 0 = aggregate all sensors, " +
@@ -41,24 +48,27 @@ public class L3MergeSensorsOp extends PixelOperator {
 
     private Product[] mergeInputProducts;
 
+    private Product targetProduct;
+
     private int numProductsToMerge;
 
     private int width;
     private int height;
 
-    private int[] SRC_TCWV;
-    private int[] SRC_TCWV_UNCERTAINTY;
-    private int[] SRC_TCWV_COUNTS;
+    private Band[] tcwvBands;
+    private Band[] tcwvUncertaintyBands;
+    private Band[] tcwvCountsBands;
 
-    private static final int TRG_TCWV = 0;
-    private static final int TRG_TCWV_UNCERTAINTY = 1;
-    private static final int TRG_TCWV_COUNTS = 2;
+    private double[] srcTcwvNodata;
+    private double[] srcTcwvCountsNodata;
 
+    private Band tcwvBand;
+    private Band tcwvUncertaintyBand;
+    private Band tcwvCountsBand;
 
-    @Override
-    protected void prepareInputs() throws OperatorException {
-        super.prepareInputs();
 
+    @Override
+    public void initialize() throws OperatorException {
         mergeInputProducts = new Product[]{sensor1Product, sensor2Product, sensor3Product};
 
         width = mergeInputProducts[0].getSceneRasterWidth();
@@ -67,54 +77,69 @@ public class L3MergeSensorsOp extends PixelOperator {
         numProductsToMerge = sensor3Product != null ? mergeInputProducts.length : mergeInputProducts.length - 1;
         validate();
 
-        SRC_TCWV = new int[numProductsToMerge];
-        SRC_TCWV_UNCERTAINTY = new int[numProductsToMerge];
-        SRC_TCWV_COUNTS = new int[numProductsToMerge];
+        tcwvBands = new Band[numProductsToMerge];
+        tcwvUncertaintyBands = new Band[numProductsToMerge];
+        tcwvCountsBands = new Band[numProductsToMerge];
+        srcTcwvNodata = new double[numProductsToMerge];
+        srcTcwvCountsNodata = new double[numProductsToMerge];
+        for (int i = 0; i < numProductsToMerge; i++) {
+            tcwvBands[i] = mergeInputProducts[i].getBand(TcwvConstants.TCWV_TARGET_BAND_NAME);
+            tcwvUncertaintyBands[i] = mergeInputProducts[i].getBand(TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME);
+            tcwvCountsBands[i] = mergeInputProducts[i].getBand(TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME);
+            srcTcwvNodata[i] = tcwvBands[i].getNoDataValue();
+            srcTcwvCountsNodata[i] = tcwvCountsBands[i].getNoDataValue();
+        }
 
+        createTargetProduct();
     }
 
     @Override
-    protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
-        final double[] srcTcwv = new double[numProductsToMerge];
-        final double[] srcTcwvNodata = new double[numProductsToMerge];
-        final double[] srcTcwvUncertainty = new double[numProductsToMerge];
-        final double[] srcTcwvCounts = new double[numProductsToMerge];
-        final double[] srcTcwvCountsNodata = new double[numProductsToMerge];
-        for (int i = 0; i < numProductsToMerge; i++) {
-            srcTcwv[i] = sourceSamples[SRC_TCWV[i]].getDouble();
-            srcTcwvNodata[i] = mergeInputProducts[i].getBand(TcwvConstants.TCWV_TARGET_BAND_NAME).getNoDataValue();
-            srcTcwvUncertainty[i] = sourceSamples[SRC_TCWV_UNCERTAINTY[i]].getDouble();
-            srcTcwvCounts[i] = sourceSamples[SRC_TCWV_COUNTS[i]].getDouble();
-            srcTcwvCountsNodata[i] = mergeInputProducts[i].getBand(TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME).getNoDataValue();
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        final TileRowReader[] tcwvReaders = getRowReaders(tcwvBands, targetRectangle);
+        final TileRowReader[] tcwvUncertaintyReaders = getRowReaders(tcwvUncertaintyBands, targetRectangle);
+        final TileRowReader[] tcwvCountsReaders = getRowReaders(tcwvCountsBands, targetRectangle);
+
+        final int numPixels = targetRectangle.width * targetRectangle.height;
+        final double[] tcwvMerge = new double[numPixels];
+        final double[] tcwvUncertaintyMerge = new double[numPixels];
+        final double[] tcwvCountsMerge = new double[numPixels];
+
+        final double[][] srcTcwv = new double[numProductsToMerge][];
+        final double[][] srcTcwvUncertainty = new double[numProductsToMerge][];
+        final double[][] srcTcwvCounts = new double[numProductsToMerge][];
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            checkForCancellation();
+            TileRowReader.readRows(tcwvReaders, y, srcTcwv);
+            TileRowReader.readRows(tcwvUncertaintyReaders, y, srcTcwvUncertainty);
+            TileRowReader.readRows(tcwvCountsReaders, y, srcTcwvCounts);
+
+            final int offset = (y - targetRectangle.y) * targetRectangle.width;
+            mergeTcwv(aggregationMode, srcTcwv, srcTcwvCounts, srcTcwvNodata, srcTcwvCountsNodata,
+                      tcwvMerge, tcwvCountsMerge, offset);
+            mergeTcwv(aggregationMode, srcTcwvUncertainty, srcTcwvCounts, srcTcwvNodata, srcTcwvCountsNodata,
+                      tcwvUncertaintyMerge, null, offset);
         }
 
-        final double[] tcwvMerge =
-                mergeTcwv(aggregationMode, numProductsToMerge, srcTcwv, srcTcwvCounts, srcTcwvNodata, srcTcwvCountsNodata);
-        final double[] tcwvUncertaintyMerge =
-                mergeTcwv(aggregationMode, numProductsToMerge, srcTcwvUncertainty, srcTcwvCounts, srcTcwvNodata, srcTcwvCountsNodata);
-
-        targetSamples[TRG_TCWV].set(tcwvMerge[0]);
-        targetSamples[TRG_TCWV_UNCERTAINTY].set(tcwvUncertaintyMerge[0]);
-        targetSamples[TRG_TCWV_COUNTS].set(tcwvMerge[1]);
+        targetTiles.get(tcwvBand).setSamples(tcwvMerge);
+        targetTiles.get(tcwvUncertaintyBand).setSamples(tcwvUncertaintyMerge);
+        targetTiles.get(tcwvCountsBand).setSamples(tcwvCountsMerge);
     }
 
-    @Override
-    protected void configureTargetProduct(ProductConfigurer productConfigurer) {
-        super.configureTargetProduct(productConfigurer);
-        final Product targetProduct = productConfigurer.getTargetProduct();
+    private void createTargetProduct() {
+        targetProduct = new Product(getId(), getClass().getName(), width, height);
 
-        for (int i = 0; i < numProductsToMerge; i++) {
-            SRC_TCWV[i] = 3 * i;
-            SRC_TCWV_UNCERTAINTY[i] = 3 * i + 1;
-            SRC_TCWV_COUNTS[i] = 3 * i + 2;
-        }
+        ProductUtils.copyMetadata(sensor1Product, targetProduct);
+        ProductUtils.copyGeoCoding(sensor1Product, targetProduct);
+        targetProduct.setStartTime(sensor1Product.getStartTime());
+        targetProduct.setEndTime(sensor1Product.getEndTime());
 
-        targetProduct.addBand(TcwvConstants.TCWV_TARGET_BAND_NAME,
+        tcwvBand = targetProduct.addBand(TcwvConstants.TCWV_TARGET_BAND_NAME,
                 mergeInputProducts[0].getBand(TcwvConstants.TCWV_TARGET_BAND_NAME).getDataType());
-        targetProduct.addBand(TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME,
+        tcwvUncertaintyBand = targetProduct.addBand(TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME,
                 mergeInputProducts[0].getBand(TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME).
                         getDataType());
-        targetProduct.addBand(TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME,
+        tcwvCountsBand = targetProduct.addBand(TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME,
                 mergeInputProducts[0].getBand(TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME).getDataType());
 
         for (Band b : targetProduct.getBands()) {
@@ -122,28 +147,15 @@ public class L3MergeSensorsOp extends PixelOperator {
             TcwvUtils.copyBandProperties(b, sourceBand);
         }
 
+        setTargetProduct(targetProduct);
     }
 
-    @Override
-    protected Product createTargetProduct() throws OperatorException {
-        return super.createTargetProduct();
-    }
-
-    @Override
-    protected void configureSourceSamples(SourceSampleConfigurer configurator) throws OperatorException {
-        for (int i = 0; i < numProductsToMerge; i++) {
-            configurator.defineSample(SRC_TCWV[i], TcwvConstants.TCWV_TARGET_BAND_NAME, mergeInputProducts[i]);
-            configurator.defineSample(SRC_TCWV_UNCERTAINTY[i], TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME,
-                    mergeInputProducts[i]);
-            configurator.defineSample(SRC_TCWV_COUNTS[i], TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME, mergeInputProducts[i]);
+    private TileRowReader[] getRowReaders(Band[] bands, Rectangle rectangle) {
+        final TileRowReader[] readers = new TileRowReader[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            readers[i] = new TileRowReader(getSourceTile(bands[i], rectangle), rectangle);
         }
-    }
-
-    @Override
-    protected void configureTargetSamples(TargetSampleConfigurer configurator) throws OperatorException {
-        configurator.defineSample(TRG_TCWV, TcwvConstants.TCWV_TARGET_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_UNCERTAINTY, TcwvConstants.TCWV_UNCERTAINTY_TARGET_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_COUNTS, TcwvConstants.TCWV_COUNTS_TARGET_BAND_NAME);
+        return readers;
     }
 
     static double[] mergeTcwv_old(int aggregationMode, int numProducts, double[] srcTcwv, double[] srcTcwvCounts,
@@ -199,6 +211,52 @@ public class L3MergeSensorsOp extends PixelOperator {
     }
 
 
+    /**
+     * Row version of {@link #mergeTcwv(int, int, double[], double[], double[], double[])}, without allocations.
+     *
+     * @param aggregationMode     - the aggregation mode
+     * @param srcTcwv             - the source rows of the quantity, per product
+     * @param srcTcwvCounts       - the source rows of the counts, per product
+     * @param srcTcwvNodata       - the no-data values of the quantity, per product
+     * @param srcTcwvCountsNodata - the no-data values of the counts, per product
+     * @param mergedTcwv          - receives the merged quantity at the given offset
+     * @param mergedTcwvCounts    - receives the merged counts at the given offset, may be null
+     * @param offset              - the offset of the row in the merged arrays
+     */
+    static void mergeTcwv(int aggregationMode, double[][] srcTcwv, double[][] srcTcwvCounts,
+                          double[] srcTcwvNodata, double[] srcTcwvCountsNodata,
+                          double[] mergedTcwv, double[] mergedTcwvCounts, int offset) {
+        final int numProducts = srcTcwv.length;
+        final int index = aggregationMode - 1;
+        for (int x = 0; x < srcTcwv[0].length; x++) {
+            double tcwv = 0.0;
+            double tcwvCounts = 0.0;
+            if (aggregationMode != 0 && isValid(srcTcwv[index][x], srcTcwvCounts[index][x],
+                                                srcTcwvNodata[index], srcTcwvCountsNodata[index])) {
+                tcwv = srcTcwv[index][x];
+                tcwvCounts = srcTcwvCounts[index][x];
+            } else {
+                for (int i = 0; i < numProducts; i++) {
+                    if (isValid(srcTcwv[i][x], srcTcwvCounts[i][x], srcTcwvNodata[i], srcTcwvCountsNodata[i])) {
+                        tcwv += srcTcwvCounts[i][x] * srcTcwv[i][x];
+                        tcwvCounts += srcTcwvCounts[i][x];
+                    }
+                }
+                tcwv /= tcwvCounts;
+            }
+            mergedTcwv[offset + x] = tcwv;
+            if (mergedTcwvCounts != null) {
+                mergedTcwvCounts[offset + x] = tcwvCounts;
+            }
+        }
+    }
+
+    private static boolean isValid(double srcTcwv, double srcTcwvCounts,
+                                   double srcTcwvNodata, double srcTcwvCountsNodata) {
+        return !Double.isNaN(srcTcwv) && !Double.isNaN(srcTcwvCounts) &&
+                srcTcwv != srcTcwvNodata && srcTcwvCounts != srcTcwvCountsNodata;
+    }
+
     private void validate() {
         // number of products
         if (numProductsToMerge != 2 && numProductsToMerge != 3) {
@@ -1,14 +1,21 @@
 package org.esa.snap.wvcci.tcwv.l3;
 
+import com.bc.ceres.core.ProgressMonitor;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.Operator;
 import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
-import org.esa.snap.core.gpf.pointop.*;
+import org.esa.snap.core.util.ProductUtils;
 import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
+import org.esa.snap.wvcci.tcwv.util.TileRowReader;
+
+import java.awt.*;
+import java.util.Map;
 
 /**
  * Operator for adding 'CCI uncertainties' in  TCWV L3 daily or monthly products.
@@ -19,7 +26,7 @@ import org.esa.snap.wvcci.tcwv.util.TcwvUtils;
         authors = "Olaf Danne",
         internal = true,
         description = "Operator for adding 'CCI uncertainties' in  TCWV L3 daily or monthly products.")
-public class L3UncertaintiesOp extends PixelOperator {
+public class L3UncertaintiesOp extends Operator {
 
     @Parameter(interval = "[0.0f, 1.0f]", defaultValue = "0.5",
             description = "Correlation parameter, see https://www.earth-syst-sci-data.net/9/881/2017/")
@@ -28,15 +35,7 @@ public class L3UncertaintiesOp extends PixelOperator {
     @SourceProduct(description = "Source product")
     private Product sourceProduct;
 
-
-    private static final int SRC_TCWV_MEAN = 0;
-    private static final int SRC_TCWV_SUM = 1;
-    private static final int SRC_TCWV_SUM_SQ = 2;
-    private static final int SRC_TCWV_UNCERTAINTY_MEAN = 3;
-    private static final int SRC_TCWV_UNCERTAINTY_SUM = 4;
-    private static final int SRC_TCWV_UNCERTAINTY_SUM_SQ = 5;
-    private static final int SRC_TCWV_COUNTS = 6;
-    private static final int SRC_NUM_PASSES = 7;
+    private Product targetProduct;
 
     private static final int TRG_TCWV_MEAN = 0;
     //    private static final int TRG_TCWV_UNCERTAINTY_MEAN = 1;
@@ -45,6 +44,7 @@ public class L3UncertaintiesOp extends PixelOperator {
     private static final int TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN = 3;   // eq. (3) CCI
     private static final int TRG_TCWV_COUNTS = 4;
     private static final int TRG_NUM_PASSES = 5;
+    private static final int NUM_TRG = 6;
 
     private static final String TCWV_MEAN_BAND_NAME = "tcwv_mean";
     private static final String TCWV_SUM_BAND_NAME = "tcwv_sum";
@@ -66,80 +66,133 @@ public class L3UncertaintiesOp extends PixelOperator {
             TCWV_UNCERTAINTY_SUM_SQ_BAND_NAME
     };
 
-    @Override
-    protected void prepareInputs() throws OperatorException {
-        super.prepareInputs();
+    private Band tcwvMeanBand;
+    private Band tcwvSumBand;
+    private Band tcwvSumSqBand;
+    private Band tcwvUncertaintyMeanBand;
+    private Band tcwvUncertaintySumSqBand;
+    private Band tcwvCountsBand;
+    private Band numPassesBand;
 
+    private Band[] targetBands;
+
+    @Override
+    public void initialize() throws OperatorException {
         validateInput();
+
+        tcwvMeanBand = sourceProduct.getBand(TCWV_MEAN_BAND_NAME);
+        tcwvSumBand = sourceProduct.getBand(TCWV_SUM_BAND_NAME);
+        tcwvSumSqBand = sourceProduct.getBand(TCWV_SUM_SQ_BAND_NAME);
+        tcwvUncertaintyMeanBand = sourceProduct.getBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME);
+        tcwvUncertaintySumSqBand = sourceProduct.getBand(TCWV_UNCERTAINTY_SUM_SQ_BAND_NAME);
+        tcwvCountsBand = sourceProduct.getBand(TCWV_COUNTS_BAND_NAME);
+        numPassesBand = sourceProduct.getBand(NUM_PASSES_BAND_NAME);
+
+        createTargetProduct();
     }
 
     @Override
-    protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
-
-        final float tcwvMean = sourceSamples[SRC_TCWV_MEAN].getFloat();
-        final float tcwvSum = sourceSamples[SRC_TCWV_SUM].getFloat();
-        final float tcwvSumSq = sourceSamples[SRC_TCWV_SUM_SQ].getFloat();
-        final float tcwvCounts = sourceSamples[SRC_TCWV_COUNTS].getFloat();
-        final float tcwvUncertaintyMean = sourceSamples[SRC_TCWV_UNCERTAINTY_MEAN].getFloat();
-        final float tcwvUncertaintySumSq = sourceSamples[SRC_TCWV_UNCERTAINTY_SUM_SQ].getFloat();
-        int numPasses = -1;
-        if (sourceProduct.containsBand(NUM_PASSES_BAND_NAME)) {
-            numPasses = sourceSamples[SRC_NUM_PASSES].getInt();
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        final TileRowReader tcwvMeanReader = getRowReader(tcwvMeanBand, targetRectangle);
+        final TileRowReader tcwvSumReader = getRowReader(tcwvSumBand, targetRectangle);
+        final TileRowReader tcwvSumSqReader = getRowReader(tcwvSumSqBand, targetRectangle);
+        final TileRowReader tcwvUncertaintyMeanReader = getRowReader(tcwvUncertaintyMeanBand, targetRectangle);
+        final TileRowReader tcwvUncertaintySumSqReader = getRowReader(tcwvUncertaintySumSqBand, targetRectangle);
+        final TileRowReader tcwvCountsReader = getRowReader(tcwvCountsBand, targetRectangle);
+        final TileRowReader numPassesReader =
+                numPassesBand != null ? getRowReader(numPassesBand, targetRectangle) : null;
+
+        final int numPixels = targetRectangle.width * targetRectangle.height;
+        final double[][] targetSamples = new double[NUM_TRG][];
+        for (int i = 0; i < TRG_NUM_PASSES; i++) {
+            targetSamples[i] = new double[numPixels];
         }
-
-        if (tcwvCounts > 0.0 && !Float.isNaN(tcwvMean)) {
-            // eq. (1), use sqrt:
-            float sigmaSd = 0.0f;
-            if (tcwvCounts > 1.0f) {
-                sigmaSd = (float) Math.sqrt((tcwvSumSq / tcwvCounts - 2.0 * tcwvMean * tcwvSum /
-                        tcwvCounts + tcwvMean * tcwvMean));
+        final int[] numPassesSamples = numPassesReader != null ? new int[numPixels] : null;
+
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            checkForCancellation();
+            final int offset = (y - targetRectangle.y) * targetRectangle.width;
+            computeRow(tcwvMeanReader.readRow(y), tcwvSumReader.readRow(y), tcwvSumSqReader.readRow(y),
+                       tcwvUncertaintyMeanReader.readRow(y), tcwvUncertaintySumSqReader.readRow(y),
+                       tcwvCountsReader.readRow(y), targetSamples, offset);
+            if (numPassesReader != null) {
+                System.arraycopy(numPassesReader.readIntSampleRow(y), 0, numPassesSamples, offset,
+                                 targetRectangle.width);
             }
+        }
 
-            // eq. (2):
-            final float sigmaMean = tcwvUncertaintyMean;
-
-            // eq. (3):
-            final float sigmaSqrMean = tcwvUncertaintySumSq / tcwvCounts;
-
-            // eq. (4):
-            final float sigmaTrueSqr = (float) (sigmaSd * sigmaSd - (1.0 - c) * sigmaSqrMean);
-
-            // eq. (5):
-            final float sigmaMeanUncertaintySq =
-                    (float) (sigmaTrueSqr / tcwvCounts + c * sigmaMean * sigmaMean +
-                            (1.0 - c) * sigmaSqrMean / tcwvCounts);
-            final float sigmaMeanUncertainty = (float) Math.sqrt(sigmaMeanUncertaintySq);
-
-            targetSamples[TRG_TCWV_MEAN].set(tcwvMean);
-//            targetSamples[TRG_TCWV_UNCERTAINTY_MEAN].set(sigmaMeanUncertainty);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR].set(sigmaSd);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_MEAN].set(sigmaMean);
-//            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN].set(sigmaSqrMean);
-            // DWD wants this term stored instead, as this is what is written into HOAPS products (MS, 20190826):
-            final float sigmaSqrMeanHoaps = 1.0f / (tcwvCounts * sigmaSqrMean);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN].set(sigmaSqrMeanHoaps);
-        } else {
-            targetSamples[TRG_TCWV_MEAN].set(Float.NaN);
-//            targetSamples[TRG_TCWV_UNCERTAINTY_MEAN].set(Float.NaN);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR].set(Float.NaN);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_MEAN].set(Float.NaN);
-            targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN].set(Float.NaN);
+        for (int i = 0; i < TRG_NUM_PASSES; i++) {
+            targetTiles.get(targetBands[i]).setSamples(targetSamples[i]);
         }
-        targetSamples[TRG_TCWV_COUNTS].set(tcwvCounts);
-        if (sourceProduct.containsBand(NUM_PASSES_BAND_NAME)) {
-            targetSamples[TRG_NUM_PASSES].set(numPasses);
+        if (numPassesSamples != null) {
+            targetTiles.get(targetBands[TRG_NUM_PASSES]).setSamples(numPassesSamples);
         }
     }
 
-    @Override
-    protected void configureTargetProduct(ProductConfigurer productConfigurer) {
-        super.configureTargetProduct(productConfigurer);
-        final Product targetProduct = productConfigurer.getTargetProduct();
+    private void computeRow(double[] tcwvMeanRow, double[] tcwvSumRow, double[] tcwvSumSqRow,
+                            double[] tcwvUncertaintyMeanRow, double[] tcwvUncertaintySumSqRow,
+                            double[] tcwvCountsRow, double[][] targetSamples, int offset) {
+        for (int x = 0; x < tcwvMeanRow.length; x++) {
+            final float tcwvMean = (float) tcwvMeanRow[x];
+            final float tcwvSum = (float) tcwvSumRow[x];
+            final float tcwvSumSq = (float) tcwvSumSqRow[x];
+            final float tcwvCounts = (float) tcwvCountsRow[x];
+            final float tcwvUncertaintyMean = (float) tcwvUncertaintyMeanRow[x];
+            final float tcwvUncertaintySumSq = (float) tcwvUncertaintySumSqRow[x];
+
+            final int index = offset + x;
+            if (tcwvCounts > 0.0 && !Float.isNaN(tcwvMean)) {
+                // eq. (1), use sqrt:
+                float sigmaSd = 0.0f;
+                if (tcwvCounts > 1.0f) {
+                    sigmaSd = (float) Math.sqrt((tcwvSumSq / tcwvCounts - 2.0 * tcwvMean * tcwvSum /
+                            tcwvCounts + tcwvMean * tcwvMean));
+                }
+
+                // eq. (2):
+                final float sigmaMean = tcwvUncertaintyMean;
+
+                // eq. (3):
+                final float sigmaSqrMean = tcwvUncertaintySumSq / tcwvCounts;
+
+                // eq. (4) and (5), the mean uncertainty, are currently not written:
+                // sigmaTrueSqr = sigmaSd * sigmaSd - (1.0 - c) * sigmaSqrMean
+                // sigmaMeanUncertainty = sqrt(sigmaTrueSqr / tcwvCounts + c * sigmaMean * sigmaMean +
+                //                             (1.0 - c) * sigmaSqrMean / tcwvCounts)
+
+                targetSamples[TRG_TCWV_MEAN][index] = tcwvMean;
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR][index] = sigmaSd;
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_MEAN][index] = sigmaMean;
+                // DWD wants this term stored instead, as this is what is written into HOAPS products (MS, 20190826):
+                final float sigmaSqrMeanHoaps = 1.0f / (tcwvCounts * sigmaSqrMean);
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN][index] = sigmaSqrMeanHoaps;
+            } else {
+                targetSamples[TRG_TCWV_MEAN][index] = Float.NaN;
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR][index] = Float.NaN;
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_MEAN][index] = Float.NaN;
+                targetSamples[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN][index] = Float.NaN;
+            }
+            targetSamples[TRG_TCWV_COUNTS][index] = tcwvCounts;
+        }
+    }
+
+    private void createTargetProduct() {
+        targetProduct = new Product(getId(), getClass().getName(),
+                                    sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        targetBands = new Band[NUM_TRG];
 
         final Band tcwvBand = targetProduct.addBand(TCWV_MEAN_BAND_NAME, sourceProduct.getBand(TCWV_MEAN_BAND_NAME).getDataType());
         // Mean of Total Column of Water
         tcwvBand.setUnit("kg/m^2");
         tcwvBand.setDescription("Standard deviation of Total Column of Water");
+        targetBands[TRG_TCWV_MEAN] = tcwvBand;
 
 //        targetProduct.addBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME,
 //                              sourceProduct.getBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME).getDataType());
@@ -147,25 +200,30 @@ public class L3UncertaintiesOp extends PixelOperator {
                                                 sourceProduct.getBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME).getDataType());
         sigmaSdBand.setUnit("kg/m^2");
         sigmaSdBand.setDescription("Standard deviation of Total Column of Water");
+        targetBands[TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR] = sigmaSdBand;
 
         final Band retrievalUncertBand = targetProduct.addBand(TCWV_UNCERTAINTY_SIGMA_MEAN_BAND_NAME,
                                                 sourceProduct.getBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME).getDataType());
         retrievalUncertBand.setUnit("kg/m^2");
         retrievalUncertBand.setDescription("Retrieval uncertainty of Total Column of Water");
+        targetBands[TRG_TCWV_UNCERTAINTY_SIGMA_MEAN] = retrievalUncertBand;
 
         final Band randomUncertBand = targetProduct.addBand(TCWV_UNCERTAINTY_SIGMA_SQR_MEAN_BAND_NAME,
                                                 sourceProduct.getBand(TCWV_UNCERTAINTY_MEAN_BAND_NAME).getDataType());
         randomUncertBand.setUnit("m^2/kg");
         randomUncertBand.setDescription("Random uncertainty of Total Column of Water (reciprocal and normalised with " +
                                                 "number of observations, given in m^2/kg");
+        targetBands[TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN] = randomUncertBand;
 
         final Band countsBand = targetProduct.addBand(TCWV_COUNTS_BAND_NAME,
                                                       sourceProduct.getBand(TCWV_COUNTS_BAND_NAME).getDataType());
         countsBand.setUnit(" ");
         countsBand.setDescription("Number of observations");
+        targetBands[TRG_TCWV_COUNTS] = countsBand;
 
         if (sourceProduct.containsBand(NUM_PASSES_BAND_NAME)) {
-            targetProduct.addBand(NUM_PASSES_BAND_NAME, sourceProduct.getBand(NUM_PASSES_BAND_NAME).getDataType());
+            targetBands[TRG_NUM_PASSES] = targetProduct.addBand(NUM_PASSES_BAND_NAME,
+                    sourceProduct.getBand(NUM_PASSES_BAND_NAME).getDataType());
         }
 
         for (Band b : targetProduct.getBands()) {
@@ -176,29 +234,12 @@ public class L3UncertaintiesOp extends PixelOperator {
                 TcwvUtils.copyBandProperties(b, sourceBand);
             }
         }
-    }
 
-    @Override
-    protected void configureSourceSamples(SourceSampleConfigurer configurator) throws OperatorException {
-        configurator.defineSample(SRC_TCWV_MEAN, TCWV_MEAN_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_SUM, TCWV_SUM_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_SUM_SQ, TCWV_SUM_SQ_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_UNCERTAINTY_MEAN, TCWV_UNCERTAINTY_MEAN_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_UNCERTAINTY_SUM, TCWV_UNCERTAINTY_SUM_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_UNCERTAINTY_SUM_SQ, TCWV_UNCERTAINTY_SUM_SQ_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_TCWV_COUNTS, TCWV_COUNTS_BAND_NAME, sourceProduct);
-        configurator.defineSample(SRC_NUM_PASSES, NUM_PASSES_BAND_NAME, sourceProduct);
+        setTargetProduct(targetProduct);
     }
 
-    @Override
-    protected void configureTargetSamples(TargetSampleConfigurer configurator) throws OperatorException {
-        configurator.defineSample(TRG_TCWV_MEAN, TCWV_MEAN_BAND_NAME);
-//        configurator.defineSample(TRG_TCWV_UNCERTAINTY_MEAN, TCWV_UNCERTAINTY_MEAN_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_UNCERTAINTY_SIGMA_SD_SQR, TCWV_UNCERTAINTY_SIGMA_SD_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_UNCERTAINTY_SIGMA_MEAN, TCWV_UNCERTAINTY_SIGMA_MEAN_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_UNCERTAINTY_SIGMA_SQR_MEAN, TCWV_UNCERTAINTY_SIGMA_SQR_MEAN_BAND_NAME);
-        configurator.defineSample(TRG_TCWV_COUNTS, TCWV_COUNTS_BAND_NAME);
-        configurator.defineSample(TRG_NUM_PASSES, NUM_PASSES_BAND_NAME);
+    private TileRowReader getRowReader(Band band, Rectangle rectangle) {
+        return new TileRowReader(getSourceTile(band, rectangle), rectangle);
     }
 
     private void validateInput() {
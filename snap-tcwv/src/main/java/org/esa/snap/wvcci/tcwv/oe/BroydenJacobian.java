@@ -0,0 +1,153 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+
+/**
+ * Quasi-Newton Jacobian for the OE iteration: the Jacobian function (i.e. the Jacobian LUT interpolation) is
+ * evaluated only at the first guess, and then updated with rank-one Broyden corrections
+ * K += (dy - K dx) dx^T / (dx^T dx) from the forward function residuals of consecutive iterations.
+ * The Jacobian is re-anchored, i.e. evaluated again with the Jacobian function, if the step quality degrades:
+ * if the OE cost increased with the last step, or if the forward function change of the last step is
+ * badly predicted by the current Jacobian.
+ * <p>
+ * One instance per inversion (or re-armed per inversion with {@link #reset}), not thread safe.
+ *
+ * @author olafd
+ */
+class BroydenJacobian {
+
+    // max relative secant mismatch |dy - K dx| / |dy| for which the Jacobian is updated instead of re-anchored
+    static final double MAX_SECANT_MISMATCH = 0.5;
+
+    private JacobiFunction jfunc;
+    private double[] params;
+    private double[] a;
+    private double[] b;
+
+    private final double[][] kk;
+    private boolean anchored;
+    private final double[] xPrev;
+    private final double[] yPrev;
+    private final double[] dx;
+    private final double[] dy;
+    private double costPrev;
+    private int numEvaluations;
+
+    /**
+     * @param jfunc  - the Jacobian function used at the anchor points
+     * @param params - optional input parameters for jfunc
+     * @param a      - lower bound of state
+     * @param b      - upper bound of state
+     * @param ny     - measurement dimension
+     */
+    BroydenJacobian(JacobiFunction jfunc, double[] params, double[] a, double[] b, int ny) {
+        this.jfunc = jfunc;
+        this.params = params;
+        this.a = a;
+        this.b = b;
+        kk = new double[ny][a.length];
+        xPrev = new double[a.length];
+        yPrev = new double[ny];
+        dx = new double[a.length];
+        dy = new double[ny];
+    }
+
+    /**
+     * Re-arms the instance for a new inversion with the same state and measurement dimensions.
+     *
+     * @param jfunc  - the Jacobian function used at the anchor points
+     * @param params - optional input parameters for jfunc
+     * @param a      - lower bound of state
+     * @param b      - upper bound of state
+     */
+    void reset(JacobiFunction jfunc, double[] params, double[] a, double[] b) {
+        if (a.length != dx.length) {
+            throw new IllegalArgumentException("State dimension must be " + dx.length + ", but is " + a.length + ".");
+        }
+        this.jfunc = jfunc;
+        this.params = params;
+        this.a = a;
+        this.b = b;
+        anchored = false;
+        numEvaluations = 0;
+    }
+
+    /**
+     * @return the measurement dimension
+     */
+    int getMeasurementDimension() {
+        return dy.length;
+    }
+
+    /**
+     * Provides the Jacobian at the given state. Must be called once per iteration with consecutive states.
+     *
+     * @param x    - state vector
+     * @param y    - fnc(x), i.e. the forward function residual at x
+     * @param cost - OE cost at x
+     * @return the Jacobian (ny x nx), the returned array is updated in place by the next call
+     */
+    double[][] f(double[] x, double[] y, double cost) {
+        if (!anchored || cost > costPrev || !update(x, y)) {
+            anchor(x);
+        }
+        for (int i = 0; i < x.length; i++) {
+            xPrev[i] = clip(x[i], i);
+        }
+        System.arraycopy(y, 0, yPrev, 0, y.length);
+        costPrev = cost;
+        return kk;
+    }
+
+    /**
+     * @return number of evaluations of the Jacobian function so far
+     */
+    int getNumEvaluations() {
+        return numEvaluations;
+    }
+
+    private void anchor(double[] x) {
+        jfunc.f(x, params, kk);
+        anchored = true;
+        numEvaluations++;
+    }
+
+    // rank-one Broyden update, returns false if the Jacobian should be re-anchored instead
+    private boolean update(double[] x, double[] y) {
+        double dxNorm2 = 0.0;
+        for (int j = 0; j < dx.length; j++) {
+            // the forward function is evaluated at the clipped state
+            dx[j] = clip(x[j], j) - xPrev[j];
+            dxNorm2 += dx[j] * dx[j];
+        }
+        if (dxNorm2 == 0.0) {
+            return true;
+        }
+        double dyNorm2 = 0.0;
+        double mismatchNorm2 = 0.0;
+        for (int i = 0; i < dy.length; i++) {
+            double kkDx = 0.0;
+            for (int j = 0; j < dx.length; j++) {
+                kkDx += kk[i][j] * dx[j];
+            }
+            final double dyi = y[i] - yPrev[i];
+            dy[i] = dyi - kkDx;
+            dyNorm2 += dyi * dyi;
+            mismatchNorm2 += dy[i] * dy[i];
+        }
+        if (!(mismatchNorm2 <= MAX_SECANT_MISMATCH * MAX_SECANT_MISMATCH * dyNorm2)) {
+            return false;
+        }
+        for (int i = 0; i < dy.length; i++) {
+            final double factor = dy[i] / dxNorm2;
+            for (int j = 0; j < dx.length; j++) {
+                kk[i][j] += factor * dx[j];
+            }
+        }
+        return true;
+    }
+
+    private double clip(double value, int index) {
+        return Math.min(Math.max(value, a[index]), b[index]);
+    }
+}
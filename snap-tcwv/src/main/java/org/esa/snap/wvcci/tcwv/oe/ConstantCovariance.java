@@ -0,0 +1,71 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * Constant error covariance matrix (e.g. a prior error covariance), with the inverse computed once at
+ * construction. Instances are immutable and may be shared by all threads.
+ *
+ * @author olafd
+ */
+public class ConstantCovariance implements Covariance {
+
+    private final double[][] matrix;
+    private final double[][] inverse;
+    private final boolean diagonal;
+
+    /**
+     * @param matrix - the symmetric positive definite n x n matrix (copied)
+     */
+    public ConstantCovariance(double[][] matrix) {
+        final int n = matrix.length;
+        this.matrix = new double[n][];
+        boolean isDiagonal = true;
+        for (int i = 0; i < n; i++) {
+            if (matrix[i].length != n) {
+                throw new IllegalArgumentException("Covariance matrix must be square.");
+            }
+            this.matrix[i] = matrix[i].clone();
+            for (int j = 0; j < n; j++) {
+                if (i != j && matrix[i][j] != 0.0) {
+                    isDiagonal = false;
+                }
+            }
+        }
+        diagonal = isDiagonal;
+        inverse = new double[n][n];
+        if (diagonal) {
+            new DiagonalCovariance(this.matrix).copyInverse(inverse);
+        } else {
+            new DenseCovariance(this.matrix).copyInverse(inverse);
+        }
+    }
+
+    @Override
+    public int getDimension() {
+        return matrix.length;
+    }
+
+    @Override
+    public boolean isDiagonal() {
+        return diagonal;
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return matrix[i][i];
+    }
+
+    /**
+     * @return the matrix, must not be modified
+     */
+    @Override
+    public double[][] getMatrix() {
+        return matrix;
+    }
+
+    @Override
+    public void copyInverse(double[][] dest) {
+        for (int i = 0; i < inverse.length; i++) {
+            System.arraycopy(inverse[i], 0, dest[i], 0, inverse.length);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * Error covariance matrix for the OE inversion, with knowledge of its structure, so that the inverse is
+ * computed in the cheapest way: elementwise for a diagonal matrix ({@link DiagonalCovariance}), once for a
+ * constant matrix ({@link ConstantCovariance}), or by Cholesky decomposition for a general symmetric positive
+ * definite matrix ({@link DenseCovariance}).
+ *
+ * @author olafd
+ */
+public interface Covariance {
+
+    /**
+     * @return the dimension n of the n x n matrix
+     */
+    int getDimension();
+
+    /**
+     * @return true if all off-diagonal elements are zero
+     */
+    boolean isDiagonal();
+
+    /**
+     * @param i - the index
+     * @return the diagonal element (i, i)
+     */
+    double getVariance(int i);
+
+    /**
+     * @return the matrix as dense n x n array
+     */
+    double[][] getMatrix();
+
+    /**
+     * Provides the inverse of the matrix.
+     *
+     * @param dest - the inverse (at least n x n)
+     */
+    void copyInverse(double[][] dest);
+}
@@ -0,0 +1,50 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * General (symmetric positive definite) error covariance matrix. The inverse is computed by Cholesky
+ * decomposition whenever it is requested.
+ *
+ * @author olafd
+ */
+public class DenseCovariance implements Covariance {
+
+    private final double[][] matrix;
+
+    /**
+     * @param matrix - the symmetric positive definite n x n matrix (not copied)
+     */
+    public DenseCovariance(double[][] matrix) {
+        for (double[] row : matrix) {
+            if (row.length != matrix.length) {
+                throw new IllegalArgumentException("Covariance matrix must be square.");
+            }
+        }
+        this.matrix = matrix;
+    }
+
+    @Override
+    public int getDimension() {
+        return matrix.length;
+    }
+
+    @Override
+    public boolean isDiagonal() {
+        return false;
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return matrix[i][i];
+    }
+
+    @Override
+    public double[][] getMatrix() {
+        return matrix;
+    }
+
+    @Override
+    public void copyInverse(double[][] dest) {
+        final int n = matrix.length;
+        GaussNewtonOE3x3Kernel.invertSymmetricPositiveDefinite(matrix, dest, new double[n][n], n);
+    }
+}
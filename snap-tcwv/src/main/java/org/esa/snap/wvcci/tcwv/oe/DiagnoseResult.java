@@ -12,11 +12,28 @@ public class DiagnoseResult {
     private Matrix gain;
     private Matrix average;
     private double cost;
+    private double dof;
 
     DiagnoseResult(Matrix gain, Matrix average, double cost) {
+        this(gain, average, cost, average != null ? average.trace() : Double.NaN);
+    }
+
+    /**
+     * @param gain    - gain matrix, or null if not computed
+     * @param average - averaging kernel, or null if not computed
+     * @param cost    - OE cost, or NaN if not computed
+     * @param dof     - degrees of freedom for signal, or NaN if not computed
+     */
+    DiagnoseResult(Matrix gain, Matrix average, double cost, double dof) {
+        set(gain, average, cost, dof);
+    }
+
+    // for the reused result of a reusable OptimalEstimation
+    void set(Matrix gain, Matrix average, double cost, double dof) {
         this.gain = gain;
         this.average = average;
         this.cost = cost;
+        this.dof = dof;
     }
 
     public Matrix getGain() {
@@ -30,4 +47,8 @@ public class DiagnoseResult {
     public double getCost() {
         return cost;
     }
+
+    public double getDof() {
+        return dof;
+    }
 }
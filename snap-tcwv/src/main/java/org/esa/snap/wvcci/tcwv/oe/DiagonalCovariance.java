@@ -0,0 +1,94 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * Diagonal error covariance matrix. The inverse is given by the elementwise reciprocals.
+ * The variances may be modified, e.g. per pixel, so instances must not be shared between threads.
+ *
+ * @author olafd
+ */
+public class DiagonalCovariance implements Covariance {
+
+    private final double[] variances;
+
+    /**
+     * @param variances - the diagonal elements (copied)
+     */
+    public DiagonalCovariance(double[] variances) {
+        this.variances = variances.clone();
+    }
+
+    /**
+     * @param matrix - a diagonal n x n matrix
+     * @throws IllegalArgumentException if the matrix is not square or has non-zero off-diagonal elements
+     */
+    public DiagonalCovariance(double[][] matrix) {
+        variances = new double[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            if (matrix[i].length != matrix.length) {
+                throw new IllegalArgumentException("Covariance matrix must be square.");
+            }
+            for (int j = 0; j < matrix.length; j++) {
+                if (i != j && matrix[i][j] != 0.0) {
+                    throw new IllegalArgumentException("Covariance matrix is not diagonal: element (" + i + ", " +
+                                                               j + ") is " + matrix[i][j] + ".");
+                }
+            }
+            variances[i] = matrix[i][i];
+        }
+    }
+
+    /**
+     * @param i        - the index
+     * @param variance - the new diagonal element (i, i)
+     */
+    public void setVariance(int i, double variance) {
+        variances[i] = variance;
+    }
+
+    /**
+     * Sets all variances from another diagonal covariance of the same dimension.
+     *
+     * @param other - the other covariance
+     */
+    public void set(DiagonalCovariance other) {
+        if (other.variances.length != variances.length) {
+            throw new IllegalArgumentException("Covariance dimension must be " + variances.length + ", but is " +
+                                                       other.variances.length + ".");
+        }
+        System.arraycopy(other.variances, 0, variances, 0, variances.length);
+    }
+
+    @Override
+    public int getDimension() {
+        return variances.length;
+    }
+
+    @Override
+    public boolean isDiagonal() {
+        return true;
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return variances[i];
+    }
+
+    @Override
+    public double[][] getMatrix() {
+        final double[][] matrix = new double[variances.length][variances.length];
+        for (int i = 0; i < variances.length; i++) {
+            matrix[i][i] = variances[i];
+        }
+        return matrix;
+    }
+
+    @Override
+    public void copyInverse(double[][] dest) {
+        for (int i = 0; i < variances.length; i++) {
+            for (int j = 0; j < variances.length; j++) {
+                dest[i][j] = 0.0;
+            }
+            dest[i][i] = 1.0 / variances[i];
+        }
+    }
+}
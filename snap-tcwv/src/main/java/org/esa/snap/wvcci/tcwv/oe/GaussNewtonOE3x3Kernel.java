@@ -0,0 +1,377 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * Allocation-free Gauss-Newton Optimal Estimation kernel for the fixed state dimension nx=3
+ * (TCWV retrieval: wvc, al0/aot, al1/wsp).
+ * Same maths as {@link GaussNewtonOEOperator}, {@link GaussNewtonOEErrorCovariance} and
+ * {@link GaussNewtonOEDiagnose}, but with closed-form 3x3 inversion, Cholesky inversion of the
+ * measurement error covariance and preallocated workspace arrays instead of JAMA matrices. For a diagonal
+ * measurement error covariance (see {@link Covariance}), K^T Se^-1 and the cost are computed without
+ * the off-diagonal zeros.
+ * <p>
+ * Instances are NOT thread safe. Use one instance per thread (see {@link #get()}).
+ *
+ * @author olafd
+ */
+public class GaussNewtonOE3x3Kernel {
+
+    static final int NX = 3;
+
+    private static final ThreadLocal<GaussNewtonOE3x3Kernel> KERNEL =
+            ThreadLocal.withInitial(GaussNewtonOE3x3Kernel::new);
+
+    private int ny;
+
+    private double[][] sei;                                 // ny x ny: inverse of measurement error covariance
+    private double[] seiDiagonal;                           // ny: diagonal of sei, if seDiagonal
+    private boolean seDiagonal;                             // true if measurement error covariance is diagonal
+    private double[][] cholesky;                            // ny x ny: workspace for Cholesky inversion
+    private double[][] kkTSei;                              // 3 x ny: K^T Se^-1
+    private final double[][] sai = new double[NX][NX];      // inverse of prior error covariance
+    private final double[][] retErrCovI = new double[NX][NX];  // Sa^-1 + K^T Se^-1 K
+    private final double[][] retErrCov = new double[NX][NX];   // (Sa^-1 + K^T Se^-1 K)^-1
+    private final double[] incrX = new double[NX];
+    private final double[] rhs = new double[NX];
+
+    GaussNewtonOE3x3Kernel() {
+        ensureMeasurementDimension(NX);
+    }
+
+    /**
+     * Provides the kernel instance of the current thread.
+     *
+     * @return the kernel
+     */
+    public static GaussNewtonOE3x3Kernel get() {
+        return KERNEL.get();
+    }
+
+    /**
+     * Sets the measurement error covariance and computes its inverse (Cholesky).
+     *
+     * @param se - measurement error covariance (ny x ny, symmetric positive definite)
+     */
+    void setMeasurementErrorCovariance(double[][] se) {
+        ensureMeasurementDimension(se.length);
+        invertSymmetricPositiveDefinite(se, sei, cholesky, ny);
+        seDiagonal = false;
+    }
+
+    /**
+     * Sets the measurement error covariance and computes its inverse: elementwise for a diagonal covariance, which
+     * also lets the products with the inverse skip the off-diagonal zeros, otherwise as given by the covariance.
+     *
+     * @param se - measurement error covariance (ny x ny)
+     */
+    void setMeasurementErrorCovariance(Covariance se) {
+        ensureMeasurementDimension(se.getDimension());
+        seDiagonal = se.isDiagonal();
+        if (seDiagonal) {
+            for (int i = 0; i < ny; i++) {
+                for (int j = 0; j < ny; j++) {
+                    sei[i][j] = 0.0;
+                }
+                seiDiagonal[i] = 1.0 / se.getVariance(i);
+                sei[i][i] = seiDiagonal[i];
+            }
+        } else {
+            se.copyInverse(sei);
+        }
+    }
+
+    /**
+     * Sets the prior error covariance and computes its inverse (closed form).
+     *
+     * @param sa - prior error covariance (3x3)
+     */
+    void setPriorErrorCovariance(double[][] sa) {
+        if (sa.length != NX) {
+            throw new IllegalArgumentException("Prior error covariance must be " + NX + "x" + NX + ".");
+        }
+        invert3x3(sa, sai);
+    }
+
+    /**
+     * Sets the prior error covariance and its inverse as given by the covariance (e.g. precomputed).
+     *
+     * @param sa - prior error covariance (3x3)
+     */
+    void setPriorErrorCovariance(Covariance sa) {
+        if (sa.getDimension() != NX) {
+            throw new IllegalArgumentException("Prior error covariance must be " + NX + "x" + NX + ".");
+        }
+        sa.copyInverse(sai);
+    }
+
+    /**
+     * Performs one Gauss-Newton OE step. Java version of
+     * optimal_estimation_core_pure_python --> optimal_estimation_gauss_newton_operator (without clipping).
+     *
+     * @param x    - state vector
+     * @param y    - fnc(x)
+     * @param kk   - Jacobian (ny x 3)
+     * @param xa   - prior
+     * @param xOut - new state vector (may be same array as x)
+     */
+    void step(double[] x, double[] y, double[][] kk, double[] xa, double[] xOut) {
+        computeKkTSei(kk);
+        computeRetErrCovI(kk);
+        invert3x3(retErrCovI, retErrCov);
+
+        for (int i = 0; i < NX; i++) {
+            double kTSeiY = 0.0;
+            for (int k = 0; k < ny; k++) {
+                kTSeiY += kkTSei[i][k] * y[k];
+            }
+            double saiDx = 0.0;
+            for (int j = 0; j < NX; j++) {
+                saiDx += sai[i][j] * (xa[j] - x[j]);
+            }
+            rhs[i] = kTSeiY - saiDx;
+        }
+        for (int i = 0; i < NX; i++) {
+            incrX[i] = retErrCov[i][0] * rhs[0] + retErrCov[i][1] * rhs[1] + retErrCov[i][2] * rhs[2];
+        }
+        for (int i = 0; i < NX; i++) {
+            xOut[i] = x[i] - incrX[i];
+        }
+    }
+
+    /**
+     * @return incrX^T (Sa^-1 + K^T Se^-1 K) incrX of the last step (convergence criterion)
+     */
+    double normErrorWeighted() {
+        return quadraticForm3x3(retErrCovI, incrX);
+    }
+
+    /**
+     * Copies the retrieval error covariance (Sa^-1 + K^T Se^-1 K)^-1 of the last step.
+     *
+     * @param dest - 3x3 destination
+     */
+    void copyRetErrCov(double[][] dest) {
+        copy3x3(retErrCov, dest);
+    }
+
+    /**
+     * Computes Sa^-1 + K^T Se^-1 K for the given Jacobian, as {@link GaussNewtonOEErrorCovariance}.
+     *
+     * @param kk   - Jacobian (ny x 3)
+     * @param dest - 3x3 destination
+     */
+    void computeErrorCovariance(double[][] kk, double[][] dest) {
+        computeKkTSei(kk);
+        computeRetErrCovI(kk);
+        copy3x3(retErrCovI, dest);
+    }
+
+    /**
+     * Computes the OE cost (xa - xn)^T Sa^-1 (xa - xn) + yn^T Se^-1 yn, as {@link GaussNewtonOEDiagnose}.
+     *
+     * @param xn - state vector
+     * @param yn - fnc(xn)
+     * @param xa - prior
+     * @return the cost
+     */
+    double cost(double[] xn, double[] yn, double[] xa) {
+        for (int i = 0; i < NX; i++) {
+            rhs[i] = xa[i] - xn[i];
+        }
+        double sum2 = 0.0;
+        if (seDiagonal) {
+            for (int i = 0; i < ny; i++) {
+                sum2 += yn[i] * seiDiagonal[i] * yn[i];
+            }
+        } else {
+            for (int i = 0; i < ny; i++) {
+                double seiYn = 0.0;
+                for (int j = 0; j < ny; j++) {
+                    seiYn += sei[i][j] * yn[j];
+                }
+                sum2 += yn[i] * seiYn;
+            }
+        }
+        return quadraticForm3x3(sai, rhs) + sum2;
+    }
+
+    /**
+     * Computes gain = Sr K^T Se^-1 and averaging kernel = gain K, as {@link GaussNewtonOEDiagnose}.
+     *
+     * @param kk       - Jacobian (ny x 3)
+     * @param sr       - retrieval error covariance (3x3)
+     * @param gainOut  - 3 x ny destination
+     * @param averOut  - 3 x 3 destination
+     */
+    void gainAndAveragingKernel(double[][] kk, double[][] sr, double[][] gainOut, double[][] averOut) {
+        computeKkTSei(kk);
+        for (int i = 0; i < NX; i++) {
+            for (int k = 0; k < ny; k++) {
+                gainOut[i][k] = sr[i][0] * kkTSei[0][k] + sr[i][1] * kkTSei[1][k] + sr[i][2] * kkTSei[2][k];
+            }
+        }
+        for (int i = 0; i < NX; i++) {
+            for (int j = 0; j < NX; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < ny; k++) {
+                    sum += gainOut[i][k] * kk[k][j];
+                }
+                averOut[i][j] = sum;
+            }
+        }
+    }
+
+    int getMeasurementDimension() {
+        return ny;
+    }
+
+    double[][] getSei() {
+        return sei;
+    }
+
+    double[][] getSai() {
+        return sai;
+    }
+
+    private void computeKkTSei(double[][] kk) {
+        if (seDiagonal) {
+            for (int i = 0; i < NX; i++) {
+                for (int k = 0; k < ny; k++) {
+                    kkTSei[i][k] = kk[k][i] * seiDiagonal[k];
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < NX; i++) {
+            for (int k = 0; k < ny; k++) {
+                double sum = 0.0;
+                for (int l = 0; l < ny; l++) {
+                    sum += kk[l][i] * sei[l][k];
+                }
+                kkTSei[i][k] = sum;
+            }
+        }
+    }
+
+    private void computeRetErrCovI(double[][] kk) {
+        for (int i = 0; i < NX; i++) {
+            for (int j = 0; j < NX; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < ny; k++) {
+                    sum += kkTSei[i][k] * kk[k][j];
+                }
+                retErrCovI[i][j] = sai[i][j] + sum;
+            }
+        }
+    }
+
+    private void ensureMeasurementDimension(int ny) {
+        if (sei == null || sei.length < ny) {
+            sei = new double[ny][ny];
+            seiDiagonal = new double[ny];
+            cholesky = new double[ny][ny];
+            kkTSei = new double[NX][ny];
+        }
+        this.ny = ny;
+    }
+
+    static double quadraticForm3x3(double[][] m, double[] v) {
+        double sum = 0.0;
+        for (int i = 0; i < NX; i++) {
+            sum += v[i] * (m[i][0] * v[0] + m[i][1] * v[1] + m[i][2] * v[2]);
+        }
+        return sum;
+    }
+
+    static void copy3x3(double[][] src, double[][] dest) {
+        for (int i = 0; i < NX; i++) {
+            System.arraycopy(src[i], 0, dest[i], 0, NX);
+        }
+    }
+
+    /**
+     * Closed-form (adjugate) inversion of a 3x3 matrix.
+     *
+     * @param m    - the matrix
+     * @param dest - the inverse (must not be same array as m)
+     */
+    static void invert3x3(double[][] m, double[][] dest) {
+        final double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+        final double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+        final double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+        final double det = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+        if (det == 0.0) {
+            // as JAMA LU: only exact singularity is an error, NaN is propagated
+            throw new IllegalStateException("Matrix is singular.");
+        }
+        final double invDet = 1.0 / det;
+        dest[0][0] = c00 * invDet;
+        dest[1][0] = c01 * invDet;
+        dest[2][0] = c02 * invDet;
+        dest[0][1] = (m[0][2] * m[2][1] - m[0][1] * m[2][2]) * invDet;
+        dest[1][1] = (m[0][0] * m[2][2] - m[0][2] * m[2][0]) * invDet;
+        dest[2][1] = (m[0][1] * m[2][0] - m[0][0] * m[2][1]) * invDet;
+        dest[0][2] = (m[0][1] * m[1][2] - m[0][2] * m[1][1]) * invDet;
+        dest[1][2] = (m[0][2] * m[1][0] - m[0][0] * m[1][2]) * invDet;
+        dest[2][2] = (m[0][0] * m[1][1] - m[0][1] * m[1][0]) * invDet;
+    }
+
+    /**
+     * Inverts a symmetric positive definite n x n matrix via Cholesky decomposition, A^-1 = L^-T L^-1.
+     *
+     * @param a    - the matrix
+     * @param dest - the inverse (at least n x n, must not be same array as a)
+     * @param work - workspace (at least n x n)
+     * @param n    - the dimension
+     */
+    static void invertSymmetricPositiveDefinite(double[][] a, double[][] dest, double[][] work, int n) {
+        // Cholesky: A = L L^T, L stored in lower triangle of work
+        for (int j = 0; j < n; j++) {
+            double d = a[j][j];
+            for (int k = 0; k < j; k++) {
+                d -= work[j][k] * work[j][k];
+            }
+            if (!(d > 0.0)) {
+                throw new IllegalStateException("Matrix is not symmetric positive definite.");
+            }
+            final double ljj = Math.sqrt(d);
+            work[j][j] = ljj;
+            for (int i = j + 1; i < n; i++) {
+                double s = a[i][j];
+                for (int k = 0; k < j; k++) {
+                    s -= work[i][k] * work[j][k];
+                }
+                work[i][j] = s / ljj;
+            }
+        }
+        // L^-1, stored in upper triangle of work (transposed) to keep L intact on the diagonal
+        for (int j = 0; j < n; j++) {
+            work[j][j] = 1.0 / work[j][j];
+            for (int i = j + 1; i < n; i++) {
+                double s = 0.0;
+                for (int k = j; k < i; k++) {
+                    s -= work[i][k] * (k == j ? work[j][j] : work[j][k]);
+                }
+                work[j][i] = s / work[i][i];
+            }
+        }
+        // A^-1 = L^-T L^-1
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double s = 0.0;
+                for (int k = i; k < n; k++) {
+                    s += linv(work, k, i) * linv(work, k, j);
+                }
+                dest[i][j] = s;
+                dest[j][i] = s;
+            }
+        }
+    }
+
+    // element (row, col) of L^-1, which is stored transposed in the upper triangle (diagonal on the diagonal)
+    private static double linv(double[][] work, int row, int col) {
+        if (col > row) {
+            return 0.0;
+        }
+        return row == col ? work[row][row] : work[col][row];
+    }
+}
@@ -8,7 +8,10 @@ package org.esa.snap.wvcci.tcwv.oe;
 public enum InversionMethod {
      NEWTON("NEWTON"),
      NEWTON_SE("NEWTON_SE"),
-     OE("OE");
+     OE("OE"),
+     OE_3X3("OE_3X3"),      // same as OE, but allocation-free fixed-size kernel for state dimension 3
+     OE_BROYDEN("OE_BROYDEN"),          // same as OE, but with Broyden updates of the Jacobian (see BroydenJacobian)
+     OE_3X3_BROYDEN("OE_3X3_BROYDEN");  // same as OE_3X3, but with Broyden updates of the Jacobian
 
     private final String name;
 
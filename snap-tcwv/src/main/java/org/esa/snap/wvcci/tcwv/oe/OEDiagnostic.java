@@ -0,0 +1,26 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+/**
+ * Enumeration for the OE diagnostics which can be requested individually, as alternative to the
+ * {@link OEOutputMode}s (see {@link OptimalEstimation#invert(InversionMethod, double[], double[][], double[][],
+ * double[], double[], java.util.Set)}).
+ *
+ * @author olafd
+ */
+public enum OEDiagnostic {
+    COST("cost"),                               // OE cost of the solution
+    UNCERTAINTY("uncertainty"),                 // retrieval error covariance Sr
+    GAIN("gain"),                               // gain matrix Sr K^T Se^-1
+    AVERAGING_KERNEL("averaging_kernel"),       // averaging kernel gain K
+    DOF("dof");                                 // degrees of freedom for signal, i.e. trace of averaging kernel
+
+    private final String name;
+
+    OEDiagnostic(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -6,6 +6,8 @@ import org.esa.snap.wvcci.tcwv.interpolation.ClippedDifferenceFunction;
 import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
 import org.esa.snap.wvcci.tcwv.interpolation.NumericalJacobiFunction;
 
+import java.util.Set;
+
 /**
  * Class providing the Optimal Estimation algorithm, i.e. the inversion.
  *
@@ -15,12 +17,25 @@ public class OptimalEstimation {
 
     private static final double EPSY = 0.001;   // default eps criteria to stop OE, see ini files in Python
     private static final int MAXITER = 6;   // maximum number of iterations, see ini files in Python
+    private static final double DELTA = 0.001;   // step of the numerical Jacobian
+
+    // the strategy objects are stateless, so they are shared by all instances:
+    private static final OEOperator GAUSS_NEWTON_OPERATOR = new GaussNewtonOperator();
+    private static final ErrorCovariance GAUSS_NEWTON_ERROR_COVARIANCE = new GaussNewtonErrorCovariance();
+    private static final Diagnose GAUSS_NEWTON_DIAGNOSE = new GaussNewtonDiagnose();
+    private static final OEOperator GAUSS_NEWTON_SE_OPERATOR = new GaussNewtonWithSEOperator();
+    private static final ErrorCovariance GAUSS_NEWTON_SE_ERROR_COVARIANCE = new GaussNewtonWithSEErrorCovariance();
+    private static final Diagnose GAUSS_NEWTON_SE_DIAGNOSE = new GaussNewtonWithSEDiagnose();
+    private static final OEOperator GAUSS_NEWTON_OE_OPERATOR = new GaussNewtonOEOperator();
+    private static final ErrorCovariance GAUSS_NEWTON_OE_ERROR_COVARIANCE = new GaussNewtonOEErrorCovariance();
+    private static final Diagnose GAUSS_NEWTON_OE_DIAGNOSE = new GaussNewtonOEDiagnose();
 
     private ClippedDifferenceFunction clippedDiffFunc;
     private JacobiFunction jfunc;
     private double[] a;
     private double[] b;
     private double[] params;
+    private final Workspace3x3 workspace;     // null if not reusable
 
     /**
      * @param func   - 'forward function' from 'state vector' to 'measurements' (e.g. as in lut2func.py)
@@ -33,18 +48,84 @@ public class OptimalEstimation {
     public OptimalEstimation(TcwvFunction func,
                              double[] a, double[] b, double[] yy, double[] params,
                              JacobiFunction jfunc) {
+        workspace = null;
+        rearm(func, a, b, yy, params, jfunc);
+    }
+
+    private OptimalEstimation(int ny) {
+        workspace = new Workspace3x3(ny);
+    }
+
+    /**
+     * Creates an instance which is re-armed per inversion (e.g. per pixel) with {@link #rearm}, instead of
+     * constructing a new instance. For {@link InversionMethod#OE_3X3} and {@link InversionMethod#OE_3X3_BROYDEN}
+     * with selectable diagnostics, all scratch buffers and the result objects are reused, so that the inversion
+     * needs no allocations at all once the LUT slices are set up (except for the GAIN, AVERAGING_KERNEL and DOF
+     * diagnostics, which are provided as JAMA matrices). Therefore, a result of such an inversion (including its
+     * arrays) is valid only until the next inversion with this instance.
+     * <p>
+     * Not thread safe: use one instance per thread and measurement dimension.
+     *
+     * @param ny - the measurement dimension
+     * @return the instance, to be armed with {@link #rearm} before the first inversion
+     */
+    public static OptimalEstimation createReusable(int ny) {
+        if (ny < 1) {
+            throw new IllegalArgumentException("Measurement dimension must be positive, but is " + ny + ".");
+        }
+        return new OptimalEstimation(ny);
+    }
+
+    /**
+     * Re-arms the instance with a new forward problem (e.g. the next pixel), see {@link #createReusable(int)}.
+     * The arrays are referenced, not copied, so they must not change during an inversion.
+     *
+     * @param func   - 'forward function' from 'state vector' to 'measurements' (e.g. as in lut2func.py)
+     * @param a      - lower bound of state
+     * @param b      - upper bound of state
+     * @param yy     - measurements vector
+     * @param params - optional input parameters for func
+     * @param jfunc  - corresponding 'Jacobi function' (see LutJacobiFunction), or null for the numerical Jacobian
+     */
+    public void rearm(TcwvFunction func,
+                      double[] a, double[] b, double[] yy, double[] params,
+                      JacobiFunction jfunc) {
+        if (workspace != null && yy.length != workspace.yn.length) {
+            throw new IllegalArgumentException("Measurement dimension must be " + workspace.yn.length +
+                                                       ", but is " + yy.length + ".");
+        }
         this.a = a;
         this.b = b;
         this.params = params;
         this.jfunc = jfunc;
 
-        clippedDiffFunc = new ClippedDifferenceFunction(a, b, func, yy);
+        if (clippedDiffFunc == null) {
+            clippedDiffFunc = new ClippedDifferenceFunction(a, b, func, yy);
+        } else {
+            clippedDiffFunc.set(a, b, func, yy);
+        }
         if (jfunc == null) {
-            double DELTA = 0.001;
             this.jfunc = new NumericalJacobiFunction(a, b, clippedDiffFunc, yy, DELTA);
         }
     }
 
+    /**
+     * Releases the forward and Jacobi functions of the last {@link #rearm}, e.g. after the inversion of a pixel.
+     * A reusable instance is kept by a long-living worker thread, and must not keep the LUTs behind these
+     * functions alive after their operator has been disposed. The instance must be re-armed before the next
+     * inversion.
+     */
+    public void disarm() {
+        jfunc = null;
+        params = null;
+        if (clippedDiffFunc != null) {
+            clippedDiffFunc.set(a, b, null, null);
+        }
+        if (workspace != null && workspace.broyden != null) {
+            workspace.broyden.reset(null, null, a, b);
+        }
+    }
+
 
     /**
      * Provides the inverse of a function.
@@ -63,7 +144,124 @@ public class OptimalEstimation {
                                           double[] xa,
                                           OEOutputMode outputMode) {
 
-        return invert(method, y, se, sa, xa, outputMode, MAXITER);
+        return invert(method, y, se, sa, xa, null, outputMode, MAXITER);
+    }
+
+    /**
+     * Provides the inverse of a function, starting the iteration from a given first guess instead of the prior
+     * (warm start, e.g. from the solution of a neighbouring pixel). The prior is still used as constraint.
+     *
+     * @param method     - inversion method
+     * @param se         - measurement error covariance
+     * @param sa         - prior error covariance
+     * @param xa         - prior knowledge
+     * @param firstGuess - first guess of the state (clipped to the state bounds), or null to start from the prior
+     * @param outputMode - output mode
+     * @return - double[] the inverse function
+     */
+    public OptimalEstimationResult invert(InversionMethod method,
+                                          double[] y,
+                                          double[][] se,
+                                          double[][] sa,
+                                          double[] xa,
+                                          double[] firstGuess,
+                                          OEOutputMode outputMode) {
+
+        return invert(method, y, se, sa, xa, firstGuess, outputMode, MAXITER);
+    }
+
+    /**
+     * Provides the inverse of a function with the requested diagnostics only. Instead of evaluating the function
+     * and the Jacobian again at the solution (as {@link OEOutputMode#FULL} does), the diagnostics are computed
+     * from the Jacobian of the last iteration, and the cost from the residual of the last iteration propagated
+     * linearly to the solution. The differences to {@link OEOutputMode#FULL} are of second order in the last
+     * increment, i.e. within the OE convergence limit. Only for the OE methods, not for NEWTON or NEWTON_SE.
+     *
+     * @param method      - inversion method
+     * @param se          - measurement error covariance
+     * @param sa          - prior error covariance
+     * @param xa          - prior knowledge
+     * @param firstGuess  - first guess of the state (clipped to the state bounds), or null to start from the prior
+     * @param diagnostics - the requested diagnostics. The result provides the retrieval error covariance only if
+     *                    {@link OEDiagnostic#UNCERTAINTY} is requested, and a {@link DiagnoseResult} with the other
+     *                    requested values (NaN or null for the others) if any other diagnostic is requested.
+     * @return - double[] the inverse function
+     */
+    public OptimalEstimationResult invert(InversionMethod method,
+                                          double[] y,
+                                          double[][] se,
+                                          double[][] sa,
+                                          double[] xa,
+                                          double[] firstGuess,
+                                          Set<OEDiagnostic> diagnostics) {
+
+        return invert(method, y, se, sa, xa, firstGuess, diagnostics, MAXITER);
+    }
+
+    OptimalEstimationResult invert(InversionMethod method,
+                                   double[] y,
+                                   double[][] se,
+                                   double[][] sa,
+                                   double[] xa,
+                                   double[] firstGuess,
+                                   Set<OEDiagnostic> diagnostics, int maxiter) {
+
+        if (method == InversionMethod.NEWTON || method == InversionMethod.NEWTON_SE) {
+            throw new IllegalArgumentException("Method '" + method.getName() +
+                                                       "' does not support selectable diagnostics.");
+        }
+        return invert(method, y, se, sa, xa, firstGuess, null, diagnostics, maxiter);
+    }
+
+    /**
+     * Same as {@link #invert(InversionMethod, double[], double[][], double[][], double[], double[], Set)}, but with
+     * structured covariances, so that their inverses are computed in the cheapest way (e.g. elementwise for a
+     * diagonal measurement error covariance, or once for a constant prior error covariance).
+     *
+     * @param method      - inversion method
+     * @param se          - measurement error covariance
+     * @param sa          - prior error covariance
+     * @param xa          - prior knowledge
+     * @param firstGuess  - first guess of the state (clipped to the state bounds), or null to start from the prior
+     * @param diagnostics - the requested diagnostics
+     * @return - double[] the inverse function
+     */
+    public OptimalEstimationResult invert(InversionMethod method,
+                                          double[] y,
+                                          Covariance se,
+                                          Covariance sa,
+                                          double[] xa,
+                                          double[] firstGuess,
+                                          Set<OEDiagnostic> diagnostics) {
+
+        return invert(method, y, se, sa, xa, firstGuess, diagnostics, MAXITER);
+    }
+
+    OptimalEstimationResult invert(InversionMethod method,
+                                   double[] y,
+                                   Covariance se,
+                                   Covariance sa,
+                                   double[] xa,
+                                   double[] firstGuess,
+                                   Set<OEDiagnostic> diagnostics, int maxiter) {
+
+        if (method == InversionMethod.OE_3X3 || method == InversionMethod.OE_3X3_BROYDEN) {
+            final boolean useBroyden = method == InversionMethod.OE_3X3_BROYDEN;
+            checkStateDimension3x3(useBroyden);
+            final GaussNewtonOE3x3Kernel kernel = GaussNewtonOE3x3Kernel.get();
+            kernel.setMeasurementErrorCovariance(se);
+            kernel.setPriorErrorCovariance(sa);
+            return optimize3x3(kernel, xa, firstGuess, useBroyden, null, diagnostics, maxiter);
+        } else if (method == InversionMethod.OE || method == InversionMethod.OE_BROYDEN) {
+            final double[][] sei = new double[se.getDimension()][se.getDimension()];
+            se.copyInverse(sei);
+            final double[][] sai = new double[sa.getDimension()][sa.getDimension()];
+            sa.copyInverse(sai);
+            return optimize(xa, firstGuess, sei, sai, method, null, diagnostics, maxiter);
+        } else {
+            throw new IllegalArgumentException("Method '" + method.getName() +
+                                                       "' does not support structured covariances.");
+        }
     }
 
     /**
@@ -84,6 +282,39 @@ public class OptimalEstimation {
                                           double[] xa,
                                           OEOutputMode outputMode, int maxiter) {
 
+        return invert(method, y, se, sa, xa, null, outputMode, maxiter);
+    }
+
+    OptimalEstimationResult invert(InversionMethod method,
+                                   double[] y,
+                                   double[][] se,
+                                   double[][] sa,
+                                   double[] xa,
+                                   double[] firstGuess,
+                                   OEOutputMode outputMode, int maxiter) {
+
+        return invert(method, y, se, sa, xa, firstGuess, outputMode, null, maxiter);
+    }
+
+    // exactly one of outputMode and diagnostics is not null
+    private OptimalEstimationResult invert(InversionMethod method,
+                                           double[] y,
+                                           double[][] se,
+                                           double[][] sa,
+                                           double[] xa,
+                                           double[] firstGuess,
+                                           OEOutputMode outputMode, Set<OEDiagnostic> diagnostics,
+                                           int maxiter) {
+
+        if (method == InversionMethod.OE_3X3 || method == InversionMethod.OE_3X3_BROYDEN) {
+            final boolean useBroyden = method == InversionMethod.OE_3X3_BROYDEN;
+            checkStateDimension3x3(useBroyden);
+            final GaussNewtonOE3x3Kernel kernel = GaussNewtonOE3x3Kernel.get();
+            kernel.setMeasurementErrorCovariance(se);
+            kernel.setPriorErrorCovariance(sa);
+            return optimize3x3(kernel, xa, firstGuess, useBroyden, outputMode, diagnostics, maxiter);
+        }
+
         double[][] sei;
         double[][] sai;
         if (method == InversionMethod.NEWTON) {
@@ -97,24 +328,27 @@ public class OptimalEstimation {
             sei = new Matrix(se).inverse().getArray();
         }
 
-        return optimize(xa, sei, sai, method, outputMode, maxiter);
+        return optimize(xa, firstGuess, sei, sai, method, outputMode, diagnostics, maxiter);
     }
 
     /**
      * Java version of RPs optimal_estimation_py3 --> my_optimizer
      *
      * @param xa - prior state
+     * @param firstGuess - first guess of the state, or null to start from the prior
      * @param sei - inverse of measurement error covariance matrix
      * @param sai - inverse of prior error covariance matrix
      * @param method - inversion method
-     * @param outputMode - output mode
+     * @param outputMode - output mode, or null if diagnostics are given
+     * @param diagnostics - requested diagnostics, or null if output mode is given
      *
      * @return OptimalEstimationResult
      */
-    private OptimalEstimationResult optimize(double[] xa,
+    private OptimalEstimationResult optimize(double[] xa, double[] firstGuess,
                                              double[][] sei, double[][] sai,
                                              InversionMethod method,
                                              OEOutputMode outputMode,
+                                             Set<OEDiagnostic> diagnostics,
                                              int maxiter) {
 
         double[] firstGuessVector = new double[a.length];
@@ -128,21 +362,22 @@ public class OptimalEstimation {
         switch (method) {
             case NEWTON:
                 // Gauss Newton Step
-                operator = new GaussNewtonOperator();
-                retErrCov = new GaussNewtonErrorCovariance();
-                diagnose = new GaussNewtonDiagnose();
+                operator = GAUSS_NEWTON_OPERATOR;
+                retErrCov = GAUSS_NEWTON_ERROR_COVARIANCE;
+                diagnose = GAUSS_NEWTON_DIAGNOSE;
                 break;
             case NEWTON_SE:
                 // Gauss Newton with measurement error
-                operator = new GaussNewtonWithSEOperator();
-                retErrCov = new GaussNewtonWithSEErrorCovariance();
-                diagnose = new GaussNewtonWithSEDiagnose();
+                operator = GAUSS_NEWTON_SE_OPERATOR;
+                retErrCov = GAUSS_NEWTON_SE_ERROR_COVARIANCE;
+                diagnose = GAUSS_NEWTON_SE_DIAGNOSE;
                 break;
             case OE:
+            case OE_BROYDEN:
                  // Gauss newton Optimal Estimation
-                operator = new GaussNewtonOEOperator();
-                retErrCov = new GaussNewtonOEErrorCovariance();
-                diagnose = new GaussNewtonOEDiagnose();
+                operator = GAUSS_NEWTON_OE_OPERATOR;
+                retErrCov = GAUSS_NEWTON_OE_ERROR_COVARIANCE;
+                diagnose = GAUSS_NEWTON_OE_DIAGNOSE;
                 break;
             default:
                 throw new IllegalArgumentException("Method '" + method.getName() + "' not supported.");
@@ -167,19 +402,31 @@ public class OptimalEstimation {
             xn = firstGuessVector;
         }
         xn = xa; // test!!
+        if (firstGuess != null) {
+            // warm start
+            xn = OptimalEstimationUtils.clip1D(a, b, firstGuess);
+        }
 
         // Do the iteration
         int ii = 0;
-        double[] yn;
-        double[][] kk;
+        double[] yn = null;
+        double[][] kk = null;
+        double[] xPrev = null;
         OeOperatorResult result = null;
         boolean convergence = false;
+        final BroydenJacobian broyden = method == InversionMethod.OE_BROYDEN ?
+                new BroydenJacobian(jfunc, params, a, b, sei.length) : null;
         while (ii <= maxiter) {
             ii++;
             yn = clippedDiffFunc.f(xn, params);
-            kk = jfunc.f(xn, params);
+            if (broyden != null) {
+                kk = broyden.f(xn, yn, OptimalEstimationUtils.cost(xn, yn, xa, sei, sai));
+            } else {
+                kk = jfunc.f(xn, params);
+            }
 
             result = operator.result(a, b, xn, yn, kk, sei, sai, xa);
+            xPrev = xn;
             xn = result.getCnx();
             if (method == InversionMethod.NEWTON) {
                 if (OptimalEstimationUtils.norm(yn) < EPSY) {
@@ -197,8 +444,17 @@ public class OptimalEstimation {
             }
         }
 
+        if (diagnostics != null) {
+            return getSelectedDiagnosticsResult(xn, xPrev, yn, kk, convergence, ii, xa, sei, sai,
+                                                result != null ? result.getRetErrCov() : null, null, diagnostics);
+        }
+
         yn = clippedDiffFunc.f(xn, params);
-        kk = jfunc.f(xn, params);
+        if (broyden != null) {
+            kk = broyden.f(xn, yn, OptimalEstimationUtils.cost(xn, yn, xa, sei, sai));
+        } else {
+            kk = jfunc.f(xn, params);
+        }
         double[][] sr;
         DiagnoseResult diagnoseResult;
 
@@ -222,4 +478,258 @@ public class OptimalEstimation {
         }
     }
 
+    /**
+     * Same as {@link #optimize} with {@link InversionMethod#OE}, but for state dimension 3 only, using the
+     * allocation-free {@link GaussNewtonOE3x3Kernel} of the current thread instead of JAMA matrices.
+     * For a reusable instance, the iteration runs on the buffers of the workspace.
+     *
+     * @param kernel - the kernel of the current thread, with measurement and prior error covariance set
+     * @param xa - prior state
+     * @param firstGuess - first guess of the state, or null to start from the prior
+     * @param useBroyden - if true, Broyden updates of the Jacobian are used as in {@link InversionMethod#OE_BROYDEN}
+     * @param outputMode - output mode, or null if diagnostics are given
+     * @param diagnostics - requested diagnostics, or null if output mode is given
+     * @param maxiter - maximum number of iterations
+     *
+     * @return OptimalEstimationResult
+     */
+    private OptimalEstimationResult optimize3x3(GaussNewtonOE3x3Kernel kernel, double[] xa, double[] firstGuess,
+                                                boolean useBroyden, OEOutputMode outputMode,
+                                                Set<OEDiagnostic> diagnostics, int maxiter) {
+
+        final Workspace3x3 ws = workspace;
+        if (ws != null && kernel.getMeasurementDimension() != ws.yn.length) {
+            throw new IllegalArgumentException("Measurement error covariance dimension must be " + ws.yn.length +
+                                                       ", but is " + kernel.getMeasurementDimension() + ".");
+        }
+
+        // prior as first guess, as in optimize, unless warm started
+        double[] xn = ws != null ? ws.xn : new double[GaussNewtonOE3x3Kernel.NX];
+        if (firstGuess != null) {
+            for (int i = 0; i < xn.length; i++) {
+                xn[i] = Math.min(Math.max(firstGuess[i], a[i]), b[i]);
+            }
+        } else {
+            System.arraycopy(xa, 0, xn, 0, xn.length);
+        }
+
+        int ii = 0;
+        double[] yn = null;
+        double[][] kk = null;
+        final double[] xPrev;
+        if (ws != null) {
+            xPrev = ws.xPrev;
+        } else {
+            xPrev = diagnostics != null ? new double[GaussNewtonOE3x3Kernel.NX] : null;
+        }
+        boolean stepDone = false;
+        boolean convergence = false;
+        final BroydenJacobian broyden = useBroyden ? getBroydenJacobian(kernel.getMeasurementDimension()) : null;
+        while (ii <= maxiter) {
+            ii++;
+            if (ws != null) {
+                yn = ws.yn;
+                clippedDiffFunc.f(xn, params, yn);
+            } else {
+                yn = clippedDiffFunc.f(xn, params);
+            }
+            if (broyden != null) {
+                kk = broyden.f(xn, yn, kernel.cost(xn, yn, xa));
+            } else if (ws != null) {
+                kk = ws.kk;
+                jfunc.f(xn, params, kk);
+            } else {
+                kk = jfunc.f(xn, params);
+            }
+
+            if (xPrev != null) {
+                System.arraycopy(xn, 0, xPrev, 0, xn.length);
+            }
+            kernel.step(xn, yn, kk, xa, xn);
+            stepDone = true;
+            if (kernel.normErrorWeighted() < EPSY * GaussNewtonOE3x3Kernel.NX) {
+                convergence = true;
+                break;
+            }
+        }
+
+        if (diagnostics != null) {
+            double[][] sr = null;
+            if (stepDone) {
+                sr = ws != null ? ws.sr : new double[GaussNewtonOE3x3Kernel.NX][GaussNewtonOE3x3Kernel.NX];
+                kernel.copyRetErrCov(sr);
+            }
+            return getSelectedDiagnosticsResult(xn, stepDone ? xPrev : null, yn, kk, convergence, ii, xa,
+                                                null, null, sr, kernel, diagnostics);
+        }
+
+        yn = clippedDiffFunc.f(xn, params);
+        if (broyden != null) {
+            kk = broyden.f(xn, yn, kernel.cost(xn, yn, xa));
+        } else {
+            kk = jfunc.f(xn, params);
+        }
+        double[][] sr = new double[GaussNewtonOE3x3Kernel.NX][GaussNewtonOE3x3Kernel.NX];
+
+        switch (outputMode) {
+            case BASIC:
+                return new OptimalEstimationResult(xn, kk, convergence, ii, null, null);
+            case FULL:
+                if (stepDone) {
+                    kernel.copyRetErrCov(sr);
+                    return new OptimalEstimationResult(xn, kk, convergence, ii, sr,
+                                                       diagnose3x3(kernel, xn, yn, kk, xa, sr));
+                } else {
+                    return new OptimalEstimationResult(xn, kk, convergence, ii, null, null);
+                }
+            case EXTENDED:
+                kernel.computeErrorCovariance(kk, sr);
+                return new OptimalEstimationResult(xn, kk, convergence, ii, sr,
+                                                   diagnose3x3(kernel, xn, yn, kk, xa, sr));
+            default:
+                throw new IllegalArgumentException("Output mode '" + outputMode.getName() + "' not supported.");
+        }
+    }
+
+    private BroydenJacobian getBroydenJacobian(int ny) {
+        if (workspace == null) {
+            return new BroydenJacobian(jfunc, params, a, b, ny);
+        }
+        if (workspace.broyden == null) {
+            workspace.broyden = new BroydenJacobian(jfunc, params, a, b, ny);
+        } else {
+            workspace.broyden.reset(jfunc, params, a, b);
+        }
+        return workspace.broyden;
+    }
+
+    private void checkStateDimension3x3(boolean useBroyden) {
+        if (a.length != GaussNewtonOE3x3Kernel.NX) {
+            final InversionMethod method = useBroyden ? InversionMethod.OE_3X3_BROYDEN : InversionMethod.OE_3X3;
+            throw new IllegalArgumentException("Method '" + method.getName() +
+                                                       "' requires state dimension " + GaussNewtonOE3x3Kernel.NX + ".");
+        }
+    }
+
+    /**
+     * Provides the result with the requested diagnostics only, from the residual and the Jacobian of the
+     * last iteration.
+     *
+     * @param xn          - solution
+     * @param xPrev       - state of the last iteration, or null if no iteration was done
+     * @param yPrev       - fnc(xPrev)
+     * @param kk          - Jacobian at xPrev
+     * @param convergence - convergence flag
+     * @param ii          - number of iterations
+     * @param xa          - prior state
+     * @param sei         - inverse of measurement error covariance matrix (JAMA path), or null if kernel is given
+     * @param sai         - inverse of prior error covariance matrix (JAMA path), or null if kernel is given
+     * @param sr          - retrieval error covariance of the last iteration, or null if no iteration was done
+     * @param kernel      - the 3x3 kernel (3x3 path), or null if sei and sai are given
+     * @param diagnostics - the requested diagnostics
+     * @return OptimalEstimationResult
+     */
+    private OptimalEstimationResult getSelectedDiagnosticsResult(double[] xn, double[] xPrev, double[] yPrev,
+                                                                 double[][] kk, boolean convergence, int ii,
+                                                                 double[] xa, double[][] sei, double[][] sai,
+                                                                 double[][] sr, GaussNewtonOE3x3Kernel kernel,
+                                                                 Set<OEDiagnostic> diagnostics) {
+        if (xPrev == null || sr == null) {
+            return createResult(xn, kk, convergence, ii, null, null);
+        }
+
+        double cost = Double.NaN;
+        if (diagnostics.contains(OEDiagnostic.COST)) {
+            // residual at solution, linearised from the last iteration (the function is evaluated at clipped states)
+            final double[] yn = workspace != null ? workspace.yLinearised : new double[yPrev.length];
+            for (int i = 0; i < yn.length; i++) {
+                double kkDx = 0.0;
+                for (int j = 0; j < xn.length; j++) {
+                    kkDx += kk[i][j] * (clip(xn[j], j) - clip(xPrev[j], j));
+                }
+                yn[i] = yPrev[i] + kkDx;
+            }
+            cost = kernel != null ? kernel.cost(xn, yn, xa) : OptimalEstimationUtils.cost(xn, yn, xa, sei, sai);
+        }
+
+        Matrix gain = null;
+        Matrix aver = null;
+        double dof = Double.NaN;
+        if (diagnostics.contains(OEDiagnostic.GAIN) || diagnostics.contains(OEDiagnostic.AVERAGING_KERNEL) ||
+                diagnostics.contains(OEDiagnostic.DOF)) {
+            if (kernel != null) {
+                final double[][] gainArray = new double[GaussNewtonOE3x3Kernel.NX][kernel.getMeasurementDimension()];
+                final double[][] averArray = new double[GaussNewtonOE3x3Kernel.NX][GaussNewtonOE3x3Kernel.NX];
+                kernel.gainAndAveragingKernel(kk, sr, gainArray, averArray);
+                gain = new Matrix(gainArray);
+                aver = new Matrix(averArray);
+            } else {
+                final Matrix kkMatrix = new Matrix(kk);
+                gain = new Matrix(sr).times(kkMatrix.transpose().times(new Matrix(sei)));
+                aver = gain.times(kkMatrix);
+            }
+            dof = diagnostics.contains(OEDiagnostic.DOF) ? aver.trace() : Double.NaN;
+            if (!diagnostics.contains(OEDiagnostic.GAIN)) {
+                gain = null;
+            }
+            if (!diagnostics.contains(OEDiagnostic.AVERAGING_KERNEL)) {
+                aver = null;
+            }
+        }
+
+        DiagnoseResult diagnoseResult = null;
+        if (diagnostics.contains(OEDiagnostic.COST) || diagnostics.contains(OEDiagnostic.GAIN) ||
+                diagnostics.contains(OEDiagnostic.AVERAGING_KERNEL) || diagnostics.contains(OEDiagnostic.DOF)) {
+            if (workspace != null) {
+                diagnoseResult = workspace.diagnoseResult;
+                diagnoseResult.set(gain, aver, cost, dof);
+            } else {
+                diagnoseResult = new DiagnoseResult(gain, aver, cost, dof);
+            }
+        }
+        return createResult(xn, kk, convergence, ii, diagnostics.contains(OEDiagnostic.UNCERTAINTY) ? sr : null,
+                            diagnoseResult);
+    }
+
+    // the result object of the workspace for a reusable instance, a new one otherwise
+    private OptimalEstimationResult createResult(double[] xn, double[][] kk, boolean convergence, int ii,
+                                                 double[][] sr, DiagnoseResult diagnoseResult) {
+        if (workspace == null) {
+            return new OptimalEstimationResult(xn, kk, convergence, ii, sr, diagnoseResult);
+        }
+        workspace.result.set(xn, kk, convergence, ii, sr, diagnoseResult);
+        return workspace.result;
+    }
+
+    private double clip(double value, int index) {
+        return Math.min(Math.max(value, a[index]), b[index]);
+    }
+
+    private static DiagnoseResult diagnose3x3(GaussNewtonOE3x3Kernel kernel,
+                                              double[] xn, double[] yn, double[][] kk, double[] xa, double[][] sr) {
+        final double[][] gain = new double[GaussNewtonOE3x3Kernel.NX][kernel.getMeasurementDimension()];
+        final double[][] aver = new double[GaussNewtonOE3x3Kernel.NX][GaussNewtonOE3x3Kernel.NX];
+        kernel.gainAndAveragingKernel(kk, sr, gain, aver);
+        return new DiagnoseResult(new Matrix(gain), new Matrix(aver), kernel.cost(xn, yn, xa));
+    }
+
+    // scratch buffers and result objects of a reusable instance, for state dimension 3
+    private static class Workspace3x3 {
+        final double[] xn = new double[GaussNewtonOE3x3Kernel.NX];
+        final double[] xPrev = new double[GaussNewtonOE3x3Kernel.NX];
+        final double[][] sr = new double[GaussNewtonOE3x3Kernel.NX][GaussNewtonOE3x3Kernel.NX];
+        final double[] yn;
+        final double[] yLinearised;
+        final double[][] kk;
+        final OptimalEstimationResult result = new OptimalEstimationResult(null, null, false, 0, null, null);
+        final DiagnoseResult diagnoseResult = new DiagnoseResult(null, null, Double.NaN, Double.NaN);
+        BroydenJacobian broyden;
+
+        Workspace3x3(int ny) {
+            yn = new double[ny];
+            yLinearised = new double[ny];
+            kk = new double[ny][GaussNewtonOE3x3Kernel.NX];
+        }
+    }
+
 }
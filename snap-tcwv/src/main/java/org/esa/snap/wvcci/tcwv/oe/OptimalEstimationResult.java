@@ -17,6 +17,11 @@ public class OptimalEstimationResult {
     private DiagnoseResult diagnoseResult;
 
     OptimalEstimationResult(double[] xn, double[][] kk, boolean convergence, int ii, double[][] sr, DiagnoseResult diagnoseResult) {
+        set(xn, kk, convergence, ii, sr, diagnoseResult);
+    }
+
+    // for the reused result of a reusable OptimalEstimation
+    void set(double[] xn, double[][] kk, boolean convergence, int ii, double[][] sr, DiagnoseResult diagnoseResult) {
         this.xn = xn;
         this.kk = kk;
         this.convergence = convergence;
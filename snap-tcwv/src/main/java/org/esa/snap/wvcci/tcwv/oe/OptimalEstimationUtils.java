@@ -18,6 +18,20 @@ public class OptimalEstimationUtils {
         return clipped;
     }
 
+    /**
+     * Same as {@link #clip1D(double[], double[], double[])}, but writes the clipped vector into the given array.
+     *
+     * @param a    - lower bounds
+     * @param b    - upper bounds
+     * @param x    - the vector
+     * @param dest - the clipped vector (may be same array as x)
+     */
+    public static void clip1D(double[] a, double[] b, double[] x, double[] dest) {
+        for (int i = 0; i < x.length; i++) {
+            dest[i] = Math.min(Math.max(x[i], a[i]), b[i]);
+        }
+    }
+
     public static double[][] getNumericalJacobi(double[] a, double[] b, double[] x, TcwvFunction func,
                                                 double[] fparams, int nx, int ny, double delta) {
 
@@ -66,6 +80,31 @@ public class OptimalEstimationUtils {
         return ixMatrix.transpose().times(sriDotIxMatrix).get(0, 0);
     }
 
+    /**
+     * Computes the OE cost (xa - xn)^T Sa^-1 (xa - xn) + yn^T Se^-1 yn, as {@link GaussNewtonOEDiagnose}.
+     *
+     * @param xn  - state vector
+     * @param yn  - fnc(xn)
+     * @param xa  - prior
+     * @param sei - inverse of measurement error covariance matrix
+     * @param sai - inverse of prior error covariance matrix
+     * @return the cost
+     */
+    public static double cost(double[] xn, double[] yn, double[] xa, double[][] sei, double[][] sai) {
+        double sum = 0.0;
+        for (int i = 0; i < xn.length; i++) {
+            for (int j = 0; j < xn.length; j++) {
+                sum += (xa[i] - xn[i]) * sai[i][j] * (xa[j] - xn[j]);
+            }
+        }
+        for (int i = 0; i < yn.length; i++) {
+            for (int j = 0; j < yn.length; j++) {
+                sum += yn[i] * sei[i][j] * yn[j];
+            }
+        }
+        return sum;
+    }
+
     public static Matrix leftInverse(double[][] src) {
         // return np.dot(inverse(np.dot(inn.T, inn)), inn.T)
         final Matrix srcMatrix = new Matrix(src);
@@ -0,0 +1,160 @@
+package org.esa.snap.wvcci.tcwv.util;
+
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.RasterDataNode;
+import org.esa.snap.core.gpf.Tile;
+
+import java.awt.*;
+
+/**
+ * Reads the samples of a source tile row by row directly from its raw data buffer, using the scanline
+ * offset and stride of the tile, as a faster alternative to per-sample {@link Tile#getSampleDouble(int, int)}
+ * and {@link Tile#getSampleBit(int, int, int)} calls. The geophysical scaling is applied once per sample
+ * while a row is read. The rows are read into buffers owned by the reader, so a reader must not be shared
+ * between threads.
+ *
+ * @author olafd
+ */
+public class TileRowReader {
+
+    private final ProductData dataBuffer;
+    private final RasterDataNode rasterDataNode;
+    private final boolean scaled;
+    private final int scanlineOffset;
+    private final int scanlineStride;
+    private final int tileMinX;
+    private final int tileMinY;
+    private final int x;
+    private final int width;
+    private final float[] floatElems;
+
+    private double[] doubleRow;
+    private int[] intRow;
+
+    /**
+     * @param tile      - the source tile
+     * @param rectangle - the rectangle to read, must be contained in the tile rectangle
+     */
+    public TileRowReader(Tile tile, Rectangle rectangle) {
+        if (!tile.getRectangle().contains(rectangle)) {
+            throw new IllegalArgumentException("Rectangle " + rectangle + " is not contained in tile rectangle " +
+                                                       tile.getRectangle() + ".");
+        }
+        dataBuffer = tile.getDataBuffer();
+        rasterDataNode = tile.getRasterDataNode();
+        scaled = rasterDataNode.isScalingApplied();
+        scanlineOffset = tile.getScanlineOffset();
+        scanlineStride = tile.getScanlineStride();
+        tileMinX = tile.getMinX();
+        tileMinY = tile.getMinY();
+        x = rectangle.x;
+        width = rectangle.width;
+        // most TCWV inputs are float reflectances or tie-point grids, read those without per-element dispatch
+        final Object elems = dataBuffer.getElems();
+        floatElems = elems instanceof float[] ? (float[]) elems : null;
+    }
+
+    /**
+     * Reads the geophysical samples of a row.
+     *
+     * @param y - the row
+     * @return the samples, index 0 refers to the first pixel of the rectangle. The array is reused for the next row.
+     */
+    public double[] readRow(int y) {
+        if (doubleRow == null) {
+            doubleRow = new double[width];
+        }
+        final int index0 = getIndex(y);
+        if (floatElems != null) {
+            for (int i = 0; i < width; i++) {
+                doubleRow[i] = floatElems[index0 + i];
+            }
+        } else {
+            for (int i = 0; i < width; i++) {
+                doubleRow[i] = dataBuffer.getElemDoubleAt(index0 + i);
+            }
+        }
+        if (scaled) {
+            for (int i = 0; i < width; i++) {
+                doubleRow[i] = rasterDataNode.scale(doubleRow[i]);
+            }
+        }
+        return doubleRow;
+    }
+
+    /**
+     * Reads the raw integer samples of a row, e.g. of a flag band.
+     *
+     * @param y - the row
+     * @return the samples, index 0 refers to the first pixel of the rectangle. The array is reused for the next row.
+     */
+    public int[] readIntRow(int y) {
+        if (intRow == null) {
+            intRow = new int[width];
+        }
+        final int index0 = getIndex(y);
+        for (int i = 0; i < width; i++) {
+            intRow[i] = dataBuffer.getElemIntAt(index0 + i);
+        }
+        return intRow;
+    }
+
+    /**
+     * Reads the integer samples of a row as {@link Tile#getSampleInt(int, int)} does: floating point samples are
+     * truncated, and the geophysical value of a scaled sample is rounded.
+     *
+     * @param y - the row
+     * @return the samples, index 0 refers to the first pixel of the rectangle. The array is reused for the next row.
+     */
+    public int[] readIntSampleRow(int y) {
+        if (intRow == null) {
+            intRow = new int[width];
+        }
+        final int index0 = getIndex(y);
+        if (ProductData.isFloatingPointType(dataBuffer.getType())) {
+            for (int i = 0; i < width; i++) {
+                intRow[i] = (int) dataBuffer.getElemDoubleAt(index0 + i);
+            }
+        } else {
+            for (int i = 0; i < width; i++) {
+                intRow[i] = dataBuffer.getElemIntAt(index0 + i);
+            }
+        }
+        if (scaled) {
+            for (int i = 0; i < width; i++) {
+                intRow[i] = (int) Math.floor(rasterDataNode.scale(intRow[i]) + 0.5);
+            }
+        }
+        return intRow;
+    }
+
+    /**
+     * Checks a flag bit of a raw integer sample, as {@link Tile#getSampleBit(int, int, int)} does.
+     *
+     * @param sample   - the raw sample
+     * @param bitIndex - the bit index
+     * @return true if the bit is set
+     */
+    public static boolean isBitSet(int sample, int bitIndex) {
+        return (sample & (1 << bitIndex)) != 0;
+    }
+
+    /**
+     * Reads a row of all given readers.
+     *
+     * @param readers - the readers (may be null)
+     * @param y       - the row
+     * @param rows    - receives the rows, may be null if readers is null
+     */
+    public static void readRows(TileRowReader[] readers, int y, double[][] rows) {
+        if (readers != null) {
+            for (int i = 0; i < readers.length; i++) {
+                rows[i] = readers[i].readRow(y);
+            }
+        }
+    }
+
+    private int getIndex(int y) {
+        return scanlineOffset + (y - tileMinY) * scanlineStride + (x - tileMinX);
+    }
+}
@@ -3,6 +3,7 @@ package org.esa.snap.wvcci.tcwv;
 import org.esa.snap.core.datamodel.Product;
 import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.OperatorSpiRegistry;
 import org.junit.Test;
@@ -86,4 +87,49 @@ public class MergeModisL1bEraInterimOpTest {
         assertFalse(mergedProduct.containsBand("u10"));
         assertFalse(mergedProduct.containsBand("v10"));
     }
+
+    @Test
+    public void testMergedProduct_bandsSharedByReference() {
+        final Product l1bProduct = new Product("dummy1", "mergeOpTest", 10, 10);
+        for (String bandName : Sensor.MODIS_TERRA.getReflBandNames()) {
+            l1bProduct.addBand(bandName, ProductData.TYPE_FLOAT32);
+        }
+        final Product eraInterimProduct = new Product("dummy2", "mergeOpTest", 10, 10);
+        eraInterimProduct.addBand("t2m", ProductData.TYPE_FLOAT32);
+        eraInterimProduct.addBand("msl", ProductData.TYPE_FLOAT32);
+        eraInterimProduct.addBand("tcwv", ProductData.TYPE_FLOAT32);
+
+        final MergeModisL1bEraInterimOp mergeOp = new MergeModisL1bEraInterimOp();
+        mergeOp.setSourceProduct("l1bProduct", l1bProduct);
+        mergeOp.setSourceProduct("eraInterimProduct", eraInterimProduct);
+        mergeOp.setParameterDefaultValues();
+        mergeOp.setParameter("processDayProductsOnly", false);
+
+        final Product mergedProduct = mergeOp.getTargetProduct();
+        final String reflBandName = Sensor.MODIS_TERRA.getReflBandNames()[0];
+        assertSame(l1bProduct.getBand(reflBandName).getSourceImage(),
+                   mergedProduct.getBand(reflBandName).getSourceImage());
+        assertSame(eraInterimProduct.getBand("t2m").getSourceImage(), mergedProduct.getBand("t2m").getSourceImage());
+        // the ERA product is not modified
+        assertNull(eraInterimProduct.getSceneGeoCoding());
+    }
+
+    @Test
+    public void testMergedProduct_incompatibleSizes() {
+        final Product l1bProduct = new Product("dummy1", "mergeOpTest", 10, 10);
+        final Product eraInterimProduct = new Product("dummy2", "mergeOpTest", 10, 12);
+
+        final MergeModisL1bEraInterimOp mergeOp = new MergeModisL1bEraInterimOp();
+        mergeOp.setSourceProduct("l1bProduct", l1bProduct);
+        mergeOp.setSourceProduct("eraInterimProduct", eraInterimProduct);
+        mergeOp.setParameterDefaultValues();
+        mergeOp.setParameter("validateL1b", false);
+        mergeOp.setParameter("processDayProductsOnly", false);
+        try {
+            mergeOp.getTargetProduct();
+            fail("OperatorException expected");
+        } catch (OperatorException expected) {
+            // ok
+        }
+    }
 }
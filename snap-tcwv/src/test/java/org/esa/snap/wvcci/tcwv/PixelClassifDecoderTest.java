@@ -0,0 +1,86 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.dataio.mod35.ModisMod35L2Constants;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PixelClassifDecoderTest {
+
+    private static final int INVALID = 1 << TcwvConstants.IDEPIX_INVALID_BIT;
+    private static final int CLOUD_AMBIGUOUS = 1 << TcwvConstants.IDEPIX_CLOUD_AMBIGUOUS_BIT;
+    private static final int CLOUD_SURE = 1 << TcwvConstants.IDEPIX_CLOUD_SURE_BIT;
+    private static final int CLOUD_BUFFER = 1 << TcwvConstants.IDEPIX_CLOUD_BUFFER_BIT;
+    private static final int SNOW_ICE = 1 << TcwvConstants.IDEPIX_SNOW_ICE_BIT;
+    private static final int COASTLINE = 1 << TcwvConstants.IDEPIX_COASTLINE;
+    private static final int LAND = 1 << TcwvConstants.IDEPIX_LAND_BIT;
+
+    @Test
+    public void testIdepixSurfaceDecisions() {
+        final PixelClassifDecoder decoder =
+                PixelClassifDecoder.createIdepix(CloudFilterLevel.CLOUD_SURE_AMBIGUOUS_BUFFER, false, true);
+
+        assertEquals(0, decoder.decode(0));
+        assertEquals(PixelClassifDecoder.INVALID, decoder.decode(INVALID));
+        assertEquals(PixelClassifDecoder.LAND, decoder.decode(LAND));
+        assertEquals(PixelClassifDecoder.LAND | PixelClassifDecoder.COASTLINE, decoder.decode(LAND | COASTLINE));
+        // sea ice over water only:
+        assertEquals(PixelClassifDecoder.SEA_ICE, decoder.decode(SNOW_ICE));
+        assertEquals(PixelClassifDecoder.LAND, decoder.decode(LAND | SNOW_ICE));
+        // bits above the tested ones are ignored:
+        assertEquals(decoder.decode(LAND | CLOUD_SURE), decoder.decode(LAND | CLOUD_SURE | (1 << 14)));
+
+        final PixelClassifDecoder modisDecoder =
+                PixelClassifDecoder.createIdepix(CloudFilterLevel.CLOUD_SURE_AMBIGUOUS_BUFFER, true, false);
+        assertEquals(0, modisDecoder.decode(SNOW_ICE));
+    }
+
+    @Test
+    public void testIdepixCloudDecisions() {
+        final int[] words = {CLOUD_SURE, CLOUD_AMBIGUOUS, CLOUD_BUFFER, CLOUD_SURE | CLOUD_AMBIGUOUS,
+                CLOUD_SURE | CLOUD_BUFFER, CLOUD_AMBIGUOUS | CLOUD_BUFFER};
+        assertCloud(CloudFilterLevel.NO_FILTER, false, words, false, false, false, false, false, false);
+        assertCloud(CloudFilterLevel.CLOUD_SURE, false, words, true, false, false, false, false, false);
+        assertCloud(CloudFilterLevel.CLOUD_SURE, true, words, true, false, false, true, false, false);
+        assertCloud(CloudFilterLevel.CLOUD_SURE_BUFFER, false, words, true, false, true, false, true, false);
+        assertCloud(CloudFilterLevel.CLOUD_SURE_AMBIGUOUS, false, words, true, true, false, true, false, false);
+        assertCloud(CloudFilterLevel.CLOUD_SURE_AMBIGUOUS_BUFFER, false, words, true, true, true, true, true, true);
+    }
+
+    @Test
+    public void testMod35Decisions() {
+        final PixelClassifDecoder decoder = PixelClassifDecoder.createMod35();
+        final int clear = 1 << ModisMod35L2Constants.CLEAR_CERTAIN_BIT_INDEX;
+
+        assertEquals(PixelClassifDecoder.CLOUD, decoder.decode(0));
+        assertEquals(0, decoder.decode(clear));
+        assertEquals(PixelClassifDecoder.LAND, decoder.decode(clear | (1 << ModisMod35L2Constants.LAND_BIT_INDEX)));
+        assertEquals(PixelClassifDecoder.LAND, decoder.decode(clear | (1 << ModisMod35L2Constants.DESERT_BIT_INDEX)));
+        // snow is land, and not cloud:
+        assertEquals(PixelClassifDecoder.LAND, decoder.decode(1 << ModisMod35L2Constants.SNOW_ICE_BIT_INDEX));
+        assertEquals(PixelClassifDecoder.COASTLINE,
+                     decoder.decode(clear | (1 << ModisMod35L2Constants.COASTAL_BIT_INDEX)));
+    }
+
+    @Test
+    public void testCreateIdepixWithoutCloudFilterLevel() {
+        try {
+            PixelClassifDecoder.createIdepix(null, false, true);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    private static void assertCloud(CloudFilterLevel cloudFilterLevel, boolean cloudAmbiguousIsCloudSure,
+                                    int[] words, boolean... expectedClouds) {
+        final PixelClassifDecoder decoder =
+                PixelClassifDecoder.createIdepix(cloudFilterLevel, cloudAmbiguousIsCloudSure, true);
+        for (int i = 0; i < words.length; i++) {
+            final int decision = decoder.decode(LAND | words[i]);
+            assertEquals(cloudFilterLevel + ", word " + words[i], expectedClouds[i],
+                         PixelClassifDecoder.isSet(decision, PixelClassifDecoder.CLOUD));
+            assertTrue(PixelClassifDecoder.isSet(decision, PixelClassifDecoder.LAND));
+        }
+    }
+}
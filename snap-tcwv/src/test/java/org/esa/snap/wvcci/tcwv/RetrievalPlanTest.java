@@ -0,0 +1,104 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.oe.Covariance;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetrievalPlanTest {
+
+    @Test
+    public void testPlansAreSharedPerSensor() {
+        for (Sensor sensor : Sensor.values()) {
+            assertSame(sensor.getRetrievalPlan(), sensor.getRetrievalPlan());
+            assertSame(sensor, sensor.getRetrievalPlan().getSensor());
+            assertSame(sensor.getRetrievalPlan().getLand(), sensor.getRetrievalPlan().getSurface(true));
+            assertSame(sensor.getRetrievalPlan().getOcean(), sensor.getRetrievalPlan().getSurface(false));
+        }
+    }
+
+    @Test
+    public void testSpectralNormalisation() {
+        final double csza = 0.8;
+        assertSame(RetrievalPlan.SpectralNormalisation.RADIANCE_PER_FLUX,
+                   Sensor.MERIS.getRetrievalPlan().getSpectralNormalisation());
+        assertTrue(Sensor.MERIS.getRetrievalPlan().isFluxNormalised());
+        assertEquals(0.05, Sensor.MERIS.getRetrievalPlan().getSpectralNormalisation().normalise(5.0, csza, 100.0),
+                     1.E-12);
+        for (Sensor sensor : new Sensor[]{Sensor.OLCI, Sensor.OLCI_A, Sensor.OLCI_B}) {
+            final RetrievalPlan plan = sensor.getRetrievalPlan();
+            assertFalse(plan.isFluxNormalised());
+            assertEquals(0.2 * csza / Math.PI, plan.getSpectralNormalisation().normalise(0.2, csza, Double.NaN),
+                         0.0);
+        }
+        for (Sensor sensor : new Sensor[]{Sensor.MODIS_TERRA, Sensor.MODIS_AQUA}) {
+            final RetrievalPlan plan = sensor.getRetrievalPlan();
+            assertFalse(plan.isFluxNormalised());
+            assertEquals(0.2 / Math.PI, plan.getSpectralNormalisation().normalise(0.2, csza, Double.NaN), 0.0);
+        }
+    }
+
+    @Test
+    public void testFlagAndPriorDecisions() {
+        for (Sensor sensor : Sensor.values()) {
+            final RetrievalPlan plan = sensor.getRetrievalPlan();
+            final boolean isModis = sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA;
+            assertEquals(!isModis, plan.isAlbedoPriorDividedByCsza());
+            assertEquals(!isModis, plan.isSeaIceFromIdepix());
+            assertEquals(isModis, plan.isIdepixCloudAmbiguousIsCloudSure());
+        }
+    }
+
+    @Test
+    public void testAbsMeasurementEqualsRectifyAndO2Correct() {
+        final TcwvAlgorithm algorithm = new TcwvAlgorithm();
+        final double samf = 1.48959;
+        for (Sensor sensor : Sensor.values()) {
+            for (boolean isLand : new boolean[]{true, false}) {
+                final RetrievalPlan.SurfacePlan surfacePlan = sensor.getRetrievalPlan().getSurface(isLand);
+                final double[] rhoWin = new double[surfacePlan.getNumWin()];
+                for (int i = 0; i < rhoWin.length; i++) {
+                    rhoWin[i] = 0.042 - 0.003 * i;
+                }
+                final double[] rhoAbs = new double[surfacePlan.getNumAbs()];
+                for (int i = 0; i < rhoAbs.length; i++) {
+                    rhoAbs[i] = 0.031 - 0.002 * i;
+                }
+                for (int i = 0; i < rhoAbs.length; i++) {
+                    final double expected = algorithm.rectifyAndO2Correct(sensor, rhoWin, rhoAbs, i, samf, isLand);
+                    final double actual = surfacePlan.getAbsMeasurement(i, rhoWin[0],
+                                                                        rhoWin[surfacePlan.getSecondWinIndex()],
+                                                                        rhoWin[rhoWin.length - 1], rhoAbs[i], samf);
+                    assertEquals(sensor + ", land = " + isLand + ", band " + i, expected, actual, 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCovariances() {
+        for (Sensor sensor : Sensor.values()) {
+            final RetrievalPlan.SurfacePlan land = sensor.getRetrievalPlan().getLand();
+            final double[][] saLand = sensor == Sensor.MERIS ? TcwvConstants.MERIS_SA_LAND : TcwvConstants.SA_LAND;
+            assertCovariance(saLand, land.getSa(false));
+            assertEquals(TcwvConstants.SA_OCEAN[0][0], land.getSa(true).getVariance(0), 0.0);
+            assertEquals(saLand[1][1], land.getSa(true).getVariance(1), 0.0);
+            assertEquals(1.0 / (sensor.getLandSnr() * sensor.getLandSnr()), land.getWinVariance(), 0.0);
+            assertEquals(-1, land.getSeOverrideIndex());
+
+            final RetrievalPlan.SurfacePlan ocean = sensor.getRetrievalPlan().getOcean();
+            final boolean isModis = sensor == Sensor.MODIS_TERRA || sensor == Sensor.MODIS_AQUA;
+            assertSame(ocean.getSa(false), ocean.getSa(true));
+            assertEquals(isModis ? TcwvConstants.SA_OCEAN_2_2_MODIS : TcwvConstants.SA_OCEAN[2][2],
+                         ocean.getSa(false).getVariance(2), 0.0);
+            assertEquals(isModis ? 1 : -1, ocean.getSeOverrideIndex());
+        }
+    }
+
+    private static void assertCovariance(double[][] expected, Covariance actual) {
+        final double[][] matrix = actual.getMatrix();
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], matrix[i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.AnalyticJacobiLookup;
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation benchmark of the batch retrieval: once the per-thread retrieval context and the LUT slices are set
+ * up, the inversion of a pixel with the 3x3 OE kernel must not allocate at all.
+ */
+public class TcwvAlgorithmAllocationTest {
+
+    private static final int NUM_PIXELS = 500;
+    private static final int NUM_WARM_UP_RUNS = 3;
+    private static final int NUM_RUNS = 5;
+    // accounts for the allocations of the measurement itself, far below one allocated array per pixel
+    private static final double MAX_BYTES_PER_PIXEL = 1.0;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testNoSteadyStateAllocationPerPixel() {
+        for (Sensor sensor : new Sensor[]{Sensor.MERIS, Sensor.MODIS_TERRA}) {
+            final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                    new TcwvAlgorithmConcurrencyTest.SensorFunctions(sensor);
+            for (InversionMethod inversionMethod :
+                    new InversionMethod[]{InversionMethod.OE_3X3, InversionMethod.OE_3X3_BROYDEN}) {
+                final double bytesPerPixel = getAllocatedBytesPerPixel(new TcwvAlgorithm(inversionMethod), f,
+                                                                       f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                                                       f.jacobiFunctionLand, f.jacobiFunctionOcean);
+                assertTrue(sensor + ", " + inversionMethod + ": " + bytesPerPixel + " bytes per pixel",
+                           bytesPerPixel < MAX_BYTES_PER_PIXEL);
+            }
+        }
+    }
+
+    @Test
+    public void testNoSteadyStateAllocationPerPixelWithAnalyticJacobian() {
+        final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                new TcwvAlgorithmConcurrencyTest.SensorFunctions(Sensor.MERIS);
+        final AnalyticJacobiLookup land = TcwvInterpolation.getAnalyticJacobiLookup(f.landLut);
+        final AnalyticJacobiLookup ocean = TcwvInterpolation.getAnalyticJacobiLookup(f.oceanLut);
+        final double bytesPerPixel = getAllocatedBytesPerPixel(new TcwvAlgorithm(InversionMethod.OE_3X3), f,
+                                                               land.getForwardFunction(), ocean.getForwardFunction(),
+                                                               land.getJacobiFunction(), ocean.getJacobiFunction());
+        assertTrue(bytesPerPixel + " bytes per pixel", bytesPerPixel < MAX_BYTES_PER_PIXEL);
+    }
+
+    @Test
+    public void testJamaInversionStillAllocates() {
+        // cross-check of the measurement: the JAMA path allocates its matrices per iteration
+        final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                new TcwvAlgorithmConcurrencyTest.SensorFunctions(Sensor.MERIS);
+        final double bytesPerPixel = getAllocatedBytesPerPixel(new TcwvAlgorithm(InversionMethod.OE), f,
+                                                               f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                                               f.jacobiFunctionLand, f.jacobiFunctionOcean);
+        assertTrue(bytesPerPixel + " bytes per pixel", bytesPerPixel > 100.0 * MAX_BYTES_PER_PIXEL);
+    }
+
+    private double getAllocatedBytesPerPixel(TcwvAlgorithm algorithm, TcwvAlgorithmConcurrencyTest.SensorFunctions f,
+                                             TcwvFunction tcwvFunctionLand, TcwvFunction tcwvFunctionOcean,
+                                             JacobiFunction jacobiFunctionLand,
+                                             JacobiFunction jacobiFunctionOcean) {
+        final TcwvBatch batch = new TcwvBatch(f.sensor, NUM_PIXELS);
+        TcwvAlgorithmBatchTest.fillBatch(batch, new Random(42));
+        for (int run = 0; run < NUM_WARM_UP_RUNS; run++) {
+            algorithm.compute(f.sensor, f.landLut, f.oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                              jacobiFunctionLand, jacobiFunctionOcean, batch);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int run = 0; run < NUM_RUNS; run++) {
+            algorithm.compute(f.sensor, f.landLut, f.oceanLut, tcwvFunctionLand, tcwvFunctionOcean,
+                              jacobiFunctionLand, jacobiFunctionOcean, batch);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return (double) allocated / (NUM_RUNS * NUM_PIXELS);
+    }
+}
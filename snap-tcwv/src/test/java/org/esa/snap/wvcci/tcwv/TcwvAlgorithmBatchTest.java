@@ -0,0 +1,268 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.AnalyticJacobiLookup;
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TcwvAlgorithmBatchTest {
+
+    private static final int NUM_PIXELS = 500;
+
+    @Test
+    public void testBatchGivesSameResultsAsPerPixelCompute() {
+        for (Sensor sensor : new Sensor[]{Sensor.MERIS, Sensor.MODIS_TERRA}) {
+            for (InversionMethod inversionMethod : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+                final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                        new TcwvAlgorithmConcurrencyTest.SensorFunctions(sensor);
+                final TcwvAlgorithm algorithm = new TcwvAlgorithm(inversionMethod);
+                final TcwvBatch batch = new TcwvBatch(sensor, NUM_PIXELS + 10);
+                batch.setSize(NUM_PIXELS);
+                fillBatch(batch, new Random(42));
+
+                algorithm.compute(sensor, f.landLut, f.oceanLut, f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                  f.jacobiFunctionLand, f.jacobiFunctionOcean, batch);
+
+                int numFinite = 0;
+                for (int p = 0; p < NUM_PIXELS; p++) {
+                    final String message = sensor + ", " + inversionMethod + ", pixel " + p;
+                    if (!batch.getProcess()[p]) {
+                        assertTrue(message, Double.isNaN(batch.getTcwv()[p]));
+                        assertTrue(message, Double.isNaN(batch.getCost()[p]));
+                        continue;
+                    }
+                    final TcwvResult expected = algorithm.compute(sensor, f.landLut, f.oceanLut,
+                                                                  f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                                                  f.jacobiFunctionLand, f.jacobiFunctionOcean,
+                                                                  getInput(batch, p), batch.getLand()[p],
+                                                                  batch.getCoastline()[p]);
+                    assertBitEquals(message, expected.getTcwv(), batch.getTcwv()[p]);
+                    assertBitEquals(message, expected.getTcwvUncertainty(), batch.getTcwvUncertainty()[p]);
+                    assertBitEquals(message, expected.getCost(), batch.getCost()[p]);
+                    assertBitEquals(message, expected.getStateVector1(), batch.getStateVector1()[p]);
+                    assertBitEquals(message, expected.getStateVector2(), batch.getStateVector2()[p]);
+                    if (!Double.isNaN(expected.getTcwv())) {
+                        numFinite++;
+                    }
+                }
+                assertTrue(numFinite > NUM_PIXELS / 2);
+            }
+        }
+    }
+
+    @Test
+    public void testWarmStartOnSmoothField() {
+        for (Sensor sensor : new Sensor[]{Sensor.MERIS, Sensor.MODIS_TERRA}) {
+            for (InversionMethod inversionMethod : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+                final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                        new TcwvAlgorithmConcurrencyTest.SensorFunctions(sensor);
+                final TcwvAlgorithm algorithm = new TcwvAlgorithm(inversionMethod);
+                final TcwvBatch coldBatch = new TcwvBatch(sensor, NUM_PIXELS);
+                final TcwvBatch warmBatch = new TcwvBatch(sensor, NUM_PIXELS);
+                warmBatch.setWarmStart(true);
+
+                for (int row = 0; row < 3; row++) {
+                    fillSmoothBatch(coldBatch, row);
+                    fillSmoothBatch(warmBatch, row);
+                    algorithm.compute(sensor, f.landLut, f.oceanLut, f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                      f.jacobiFunctionLand, f.jacobiFunctionOcean, coldBatch);
+                    algorithm.compute(sensor, f.landLut, f.oceanLut, f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                      f.jacobiFunctionLand, f.jacobiFunctionOcean, warmBatch);
+
+                    for (int p = 0; p < NUM_PIXELS; p++) {
+                        final String message = sensor + ", " + inversionMethod + ", row " + row + ", pixel " + p;
+                        if (!warmBatch.getProcess()[p]) {
+                            assertTrue(message, Double.isNaN(warmBatch.getTcwv()[p]));
+                            continue;
+                        }
+                        assertEquals(message, coldBatch.getTcwv()[p], warmBatch.getTcwv()[p],
+                                     0.02 * coldBatch.getTcwv()[p] + 0.1);
+                        assertEquals(message, coldBatch.getCost()[p], warmBatch.getCost()[p], 0.1);
+                    }
+                }
+
+                final String message = sensor + ", " + inversionMethod;
+                assertEquals(message, 0, coldBatch.getNumWarmStarts());
+                assertEquals(message, 0, coldBatch.getNumColdStarts());
+                assertTrue(message, warmBatch.getNumWarmStarts() > NUM_PIXELS);
+                assertTrue(message, warmBatch.getNumColdStarts() > 0);
+                assertTrue(message, warmBatch.getNumWarmStartFallbacks() <= warmBatch.getNumWarmStarts());
+                assertTrue(message, warmBatch.getEstimatedIterationsSaved() > 0.0);
+
+                warmBatch.resetWarmStartStatistics();
+                assertEquals(0, warmBatch.getNumWarmStarts());
+                assertEquals(0.0, warmBatch.getEstimatedIterationsSaved(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testAnalyticJacobianGivesSimilarResults() {
+        for (Sensor sensor : new Sensor[]{Sensor.MERIS, Sensor.MODIS_TERRA}) {
+            for (InversionMethod inversionMethod : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+                final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                        new TcwvAlgorithmConcurrencyTest.SensorFunctions(sensor);
+                final AnalyticJacobiLookup landLookup = TcwvInterpolation.getAnalyticJacobiLookup(f.landLut);
+                final AnalyticJacobiLookup oceanLookup = TcwvInterpolation.getAnalyticJacobiLookup(f.oceanLut);
+                final TcwvAlgorithm algorithm = new TcwvAlgorithm(inversionMethod);
+                final TcwvBatch storedBatch = new TcwvBatch(sensor, NUM_PIXELS);
+                final TcwvBatch analyticBatch = new TcwvBatch(sensor, NUM_PIXELS);
+                fillSmoothBatch(storedBatch, 0);
+                fillSmoothBatch(analyticBatch, 0);
+
+                algorithm.compute(sensor, f.landLut, f.oceanLut, f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                  f.jacobiFunctionLand, f.jacobiFunctionOcean, storedBatch);
+                algorithm.compute(sensor, f.landLut, f.oceanLut,
+                                  landLookup.getForwardFunction(), oceanLookup.getForwardFunction(),
+                                  landLookup.getJacobiFunction(), oceanLookup.getJacobiFunction(), analyticBatch);
+
+                int numFinite = 0;
+                for (int p = 0; p < NUM_PIXELS; p++) {
+                    final String message = sensor + ", " + inversionMethod + ", pixel " + p;
+                    final double tcwv = storedBatch.getTcwv()[p];
+                    // land only: over ocean, the synthetic model is not fitted within the iteration limit, so that
+                    // the result depends on the iteration path
+                    if (!storedBatch.getLand()[p] || Double.isNaN(tcwv)) {
+                        continue;
+                    }
+                    assertEquals(message, tcwv, analyticBatch.getTcwv()[p], 0.02 * tcwv + 0.1);
+                    assertEquals(message, storedBatch.getCost()[p], analyticBatch.getCost()[p],
+                                 1.E-3 * storedBatch.getCost()[p]);
+                    numFinite++;
+                }
+                assertTrue(numFinite > NUM_PIXELS / 3);
+            }
+        }
+    }
+
+    @Test
+    public void testReducedLutPrecisionGivesSimilarResults() {
+        for (Sensor sensor : new Sensor[]{Sensor.MERIS, Sensor.MODIS_TERRA}) {
+            final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                    new TcwvAlgorithmConcurrencyTest.SensorFunctions(sensor);
+            final TcwvBatch batch = new TcwvBatch(sensor, NUM_PIXELS);
+
+            fillSmoothBatch(batch, 0);
+            final TcwvLutPrecisionReport floatReport =
+                    TcwvLutPrecisionReport.compute(sensor, f.landLut, f.oceanLut, LutPrecision.FLOAT,
+                                                   InversionMethod.OE_3X3, batch);
+            assertTrue(floatReport.getNumPixels() > NUM_PIXELS / 3);
+            assertEquals(0, floatReport.getNumValidityChanges());
+            assertEquals(0.0, floatReport.getMaxTcwvDeviation(), 1.E-4);
+            assertEquals(0.0, floatReport.getMaxTcwvUncertaintyDeviation(), 1.E-4);
+            assertEquals(floatReport.getDoubleLutBytes() / 2, floatReport.getReducedLutBytes());
+
+            fillSmoothBatch(batch, 0);
+            final TcwvLutPrecisionReport shortReport =
+                    TcwvLutPrecisionReport.compute(sensor, f.landLut, f.oceanLut, LutPrecision.SCALED_SHORT,
+                                                   InversionMethod.OE_3X3, batch);
+            assertTrue(shortReport.getNumPixels() > NUM_PIXELS / 3);
+            assertEquals(0.0, shortReport.getMaxTcwvDeviation(), 0.02);
+            assertEquals(0.0, shortReport.getMaxTcwvUncertaintyDeviation(), 0.02);
+            assertEquals(floatReport.getDoubleLutBytes() / 4, shortReport.getReducedLutBytes());
+            assertTrue(shortReport.toString().contains("SCALED_SHORT"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWarmStartTolerance() {
+        new TcwvBatch(Sensor.MERIS, 10).setWarmStartTolerance(-0.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchForOtherSensor() {
+        final TcwvAlgorithmConcurrencyTest.SensorFunctions f =
+                new TcwvAlgorithmConcurrencyTest.SensorFunctions(Sensor.MERIS);
+        new TcwvAlgorithm().compute(Sensor.MERIS, f.landLut, f.oceanLut, f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                    f.jacobiFunctionLand, f.jacobiFunctionOcean,
+                                    new TcwvBatch(Sensor.MODIS_TERRA, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetSizeExceedsCapacity() {
+        new TcwvBatch(Sensor.MERIS, 10).setSize(11);
+    }
+
+    static void fillBatch(TcwvBatch batch, Random random) {
+        for (int p = 0; p < batch.getSize(); p++) {
+            batch.getProcess()[p] = random.nextInt(10) != 0;
+            batch.getLand()[p] = random.nextBoolean();
+            batch.getCoastline()[p] = batch.getLand()[p] && random.nextInt(4) == 0;
+            for (int j = 0; j < batch.getRhoToaWin().length; j++) {
+                batch.getRhoToaWin()[j][p] = 0.05 + 0.3 * random.nextDouble();
+            }
+            for (int j = 0; j < batch.getRhoToaAbs().length; j++) {
+                batch.getRhoToaAbs()[j][p] = batch.getRhoToaWin()[0][p] * (0.3 + 0.6 * random.nextDouble());
+            }
+            batch.getSza()[p] = 70.0 * random.nextDouble();
+            batch.getVza()[p] = 60.0 * random.nextDouble();
+            batch.getRelAzi()[p] = 180.0 * random.nextDouble();
+            batch.getAmf()[p] = 1.0 / Math.cos(Math.toRadians(batch.getSza()[p])) +
+                    1.0 / Math.cos(Math.toRadians(batch.getVza()[p]));
+            batch.getPriorAot()[p] = 0.6 * random.nextDouble();
+            batch.getPriorAl0()[p] = random.nextDouble();
+            batch.getPriorAl1()[p] = random.nextDouble();
+            batch.getPriorT2m()[p] = 250.0 + 60.0 * random.nextDouble();
+            batch.getPriorMslPress()[p] = 950.0 + 80.0 * random.nextDouble();
+            batch.getPriorWsp()[p] = 15.0 * random.nextDouble();
+            batch.getPriorTcwv()[p] = 60.0 * random.nextDouble();
+        }
+    }
+
+    // slowly varying inputs, with a land/ocean boundary and a gap of non-processed pixels
+    private static void fillSmoothBatch(TcwvBatch batch, int row) {
+        for (int p = 0; p < batch.getSize(); p++) {
+            final double t = (p + 3.0 * row) / batch.getSize();
+            batch.getProcess()[p] = p % 97 != 50;
+            batch.getLand()[p] = p < batch.getSize() / 2;
+            batch.getCoastline()[p] = false;
+            for (int j = 0; j < batch.getRhoToaWin().length; j++) {
+                batch.getRhoToaWin()[j][p] = 0.15 + 0.1 * t + 0.01 * j;
+            }
+            for (int j = 0; j < batch.getRhoToaAbs().length; j++) {
+                batch.getRhoToaAbs()[j][p] = batch.getRhoToaWin()[0][p] * (0.5 + 0.2 * t);
+            }
+            batch.getSza()[p] = 30.0 + 10.0 * t;
+            batch.getVza()[p] = 20.0;
+            batch.getRelAzi()[p] = 90.0;
+            batch.getAmf()[p] = 1.0 / Math.cos(Math.toRadians(batch.getSza()[p])) +
+                    1.0 / Math.cos(Math.toRadians(batch.getVza()[p]));
+            batch.getPriorAot()[p] = 0.2;
+            batch.getPriorAl0()[p] = 0.4;
+            batch.getPriorAl1()[p] = 0.5;
+            batch.getPriorT2m()[p] = 290.0;
+            batch.getPriorMslPress()[p] = 1000.0;
+            batch.getPriorWsp()[p] = 5.0;
+            batch.getPriorTcwv()[p] = 20.0 + 10.0 * t;
+        }
+    }
+
+    private static TcwvAlgorithmInput getInput(TcwvBatch batch, int p) {
+        final Sensor sensor = batch.getSensor();
+        final boolean isLand = batch.getLand()[p];
+        final int numWin = isLand ? sensor.getLandWinBandNames().length : sensor.getOceanWinBandNames().length;
+        final int numAbs = isLand ? sensor.getLandAbsBandNames().length : sensor.getOceanAbsBandNames().length;
+        final double[] rhoToaWin = new double[numWin];
+        for (int j = 0; j < numWin; j++) {
+            rhoToaWin[j] = batch.getRhoToaWin()[j][p];
+        }
+        final double[] rhoToaAbs = new double[numAbs];
+        for (int j = 0; j < numAbs; j++) {
+            rhoToaAbs[j] = batch.getRhoToaAbs()[j][p];
+        }
+        return new TcwvAlgorithmInput(rhoToaWin, rhoToaAbs, batch.getSza()[p], batch.getVza()[p],
+                                      batch.getRelAzi()[p], batch.getAmf()[p], batch.getPriorAot()[p],
+                                      batch.getPriorAl0()[p], batch.getPriorAl1()[p], batch.getPriorT2m()[p],
+                                      batch.getPriorMslPress()[p], batch.getPriorWsp()[p],
+                                      batch.getPriorTcwv()[p]);
+    }
+
+    private static void assertBitEquals(String message, double expected, double actual) {
+        assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+}
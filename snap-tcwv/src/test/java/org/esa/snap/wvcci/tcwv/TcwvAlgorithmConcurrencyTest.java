@@ -0,0 +1,256 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that one {@link TcwvAlgorithm} instance and shared LUT functions give bit-identical results if used
+ * concurrently by many tile threads, compared to a single-threaded run (synthetic LUTs).
+ */
+public class TcwvAlgorithmConcurrencyTest {
+
+    private static final int NUM_PIXELS = 4000;
+    private static final int TILE_SIZE = 50;
+    private static final int NUM_THREADS = 8;
+
+    private static final Sensor[] SENSORS = {Sensor.MERIS, Sensor.MODIS_TERRA};
+
+    @Test
+    public void testParallelTilesGiveSameResultsAsSequential() throws Exception {
+        for (InversionMethod inversionMethod : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+            final SensorFunctions[] functions = new SensorFunctions[SENSORS.length];
+            for (int i = 0; i < SENSORS.length; i++) {
+                functions[i] = new SensorFunctions(SENSORS[i]);
+            }
+            final Pixel[] pixels = createPixels(new Random(12345));
+
+            final double[][] expected = new double[NUM_PIXELS][];
+            final TcwvAlgorithm sequentialAlgorithm = new TcwvAlgorithm(inversionMethod);
+            for (int i = 0; i < NUM_PIXELS; i++) {
+                expected[i] = compute(sequentialAlgorithm, functions, pixels[i]);
+            }
+
+            int numFinite = 0;
+            for (double[] result : expected) {
+                if (!Double.isNaN(result[0])) {
+                    numFinite++;
+                }
+            }
+            assertTrue(numFinite > NUM_PIXELS / 2);
+
+            final TcwvAlgorithm sharedAlgorithm = new TcwvAlgorithm(inversionMethod);
+            final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+            try {
+                for (int round = 0; round < 3; round++) {
+                    final double[][] actual = new double[NUM_PIXELS][];
+                    List<Future<?>> futures = new ArrayList<>();
+                    // submit tiles in reversed order, so that the pixel sequence differs from the sequential run
+                    for (int tileStart = NUM_PIXELS - TILE_SIZE; tileStart >= 0; tileStart -= TILE_SIZE) {
+                        final int start = tileStart;
+                        futures.add(executor.submit(() -> {
+                            for (int i = start; i < start + TILE_SIZE; i++) {
+                                actual[i] = compute(sharedAlgorithm, functions, pixels[i]);
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                    for (int i = 0; i < NUM_PIXELS; i++) {
+                        for (int j = 0; j < expected[i].length; j++) {
+                            assertEquals("pixel " + i + ", value " + j + ", " + inversionMethod,
+                                         Double.doubleToLongBits(expected[i][j]),
+                                         Double.doubleToLongBits(actual[i][j]));
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCoastlinePixelDoesNotChangeFollowingPixels() {
+        final SensorFunctions functions = new SensorFunctions(Sensor.MERIS);
+        final Pixel pixel = createPixels(new Random(4711))[0];
+        pixel.sensorIndex = 0;
+        pixel.isLand = true;
+        pixel.isCoastline = false;
+        final TcwvAlgorithm algorithm = new TcwvAlgorithm();
+        final SensorFunctions[] allFunctions = {functions};
+
+        final double[] before = compute(algorithm, allFunctions, pixel);
+        pixel.isCoastline = true;
+        final double[] coastline = compute(algorithm, allFunctions, pixel);
+        pixel.isCoastline = false;
+        final double[] after = compute(algorithm, allFunctions, pixel);
+
+        assertArrayEquals(before, after, 0.0);
+        assertNotEquals(before[1], coastline[1], 1.E-10);
+        assertEquals(20.0, TcwvConstants.SA_LAND[0][0], 0.0);
+        assertEquals(20.0, TcwvConstants.MERIS_SA_LAND[0][0], 0.0);
+    }
+
+    private static double[] compute(TcwvAlgorithm algorithm, SensorFunctions[] functions, Pixel pixel) {
+        final SensorFunctions f = functions[pixel.sensorIndex];
+        final TcwvResult result = algorithm.compute(f.sensor, f.landLut, f.oceanLut,
+                                                    f.tcwvFunctionLand, f.tcwvFunctionOcean,
+                                                    f.jacobiFunctionLand, f.jacobiFunctionOcean,
+                                                    pixel.input, pixel.isLand, pixel.isCoastline);
+        return new double[]{
+                result.getTcwv(), result.getTcwvUncertainty(), result.getCost(),
+                result.getStateVector1(), result.getStateVector2()
+        };
+    }
+
+    private static Pixel[] createPixels(Random random) {
+        Pixel[] pixels = new Pixel[NUM_PIXELS];
+        for (int i = 0; i < NUM_PIXELS; i++) {
+            Pixel pixel = new Pixel();
+            pixel.sensorIndex = random.nextInt(SENSORS.length);
+            pixel.isLand = random.nextBoolean();
+            pixel.isCoastline = pixel.isLand && random.nextInt(4) == 0;
+            final Sensor sensor = SENSORS[pixel.sensorIndex];
+            final int numWin = pixel.isLand ? sensor.getLandWinBandNames().length : sensor.getOceanWinBandNames().length;
+            final int numAbs = pixel.isLand ? sensor.getLandAbsBandNames().length : sensor.getOceanAbsBandNames().length;
+            double[] rhoToaWin = new double[numWin];
+            for (int j = 0; j < numWin; j++) {
+                rhoToaWin[j] = 0.05 + 0.3 * random.nextDouble();
+            }
+            double[] rhoToaAbs = new double[numAbs];
+            for (int j = 0; j < numAbs; j++) {
+                rhoToaAbs[j] = rhoToaWin[0] * (0.3 + 0.6 * random.nextDouble());
+            }
+            final double sza = 70.0 * random.nextDouble();
+            final double vza = 60.0 * random.nextDouble();
+            final double relAzi = 180.0 * random.nextDouble();
+            final double amf = 1.0 / Math.cos(Math.toRadians(sza)) + 1.0 / Math.cos(Math.toRadians(vza));
+            pixel.input = new TcwvAlgorithmInput(rhoToaWin, rhoToaAbs, sza, vza, relAzi, amf,
+                                                 0.6 * random.nextDouble(),
+                                                 random.nextDouble(), random.nextDouble(),
+                                                 250.0 + 60.0 * random.nextDouble(),
+                                                 950.0 + 80.0 * random.nextDouble(),
+                                                 15.0 * random.nextDouble(),
+                                                 60.0 * random.nextDouble());
+            pixels[i] = pixel;
+        }
+        return pixels;
+    }
+
+    private static class Pixel {
+        int sensorIndex;
+        boolean isLand;
+        boolean isCoastline;
+        TcwvAlgorithmInput input;
+    }
+
+    static class SensorFunctions {
+        final Sensor sensor;
+        final TcwvLandLut landLut;
+        final TcwvOceanLut oceanLut;
+        final TcwvFunction tcwvFunctionLand;
+        final TcwvFunction tcwvFunctionOcean;
+        final JacobiFunction jacobiFunctionLand;
+        final JacobiFunction jacobiFunctionOcean;
+
+        SensorFunctions(Sensor sensor) {
+            this.sensor = sensor;
+            final double[] wvc = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0};
+            final double[] al0 = {0.0, 0.25, 0.5, 0.75, 1.0};
+            final double[] al1 = {0.0, 0.25, 0.5, 0.75, 1.0};
+            final double[] aot = {0.0, 0.3, 0.6};
+            final double[] prs = {-7.0, -6.9, -6.8, -6.5};
+            final double[] tmp = {250.0, 280.0, 310.0};
+            final double[] wsp = {0.0, 5.0, 10.0, 15.0};
+            final double[] azi = {0.0, 90.0, 180.0};
+            final double[] vie = {0.0, 30.0, 60.0};
+            final double[] suz = {0.0, 35.0, 70.0};
+
+            final int nyLand = sensor.getLandWinBandNames().length + sensor.getLandAbsBandNames().length;
+            final double[][] landAxes = {wvc, al0, al1, aot, prs, tmp, azi, vie, suz};
+            landLut = new TcwvLandLut(wvc, aot, azi, vie, suz, new int[]{nyLand, 9},
+                                      createForwardTable(landAxes, sensor.getLandWinBandNames().length, nyLand),
+                                      createJacobiTable(landAxes, sensor.getLandWinBandNames().length, nyLand),
+                                      al0, al1, prs, tmp);
+            landLut.setSensor(sensor);
+
+            final int nyOcean = sensor.getOceanWinBandNames().length + sensor.getOceanAbsBandNames().length;
+            final double[][] oceanAxes = {wvc, aot, wsp, azi, vie, suz};
+            oceanLut = new TcwvOceanLut(wvc, aot, azi, vie, suz, new int[]{nyOcean, 6},
+                                        createForwardTable(oceanAxes, sensor.getOceanWinBandNames().length, nyOcean),
+                                        createJacobiTable(oceanAxes, sensor.getOceanWinBandNames().length, nyOcean),
+                                        wsp);
+            oceanLut.setSensor(sensor);
+
+            tcwvFunctionLand = TcwvInterpolation.getForwardFunctionLand(landLut);
+            jacobiFunctionLand = TcwvInterpolation.getJForwardFunctionLand(landLut);
+            tcwvFunctionOcean = TcwvInterpolation.getForwardFunctionOcean(oceanLut);
+            jacobiFunctionOcean = TcwvInterpolation.getJForwardFunctionOcean(oceanLut);
+        }
+
+        // simple smooth forward model: window bands depend on surface/aerosol, absorption bands also on wvc
+        private static MultiOutputLookupTable createForwardTable(double[][] axes, int numWin, int ny) {
+            return createTable(axes, ny, (c, values) -> {
+                for (int b = 0; b < ny; b++) {
+                    final double geometry = 0.0005 * c[axes.length - 1] + 0.0002 * c[axes.length - 3];
+                    values[b] = 0.05 * (b + 1) + 0.1 * c[1] + 0.05 * c[2] + geometry;
+                    if (b >= numWin) {
+                        values[b] += 0.08 * c[0] + 0.002 * c[0] * c[0];
+                    }
+                }
+            });
+        }
+
+        // derivatives of the forward model with respect to the first 3 axes (state), rest not used
+        private static MultiOutputLookupTable createJacobiTable(double[][] axes, int numWin, int ny) {
+            return createTable(axes, ny * 3, (c, values) -> {
+                for (int b = 0; b < ny; b++) {
+                    for (int j = 0; j < 3; j++) {
+                        double d = j == 1 ? 0.1 : (j == 2 ? 0.05 : 0.0);
+                        if (b >= numWin && j == 0) {
+                            d = 0.08 + 0.004 * c[0];
+                        }
+                        values[b * 3 + j] = d;
+                    }
+                }
+            });
+        }
+
+        private static MultiOutputLookupTable createTable(double[][] axes, int numOutputs, NodeFunction function) {
+            int numNodes = 1;
+            for (double[] axis : axes) {
+                numNodes *= axis.length;
+            }
+            double[] values = new double[numNodes * numOutputs];
+            double[] coordinates = new double[axes.length];
+            double[] nodeValues = new double[numOutputs];
+            for (int node = 0; node < numNodes; node++) {
+                int rest = node;
+                for (int i = axes.length - 1; i >= 0; i--) {
+                    coordinates[i] = axes[i][rest % axes[i].length];
+                    rest /= axes[i].length;
+                }
+                function.compute(coordinates, nodeValues);
+                System.arraycopy(nodeValues, 0, values, node * numOutputs, numOutputs);
+            }
+            return new MultiOutputLookupTable(values, numOutputs, axes);
+        }
+    }
+
+    private interface NodeFunction {
+        void compute(double[] coordinates, double[] values);
+    }
+}
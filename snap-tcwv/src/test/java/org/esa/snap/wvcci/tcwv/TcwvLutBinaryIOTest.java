@@ -0,0 +1,185 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TcwvLutBinaryIOTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testGetBinaryLutFileName() {
+        assertEquals("ocean_core_meris.lut", TcwvLutBinaryIO.getBinaryLutFileName("ocean_core_meris.nc4"));
+        assertEquals("land_core_olci.lut", TcwvLutBinaryIO.getBinaryLutFileName("land_core_olci.nc"));
+    }
+
+    @Test
+    public void testWriteAndReadOceanLut() throws IOException {
+        final TcwvOceanLut oceanLut = createOceanLut();
+        final File file = temporaryFolder.newFile("ocean_test.lut");
+        TcwvLutBinaryIO.writeOceanLut(oceanLut, file);
+
+        final TcwvOceanLut binaryOceanLut = TcwvLutBinaryIO.readOceanLut(file);
+        assertNull(binaryOceanLut.getLutArray());
+        assertNotNull(binaryOceanLut.getForwardLookupTable());
+        assertArrayEquals(oceanLut.getJaco(), binaryOceanLut.getJaco());
+        assertArrayEquals(oceanLut.getWvc(), binaryOceanLut.getWvc(), 0.0);
+        assertArrayEquals(oceanLut.getAot(), binaryOceanLut.getAot(), 0.0);
+        assertArrayEquals(oceanLut.getWsp(), binaryOceanLut.getWsp(), 0.0);
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(oceanLut.getAxes()[i], binaryOceanLut.getAxes()[i], 0.0);
+        }
+
+        final double[] x = new double[]{12.3, 0.17, 4.2};
+        final double[] params = new double[]{123.0, 17.0, 41.0};
+        final double[] expected = TcwvInterpolation.getForwardFunctionOcean(oceanLut).f(x, params);
+        final double[] actual = TcwvInterpolation.getForwardFunctionOcean(binaryOceanLut).f(x, params);
+        assertArrayEquals(expected, actual, 1.E-12);
+
+        final JacobiFunction jacobiFunction = TcwvInterpolation.getJForwardFunctionOcean(oceanLut);
+        final JacobiFunction binaryJacobiFunction = TcwvInterpolation.getJForwardFunctionOcean(binaryOceanLut);
+        final double[][] expectedJaco = jacobiFunction.f(x, params);
+        final double[][] actualJaco = binaryJacobiFunction.f(x, params);
+        assertEquals(2, actualJaco.length);
+        for (int i = 0; i < actualJaco.length; i++) {
+            assertArrayEquals(expectedJaco[i], actualJaco[i], 1.E-12);
+        }
+    }
+
+    @Test
+    public void testWriteAndReadLandLut() throws IOException {
+        final TcwvLandLut landLut = createLandLut();
+        final File file = temporaryFolder.newFile("land_test.lut");
+        TcwvLutBinaryIO.writeLandLut(landLut, file);
+
+        final TcwvLandLut binaryLandLut = TcwvLutBinaryIO.readLandLut(file);
+        assertNull(binaryLandLut.getJlutArray());
+        assertArrayEquals(landLut.getAl0(), binaryLandLut.getAl0(), 0.0);
+        assertArrayEquals(landLut.getAl1(), binaryLandLut.getAl1(), 0.0);
+        for (int i = 0; i < 9; i++) {
+            assertArrayEquals(landLut.getAxes()[i], binaryLandLut.getAxes()[i], 0.0);
+        }
+
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] params = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 33.0};
+        final double[] expected = TcwvInterpolation.getForwardFunctionLand(landLut).f(x, params);
+        final double[] actual = TcwvInterpolation.getForwardFunctionLand(binaryLandLut).f(x, params);
+        assertEquals(3, actual.length);
+        assertArrayEquals(expected, actual, 1.E-12);
+
+        final double[][] expectedJaco = TcwvInterpolation.getJForwardFunctionLand(landLut).f(x, params);
+        final double[][] actualJaco = TcwvInterpolation.getJForwardFunctionLand(binaryLandLut).f(x, params);
+        for (int i = 0; i < actualJaco.length; i++) {
+            assertArrayEquals(expectedJaco[i], actualJaco[i], 1.E-12);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadLandLutFromOceanFile() throws IOException {
+        final File file = temporaryFolder.newFile("ocean_test.lut");
+        TcwvLutBinaryIO.writeOceanLut(createOceanLut(), file);
+        TcwvLutBinaryIO.readLandLut(file);
+    }
+
+    static TcwvOceanLut createOceanLut() {
+        final double[] wvc = new double[]{1.0, 10.0, 30.0};
+        final double[] aot = new double[]{0.0, 0.2, 0.5};
+        final double[] wsp = new double[]{0.0, 5.0, 10.0};
+        final double[] azi = new double[]{0.0, 90.0, 180.0};
+        final double[] vie = new double[]{0.0, 30.0};
+        final double[] suz = new double[]{0.0, 40.0, 70.0};
+        final int ny = 2;
+        final int nx = 6;
+        double[][][][][][][] lut = new double[3][3][3][3][2][3][3];
+        double[][][][][][][] jlut = new double[3][3][3][3][2][3][ny * nx];
+        int counter = 0;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 3; k++) {
+                    for (int l = 0; l < 3; l++) {
+                        for (int m = 0; m < 2; m++) {
+                            for (int n = 0; n < 3; n++) {
+                                for (int b = 0; b < 3; b++) {
+                                    lut[i][j][k][l][m][n][b] = Math.cos(0.1 * counter++);
+                                }
+                                for (int b = 0; b < ny * nx; b++) {
+                                    jlut[i][j][k][l][m][n][b] = Math.sin(0.1 * counter++);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new TcwvOceanLut(wvc, aot, azi, vie, suz, new int[]{ny, nx}, lut, jlut, wsp);
+    }
+
+    static TcwvLandLut createLandLut() {
+        final double[] wvc = new double[]{1.0, 30.0};
+        final double[] al0 = new double[]{0.0, 0.2, 0.5};
+        final double[] al1 = new double[]{0.0, 0.5};
+        final double[] aot = new double[]{0.0, 0.5};
+        final double[] prs = new double[]{-1000.0, -900.0};
+        final double[] tmp = new double[]{270.0, 300.0};
+        final double[] azi = new double[]{0.0, 180.0};
+        final double[] vie = new double[]{0.0, 30.0};
+        final double[] suz = new double[]{0.0, 70.0};
+        final int ny = 3;
+        final int nx = 9;
+        double[][][][][][][][][][] lut = new double[2][3][2][2][2][2][2][2][2][3];
+        double[][][][][][][][][][] jlut = new double[2][3][2][2][2][2][2][2][2][ny * nx];
+        int counter = 0;
+        for (double[][][][][][][][][] l1 : lut) {
+            for (double[][][][][][][][] l2 : l1) {
+                for (double[][][][][][][] l3 : l2) {
+                    for (double[][][][][][] l4 : l3) {
+                        for (double[][][][][] l5 : l4) {
+                            for (double[][][][] l6 : l5) {
+                                for (double[][][] l7 : l6) {
+                                    for (double[][] l8 : l7) {
+                                        for (double[] l9 : l8) {
+                                            for (int b = 0; b < l9.length; b++) {
+                                                l9[b] = Math.cos(0.1 * counter++);
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        for (double[][][][][][][][][] l1 : jlut) {
+            for (double[][][][][][][][] l2 : l1) {
+                for (double[][][][][][][] l3 : l2) {
+                    for (double[][][][][][] l4 : l3) {
+                        for (double[][][][][] l5 : l4) {
+                            for (double[][][][] l6 : l5) {
+                                for (double[][][] l7 : l6) {
+                                    for (double[][] l8 : l7) {
+                                        for (double[] l9 : l8) {
+                                            for (int b = 0; b < l9.length; b++) {
+                                                l9[b] = Math.sin(0.1 * counter++);
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new TcwvLandLut(wvc, aot, azi, vie, suz, new int[]{ny, nx}, lut, jlut, al0, al1, prs, tmp);
+    }
+}
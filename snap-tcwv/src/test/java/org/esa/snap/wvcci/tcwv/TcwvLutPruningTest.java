@@ -0,0 +1,121 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.interpolation.TcwvInterpolation;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TcwvLutPruningTest {
+
+    @Test
+    public void testGetIndexRange() {
+        final double[] axis = {0.0, 10.0, 20.0, 30.0, 40.0, 50.0};
+        assertArrayEquals(new int[]{0, 4}, TcwvLutPruning.getIndexRange(axis, 12.0, 27.0));
+        assertArrayEquals(new int[]{1, 3}, TcwvLutPruning.getIndexRange(axis, 20.0, 20.0));
+        assertArrayEquals(new int[]{2, 5}, TcwvLutPruning.getIndexRange(axis, 35.0, 50.0));
+        // outside the axis: clamped
+        assertArrayEquals(new int[]{0, 2}, TcwvLutPruning.getIndexRange(axis, -5.0, 3.0));
+        assertArrayEquals(new int[]{3, 5}, TcwvLutPruning.getIndexRange(axis, 55.0, 60.0));
+        // empty range
+        assertArrayEquals(new int[]{0, 5}, TcwvLutPruning.getIndexRange(axis, Double.POSITIVE_INFINITY,
+                                                                         Double.NEGATIVE_INFINITY));
+        assertArrayEquals(new int[]{0, 1}, TcwvLutPruning.getIndexRange(new double[]{0.0, 1.0}, 0.2, 0.3));
+    }
+
+    @Test
+    public void testGeometryRange() {
+        final TcwvLutPruning.GeometryRange range = new TcwvLutPruning.GeometryRange();
+        assertTrue(range.isEmpty());
+        range.addSza(35.0);
+        range.addSza(Double.NaN);
+        range.addSza(80.0);
+        range.limitSza(75.0);
+        assertFalse(range.isEmpty());
+        assertArrayEquals(new double[]{35.0, 75.0}, range.getSzaRange(), 0.0);
+
+        // azimuth difference -10 ... 10 degrees: relative azimuth 170 at the corners, 180 within the cell
+        range.addAzimuthCell(new double[]{100.0, 110.0, 100.0, 110.0}, new double[]{110.0, 100.0, 110.0, 100.0});
+        assertArrayEquals(new double[]{170.0, 180.0}, range.getRelAziRange(), 1.E-10);
+
+        // azimuth difference 175 ... 185 degrees, across the discontinuity: relative azimuth 0 within the cell
+        final TcwvLutPruning.GeometryRange range2 = new TcwvLutPruning.GeometryRange();
+        range2.addAzimuthCell(new double[]{355.0, 5.0, 355.0, Double.NaN}, new double[]{180.0, 180.0, 180.0, 180.0});
+        assertArrayEquals(new double[]{0.0, 5.0}, range2.getRelAziRange(), 1.E-10);
+    }
+
+    @Test
+    public void testPruneOceanLut() {
+        final TcwvOceanLut lut = createOceanLut();
+        lut.setSensor(Sensor.MERIS);
+        final MultiOutputLookupTable forward = TcwvInterpolation.getForwardLookupTable(lut);
+        final MultiOutputLookupTable jacobi = TcwvInterpolation.getJacobiLookupTable(lut);
+
+        final TcwvLutPruning.GeometryRange range = new TcwvLutPruning.GeometryRange();
+        range.addSza(45.0);
+        range.addSza(50.0);
+        range.addRelAzi(100.0);
+        range.addRelAzi(170.0);
+        final TcwvOceanLut prunedLut = TcwvLutPruning.pruneOceanLut(lut, forward, jacobi, range);
+        assertSame(Sensor.MERIS, prunedLut.getSensor());
+        assertArrayEquals(lut.getAxes()[0], prunedLut.getAxes()[0], 0.0);
+        assertArrayEquals(new double[]{45.0, 90.0, 135.0, 180.0}, prunedLut.getAxes()[3], 0.0);
+        assertArrayEquals(lut.getAxes()[4], prunedLut.getAxes()[4], 0.0);
+        assertArrayEquals(new double[]{20.0, 40.0, 60.0, 70.0}, prunedLut.getAxes()[5], 0.0);
+
+        final TcwvFunction function = TcwvInterpolation.lut2Function(forward);
+        final TcwvFunction prunedFunction = TcwvInterpolation.lut2Function(prunedLut.getForwardLookupTable());
+        final JacobiFunction jacobiFunction = TcwvInterpolation.jacobiLut2Function(jacobi, lut.getJaco()[0]);
+        final JacobiFunction prunedJacobiFunction =
+                TcwvInterpolation.jacobiLut2Function(prunedLut.getJacobiLookupTable(), lut.getJaco()[0]);
+        final Random random = new Random(123);
+        for (int i = 0; i < 100; i++) {
+            final double[] x = {1.0 + 29.0 * random.nextDouble(), 0.5 * random.nextDouble(),
+                    10.0 * random.nextDouble()};
+            final double[] params = {100.0 + 70.0 * random.nextDouble(), 30.0 * random.nextDouble(),
+                    45.0 + 5.0 * random.nextDouble()};
+            assertArrayEquals(function.f(x, params), prunedFunction.f(x, params), 1.E-12);
+            final double[][] jaco = jacobiFunction.f(x, params);
+            final double[][] prunedJaco = prunedJacobiFunction.f(x, params);
+            for (int k = 0; k < jaco.length; k++) {
+                assertArrayEquals(jaco[k], prunedJaco[k], 1.E-12);
+            }
+        }
+    }
+
+    private static TcwvOceanLut createOceanLut() {
+        final double[] wvc = new double[]{1.0, 10.0, 30.0};
+        final double[] aot = new double[]{0.0, 0.5};
+        final double[] wsp = new double[]{0.0, 10.0};
+        final double[] azi = new double[]{0.0, 45.0, 90.0, 135.0, 180.0};
+        final double[] vie = new double[]{0.0, 30.0};
+        final double[] suz = new double[]{0.0, 20.0, 40.0, 60.0, 70.0};
+        final int ny = 2;
+        final int nx = 6;
+        double[][][][][][][] lut = new double[3][2][2][5][2][5][3];
+        double[][][][][][][] jlut = new double[3][2][2][5][2][5][ny * nx];
+        int counter = 0;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 2; j++) {
+                for (int k = 0; k < 2; k++) {
+                    for (int l = 0; l < 5; l++) {
+                        for (int m = 0; m < 2; m++) {
+                            for (int n = 0; n < 5; n++) {
+                                for (int b = 0; b < 3; b++) {
+                                    lut[i][j][k][l][m][n][b] = Math.cos(0.1 * counter++);
+                                }
+                                for (int b = 0; b < ny * nx; b++) {
+                                    jlut[i][j][k][l][m][n][b] = Math.sin(0.1 * counter++);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new TcwvOceanLut(wvc, aot, azi, vie, suz, new int[]{ny, nx}, lut, jlut, wsp);
+    }
+}
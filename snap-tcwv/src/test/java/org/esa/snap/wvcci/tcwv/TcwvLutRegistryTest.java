@@ -0,0 +1,211 @@
+package org.esa.snap.wvcci.tcwv;
+
+import org.esa.snap.wvcci.tcwv.interpolation.LutPrecision;
+import org.esa.snap.wvcci.tcwv.interpolation.MultiOutputLookupTable;
+import org.esa.snap.wvcci.tcwv.util.GarbageCollectionTestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TcwvLutRegistryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String auxdataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        final File auxdataDir = temporaryFolder.getRoot();
+        auxdataPath = auxdataDir.getAbsolutePath();
+        // synthetic LUTs, provided under the names of the MERIS LUTs
+        TcwvLutBinaryIO.writeLandLut(TcwvLutBinaryIOTest.createLandLut(),
+                                     new File(auxdataDir, TcwvLutBinaryIO.getBinaryLutFileName(Sensor.MERIS.getLandLutName())));
+        TcwvLutBinaryIO.writeOceanLut(TcwvLutBinaryIOTest.createOceanLut(),
+                                      new File(auxdataDir, TcwvLutBinaryIO.getBinaryLutFileName(Sensor.MERIS.getOceanLutName())));
+    }
+
+    @Test
+    public void testAcquireAndRelease() {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+
+        final TcwvLutRegistry.Luts luts1 = registry.acquire(auxdataPath, Sensor.MERIS, true);
+        final TcwvLutRegistry.Luts luts2 = registry.acquire(auxdataPath, Sensor.MERIS, true);
+        assertNotNull(luts1.getLandLut());
+        assertNotNull(luts1.getOceanLut());
+        assertSame(Sensor.MERIS, luts1.getLandLut().getSensor());
+        assertSame(luts1.getLandLut(), luts2.getLandLut());
+        assertSame(luts1.getTcwvFunctionLand(), luts2.getTcwvFunctionLand());
+        assertSame(luts1.getJacobiFunctionLand(), luts2.getJacobiFunctionLand());
+        assertSame(luts1.getTcwvFunctionOcean(), luts2.getTcwvFunctionOcean());
+        assertSame(luts1.getJacobiFunctionOcean(), luts2.getJacobiFunctionOcean());
+        assertEquals(4, registry.getReferenceCount(Sensor.MERIS));
+
+        // land only: land LUT is shared
+        final TcwvLutRegistry.Luts luts3 = registry.acquire(auxdataPath, Sensor.MERIS, false);
+        assertSame(luts1.getLandLut(), luts3.getLandLut());
+        assertNull(luts3.getOceanLut());
+        assertNull(luts3.getTcwvFunctionOcean());
+        assertEquals(5, registry.getReferenceCount(Sensor.MERIS));
+
+        registry.release(luts1);
+        registry.release(luts1);    // no effect
+        registry.release(luts3);
+        assertEquals(2, registry.getReferenceCount(Sensor.MERIS));
+        registry.release(luts2);
+        assertEquals(0, registry.getReferenceCount(Sensor.MERIS));
+        registry.release(null);
+    }
+
+    @Test
+    public void testAcquireWithAnalyticJacobian() {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+
+        final TcwvLutRegistry.Luts storedLuts = registry.acquire(auxdataPath, Sensor.MERIS, true, false);
+        final TcwvLutRegistry.Luts analyticLuts = registry.acquire(auxdataPath, Sensor.MERIS, true, true);
+        final TcwvLutRegistry.Luts analyticLuts2 = registry.acquire(auxdataPath, Sensor.MERIS, true, true);
+        assertNotSame(storedLuts.getLandLut(), analyticLuts.getLandLut());
+        assertNotSame(storedLuts.getJacobiFunctionLand(), analyticLuts.getJacobiFunctionLand());
+        assertSame(analyticLuts.getJacobiFunctionLand(), analyticLuts2.getJacobiFunctionLand());
+        assertSame(analyticLuts.getJacobiFunctionOcean(), analyticLuts2.getJacobiFunctionOcean());
+        assertEquals(6, registry.getReferenceCount(Sensor.MERIS));
+
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] params = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 33.0};
+        final double[][] jaco = analyticLuts.getJacobiFunctionLand().f(x, params);
+        assertEquals(storedLuts.getJacobiFunctionLand().f(x, params).length, jaco.length);
+        assertEquals(3, jaco[0].length);
+
+        registry.release(storedLuts);
+        registry.release(analyticLuts);
+        registry.release(analyticLuts2);
+        assertEquals(0, registry.getReferenceCount(Sensor.MERIS));
+    }
+
+    @Test
+    public void testAcquireWithReducedPrecision() {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+
+        final TcwvLutRegistry.Luts doubleLuts = registry.acquire(auxdataPath, Sensor.MERIS, true);
+        final TcwvLutRegistry.Luts floatLuts =
+                registry.acquire(auxdataPath, Sensor.MERIS, true, false, LutPrecision.FLOAT);
+        assertNotSame(doubleLuts.getLandLut(), floatLuts.getLandLut());
+        assertSame(LutPrecision.FLOAT, floatLuts.getLandLut().getForwardLookupTable().getPrecision());
+        assertSame(LutPrecision.FLOAT, floatLuts.getOceanLut().getJacobiLookupTable().getPrecision());
+        assertSame(Sensor.MERIS, floatLuts.getOceanLut().getSensor());
+
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] params = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 33.0};
+        assertArrayEquals(doubleLuts.getTcwvFunctionLand().f(x, params), floatLuts.getTcwvFunctionLand().f(x, params),
+                          1.E-6);
+
+        registry.release(doubleLuts);
+        registry.release(floatLuts);
+        assertEquals(0, registry.getReferenceCount(Sensor.MERIS));
+    }
+
+    @Test
+    public void testPruneGeometry() {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+
+        final TcwvLutRegistry.Luts luts = registry.acquire(auxdataPath, Sensor.MERIS, true);
+        final TcwvLutPruning.GeometryRange range = new TcwvLutPruning.GeometryRange();
+        range.addSza(50.0);
+        range.addSza(60.0);
+        final TcwvLutRegistry.Luts prunedLuts = luts.pruneGeometry(range);
+        assertNotSame(luts.getLandLut(), prunedLuts.getLandLut());
+        assertNotSame(luts.getTcwvFunctionOcean(), prunedLuts.getTcwvFunctionOcean());
+        assertSame(Sensor.MERIS, prunedLuts.getOceanLut().getSensor());
+        assertArrayEquals(new double[]{0.0, 40.0, 70.0}, prunedLuts.getOceanLut().getAxes()[5], 0.0);
+
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] params = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 55.0};
+        assertArrayEquals(luts.getTcwvFunctionLand().f(x, params), prunedLuts.getTcwvFunctionLand().f(x, params),
+                          1.E-12);
+
+        // pruned LUTs share the references of the acquired ones
+        assertEquals(2, registry.getReferenceCount(Sensor.MERIS));
+        registry.release(prunedLuts);
+        registry.release(luts);     // no effect
+        assertEquals(0, registry.getReferenceCount(Sensor.MERIS));
+    }
+
+    @Test
+    public void testReleasedLutsUsedOnWorkerThreadsCanBeEvicted() throws Exception {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (boolean analyticJacobian : new boolean[]{false, true}) {
+                final List<WeakReference<MultiOutputLookupTable>> tableReferences =
+                        acquireInterpolateAndRelease(registry, executor, analyticJacobian);
+                assertEquals(0, registry.getReferenceCount(Sensor.MERIS));
+                for (WeakReference<MultiOutputLookupTable> tableReference : tableReferences) {
+                    assertNotNull(tableReference.get());
+                }
+
+                registry.evictReleased();
+                for (WeakReference<MultiOutputLookupTable> tableReference : tableReferences) {
+                    assertTrue(GarbageCollectionTestUtils.isCollected(tableReference));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // interpolates the acquired LUTs on the worker threads (as the tiles of a TcwvOp), and releases them
+    private List<WeakReference<MultiOutputLookupTable>> acquireInterpolateAndRelease(TcwvLutRegistry registry,
+                                                                                     ExecutorService executor,
+                                                                                     boolean analyticJacobian)
+            throws Exception {
+        final TcwvLutRegistry.Luts luts = registry.acquire(auxdataPath, Sensor.MERIS, true, analyticJacobian);
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] landParams = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 33.0};
+        final double[] oceanParams = new double[]{77.0, 5.0, 33.0};
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(() -> {
+                luts.getJacobiFunctionLand().f(x, landParams);
+                luts.getTcwvFunctionLand().f(x, landParams);
+                luts.getJacobiFunctionOcean().f(x, oceanParams);
+                luts.getTcwvFunctionOcean().f(x, oceanParams);
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        final List<WeakReference<MultiOutputLookupTable>> tableReferences = new ArrayList<>();
+        tableReferences.add(new WeakReference<>(luts.getLandLut().getForwardLookupTable()));
+        tableReferences.add(new WeakReference<>(luts.getOceanLut().getForwardLookupTable()));
+        if (!analyticJacobian) {
+            tableReferences.add(new WeakReference<>(luts.getLandLut().getJacobiLookupTable()));
+            tableReferences.add(new WeakReference<>(luts.getOceanLut().getJacobiLookupTable()));
+        }
+        registry.release(luts);
+        return tableReferences;
+    }
+
+    @Test
+    public void testAcquireNotExistingLut() {
+        final TcwvLutRegistry registry = new TcwvLutRegistry();
+        try {
+            registry.acquire(auxdataPath, Sensor.OLCI, false);
+            fail("Exception expected");
+        } catch (RuntimeException expected) {
+            assertEquals(0, registry.getReferenceCount(Sensor.OLCI));
+        }
+    }
+}
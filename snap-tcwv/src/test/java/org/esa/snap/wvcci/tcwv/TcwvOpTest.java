@@ -1,14 +1,31 @@
 package org.esa.snap.wvcci.tcwv;
 
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.TiePointGrid;
 import org.esa.snap.core.gpf.GPF;
 import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.OperatorSpiRegistry;
+import org.esa.snap.wvcci.tcwv.util.GarbageCollectionTestUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
 public class TcwvOpTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testOperatorSpiIsLoaded() {
         OperatorSpiRegistry registry = GPF.getDefaultInstance().getOperatorSpiRegistry();
@@ -19,4 +36,91 @@ public class TcwvOpTest {
         assertSame(operatorSpi.getOperatorClass(), operatorSpi.getOperatorDescriptor().getOperatorClass());
     }
 
+    @Test
+    public void testPrunedLutsOfDisposedOperatorCanBeCollected() throws Exception {
+        final File auxdataDir = temporaryFolder.getRoot();
+        // synthetic LUTs, provided under the names of the MERIS LUTs
+        TcwvLutBinaryIO.writeLandLut(TcwvLutBinaryIOTest.createLandLut(),
+                                     new File(auxdataDir, TcwvLutBinaryIO.getBinaryLutFileName(Sensor.MERIS.getLandLutName())));
+        TcwvLutBinaryIO.writeOceanLut(TcwvLutBinaryIOTest.createOceanLut(),
+                                      new File(auxdataDir, TcwvLutBinaryIO.getBinaryLutFileName(Sensor.MERIS.getOceanLutName())));
+
+        final TcwvOp tcwvOp = new TcwvOp();
+        tcwvOp.setParameterDefaultValues();
+        tcwvOp.setParameter("sensor", Sensor.MERIS);
+        tcwvOp.setParameter("auxdataPath", auxdataDir.getAbsolutePath());
+        tcwvOp.setParameter("pruneLutGeometry", true);
+        tcwvOp.setSourceProduct("sourceProduct", createMerisSourceProduct());
+        assertNotNull(tcwvOp.getTargetProduct());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<WeakReference<Object>> prunedReferences = interpolateOnWorkerThreads(tcwvOp, executor);
+            for (WeakReference<Object> prunedReference : prunedReferences) {
+                assertNotNull(prunedReference.get());
+            }
+
+            // the operator itself may still be referenced (e.g. by a graph), its pruned LUTs must not
+            tcwvOp.dispose();
+            for (WeakReference<Object> prunedReference : prunedReferences) {
+                assertTrue(GarbageCollectionTestUtils.isCollected(prunedReference));
+            }
+            assertNull(tcwvOp.getLuts());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // interpolates the pruned LUTs of the operator on the worker threads (as its tiles), and refers to them weakly
+    private static List<WeakReference<Object>> interpolateOnWorkerThreads(TcwvOp tcwvOp, ExecutorService executor)
+            throws Exception {
+        final TcwvLutRegistry.Luts luts = tcwvOp.getLuts();
+        final double[] x = new double[]{22.0, 0.11, 0.27};
+        final double[] landParams = new double[]{0.1, -950.0, 285.0, 77.0, 5.0, 55.0};
+        final double[] oceanParams = new double[]{77.0, 5.0, 55.0};
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(() -> {
+                luts.getJacobiFunctionLand().f(x, landParams);
+                luts.getTcwvFunctionLand().f(x, landParams);
+                luts.getJacobiFunctionOcean().f(x, oceanParams);
+                luts.getTcwvFunctionOcean().f(x, oceanParams);
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        final List<WeakReference<Object>> prunedReferences = new ArrayList<>();
+        prunedReferences.add(new WeakReference<>(luts.getTcwvFunctionLand()));
+        prunedReferences.add(new WeakReference<>(luts.getJacobiFunctionLand()));
+        prunedReferences.add(new WeakReference<>(luts.getTcwvFunctionOcean()));
+        prunedReferences.add(new WeakReference<>(luts.getJacobiFunctionOcean()));
+        prunedReferences.add(new WeakReference<>(luts.getLandLut().getForwardLookupTable()));
+        prunedReferences.add(new WeakReference<>(luts.getLandLut().getJacobiLookupTable()));
+        prunedReferences.add(new WeakReference<>(luts.getOceanLut().getForwardLookupTable()));
+        prunedReferences.add(new WeakReference<>(luts.getOceanLut().getJacobiLookupTable()));
+        return prunedReferences;
+    }
+
+    private static Product createMerisSourceProduct() {
+        final Product product = new Product("MER_RR__1P_TEST", "MER_RR__1P", 4, 4);
+        product.addBand(TcwvConstants.PIXEL_CLASSIF_BAND_NAME, ProductData.TYPE_INT16);
+        for (String bandName : Sensor.MERIS.getReflBandNames()) {
+            product.addBand(bandName, ProductData.TYPE_FLOAT32);
+        }
+        final String[] tpgNames = Sensor.MERIS.getTpgNames();
+        product.addTiePointGrid(createTiePointGrid(tpgNames[0], 50.0f, 55.0f));
+        product.addTiePointGrid(createTiePointGrid(tpgNames[1], 10.0f, 20.0f));
+        product.addTiePointGrid(createTiePointGrid(tpgNames[2], 100.0f, 110.0f));
+        product.addTiePointGrid(createTiePointGrid(tpgNames[3], 200.0f, 210.0f));
+        product.addTiePointGrid(createTiePointGrid(tpgNames[4], 50.0f, 51.0f));
+        product.addTiePointGrid(createTiePointGrid(tpgNames[5], 10.0f, 11.0f));
+        return product;
+    }
+
+    private static TiePointGrid createTiePointGrid(String name, float min, float max) {
+        return new TiePointGrid(name, 2, 2, 0.5, 0.5, 3.0, 3.0, new float[]{min, max, min, max});
+    }
+
 }
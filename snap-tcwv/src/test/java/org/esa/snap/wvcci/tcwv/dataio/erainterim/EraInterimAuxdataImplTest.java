@@ -0,0 +1,58 @@
+package org.esa.snap.wvcci.tcwv.dataio.erainterim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EraInterimAuxdataImplTest {
+
+    @Test
+    public void testComputeNeighbours() {
+        final int[] gridIndices = new int[9];
+        final double[] weights = new double[9];
+
+        // inner position, at a cell center: 9 cells, the center cell has the largest weight
+        int numNeighbours = EraInterimAuxdataImpl.computeNeighbours(2.5, 3.5, 10, 8, gridIndices, weights);
+        assertEquals(9, numNeighbours);
+        assertEquals(1.0, sum(weights, numNeighbours), 1.E-12);
+        assertEquals(3 * 10 + 2, gridIndices[4]);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(weights[i] <= weights[4]);
+        }
+
+        // first column: wrapped to the last column
+        numNeighbours = EraInterimAuxdataImpl.computeNeighbours(0.2, 3.5, 10, 8, gridIndices, weights);
+        assertEquals(9, numNeighbours);
+        assertEquals(3 * 10 + 9, gridIndices[1]);
+
+        // first row: cut
+        numNeighbours = EraInterimAuxdataImpl.computeNeighbours(2.5, 0.5, 10, 8, gridIndices, weights);
+        assertEquals(6, numNeighbours);
+        assertEquals(1.0, sum(weights, numNeighbours), 1.E-12);
+    }
+
+    @Test
+    public void testRegularLatLonGrid() {
+        // global 0.75 degree grid, from north to south, first column centered at 0 degrees
+        final EraInterimAuxdataImpl.RegularLatLonGrid grid =
+                new EraInterimAuxdataImpl.RegularLatLonGrid(0.0, 0.75, 90.0, -0.75, 480);
+
+        assertEquals(0.5, grid.getPixelY(90.0), 1.E-10);
+        assertEquals(60.5, grid.getPixelY(45.0), 1.E-10);
+        assertEquals(0.5, grid.getPixelX(0.0), 1.E-10);
+        assertEquals(20.5, grid.getPixelX(15.0), 1.E-10);
+        // western longitudes, as -180..180 or 0..360
+        assertEquals(360.5, grid.getPixelX(-90.0), 1.E-10);
+        assertEquals(360.5, grid.getPixelX(270.0), 1.E-10);
+        // just west of the first column center
+        assertEquals(480.1, grid.getPixelX(-0.3), 1.E-10);
+    }
+
+    private static double sum(double[] values, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,30 @@
+package org.esa.snap.wvcci.tcwv.dataio.mod35;
+
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ModisMod35L2ProductReaderTest {
+
+    @Test
+    public void testDisposingFlippedMydProductClosesReader() {
+        final ModisMod35L2ProductReader reader =
+                new ModisMod35L2ProductReader(new ModisMod35L2ProductReaderPlugIn());
+        final Product unflippedProduct = new Product("MYD35_L2.A2011196.1055.061.2017325012717.hdf",
+                                                     ModisMod35L2Constants.MOD35_l2_PRODUCT_TYPE, 4, 3);
+        unflippedProduct.addBand(ModisMod35L2Constants.CLOUD_MASK_BYTE_TARGET_BAND_NAME + 1, ProductData.TYPE_INT8);
+        unflippedProduct.setProductReader(reader);
+
+        final Product flippedProduct = reader.flipMydProduct(unflippedProduct);
+        assertNotSame(unflippedProduct, flippedProduct);
+        assertEquals(unflippedProduct.getName(), flippedProduct.getName());
+        assertSame(reader, flippedProduct.getProductReader());
+
+        // disposing the returned product must close the reader, which in turn disposes the unflipped product
+        flippedProduct.dispose();
+        assertNull(flippedProduct.getProductReader());
+        assertNull(unflippedProduct.getProductReader());
+    }
+}
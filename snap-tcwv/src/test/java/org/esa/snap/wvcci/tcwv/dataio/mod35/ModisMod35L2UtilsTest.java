@@ -5,6 +5,7 @@ import org.esa.snap.core.datamodel.ProductData;
 import org.junit.Test;
 
 import static junit.framework.TestCase.assertNotNull;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class ModisMod35L2UtilsTest {
@@ -155,4 +156,86 @@ public class ModisMod35L2UtilsTest {
         System.out.println("p.getStartTime() = " + p.getStartTime());
         System.out.println("p.getEndTime() = " + p.getEndTime());
     }
+
+    @Test
+    public void testExtractQualityAssuranceDimension() {
+        // 2 x 3 pixels, QA dimension 4, element = 10 * pixel + QA index
+        final int qualityAssuranceDim = 4;
+        final byte[] qualityAssuranceData = new byte[6 * qualityAssuranceDim];
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < qualityAssuranceDim; j++) {
+                qualityAssuranceData[i * qualityAssuranceDim + j] = (byte) (10 * i + j);
+            }
+        }
+
+        final byte[] dest = new byte[6];
+        ModisMod35L2Utils.extractQualityAssuranceDimension(qualityAssuranceData, qualityAssuranceDim, 0, dest, 6);
+        assertArrayEquals(new byte[]{0, 10, 20, 30, 40, 50}, dest);
+        ModisMod35L2Utils.extractQualityAssuranceDimension(qualityAssuranceData, qualityAssuranceDim, 3, dest, 6);
+        assertArrayEquals(new byte[]{3, 13, 23, 33, 43, 53}, dest);
+    }
+
+    @Test
+    public void testGetCloudMaskHyperslab() {
+        // 'Cloud_Mask' is (byte segment, y, x): 2 segments of 7 x 5 pixels, element = 100 * segment + 10 * y + x
+        final long[] dims = {2, 7, 5};
+        final byte[] cloudMask = new byte[2 * 7 * 5];
+        for (int i = 0; i < cloudMask.length; i++) {
+            cloudMask[i] = (byte) (100 * (i / 35) + 10 * (i % 35 / 5) + i % 5);
+        }
+
+        final long[][] hyperslab = ModisMod35L2Utils.getCloudMaskHyperslab(1, 2, 2, 3, 3, 2);
+        assertArrayEquals(new long[]{0, 2, 1}, hyperslab[0]);
+        assertArrayEquals(new long[]{1, 3, 2}, hyperslab[1]);
+        assertArrayEquals(new long[]{1, 2, 3}, hyperslab[2]);
+        // first segment, rows 2, 4, 6 and columns 1, 4
+        assertArrayEquals(new byte[]{21, 24, 41, 44, 61, 64}, selectHyperslab(cloudMask, dims, hyperslab));
+    }
+
+    @Test
+    public void testGetQualityAssuranceHyperslab() {
+        // 'Quality_Assurance' is (y, x, QA dimension): 6 x 4 pixels, QA dimension 3, element = 10 * y + x + 100 * QA
+        final int qualityAssuranceDim = 3;
+        final long[] dims = {6, 4, qualityAssuranceDim};
+        final byte[] qualityAssurance = new byte[6 * 4 * qualityAssuranceDim];
+        for (int i = 0; i < qualityAssurance.length; i++) {
+            final int pixel = i / qualityAssuranceDim;
+            qualityAssurance[i] = (byte) (10 * (pixel / 4) + pixel % 4 + 100 * (i % qualityAssuranceDim));
+        }
+
+        final long[][] hyperslab = ModisMod35L2Utils.getQualityAssuranceHyperslab(1, 1, 2, 2, 2, 3,
+                                                                                  qualityAssuranceDim);
+        assertArrayEquals(new long[]{1, 1, 0}, hyperslab[0]);
+        assertArrayEquals(new long[]{2, 2, qualityAssuranceDim}, hyperslab[1]);
+        assertArrayEquals(new long[]{3, 2, 1}, hyperslab[2]);
+        final byte[] qualityAssuranceData = selectHyperslab(qualityAssurance, dims, hyperslab);
+        assertEquals(4 * qualityAssuranceDim, qualityAssuranceData.length);
+
+        // rows 1, 4 and columns 1, 3
+        final byte[] dest = new byte[4];
+        ModisMod35L2Utils.extractQualityAssuranceDimension(qualityAssuranceData, qualityAssuranceDim, 0, dest, 4);
+        assertArrayEquals(new byte[]{11, 13, 41, 43}, dest);
+        ModisMod35L2Utils.extractQualityAssuranceDimension(qualityAssuranceData, qualityAssuranceDim, 1, dest, 4);
+        assertArrayEquals(new byte[]{111, 113, (byte) 141, (byte) 143}, dest);
+    }
+
+    // the selection of a hyperslab from a 3D dataset in row-major order, as done by the HDF4 library
+    private static byte[] selectHyperslab(byte[] data, long[] dims, long[][] hyperslab) {
+        final long[] start = hyperslab[0];
+        final long[] count = hyperslab[1];
+        final long[] stride = hyperslab[2];
+        final byte[] selection = new byte[(int) (count[0] * count[1] * count[2])];
+        int index = 0;
+        for (int i = 0; i < count[0]; i++) {
+            for (int j = 0; j < count[1]; j++) {
+                for (int k = 0; k < count[2]; k++) {
+                    final long i0 = start[0] + i * stride[0];
+                    final long i1 = start[1] + j * stride[1];
+                    final long i2 = start[2] + k * stride[2];
+                    selection[index++] = data[(int) ((i0 * dims[1] + i1) * dims[2] + i2)];
+                }
+            }
+        }
+        return selection;
+    }
 }
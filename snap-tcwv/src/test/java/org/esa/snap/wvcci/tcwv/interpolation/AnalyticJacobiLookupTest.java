@@ -0,0 +1,178 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import org.esa.snap.wvcci.tcwv.TcwvFunction;
+import org.esa.snap.wvcci.tcwv.util.GarbageCollectionTestUtils;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class AnalyticJacobiLookupTest {
+
+    private static final int NY = 3;
+
+    // state: 3 axes, parameters: 2 axes
+    private static final double[][] AXES = {
+            {1.0, 2.0, 3.0, 4.0, 5.0, 6.0},
+            {0.0, 0.25, 0.5, 0.75, 1.0},
+            {0.0, 0.5, 1.0},
+            {0.0, 30.0, 60.0},
+            {-7.0, -6.9, -6.5}
+    };
+
+    @Test
+    public void testForwardFunctionAsLut2Function() {
+        final MultiOutputLookupTable forwardLut = createForwardTable();
+        final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(forwardLut, 3);
+        final TcwvFunction expectedFunction = TcwvInterpolation.lut2Function(forwardLut);
+        final TcwvFunction forwardFunction = lookup.getForwardFunction();
+
+        final Random random = new Random(17);
+        for (int i = 0; i < 100; i++) {
+            final double[] x = createState(random);
+            final double[] params = createParams(random);
+            assertArrayEquals(expectedFunction.f(x, params), forwardFunction.f(x, params), 0.0);
+        }
+    }
+
+    @Test
+    public void testJacobiFunctionReusesForwardEvaluation() {
+        final MultiOutputLookupTable forwardLut = createForwardTable();
+        final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(forwardLut, 3);
+        final AnalyticJacobiLookup otherLookup = new AnalyticJacobiLookup(forwardLut, 3);
+
+        final Random random = new Random(4711);
+        for (int i = 0; i < 100; i++) {
+            final double[] x = createState(random);
+            final double[] params = createParams(random);
+            // Jacobian without preceding forward call, must be the same as after the forward call
+            final double[][] expected = otherLookup.getJacobiFunction().f(x, params);
+            lookup.getForwardFunction().f(x, params);
+            final double[][] jaco = lookup.getJacobiFunction().f(x, params);
+            assertEquals(NY, jaco.length);
+            for (int k = 0; k < NY; k++) {
+                assertArrayEquals(expected[k], jaco[k], 0.0);
+            }
+        }
+
+        // state outside the LUT range gives the same Jacobian as the clipped state used by the forward function
+        final double[] params = {10.0, -6.8};
+        lookup.getForwardFunction().f(new double[]{6.0, 0.0, 0.3}, params);
+        final double[][] jaco = lookup.getJacobiFunction().f(new double[]{7.5, -0.2, 0.3}, params);
+        final double[][] expected = otherLookup.getJacobiFunction().f(new double[]{6.0, 0.0, 0.3}, params);
+        for (int k = 0; k < NY; k++) {
+            assertArrayEquals(expected[k], jaco[k], 0.0);
+        }
+    }
+
+    @Test
+    public void testAccuracyReport() {
+        final JacobiAccuracyReport report =
+                JacobiAccuracyReport.compute(createForwardTable(), createJacobiTable(), 3, 1000, 0L);
+        assertEquals(1000, report.getNumSamples());
+        assertEquals(0.75, report.getSavedLutFraction(), 1.E-12);
+        // forward model linear in al0, al1: exact
+        assertEquals(0.0, report.getMaxDeviation(1), 1.E-10);
+        assertEquals(0.0, report.getMaxDeviation(2), 1.E-10);
+        // quadratic in wvc: the cell slope deviates by at most 0.004 * (cell width / 2)
+        assertTrue(report.getMaxDeviation(0) <= 0.002 + 1.E-10);
+        assertTrue(report.getRmsDeviation(0) > 0.0);
+        assertTrue(report.getRelativeRmsDeviation(0) < 0.02);
+        assertTrue(report.toString().contains("column 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongStateDimension() {
+        final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(createForwardTable(), 3);
+        lookup.getJacobiFunction().f(new double[]{1.0, 0.5}, new double[]{10.0, -6.8});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAccuracyReportForNotMatchingJacobiLut() {
+        JacobiAccuracyReport.compute(createForwardTable(), createForwardTable(), 3, 10, 0L);
+    }
+
+    @Test
+    public void testLookupUsedOnPooledThreadCanBeCollected() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final WeakReference<MultiOutputLookupTable> lutReference = evaluateOnThread(executor);
+            assertTrue(GarbageCollectionTestUtils.isCollected(lutReference));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // fills the per-thread evaluation of a pooled thread, and drops lookup and LUT
+    private static WeakReference<MultiOutputLookupTable> evaluateOnThread(ExecutorService executor)
+            throws Exception {
+        final MultiOutputLookupTable forwardLut = createForwardTable();
+        final AnalyticJacobiLookup lookup = new AnalyticJacobiLookup(forwardLut, 3);
+        executor.submit(() -> {
+            final double[] x = {2.5, 0.5, 0.3};
+            final double[] params = {10.0, -6.8};
+            lookup.getForwardFunction().f(x, params);
+            lookup.getJacobiFunction().f(x, params);
+        }).get();
+        return new WeakReference<>(forwardLut);
+    }
+
+    private static double[] createState(Random random) {
+        return new double[]{1.0 + 5.0 * random.nextDouble(), random.nextDouble(), random.nextDouble()};
+    }
+
+    private static double[] createParams(Random random) {
+        return new double[]{60.0 * random.nextDouble(), -7.0 + 0.5 * random.nextDouble()};
+    }
+
+    // window band depends on al0, al1 and geometry, absorption bands also on wvc (quadratic)
+    private static MultiOutputLookupTable createForwardTable() {
+        return createTable(NY, (c, values) -> {
+            for (int b = 0; b < NY; b++) {
+                values[b] = 0.05 * (b + 1) + 0.1 * c[1] + 0.05 * c[2] + 0.001 * c[3] + 0.01 * c[4];
+                if (b > 0) {
+                    values[b] += 0.08 * c[0] + 0.002 * c[0] * c[0];
+                }
+            }
+        });
+    }
+
+    // exact derivatives of the forward model with respect to the state
+    private static MultiOutputLookupTable createJacobiTable() {
+        return createTable(NY * 3, (c, values) -> {
+            for (int b = 0; b < NY; b++) {
+                values[b * 3] = b > 0 ? 0.08 + 0.004 * c[0] : 0.0;
+                values[b * 3 + 1] = 0.1;
+                values[b * 3 + 2] = 0.05;
+            }
+        });
+    }
+
+    private static MultiOutputLookupTable createTable(int numOutputs, NodeFunction function) {
+        int numNodes = 1;
+        for (double[] axis : AXES) {
+            numNodes *= axis.length;
+        }
+        double[] values = new double[numNodes * numOutputs];
+        double[] coordinates = new double[AXES.length];
+        double[] nodeValues = new double[numOutputs];
+        for (int node = 0; node < numNodes; node++) {
+            int rest = node;
+            for (int i = AXES.length - 1; i >= 0; i--) {
+                coordinates[i] = AXES[i][rest % AXES[i].length];
+                rest /= AXES[i].length;
+            }
+            function.compute(coordinates, nodeValues);
+            System.arraycopy(nodeValues, 0, values, node * numOutputs, numOutputs);
+        }
+        return new MultiOutputLookupTable(values, numOutputs, AXES);
+    }
+
+    private interface NodeFunction {
+        void compute(double[] coordinates, double[] values);
+    }
+}
@@ -0,0 +1,451 @@
+package org.esa.snap.wvcci.tcwv.interpolation;
+
+import org.esa.snap.wvcci.tcwv.TcwvFunction;
+import org.esa.snap.wvcci.tcwv.util.GarbageCollectionTestUtils;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+
+public class MultiOutputLookupTableTest {
+
+    // same test values as in TcwvLutTest, which uses one SNAP LookupTable per output
+
+    @Test
+    public void testGetValues_2D_allOutputs() {
+        double[] axis1 = new double[]{3.f, 4.f, 6.f, 7.f, 9.f, 15.f};
+        double[] axis2 = new double[]{1.f, 5.f, 10.f, 15.f};
+
+        double[][] testLutArr = new double[][]{
+                {0.f, 1.f, 2.f, 3.f},
+                {4.f, 5.f, 6.f, 7.f},
+                {8.f, 9.f, 10.f, 11.f},
+                {12.f, 13.f, 14.f, 15.f},
+                {16.f, 17.f, 18.f, 19.f},
+                {20.f, 21.f, 22.f, 23.f}
+        };
+        double[][] testLutArr2 = new double[][]{
+                {0.f, 36.f, 144.f, 324.f},
+                {1.f, 49.f, 169.f, 361.f},
+                {4.f, 64.f, 196.f, 400.f},
+                {9.f, 81.f, 225.f, 441.f},
+                {16.f, 100.f, 256.f, 484.f},
+                {25.f, 121.f, 289.f, 529.f}
+        };
+        double[][] testLutArr3 = new double[][]{
+                {0.f, 2.44949f, 3.464102f, 4.24264f},
+                {1.f, 2.645751f, 3.605551f, 4.358898f},
+                {1.4142135f, 2.828427f, 3.741657f, 4.472136f},
+                {1.7320508f, 3.f, 3.872983f, 4.582577f},
+                {2.f, 3.162776f, 4.f, 4.690416f},
+                {2.236068f, 3.316624f, 4.123106f, 4.795831f}
+        };
+
+        double[][] allLuts = new double[][]{
+                TcwvInterpolationUtils.convert2Dto1DArray(testLutArr),
+                TcwvInterpolationUtils.convert2Dto1DArray(testLutArr2),
+                TcwvInterpolationUtils.convert2Dto1DArray(testLutArr3)
+        };
+
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(allLuts, new double[][]{axis1, axis2});
+        assertEquals(3, lut.getNumOutputs());
+        assertEquals(2, lut.getNumDims());
+
+        double[] values = new double[3];
+        // coordinates split into 'state' and 'params' part
+        lut.getValues(new double[]{3.5}, new double[]{11.0}, values);
+        assertEquals(4.2, values[0], 1.E-6);
+        assertEquals(193.7, values[1], 1.E-6);
+        assertEquals(3.688015, values[2], 1.E-6);
+
+        lut.getValues(new double[]{3.5, 11.0}, null, values);
+        assertEquals(4.2, values[0], 1.E-6);
+        assertEquals(193.7, values[1], 1.E-6);
+        assertEquals(3.688015, values[2], 1.E-6);
+
+        // exactly on nodes
+        lut.getValues(new double[]{6.0, 10.0}, null, values);
+        assertEquals(10.0, values[0], 1.E-12);
+        assertEquals(196.0, values[1], 1.E-12);
+
+        final TcwvFunction tcwvFunction = TcwvInterpolation.lut2Function(allLuts, new double[][]{axis1, axis2});
+        final double[] fValues = tcwvFunction.f(new double[]{3.5}, new double[]{11.0});
+        assertEquals(3, fValues.length);
+        assertEquals(4.2, fValues[0], 1.E-6);
+        assertEquals(193.7, fValues[1], 1.E-6);
+        assertEquals(3.688015, fValues[2], 1.E-6);
+    }
+
+    @Test
+    public void testGetValues_3D_clamped() {
+        double[] axis1 = new double[]{1.f, 2.f};
+        double[] axis2 = new double[]{3.f, 4.f, 5.f};
+        double[] axis3 = new double[]{6.f, 7.f, 8.f, 9.f};
+
+        double[][][] testLutArr = new double[][][]{
+                {
+                        {0.f, 1.f, 2.f, 3.f},
+                        {4.f, 5.f, 6.f, 7.f},
+                        {8.f, 9.f, 10.f, 11.f},
+                },
+                {
+                        {12.f, 13.f, 14.f, 15.f},
+                        {16.f, 17.f, 18.f, 19.f},
+                        {20.f, 21.f, 22.f, 23.f},
+                }
+        };
+
+        final double[] testLutArrAs1D = TcwvInterpolationUtils.convertNDto1DArray(testLutArr, null);
+        assertArrayEquals(TcwvInterpolationUtils.convert3Dto1DArray(testLutArr), testLutArrAs1D, 0.0);
+
+        final MultiOutputLookupTable lut =
+                new MultiOutputLookupTable(testLutArrAs1D, 1, new double[][]{axis1, axis2, axis3});
+        double[] values = new double[1];
+        lut.getValues(new double[]{3.5, 11.0, 7.2}, null, values);
+        assertEquals(21.2, values[0], 1.E-6);
+
+        lut.getValues(new double[]{1.7, 4.1, 8.2}, null, values);
+        assertEquals(15.0, values[0], 1.E-6);
+
+        lut.getValues(new double[]{-3.0, -11.0, -7.2}, null, values);
+        assertEquals(0.0, values[0], 1.E-6);
+    }
+
+    @Test
+    public void testGetValues_6D() {
+        double[] axis1 = new double[]{1.f, 2.f};
+        double[] axis2 = new double[]{3.f, 4.f, 5.f};
+        double[] axis3 = new double[]{6.f, 7.f, 8.f, 9.f};
+        double[] axis4 = new double[]{10.f, 11.f, 12.f, 13.f, 14.f};
+        double[] axis5 = new double[]{15.f, 16.f, 17.f, 18.f, 19.f, 20.f};
+        double[] axis6 = new double[]{21.f, 22.f, 23.f, 24.f, 25.f, 26.f, 27.f};
+
+        // two outputs: the function from TcwvLutTest.testTcwvLut_6D and a linear one
+        double[][][][][][][] testLutArr = new double[2][3][4][5][6][7][2];
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 4; k++) {
+                    for (int l = 0; l < 5; l++) {
+                        for (int m = 0; m < 6; m++) {
+                            for (int n = 0; n < 7; n++) {
+                                testLutArr[i][j][k][l][m][n][0] = 1.0 + (i * j * k * l * m * n);
+                                testLutArr[i][j][k][l][m][n][1] = axis1[i] + 2.0 * axis4[l] - axis6[n];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        final MultiOutputLookupTable lut =
+                new MultiOutputLookupTable(TcwvInterpolationUtils.convertNDto1DArray(testLutArr, null), 2,
+                                           new double[][]{axis1, axis2, axis3, axis4, axis5, axis6});
+        double[] values = new double[2];
+        lut.getValues(new double[]{1.7, 4.1, 8.2}, new double[]{12.3, 19.6, 23.1}, values);
+        assertEquals(38.637292, values[0], 1.E-6);
+        assertEquals(1.7 + 2.0 * 12.3 - 23.1, values[1], 1.E-10);
+
+        // only second output
+        final MultiOutputLookupTable lut2 =
+                new MultiOutputLookupTable(TcwvInterpolationUtils.convertNDto1DArray(testLutArr, new int[]{1}), 1,
+                                           new double[][]{axis1, axis2, axis3, axis4, axis5, axis6});
+        double[] values2 = new double[1];
+        lut2.getValues(new double[]{1.7, 4.1, 8.2}, new double[]{12.3, 19.6, 23.1}, values2);
+        assertEquals(values[1], values2[0], 1.E-12);
+    }
+
+    @Test
+    public void testGetValues_geometrySlice() {
+        // 3 'state' axes, 3 'parameter' axes, 2 outputs: values from slice must equal full interpolation
+        double[][] axes = new double[][]{
+                {0.f, 1.f, 3.f, 6.f},
+                {-1.f, 0.f, 1.f},
+                {2.f, 4.f, 5.f},
+                {0.f, 45.f, 90.f, 180.f},
+                {0.f, 20.f, 40.f},
+                {10.f, 30.f, 50.f, 70.f}
+        };
+        final int numNodes = 4 * 3 * 3 * 4 * 3 * 4;
+        double[] lutValues = new double[numNodes * 2];
+        for (int i = 0; i < lutValues.length; i++) {
+            lutValues[i] = Math.sin(0.37 * i) + 0.01 * i;
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 2, axes);
+
+        final Random random = new Random(4711);
+        double[] expected = new double[2];
+        double[] values = new double[2];
+        for (int pixel = 0; pixel < 20; pixel++) {
+            double[] params = new double[]{
+                    -10.0 + 200.0 * random.nextDouble(),
+                    45.0 * random.nextDouble(),
+                    10.0 + 60.0 * random.nextDouble()
+            };
+            for (int iter = 0; iter < 7; iter++) {
+                double[] x = new double[]{
+                        -0.5 + 7.0 * random.nextDouble(),
+                        -1.0 + 2.0 * random.nextDouble(),
+                        2.0 + 3.0 * random.nextDouble()
+                };
+                lut.getValues(TcwvInterpolationUtils.concat1DArrays(x, params), null, expected);
+                lut.getValues(x, params, values);
+                assertArrayEquals(expected, values, 1.E-12);
+            }
+        }
+    }
+
+    @Test
+    public void testGetValuesAndDerivatives() {
+        // same setup as above: derivatives must match finite differences within the cell, values must be unchanged
+        double[][] axes = new double[][]{
+                {0.f, 1.f, 3.f, 6.f},
+                {-1.f, 0.f, 1.f},
+                {2.f, 4.f, 5.f},
+                {0.f, 45.f, 90.f, 180.f},
+                {0.f, 20.f, 40.f},
+                {10.f, 30.f, 50.f, 70.f}
+        };
+        final int numNodes = 4 * 3 * 3 * 4 * 3 * 4;
+        double[] lutValues = new double[numNodes * 2];
+        for (int i = 0; i < lutValues.length; i++) {
+            lutValues[i] = Math.sin(0.37 * i) + 0.01 * i;
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 2, axes);
+
+        final Random random = new Random(815);
+        final double h = 1.E-6;
+        double[] expected = new double[2];
+        double[] values = new double[2];
+        double[] derivatives = new double[2 * 3];
+        double[] plus = new double[2];
+        double[] minus = new double[2];
+        for (int pixel = 0; pixel < 20; pixel++) {
+            double[] params = new double[]{
+                    200.0 * random.nextDouble(),
+                    40.0 * random.nextDouble(),
+                    10.0 + 60.0 * random.nextDouble()
+            };
+            for (int iter = 0; iter < 7; iter++) {
+                double[] x = new double[]{
+                        0.1 + 5.8 * random.nextDouble(),
+                        -0.9 + 1.8 * random.nextDouble(),
+                        2.1 + 2.8 * random.nextDouble()
+                };
+                lut.getValues(x, params, expected);
+                lut.getValuesAndDerivatives(x, params, values, derivatives);
+                assertArrayEquals(expected, values, 0.0);
+                for (int j = 0; j < 3; j++) {
+                    final double[] xPlus = x.clone();
+                    final double[] xMinus = x.clone();
+                    xPlus[j] += h;
+                    xMinus[j] -= h;
+                    lut.getValues(xPlus, params, plus);
+                    lut.getValues(xMinus, params, minus);
+                    for (int k = 0; k < 2; k++) {
+                        assertEquals((plus[k] - minus[k]) / (2.0 * h), derivatives[k * 3 + j], 1.E-6);
+                    }
+                }
+
+                // without geometry slice: derivatives with respect to all coordinates
+                final double[] coordinates = TcwvInterpolationUtils.concat1DArrays(x, params);
+                double[] allDerivatives = new double[2 * 6];
+                lut.getValuesAndDerivatives(coordinates, null, values, allDerivatives);
+                assertArrayEquals(expected, values, 1.E-12);
+                for (int k = 0; k < 2; k++) {
+                    for (int j = 0; j < 3; j++) {
+                        assertEquals(derivatives[k * 3 + j], allDerivatives[k * 6 + j], 1.E-10);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetValuesAndDerivatives_onNodesAndClamped() {
+        // f = 2 * x0 + 3 * x1 on the nodes: on a node, the upper cell is used; outside, the boundary cell
+        double[][] axes = new double[][]{{0.0, 1.0, 3.0}, {0.0, 2.0}};
+        double[] lutValues = new double[3 * 2];
+        for (int i0 = 0; i0 < 3; i0++) {
+            for (int i1 = 0; i1 < 2; i1++) {
+                lutValues[i0 * 2 + i1] = 2.0 * axes[0][i0] + 3.0 * axes[1][i1] + (i0 == 2 ? 1.0 : 0.0);
+            }
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 1, axes);
+        double[] values = new double[1];
+        double[] derivatives = new double[2];
+
+        lut.getValuesAndDerivatives(new double[]{1.0, 1.0}, null, values, derivatives);
+        assertEquals(5.0, values[0], 1.E-12);
+        assertArrayEquals(new double[]{2.5, 3.0}, derivatives, 1.E-12);
+
+        lut.getValuesAndDerivatives(new double[]{-1.0, 5.0}, null, values, derivatives);
+        assertEquals(6.0, values[0], 1.E-12);
+        assertArrayEquals(new double[]{2.0, 3.0}, derivatives, 1.E-12);
+
+        lut.getValuesAndDerivatives(new double[]{7.0}, new double[]{1.0}, values, derivatives);
+        assertEquals(10.0, values[0], 1.E-12);
+        assertEquals(2.5, derivatives[0], 1.E-12);
+    }
+
+    @Test
+    public void testGetSubTable() {
+        double[][] axes = new double[][]{
+                {0.f, 1.f, 3.f, 6.f},
+                {-1.f, 0.f, 1.f},
+                {0.f, 45.f, 90.f, 180.f},
+                {10.f, 30.f, 50.f, 70.f}
+        };
+        final int numNodes = 4 * 3 * 4 * 4;
+        double[] lutValues = new double[numNodes * 2];
+        for (int i = 0; i < lutValues.length; i++) {
+            lutValues[i] = Math.sin(0.37 * i) + 0.01 * i;
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 2, axes);
+        final MultiOutputLookupTable subLut = lut.getSubTable(new int[]{0, 0, 1, 1}, new int[]{3, 2, 2, 3});
+        assertArrayEquals(new double[]{45.0, 90.0}, subLut.getAxes()[2], 0.0);
+        assertArrayEquals(new double[]{30.0, 50.0, 70.0}, subLut.getAxes()[3], 0.0);
+
+        final Random random = new Random(42);
+        double[] expected = new double[2];
+        double[] values = new double[2];
+        for (int i = 0; i < 100; i++) {
+            double[] x = new double[]{6.0 * random.nextDouble(), -1.0 + 2.0 * random.nextDouble()};
+            double[] params = new double[]{45.0 + 45.0 * random.nextDouble(), 30.0 + 40.0 * random.nextDouble()};
+            lut.getValues(x, params, expected);
+            subLut.getValues(x, params, values);
+            assertArrayEquals(expected, values, 1.E-12);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetSubTable_invalidRange() {
+        double[][] axes = new double[][]{{0.f, 1.f, 3.f}, {-1.f, 0.f, 1.f}};
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(new double[9], 1, axes);
+        lut.getSubTable(new int[]{0, 1}, new int[]{2, 1});
+    }
+
+    @Test
+    public void testWithPrecision() {
+        double[][] axes = new double[][]{
+                {0.f, 1.f, 3.f, 6.f},
+                {-1.f, 0.f, 1.f},
+                {0.f, 45.f, 90.f, 180.f},
+                {10.f, 30.f, 50.f, 70.f}
+        };
+        final int numNodes = 4 * 3 * 4 * 4;
+        double[] lutValues = new double[numNodes * 2];
+        for (int i = 0; i < lutValues.length; i++) {
+            // second output in a much smaller range than the first one
+            lutValues[i] = i % 2 == 0 ? 100.0 * Math.sin(0.37 * i) : 1.E-3 * Math.cos(0.11 * i);
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 2, axes);
+        assertSame(LutPrecision.DOUBLE, lut.getPrecision());
+        assertSame(lut, lut.withPrecision(LutPrecision.DOUBLE));
+
+        final MultiOutputLookupTable floatLut = lut.withPrecision(LutPrecision.FLOAT);
+        final MultiOutputLookupTable shortLut = lut.withPrecision(LutPrecision.SCALED_SHORT);
+        assertSame(LutPrecision.SCALED_SHORT, shortLut.getPrecision());
+        assertEquals(numNodes * 2 * 8L, lut.getValueBytes());
+        assertEquals(numNodes * 2 * 4L, floatLut.getValueBytes());
+        assertEquals(numNodes * 2 * 2L, shortLut.getValueBytes());
+        assertEquals((float) lutValues[17], floatLut.getValueBuffer().get(17), 0.0);
+
+        // error bounds as given in LutPrecision
+        final double[] floatBounds = {100.0 * Math.pow(2.0, -24), 1.E-3 * Math.pow(2.0, -24)};
+        final double[] shortBounds = {200.0 / 131070.0, 2.E-3 / 131070.0};
+        final Random random = new Random(4711);
+        double[] expected = new double[2];
+        double[] values = new double[2];
+        double[] derivatives = new double[2 * 2];
+        for (int i = 0; i < 200; i++) {
+            double[] x = new double[]{6.0 * random.nextDouble(), -1.0 + 2.0 * random.nextDouble()};
+            double[] params = new double[]{180.0 * random.nextDouble(), 10.0 + 60.0 * random.nextDouble()};
+            lut.getValues(x, params, expected);
+            floatLut.getValues(x, params, values);
+            for (int k = 0; k < 2; k++) {
+                assertEquals(expected[k], values[k], floatBounds[k]);
+            }
+            shortLut.getValuesAndDerivatives(x, params, values, derivatives);
+            for (int k = 0; k < 2; k++) {
+                assertEquals(expected[k], values[k], shortBounds[k]);
+            }
+        }
+
+        // sub-tables keep the precision
+        final MultiOutputLookupTable shortSubLut = shortLut.getSubTable(new int[]{0, 0, 1, 1}, new int[]{3, 2, 2, 3});
+        assertSame(LutPrecision.SCALED_SHORT, shortSubLut.getPrecision());
+        double[] x = new double[]{2.5, 0.3};
+        double[] params = new double[]{60.0, 42.0};
+        shortLut.getValues(x, params, expected);
+        shortSubLut.getValues(x, params, values);
+        assertArrayEquals(expected, values, 1.E-15);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWithPrecision_scaledShortWithNaN() {
+        double[][] axes = new double[][]{{0.f, 1.f}, {-1.f, 1.f}};
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(new double[]{1.0, 2.0, Double.NaN, 4.0}, 1, axes);
+        lut.withPrecision(LutPrecision.SCALED_SHORT);
+    }
+
+    @Test
+    public void testJacobiLut2Function_usesFirstThreeColumns() {
+        double[] axis1 = new double[]{0.0, 1.0};
+        double[] axis2 = new double[]{0.0, 2.0};
+        final int ny = 2;
+        final int nx = 4;
+        double[][] luts = new double[ny * nx][];
+        for (int i = 0; i < ny * nx; i++) {
+            // constant LUTs, value = index of Jacobi element
+            luts[i] = new double[]{i, i, i, i};
+        }
+
+        final JacobiFunction jacobiFunction =
+                TcwvInterpolation.jacobiLut2Function(luts, new double[][]{axis1, axis2}, ny, nx);
+        final double[][] jaco = jacobiFunction.f(new double[]{0.3}, new double[]{1.1});
+        assertEquals(ny, jaco.length);
+        assertEquals(3, jaco[0].length);
+        assertArrayEquals(new double[]{0.0, 1.0, 2.0}, jaco[0], 1.E-12);
+        assertArrayEquals(new double[]{4.0, 5.0, 6.0}, jaco[1], 1.E-12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotIncreasingAxis() {
+        new MultiOutputLookupTable(new double[]{1.0, 2.0}, 1, new double[][]{{2.0, 1.0}});
+    }
+
+    @Test
+    public void testTableUsedOnPooledThreadCanBeCollected() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final WeakReference<MultiOutputLookupTable> lutReference = interpolateOnThread(executor);
+            assertTrue(GarbageCollectionTestUtils.isCollected(lutReference));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // creates a table, fills the per-thread workspace and slice of the pooled thread, and drops the table
+    private static WeakReference<MultiOutputLookupTable> interpolateOnThread(ExecutorService executor)
+            throws Exception {
+        double[][] axes = new double[][]{{0.0, 1.0, 2.0}, {0.0, 1.0}, {10.0, 20.0, 30.0}};
+        final double[] lutValues = new double[2 * 3 * 2 * 3];
+        for (int i = 0; i < lutValues.length; i++) {
+            lutValues[i] = i;
+        }
+        final MultiOutputLookupTable lut = new MultiOutputLookupTable(lutValues, 2, axes);
+        executor.submit(() -> {
+            final double[] values = new double[2];
+            lut.getValues(new double[]{0.5, 0.5}, new double[]{15.0}, values);
+            lut.getValuesAndDerivatives(new double[]{0.5, 0.5}, new double[]{15.0}, values, new double[4]);
+            lut.getValues(new double[]{0.5, 0.5, 15.0}, null, values);
+        }).get();
+        return new WeakReference<>(lut);
+    }
+}
+
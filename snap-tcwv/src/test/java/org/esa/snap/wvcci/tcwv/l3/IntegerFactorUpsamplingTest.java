@@ -0,0 +1,78 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class IntegerFactorUpsamplingTest {
+
+    @After
+    public void tearDown() {
+        IntegerFactorUpsampling.clearCache();
+    }
+
+    @Test
+    public void testGetIntegerFactor() {
+        assertEquals(10, IntegerFactorUpsampling.getIntegerFactor(720, 360, 7200, 3600));
+        assertEquals(1, IntegerFactorUpsampling.getIntegerFactor(720, 360, 720, 360));
+        // not a multiple:
+        assertEquals(-1, IntegerFactorUpsampling.getIntegerFactor(720, 360, 1000, 500));
+        // different factors in x and y:
+        assertEquals(-1, IntegerFactorUpsampling.getIntegerFactor(720, 360, 7200, 1800));
+        // downsampling:
+        assertEquals(-1, IntegerFactorUpsampling.getIntegerFactor(7200, 3600, 720, 360));
+    }
+
+    @Test
+    public void testUpsampledProduct() throws IOException {
+        final Product product = createMaskProduct(null);
+
+        final Product upsampledProduct = IntegerFactorUpsampling.getResampledProduct(product, 30, 20);
+        assertEquals(30, upsampledProduct.getSceneRasterWidth());
+        assertEquals(20, upsampledProduct.getSceneRasterHeight());
+        final Band maskBand = upsampledProduct.getBand("mask");
+        assertNotNull(maskBand);
+        assertEquals(ProductData.TYPE_INT8, maskBand.getDataType());
+        assertEquals(-1.0, maskBand.getNoDataValue(), 0.0);
+
+        final int[] pixels = maskBand.readPixels(0, 0, 30, 20, (int[]) null);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                assertEquals("x = " + x + ", y = " + y, (y / 10) * 3 + x / 10, pixels[y * 30 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void testUpsampledImagesSharedForSameFile() throws IOException {
+        final File fileLocation = new File("landmask_05deg.nc");
+        final Band maskBand1 =
+                IntegerFactorUpsampling.getResampledProduct(createMaskProduct(fileLocation), 30, 20).getBand("mask");
+        // read the source once:
+        maskBand1.readPixels(0, 0, 30, 20, (int[]) null);
+        final Band maskBand2 =
+                IntegerFactorUpsampling.getResampledProduct(createMaskProduct(fileLocation), 30, 20).getBand("mask");
+        assertSame(maskBand1.getSourceImage().getImage(0), maskBand2.getSourceImage().getImage(0));
+
+        final Band maskBand3 =
+                IntegerFactorUpsampling.getResampledProduct(createMaskProduct(null), 30, 20).getBand("mask");
+        assertNotSame(maskBand1.getSourceImage().getImage(0), maskBand3.getSourceImage().getImage(0));
+    }
+
+    private static Product createMaskProduct(File fileLocation) {
+        final Product product = new Product("landmask", "mask", 3, 2);
+        product.setFileLocation(fileLocation);
+        final Band band = product.addBand("mask", ProductData.TYPE_INT8);
+        band.setNoDataValue(-1.0);
+        band.setNoDataValueUsed(true);
+        band.setRasterData(ProductData.createInstance(new byte[]{0, 1, 2, 3, 4, 5}));
+        return product;
+    }
+}
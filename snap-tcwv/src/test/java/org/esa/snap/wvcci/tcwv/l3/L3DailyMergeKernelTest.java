@@ -0,0 +1,153 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class L3DailyMergeKernelTest {
+
+    @Test
+    public void testMergeNirTcwv() {
+        final double[] merge = L3DailyMergeKernel.mergeNirTcwv(new double[]{10.0, 20.0}, new double[]{1.0, 3.0},
+                                                               new double[]{-1.0, -1.0}, new double[]{0.0, 0.0});
+        assertEquals(17.5, merge[0], 1.E-12);
+        assertEquals(4.0, merge[1], 0.0);
+
+        // second source no-data:
+        final double[] mergeNodata = L3DailyMergeKernel.mergeNirTcwv(new double[]{10.0, Double.NaN},
+                                                                     new double[]{1.0, 3.0},
+                                                                     new double[]{-1.0, -1.0},
+                                                                     new double[]{0.0, 0.0});
+        assertEquals(10.0, mergeNodata[0], 0.0);
+        assertEquals(1.0, mergeNodata[1], 0.0);
+
+        // no source:
+        assertTrue(Double.isNaN(L3DailyMergeKernel.mergeNirTcwv(new double[]{-1.0, Double.NaN},
+                                                                new double[]{1.0, 3.0},
+                                                                new double[]{-1.0, -1.0},
+                                                                new double[]{0.0, 0.0})[0]));
+    }
+
+    @Test
+    public void testMergeNirFlag() {
+        final double[] nodata = {-1.0, -1.0};
+        assertEquals(2, L3DailyMergeKernel.mergeNirFlag(new int[]{1, 2}, new double[]{1.0, 3.0}, nodata));
+        assertEquals(1, L3DailyMergeKernel.mergeNirFlag(new int[]{1, 2}, new double[]{3.0, 3.0}, nodata));
+        assertEquals(1, L3DailyMergeKernel.mergeNirFlag(new int[]{1, 2}, new double[]{1.0, Double.NaN}, nodata));
+        assertEquals(2, L3DailyMergeKernel.mergeNirFlag(new int[]{1, 2}, new double[]{-1.0, 1.0}, nodata));
+    }
+
+    @Test
+    public void testMergeHoapsTcwv() {
+        // HOAPS available
+        assertEquals(30.0, L3DailyMergeKernel.mergeHoapsTcwv(20.0, -1.0, 30.0, -1.0, 5, -1, 0, -1), 0.0);
+        // no HOAPS, land
+        assertEquals(20.0, L3DailyMergeKernel.mergeHoapsTcwv(20.0, -1.0, -1.0, -1.0, 0, -1, 1, -1), 0.0);
+        // no HOAPS, sea ice
+        assertEquals(20.0, L3DailyMergeKernel.mergeHoapsTcwv(20.0, -1.0, -1.0, -1.0, 0, -1, 0, 1), 0.0);
+        // no HOAPS, open ocean
+        assertTrue(Double.isNaN(L3DailyMergeKernel.mergeHoapsTcwv(20.0, -1.0, -1.0, -1.0, 0, -1, 0, 0)));
+    }
+
+    @Test
+    public void testMergeNirRowsEqualPixelMerge() {
+        final double[] tcwv1 = {10.0, Double.NaN, 30.0, -1.0};
+        final double[] tcwv2 = {20.0, 25.0, Double.NaN, 40.0};
+        final double[] counts1 = {1.0, 2.0, 3.0, 0.0};
+        final double[] counts2 = {3.0, Double.NaN, 1.0, 2.0};
+        final int[] flags1 = {1, 2, 3, 4};
+        final int[] flags2 = {5, 6, 7, 8};
+        final double[] tcwvNodata = {-1.0, -1.0};
+        final double[] countsNodata = {0.0, 0.0};
+
+        final double[] mergedTcwv = new double[4];
+        final double[] mergedCounts = new double[4];
+        final int[] mergedFlags = new int[4];
+        L3DailyMergeKernel.mergeNirTcwv(tcwv1, tcwv2, counts1, counts2, tcwvNodata, countsNodata, mergedTcwv);
+        L3DailyMergeKernel.mergeNirTcwvCounts(tcwv1, tcwv2, counts1, counts2, tcwvNodata, countsNodata, mergedCounts);
+        L3DailyMergeKernel.mergeNirFlag(flags1, flags2, counts1, counts2, countsNodata, mergedFlags);
+        for (int i = 0; i < 4; i++) {
+            final double[] counts = {counts1[i], counts2[i]};
+            final double[] merge = L3DailyMergeKernel.mergeNirTcwv(new double[]{tcwv1[i], tcwv2[i]}, counts,
+                                                                   tcwvNodata, countsNodata);
+            assertEquals(merge[0], mergedTcwv[i], 0.0);
+            assertEquals(merge[1], mergedCounts[i], 0.0);
+            assertEquals(L3DailyMergeKernel.mergeNirFlag(new int[]{flags1[i], flags2[i]}, counts, countsNodata),
+                         mergedFlags[i]);
+        }
+        assertEquals(17.5, mergedTcwv[0], 1.E-12);
+        assertEquals(40.0, mergedTcwv[3], 0.0);
+        // no valid source:
+        assertTrue(Double.isNaN(mergedTcwv[1]));
+
+        // in place:
+        L3DailyMergeKernel.mergeNirTcwv(tcwv1, tcwv2, counts1, counts2, tcwvNodata, countsNodata, tcwv1);
+        assertArrayEquals(mergedTcwv, tcwv1, 0.0);
+    }
+
+    @Test
+    public void testMergeNirPossibleNumObsRow() {
+        final int[] numObs1 = {3, -1, 2};
+        final int[] numObs2 = {4, 5, -1};
+        L3DailyMergeKernel.mergeNirPossibleNumObs(numObs1, numObs2, new int[]{-1, -1}, numObs1);
+        assertArrayEquals(new int[]{7, 5, 2}, numObs1);
+    }
+
+    @Test
+    public void testMergeHoapsRows() {
+        final double[] merged = new double[4];
+        L3DailyMergeKernel.mergeHoapsTcwv(new double[]{20.0, 20.0, 20.0, 20.0}, -1.0,
+                                          new double[]{30.0, -1.0, -1.0, -1.0}, -1.0,
+                                          new int[]{5, 0, 0, 0}, -1,
+                                          new int[]{0, 1, 0, 0}, new int[]{-1, -1, 1, 0}, merged);
+        assertArrayEquals(new double[]{30.0, 20.0, 20.0, Double.NaN}, merged, 0.0);
+
+        // no sea ice product:
+        final double[] mergedNoSeaice = new double[1];
+        L3DailyMergeKernel.mergeHoapsTcwv(new double[]{20.0}, -1.0, new double[]{-1.0}, -1.0,
+                                          new int[]{0}, -1, new int[]{0}, null, mergedNoSeaice);
+        assertTrue(Double.isNaN(mergedNoSeaice[0]));
+
+        final int[] flags = {1, 2};
+        L3DailyMergeKernel.mergeHoapsQualityFlag(flags, new int[]{3, 0}, -1, flags);
+        assertArrayEquals(new int[]{-1, 2}, flags);
+    }
+
+    @Test
+    public void testStoreRows() {
+        final double[] values = {12.3456789012345, Double.NaN};
+        L3DailyMergeKernel.store(values, ProductData.TYPE_FLOAT32, 1.0, 0.0);
+        assertEquals((float) 12.3456789012345, values[0], 0.0);
+        assertTrue(Double.isNaN(values[1]));
+
+        final int[] flags = {-1, 3};
+        L3DailyMergeKernel.store(flags, ProductData.TYPE_UINT8, 1.0, 0.0);
+        assertArrayEquals(new int[]{255, 3}, flags);
+    }
+
+    @Test
+    public void testStore() {
+        final double value = 12.3456789012345;
+        assertEquals(value, L3DailyMergeKernel.store(value, ProductData.TYPE_FLOAT64, 1.0, 0.0), 0.0);
+        assertEquals((float) value, L3DailyMergeKernel.store(value, ProductData.TYPE_FLOAT32, 1.0, 0.0), 0.0);
+        assertTrue(Double.isNaN(L3DailyMergeKernel.store(Double.NaN, ProductData.TYPE_FLOAT32, 1.0, 0.0)));
+        assertEquals(12.0, L3DailyMergeKernel.store(value, ProductData.TYPE_INT32, 1.0, 0.0), 0.0);
+        assertEquals(-1.0, L3DailyMergeKernel.store(-1.0, ProductData.TYPE_INT8, 1.0, 0.0), 0.0);
+        assertEquals(255.0, L3DailyMergeKernel.store(-1.0, ProductData.TYPE_UINT8, 1.0, 0.0), 0.0);
+        assertEquals(65535.0, L3DailyMergeKernel.store(-1.0, ProductData.TYPE_UINT16, 1.0, 0.0), 0.0);
+        // scaled: raw (12.3456789 - 1.0) / 0.01 = 1134.56... --> 1134
+        assertEquals(1134 * 0.01 + 1.0, L3DailyMergeKernel.store(value, ProductData.TYPE_INT16, 0.01, 1.0),
+                     1.E-12);
+    }
+
+    @Test
+    public void testStoreUnsupportedDataType() {
+        try {
+            L3DailyMergeKernel.store(1.0, ProductData.TYPE_ASCII, 1.0, 0.0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.esa.snap.wvcci.tcwv.l3;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.Operator;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.wvcci.tcwv.TcwvConstants;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class L3DailyMergeOpTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void testSingleNirSensorEqualsPhaseChain() throws IOException {
+        assertEqualsPhaseChain(new String[]{"MODIS_TERRA"}, true);
+    }
+
+    @Test
+    public void testTwoNirSensorsEqualsPhaseChain() throws IOException {
+        assertEqualsPhaseChain(new String[]{"MODIS_TERRA", "OLCI_A"}, true);
+    }
+
+    @Test
+    public void testFourNirSensorsEqualsPhaseChain() throws IOException {
+        assertEqualsPhaseChain(new String[]{"MODIS_TERRA", "MODIS_AQUA", "OLCI_A", "OLCI_B"}, false);
+    }
+
+    @Test
+    public void testInvalidNirSensorNames() {
+        final L3DailyMergeOp mergeOp = createMergeOp(new String[]{"MODIS_TERRA", "OLCI_A"},
+                                                     new Product[]{createNirProduct(0)}, true);
+        try {
+            mergeOp.getTargetProduct();
+            fail("OperatorException expected");
+        } catch (OperatorException expected) {
+            // ok
+        }
+    }
+
+    private static void assertEqualsPhaseChain(String[] nirSensorNames, boolean withSeaice) throws IOException {
+        final Product[] nirProducts = new Product[nirSensorNames.length];
+        for (int i = 0; i < nirProducts.length; i++) {
+            nirProducts[i] = createNirProduct(i);
+        }
+
+        final Product mergedProduct = createMergeOp(nirSensorNames, nirProducts, withSeaice).getTargetProduct();
+        final Product chainProduct = runPhaseChain(nirSensorNames, nirProducts, withSeaice);
+
+        assertEquals(chainProduct.getNumBands(), mergedProduct.getNumBands());
+        for (Band chainBand : chainProduct.getBands()) {
+            final Band band = mergedProduct.getBand(chainBand.getName());
+            assertNotNull(chainBand.getName(), band);
+            assertEquals(chainBand.getName(), chainBand.getDataType(), band.getDataType());
+            assertEquals(chainBand.getName(), chainBand.isNoDataValueUsed(), band.isNoDataValueUsed());
+            assertEquals(chainBand.getName(), chainBand.getNoDataValue(), band.getNoDataValue(), 0.0);
+            final double[] expected = chainBand.readPixels(0, 0, WIDTH, HEIGHT, (double[]) null);
+            final double[] actual = band.readPixels(0, 0, WIDTH, HEIGHT, (double[]) null);
+            assertArrayEquals(chainBand.getName(), expected, actual, 0.0);
+        }
+    }
+
+    private static Product runPhaseChain(String[] nirSensorNames, Product[] nirProducts, boolean withSeaice) {
+        Product nirMergeProduct = nirProducts[0];
+        String nirMergeSensorName = nirSensorNames[0];
+        for (int i = 1; i < nirProducts.length; i++) {
+            final Operator nirNirOp = new L3DailyMergeNirNirPhase3Op();
+            nirNirOp.setParameterDefaultValues();
+            nirNirOp.setParameter("sensor1Name", nirMergeSensorName);
+            nirNirOp.setParameter("sensor2Name", nirSensorNames[i]);
+            nirNirOp.setSourceProduct("sensor1Product", nirMergeProduct);
+            nirNirOp.setSourceProduct("sensor2Product", nirProducts[i]);
+            nirMergeProduct = nirNirOp.getTargetProduct();
+            nirMergeSensorName = nirMergeSensorName + "-" + nirSensorNames[i];
+        }
+
+        final Operator nirHoapsOp = new L3DailyMergeNirHoapsPhase3Op();
+        nirHoapsOp.setParameterDefaultValues();
+        nirHoapsOp.setParameter("sensor1Name", nirMergeSensorName);
+        nirHoapsOp.setSourceProduct("sourceProduct", nirMergeProduct);
+        setHoapsSourceProducts(nirHoapsOp, withSeaice);
+        return nirHoapsOp.getTargetProduct();
+    }
+
+    private static L3DailyMergeOp createMergeOp(String[] nirSensorNames, Product[] nirProducts,
+                                                boolean withSeaice) {
+        final String[] nirSourceIds = {"sourceProduct", "nirProduct2", "nirProduct3", "nirProduct4"};
+        final L3DailyMergeOp mergeOp = new L3DailyMergeOp();
+        mergeOp.setParameterDefaultValues();
+        mergeOp.setParameter("nirSensorNames", nirSensorNames);
+        for (int i = 0; i < nirProducts.length; i++) {
+            mergeOp.setSourceProduct(nirSourceIds[i], nirProducts[i]);
+        }
+        setHoapsSourceProducts(mergeOp, withSeaice);
+        return mergeOp;
+    }
+
+    private static void setHoapsSourceProducts(Operator operator, boolean withSeaice) {
+        operator.setSourceProduct("hoapsProduct", createHoapsProduct());
+        operator.setSourceProduct("landmaskProduct",
+                                  createMaskProduct("mask", new byte[]{1, 1, 0, 0, 1, 0, 0, 0}));
+        if (withSeaice) {
+            operator.setSourceProduct("seaiceProduct",
+                                      createMaskProduct("mask_time15", new byte[]{0, 0, 1, 0, 0, 1, 0, 0}));
+        }
+    }
+
+    private static Product createNirProduct(int seed) {
+        final Product product = new Product("nir" + seed, "L3", WIDTH, HEIGHT);
+        final float[] tcwv = new float[WIDTH * HEIGHT];
+        final float[] counts = new float[WIDTH * HEIGHT];
+        final int[] numObs = new int[WIDTH * HEIGHT];
+        final byte[] flags = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < tcwv.length; i++) {
+            tcwv[i] = 10.1f + 3.7f * seed + 1.3f * i;
+            counts[i] = (i + seed) % 3;
+            numObs[i] = 2 * i + seed;
+            flags[i] = (byte) ((i + 2 * seed) % 4);
+        }
+        // gaps of the single sensors:
+        tcwv[seed % tcwv.length] = Float.NaN;
+        counts[seed % tcwv.length] = Float.NaN;
+        numObs[(seed + 3) % tcwv.length] = -1;
+
+        addBand(product, TcwvConstants.NUM_OBS_L3_BAND_NAME, ProductData.createInstance(numObs), -1.0);
+        addBand(product, TcwvConstants.TCWV_L3_BAND_NAME, ProductData.createInstance(tcwv), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_SIGMA_L3_BAND_NAME, ProductData.createInstance(scale(tcwv, 0.1f)),
+                Double.NaN);
+        addBand(product, TcwvConstants.TCWV_UNCERTAINTY_L3_BAND_NAME,
+                ProductData.createInstance(scale(tcwv, 0.03f)), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_UNCERTAINTY_COUNTS_L3_BAND_NAME, ProductData.createInstance(counts),
+                Double.NaN);
+        addBand(product, TcwvConstants.TCWV_SUMS_SUM_L3_BAND_NAME, ProductData.createInstance(scale(tcwv, 0.7f)),
+                Double.NaN);
+        addBand(product, TcwvConstants.TCWV_SUMS_SUM_SQ_L3_BAND_NAME,
+                ProductData.createInstance(scale(tcwv, 1.9f)), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_QUALITY_FLAG_MAJORITY_L3_BAND_NAME, ProductData.createInstance(flags),
+                -1.0);
+        addBand(product, TcwvConstants.TCWV_QUALITY_FLAG_MIN_L3_BAND_NAME, ProductData.createInstance(flags), -1.0);
+        addBand(product, TcwvConstants.TCWV_QUALITY_FLAG_MAX_L3_BAND_NAME, ProductData.createInstance(flags), -1.0);
+        addBand(product, TcwvConstants.SURFACE_TYPE_FLAG_L3_BAND_NAME, ProductData.createInstance(flags), -1.0);
+        return product;
+    }
+
+    private static Product createHoapsProduct() {
+        // half resolution, upsampled by the merge
+        final Product product = new Product("hoaps", "HOAPS", WIDTH / 2, HEIGHT / 2);
+        addBand(product, TcwvConstants.NUM_OBS_HOAPS_BAND_NAME, ProductData.createInstance(new int[]{0, 3}), -1.0);
+        addBand(product, TcwvConstants.TCWV_HOAPS_BAND_NAME,
+                ProductData.createInstance(new float[]{Float.NaN, 25.5f}), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_SIGMA_HOAPS_BAND_NAME,
+                ProductData.createInstance(new float[]{Float.NaN, 1.5f}), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_PROPAG_ERR_HOAPS_BAND_NAME,
+                ProductData.createInstance(new float[]{Float.NaN, 0.5f}), Double.NaN);
+        addBand(product, TcwvConstants.TCWV_RANDOM_ERR_HOAPS_BAND_NAME,
+                ProductData.createInstance(new float[]{Float.NaN, 0.25f}), Double.NaN);
+        return product;
+    }
+
+    private static Product createMaskProduct(String bandName, byte[] mask) {
+        final Product product = new Product(bandName, "MASK", WIDTH, HEIGHT);
+        addBand(product, bandName, ProductData.createInstance(mask), -1.0);
+        return product;
+    }
+
+    private static void addBand(Product product, String bandName, ProductData data, double noDataValue) {
+        final Band band = product.addBand(bandName, data.getType());
+        band.setNoDataValue(noDataValue);
+        band.setNoDataValueUsed(true);
+        band.setRasterData(data);
+    }
+
+    private static float[] scale(float[] values, float factor) {
+        final float[] scaled = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            scaled[i] = factor * values[i];
+        }
+        return scaled;
+    }
+}
@@ -146,4 +146,28 @@ public class L3MergeSensorsOpTest {
         assertEquals(5.0, mergeTcwv[1], 1.E-6);
 
     }
+
+    @Test
+    public void testMergeTcwvRowEqualsPixelMerge() {
+        final double[][] srcTcwv = {{20.0, 20.0, -999.9, 20.0}, {40.0, Double.NaN, 40.0, 40.0}, {50.0, 50.0, 50.0, 50.0}};
+        final double[][] srcTcwvCounts = {{5.0, 5.0, 5.0, 5.0}, {3.0, 3.0, 3.0, -666.6}, {2.0, 2.0, Double.NaN, 2.0}};
+        final double[] srcTcwvNodata = {-999.9, -999.9, -999.9};
+        final double[] srcTcwvCountsNodata = {-666.6, -666.6, -666.6};
+
+        for (int aggregationMode = 0; aggregationMode <= 3; aggregationMode++) {
+            // one row at offset 4 of the merge arrays
+            final double[] mergedTcwv = new double[8];
+            final double[] mergedTcwvCounts = new double[8];
+            L3MergeSensorsOp.mergeTcwv(aggregationMode, srcTcwv, srcTcwvCounts, srcTcwvNodata, srcTcwvCountsNodata,
+                                       mergedTcwv, mergedTcwvCounts, 4);
+            for (int x = 0; x < 4; x++) {
+                final double[] mergeTcwv = L3MergeSensorsOp.mergeTcwv(aggregationMode, 3,
+                        new double[]{srcTcwv[0][x], srcTcwv[1][x], srcTcwv[2][x]},
+                        new double[]{srcTcwvCounts[0][x], srcTcwvCounts[1][x], srcTcwvCounts[2][x]},
+                        srcTcwvNodata, srcTcwvCountsNodata);
+                assertEquals(mergeTcwv[0], mergedTcwv[4 + x], 0.0);
+                assertEquals(mergeTcwv[1], mergedTcwvCounts[4 + x], 0.0);
+            }
+        }
+    }
 }
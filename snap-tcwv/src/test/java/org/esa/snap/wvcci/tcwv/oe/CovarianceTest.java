@@ -0,0 +1,87 @@
+package org.esa.snap.wvcci.tcwv.oe;
+
+import Jama.Matrix;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CovarianceTest {
+
+    private static final double[][] DENSE = {
+            {4., 0.5, 0.},
+            {0.5, 2., 0.3},
+            {0., 0.3, 9.}
+    };
+
+    @Test
+    public void testDiagonalCovariance() {
+        final DiagonalCovariance covariance = new DiagonalCovariance(new double[][]{
+                {0.001, 0.0, 0.0},
+                {0.0, 0.012, 0.0},
+                {0.0, 0.0, 25.0}
+        });
+        assertEquals(3, covariance.getDimension());
+        assertTrue(covariance.isDiagonal());
+        assertEquals(0.012, covariance.getVariance(1), 0.0);
+
+        covariance.setVariance(1, 100.0);
+        final double[][] inverse = new double[4][4];
+        inverse[0][1] = 7.0;
+        covariance.copyInverse(inverse);
+        assertArrayEquals(new double[]{1000.0, 0.0, 0.0, 0.0}, inverse[0], 1.E-10);
+        assertArrayEquals(new double[]{0.0, 0.01, 0.0, 0.0}, inverse[1], 1.E-12);
+        assertArrayEquals(new double[]{0.0, 0.0, 0.04, 0.0}, inverse[2], 1.E-12);
+        assertEquals(100.0, covariance.getMatrix()[1][1], 0.0);
+        assertEquals(0.0, covariance.getMatrix()[1][2], 0.0);
+
+        final DiagonalCovariance other = new DiagonalCovariance(new double[]{1.0, 2.0, 3.0});
+        covariance.set(other);
+        assertEquals(2.0, covariance.getVariance(1), 0.0);
+        other.setVariance(1, 5.0);
+        assertEquals(2.0, covariance.getVariance(1), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDiagonalCovariance_notDiagonal() {
+        new DiagonalCovariance(DENSE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDiagonalCovariance_setOtherDimension() {
+        new DiagonalCovariance(new double[]{1.0, 2.0, 3.0}).set(new DiagonalCovariance(new double[]{1.0, 2.0}));
+    }
+
+    @Test
+    public void testDenseCovariance() {
+        final DenseCovariance covariance = new DenseCovariance(DENSE);
+        assertFalse(covariance.isDiagonal());
+        assertEquals(2.0, covariance.getVariance(1), 0.0);
+        assertInverse(new Matrix(DENSE).inverse().getArray(), covariance);
+    }
+
+    @Test
+    public void testConstantCovariance() {
+        final double[][] matrix = {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.3},
+                {0., 0.3, 9.}
+        };
+        final ConstantCovariance covariance = new ConstantCovariance(matrix);
+        assertFalse(covariance.isDiagonal());
+        matrix[0][0] = 100.0;
+        assertEquals(4.0, covariance.getVariance(0), 0.0);
+        assertInverse(new Matrix(DENSE).inverse().getArray(), covariance);
+
+        final ConstantCovariance diagonal = new ConstantCovariance(new double[][]{{5.0, 0.0}, {0.0, 0.5}});
+        assertTrue(diagonal.isDiagonal());
+        assertInverse(new double[][]{{0.2, 0.0}, {0.0, 2.0}}, diagonal);
+    }
+
+    private static void assertInverse(double[][] expected, Covariance covariance) {
+        final double[][] inverse = new double[expected.length][expected.length];
+        covariance.copyInverse(inverse);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], inverse[i], 1.E-12);
+        }
+    }
+}
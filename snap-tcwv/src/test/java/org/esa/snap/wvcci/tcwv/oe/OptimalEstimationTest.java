@@ -1,12 +1,19 @@
 package org.esa.snap.wvcci.tcwv.oe;
 
 import org.esa.snap.wvcci.tcwv.TcwvFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.ClippedDifferenceFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.JacobiFunction;
+import org.esa.snap.wvcci.tcwv.interpolation.NumericalJacobiFunction;
 import org.esa.snap.wvcci.tcwv.oe.InversionMethod;
 import org.esa.snap.wvcci.tcwv.oe.OEOutputMode;
 import org.esa.snap.wvcci.tcwv.oe.OptimalEstimation;
 import org.esa.snap.wvcci.tcwv.oe.OptimalEstimationResult;
+import org.esa.snap.wvcci.tcwv.util.GarbageCollectionTestUtils;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
+import java.util.EnumSet;
+
 import static org.junit.Assert.*;
 
 
@@ -270,8 +277,454 @@ public class OptimalEstimationTest {
 
     }
 
+    @Test
+    public void testOptimalEstimation3x3_linear_r3r2() {
+        // same as testOptimalEstimation_linear_r3r2, but with fixed-size 3x3 kernel
+        double[] x = {3.5, 6.5, 5.8};
+        final double[] y = testFunctionLinR3R2.f(x, null);
+
+        double[] a = {0.1, 0.1, 0.1};
+        double[] b = {10., 10., 10.};
+        double[] xa = {3.7, 5.6, 8.5};
+
+        OptimalEstimation oe = new OptimalEstimation(testFunctionLinR3R2, a, b, y, null, null);
+        double[][] se = new double[][] {
+                {1.0, 0.},
+                {0., 1.0}
+        };
+        double[][] sa = new double[][] {
+                {100., 0., 0.},
+                {0., 100., 0.},
+                {0., 0., 100.}
+        };
+
+        int maxiter = 100;
+        OptimalEstimationResult result = oe.invert(InversionMethod.OE_3X3, y, se, sa, xa, OEOutputMode.BASIC, maxiter);
+
+        assertNotNull(result);
+        assertNull(result.getSr());
+        assertNull(result.getDiagnoseResult());
+        assertEquals(2, result.getIi());
+        assertEquals(3, result.getXn().length);
+        assertEquals(4.7941, result.getXn()[0], 1.E-4);
+        assertEquals(5.2739, result.getXn()[1], 1.E-4);
+        assertEquals(7.2306, result.getXn()[2], 1.E-4);
+        assertEquals(6.0, result.getKk()[0][0], 1.E-3);
+        assertEquals(4.0, result.getKk()[0][1], 1.E-3);
+        assertEquals(-2.0, result.getKk()[0][2], 1.E-3);
+        assertEquals(-3.0, result.getKk()[1][0], 1.E-3);
+        assertEquals(5.0, result.getKk()[1][1], 1.E-3);
+        assertEquals(7.0, result.getKk()[1][2], 1.E-3);
+
+        // 'disturbed' test: as in breadboard code:
+        y[y.length-1] += 1.0;
+
+        maxiter = 20;
+        result = oe.invert(InversionMethod.OE_3X3, y, se, sa, xa, OEOutputMode.EXTENDED, maxiter);
+        assertNotNull(result);
+        assertEquals(2, result.getIi());
+        assertEquals(4.7728, result.getXn()[0], 1.E-4);
+        assertEquals(5.3467, result.getXn()[1], 1.E-4);
+        assertEquals(7.3123, result.getXn()[2], 1.E-4);
+        assertNotNull(result.getSr());
+        assertNotNull(result.getDiagnoseResult());
+        assertEquals(0.0262, result.getDiagnoseResult().getCost(), 1.E-4);
+    }
+
+    @Test
+    public void testOptimalEstimation3x3_againstJama_nonlinear_r3r4() {
+        double[] x = {1.5, 2.5, 0.8};
+        final double[] y = testFunctionNonlinR3R4.f(x, null);
+        y[1] += 0.05;
+
+        double[] a = {0.1, 0.1, 0.1};
+        double[] b = {5., 5., 5.};
+        double[] xa = {1.2, 2.9, 1.1};
+
+        double[][] se = new double[][] {
+                {0.5, 0.1, 0., 0.},
+                {0.1, 1.0, 0., 0.},
+                {0., 0., 2.0, 0.},
+                {0., 0., 0., 0.3}
+        };
+        double[][] sa = new double[][] {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.},
+                {0., 0., 9.}
+        };
+
+        for (OEOutputMode outputMode : OEOutputMode.values()) {
+            OptimalEstimation oe = new OptimalEstimation(testFunctionNonlinR3R4, a, b, y, null, null);
+            final OptimalEstimationResult jama = oe.invert(InversionMethod.OE, y, se, sa, xa, outputMode, 6);
+            final OptimalEstimationResult kernel = oe.invert(InversionMethod.OE_3X3, y, se, sa, xa, outputMode, 6);
+
+            assertEquals(jama.getIi(), kernel.getIi());
+            assertEquals(jama.isConvergence(), kernel.isConvergence());
+            assertArrayEquals(jama.getXn(), kernel.getXn(), 1.E-8);
+            if (jama.getSr() == null) {
+                assertNull(kernel.getSr());
+                assertNull(kernel.getDiagnoseResult());
+            } else {
+                for (int i = 0; i < 3; i++) {
+                    assertArrayEquals(jama.getSr()[i], kernel.getSr()[i], 1.E-8);
+                    assertArrayEquals(jama.getDiagnoseResult().getGain().getArray()[i],
+                                      kernel.getDiagnoseResult().getGain().getArray()[i], 1.E-8);
+                    assertArrayEquals(jama.getDiagnoseResult().getAverage().getArray()[i],
+                                      kernel.getDiagnoseResult().getAverage().getArray()[i], 1.E-8);
+                }
+                assertEquals(jama.getDiagnoseResult().getCost(), kernel.getDiagnoseResult().getCost(), 1.E-8);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimalEstimation_warmStart_nonlinear_r3r4() {
+        double[] x = {1.5, 2.5, 0.8};
+        final double[] y = testFunctionNonlinR3R4.f(x, null);
+        y[1] += 0.05;
+
+        double[] a = {0.1, 0.1, 0.1};
+        double[] b = {5., 5., 5.};
+        double[] xa = {1.2, 2.9, 1.1};
+
+        double[][] se = new double[][] {
+                {0.5, 0.1, 0., 0.},
+                {0.1, 1.0, 0., 0.},
+                {0., 0., 2.0, 0.},
+                {0., 0., 0., 0.3}
+        };
+        double[][] sa = new double[][] {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.},
+                {0., 0., 9.}
+        };
+
+        for (InversionMethod method : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+            OptimalEstimation oe = new OptimalEstimation(testFunctionNonlinR3R4, a, b, y, null, null);
+            final OptimalEstimationResult cold = oe.invert(method, y, se, sa, xa, OEOutputMode.FULL, 6);
+            assertTrue(cold.isConvergence());
+
+            // first guess close to the solution, e.g. from a neighbour pixel:
+            final double[] firstGuess = {cold.getXn()[0] + 0.01, cold.getXn()[1] - 0.01, cold.getXn()[2]};
+            final OptimalEstimationResult warm = oe.invert(method, y, se, sa, xa, firstGuess, OEOutputMode.FULL, 6);
+            assertTrue(warm.isConvergence());
+            assertTrue(warm.getIi() <= cold.getIi());
+            assertArrayEquals(cold.getXn(), warm.getXn(), 1.E-2);
+            assertEquals(cold.getDiagnoseResult().getCost(), warm.getDiagnoseResult().getCost(), 1.E-3);
+
+            // first guess is clipped to the state bounds, prior is not modified:
+            final OptimalEstimationResult clipped =
+                    oe.invert(method, y, se, sa, xa, new double[]{10., 2.5, 0.8}, OEOutputMode.FULL, 6);
+            assertTrue(clipped.isConvergence());
+            assertArrayEquals(cold.getXn(), clipped.getXn(), 1.E-2);
+            assertArrayEquals(new double[]{1.2, 2.9, 1.1}, xa, 0.0);
+        }
+    }
+
+    @Test
+    public void testOptimalEstimationBroyden_linear() {
+        // linear forward functions: Broyden updates keep the exact Jacobian, so same results as OE
+        final double[] x2 = {3.5, 6.5};
+        final double[] y3 = testFunctionLinR2R3.f(x2, null);
+        y3[y3.length - 1] += 1.0;
+        final double[][] se3 = new double[][] {
+                {1., 0., 0.},
+                {0., 1., 0.},
+                {0., 0., 10.}
+        };
+        final double[][] sa2 = new double[][] {
+                {1., 0.},
+                {0., 1.}
+        };
+        assertBroydenAgainstOE(testFunctionLinR2R3, new double[]{0.1, 0.1}, new double[]{10., 10.}, y3,
+                               se3, sa2, new double[]{3.7, 5.6}, InversionMethod.OE, InversionMethod.OE_BROYDEN,
+                               1.E-6, 1.E-6);
+
+        final double[] x3 = {3.5, 6.5, 5.8};
+        final double[] y2 = testFunctionLinR3R2.f(x3, null);
+        final double[][] se2 = new double[][] {
+                {1.0, 0.},
+                {0., 1.0}
+        };
+        final double[][] sa3 = new double[][] {
+                {100., 0., 0.},
+                {0., 100., 0.},
+                {0., 0., 100.}
+        };
+        for (InversionMethod[] methods : new InversionMethod[][]{
+                {InversionMethod.OE, InversionMethod.OE_BROYDEN},
+                {InversionMethod.OE_3X3, InversionMethod.OE_3X3_BROYDEN}}) {
+            assertBroydenAgainstOE(testFunctionLinR3R2, new double[]{0.1, 0.1, 0.1}, new double[]{10., 10., 10.},
+                                   y2, se2, sa3, new double[]{3.7, 5.6, 8.5}, methods[0], methods[1],
+                                   1.E-6, 1.E-6);
+        }
+    }
+
+    @Test
+    public void testOptimalEstimationBroyden_nonlinear() {
+        // nonlinear forward functions: approximate Jacobian, same solution within the OE convergence limit
+        final double[] x2 = {1.5, 2.5};
+        final double[] y3 = testFunctionNonlinR2R3.f(x2, null);
+        y3[0] += 0.1;
+        final double[][] se3 = new double[][] {
+                {1., 0., 0.},
+                {0., 1., 0.},
+                {0., 0., 10.}
+        };
+        final double[][] sa2 = new double[][] {
+                {1., 0.},
+                {0., 1.}
+        };
+        assertBroydenAgainstOE(testFunctionNonlinR2R3, new double[]{0.1, 0.1}, new double[]{10., 10.}, y3,
+                               se3, sa2, new double[]{1.3, 2.2}, InversionMethod.OE, InversionMethod.OE_BROYDEN,
+                               2.E-2, 1.E-3);
+
+        final double[] x3 = {1.5, 2.5, 0.8};
+        final double[] y4 = testFunctionNonlinR3R4.f(x3, null);
+        y4[1] += 0.05;
+        final double[][] se4 = new double[][] {
+                {0.5, 0.1, 0., 0.},
+                {0.1, 1.0, 0., 0.},
+                {0., 0., 2.0, 0.},
+                {0., 0., 0., 0.3}
+        };
+        final double[][] sa3 = new double[][] {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.},
+                {0., 0., 9.}
+        };
+        for (InversionMethod[] methods : new InversionMethod[][]{
+                {InversionMethod.OE, InversionMethod.OE_BROYDEN},
+                {InversionMethod.OE_3X3, InversionMethod.OE_3X3_BROYDEN}}) {
+            assertBroydenAgainstOE(testFunctionNonlinR3R4, new double[]{0.1, 0.1, 0.1}, new double[]{5., 5., 5.},
+                                   y4, se4, sa3, new double[]{1.2, 2.9, 1.1}, methods[0], methods[1],
+                                   2.E-2, 1.E-3);
+        }
+    }
+
+    @Test
+    public void testOptimalEstimation_selectedDiagnostics_nonlinear_r3r4() {
+        double[] x = {1.5, 2.5, 0.8};
+        final double[] y = testFunctionNonlinR3R4.f(x, null);
+        y[1] += 0.05;
+
+        double[] a = {0.1, 0.1, 0.1};
+        double[] b = {5., 5., 5.};
+        double[] xa = {1.2, 2.9, 1.1};
+
+        double[][] se = new double[][] {
+                {0.5, 0.1, 0., 0.},
+                {0.1, 1.0, 0., 0.},
+                {0., 0., 2.0, 0.},
+                {0., 0., 0., 0.3}
+        };
+        double[][] sa = new double[][] {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.},
+                {0., 0., 9.}
+        };
+
+        for (InversionMethod method : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+            final int[] numJacobiEvaluations = new int[1];
+            final NumericalJacobiFunction numericalJacobi = new NumericalJacobiFunction(
+                    a, b, new ClippedDifferenceFunction(a, b, testFunctionNonlinR3R4, y), y, 0.001);
+            final JacobiFunction countingJacobi = (xx, params) -> {
+                numJacobiEvaluations[0]++;
+                return numericalJacobi.f(xx, params);
+            };
+            OptimalEstimation oe = new OptimalEstimation(testFunctionNonlinR3R4, a, b, y, null, countingJacobi);
+            final OptimalEstimationResult full = oe.invert(method, y, se, sa, xa, OEOutputMode.FULL, 6);
+            final int numFullEvaluations = numJacobiEvaluations[0];
+
+            // cost and uncertainty only, as used for TCWV:
+            numJacobiEvaluations[0] = 0;
+            OptimalEstimationResult result =
+                    oe.invert(method, y, se, sa, xa, null, EnumSet.of(OEDiagnostic.COST, OEDiagnostic.UNCERTAINTY), 6);
+            assertEquals(numFullEvaluations - 1, numJacobiEvaluations[0]);
+            assertEquals(full.getIi(), result.getIi());
+            assertEquals(full.isConvergence(), result.isConvergence());
+            assertArrayEquals(full.getXn(), result.getXn(), 0.0);
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(full.getSr()[i], result.getSr()[i], 0.0);
+            }
+            assertEquals(full.getDiagnoseResult().getCost(), result.getDiagnoseResult().getCost(), 1.E-4);
+            assertNull(result.getDiagnoseResult().getGain());
+            assertNull(result.getDiagnoseResult().getAverage());
+            assertTrue(Double.isNaN(result.getDiagnoseResult().getDof()));
+
+            // averaging kernel and DOF only:
+            result = oe.invert(method, y, se, sa, xa, null, EnumSet.of(OEDiagnostic.AVERAGING_KERNEL, OEDiagnostic.DOF), 6);
+            assertNull(result.getSr());
+            assertTrue(Double.isNaN(result.getDiagnoseResult().getCost()));
+            assertNull(result.getDiagnoseResult().getGain());
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(full.getDiagnoseResult().getAverage().getArray()[i],
+                                  result.getDiagnoseResult().getAverage().getArray()[i], 1.E-2);
+            }
+            assertEquals(full.getDiagnoseResult().getDof(), result.getDiagnoseResult().getDof(), 1.E-2);
+            assertEquals(result.getDiagnoseResult().getAverage().trace(), result.getDiagnoseResult().getDof(), 1.E-12);
+
+            // nothing:
+            result = oe.invert(method, y, se, sa, xa, null, EnumSet.noneOf(OEDiagnostic.class), 6);
+            assertArrayEquals(full.getXn(), result.getXn(), 0.0);
+            assertNull(result.getSr());
+            assertNull(result.getDiagnoseResult());
+        }
+    }
+
+    @Test
+    public void testOptimalEstimation_structuredCovariances_nonlinear_r3r4() {
+        double[] x = {1.5, 2.5, 0.8};
+        final double[] y = testFunctionNonlinR3R4.f(x, null);
+        y[1] += 0.05;
+
+        double[] a = {0.1, 0.1, 0.1};
+        double[] b = {5., 5., 5.};
+        double[] xa = {1.2, 2.9, 1.1};
+
+        double[][] se = new double[][] {
+                {0.5, 0., 0., 0.},
+                {0., 1.0, 0., 0.},
+                {0., 0., 2.0, 0.},
+                {0., 0., 0., 0.3}
+        };
+        double[][] sa = new double[][] {
+                {4., 0.5, 0.},
+                {0.5, 2., 0.},
+                {0., 0., 9.}
+        };
+
+        final EnumSet<OEDiagnostic> diagnostics = EnumSet.of(OEDiagnostic.COST, OEDiagnostic.UNCERTAINTY);
+        for (InversionMethod method : new InversionMethod[]{InversionMethod.OE, InversionMethod.OE_3X3}) {
+            OptimalEstimation oe = new OptimalEstimation(testFunctionNonlinR3R4, a, b, y, null, null);
+            final OptimalEstimationResult expected = oe.invert(method, y, se, sa, xa, null, diagnostics, 6);
+
+            final Covariance[][] covariances = {
+                    {new DiagonalCovariance(se), new ConstantCovariance(sa)},
+                    {new DenseCovariance(se), new DenseCovariance(sa)},
+                    {new ConstantCovariance(se), new ConstantCovariance(sa)}
+            };
+            for (Covariance[] covariance : covariances) {
+                final OptimalEstimationResult result =
+                        oe.invert(method, y, covariance[0], covariance[1], xa, null, diagnostics, 6);
+                assertEquals(expected.getIi(), result.getIi());
+                assertEquals(expected.isConvergence(), result.isConvergence());
+                assertArrayEquals(expected.getXn(), result.getXn(), 1.E-10);
+                for (int i = 0; i < 3; i++) {
+                    assertArrayEquals(expected.getSr()[i], result.getSr()[i], 1.E-10);
+                }
+                assertEquals(expected.getDiagnoseResult().getCost(), result.getDiagnoseResult().getCost(), 1.E-10);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewton_selectedDiagnostics() {
+        double[] a = {0.1, 0.1};
+        double[] b = {10., 10.};
+        final double[] y = testFunctionLinR2R3.f(new double[]{3.5, 6.5}, null);
+        OptimalEstimation oe = new OptimalEstimation(testFunctionLinR2R3, a, b, y, null, null);
+        oe.invert(InversionMethod.NEWTON, y, new double[3][3], new double[2][2], new double[]{3.7, 5.6}, null,
+                  EnumSet.of(OEDiagnostic.COST));
+    }
+
+    @Test
+    public void testOptimalEstimation3x3_wrongStateDimension() {
+        double[] x = {3.5, 6.5};
+        double[] y = testFunctionLinR2R3.f(x, null);
+        OptimalEstimation oe = new OptimalEstimation(testFunctionLinR2R3, new double[]{0.1, 0.1},
+                                                     new double[]{10., 10.}, y, null, null);
+        double[][] se = new double[][] {{1., 0., 0.}, {0., 1., 0.}, {0., 0., 10.}};
+        double[][] sa = new double[][] {{1., 0.}, {0., 1.}};
+        try {
+            oe.invert(InversionMethod.OE_3X3, y, se, sa, new double[]{3.7, 5.6}, OEOutputMode.BASIC, 10);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testDisarmReleasesFunctions() throws Exception {
+        final OptimalEstimation oe = OptimalEstimation.createReusable(4);
+        for (InversionMethod method : new InversionMethod[]{InversionMethod.OE_3X3, InversionMethod.OE_3X3_BROYDEN}) {
+            final WeakReference<TcwvFunction> functionReference = invertAndDisarm(oe, method);
+            assertTrue(method.getName(), GarbageCollectionTestUtils.isCollected(functionReference));
+        }
+    }
+
+    // inverts with a new forward function (as with the LUTs of another operator), and releases it
+    private WeakReference<TcwvFunction> invertAndDisarm(OptimalEstimation oe, InversionMethod method) {
+        final TcwvFunction function = (x, params) -> testFunctionNonlinR3R4.f(x, params);
+        final double[] y = function.f(new double[]{1.5, 2.5, 0.8}, null);
+        final double[] a = {0.1, 0.1, 0.1};
+        final double[] b = {5., 5., 5.};
+        final JacobiFunction jacobiFunction =
+                new NumericalJacobiFunction(a, b, new ClippedDifferenceFunction(a, b, function, y), y, 0.001);
+        oe.rearm(function, a, b, y, null, jacobiFunction);
+        final OptimalEstimationResult result =
+                oe.invert(method, y, new DiagonalCovariance(new double[][]{
+                                  {0.5, 0., 0., 0.}, {0., 1.0, 0., 0.}, {0., 0., 2.0, 0.}, {0., 0., 0., 0.3}}),
+                          new ConstantCovariance(new double[][]{{4., 0., 0.}, {0., 2., 0.}, {0., 0., 9.}}),
+                          new double[]{1.2, 2.9, 1.1}, null, EnumSet.of(OEDiagnostic.COST), 6);
+        assertEquals(1.5, result.getXn()[0], 0.1);
+        oe.disarm();
+        return new WeakReference<>(function);
+    }
+
+    @Test
+    public void testInvertSymmetricPositiveDefinite() {
+        final double[][] m = new double[][] {
+                {4., 1., 0.5, 0.},
+                {1., 3., 0., 0.2},
+                {0.5, 0., 2., 0.},
+                {0., 0.2, 0., 1.}
+        };
+        final double[][] inv = new double[4][4];
+        GaussNewtonOE3x3Kernel.invertSymmetricPositiveDefinite(m, inv, new double[4][4], 4);
+        final double[][] expected = new Jama.Matrix(m).inverse().getArray();
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(expected[i], inv[i], 1.E-12);
+        }
+
+        final double[][] inv3 = new double[3][3];
+        final double[][] m3 = new double[][] {{2., 1., 0.}, {1., 3., 1.}, {0., 1., 4.}};
+        GaussNewtonOE3x3Kernel.invert3x3(m3, inv3);
+        final double[][] expected3 = new Jama.Matrix(m3).inverse().getArray();
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected3[i], inv3[i], 1.E-12);
+        }
+    }
+
     //// test forward functions: ////
 
+    private static void assertBroydenAgainstOE(TcwvFunction function, double[] a, double[] b, double[] y,
+                                               double[][] se, double[][] sa, double[] xa,
+                                               InversionMethod oeMethod, InversionMethod broydenMethod,
+                                               double xnTolerance, double costTolerance) {
+        final int[] numJacobiEvaluations = new int[1];
+        final NumericalJacobiFunction numericalJacobi =
+                new NumericalJacobiFunction(a, b, new ClippedDifferenceFunction(a, b, function, y), y, 0.001);
+        final JacobiFunction countingJacobi = (x, params) -> {
+            numJacobiEvaluations[0]++;
+            return numericalJacobi.f(x, params);
+        };
+        final OptimalEstimation oe = new OptimalEstimation(function, a, b, y, null, countingJacobi);
+
+        final OptimalEstimationResult expected = oe.invert(oeMethod, y, se, sa, xa, OEOutputMode.FULL, 20);
+        final int numOEEvaluations = numJacobiEvaluations[0];
+        numJacobiEvaluations[0] = 0;
+        final OptimalEstimationResult actual = oe.invert(broydenMethod, y, se, sa, xa, OEOutputMode.FULL, 20);
+        final int numBroydenEvaluations = numJacobiEvaluations[0];
+
+        assertTrue(expected.isConvergence());
+        assertTrue(actual.isConvergence());
+        assertArrayEquals(expected.getXn(), actual.getXn(), xnTolerance);
+        assertEquals(expected.getDiagnoseResult().getCost(), actual.getDiagnoseResult().getCost(), costTolerance);
+        assertTrue(numBroydenEvaluations >= 1);
+        assertTrue(numBroydenEvaluations < numOEEvaluations);
+    }
+
     private TcwvFunction testFunctionLinR2R3 =
             (x, params) -> new double[]{13.0 + 6.0 * x[0] + 4.0 * x[1],
                     2.0 - 3.0 * x[0] + 2.0 * x[1],
@@ -282,6 +735,12 @@ public class OptimalEstimationTest {
                     2.0 - 3 * x[0] + 2 * x[1] + Math.sqrt(x[0]) * Math.log(x[1]),
                     x[0] - 5 * x[1] - Math.sqrt(x[0] * x[1])};
 
+    private TcwvFunction testFunctionNonlinR3R4 =
+            (x, params) -> new double[]{1.0 + 2.0 * x[0] + 0.5 * x[1] * x[1] - x[2],
+                    Math.exp(-0.3 * x[0]) + x[1] * x[2],
+                    3.0 * Math.sqrt(x[0]) - x[1] + 0.2 * x[2] * x[2],
+                    x[0] * x[1] - 2.0 * x[2]};
+
     private TcwvFunction testFunctionLinR3R2 =
             (x, params) -> new double[]{13.0 + 6.0 * x[0] + 4.0 * x[1] - 2.0 * x[2],
                     2.0 - 3.0 * x[0] + 5.0 * x[1] + 7.0 * x[2]};
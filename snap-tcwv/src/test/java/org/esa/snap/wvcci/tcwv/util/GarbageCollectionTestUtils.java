@@ -0,0 +1,27 @@
+package org.esa.snap.wvcci.tcwv.util;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Helpers for tests checking that objects (e.g. LUTs used on long-living worker threads) do not leak.
+ *
+ * @author olafd
+ */
+public class GarbageCollectionTestUtils {
+
+    private static final int MAX_GC_RUNS = 20;
+
+    /**
+     * Runs the garbage collector until the referent is collected, or gives up after some runs.
+     *
+     * @param reference - weak reference to the object which should be unreachable
+     * @return true if the object has been collected
+     */
+    public static boolean isCollected(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < MAX_GC_RUNS && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return reference.get() == null;
+    }
+}
@@ -0,0 +1,109 @@
+package org.esa.snap.wvcci.tcwv.util;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.Tile;
+import org.esa.snap.core.gpf.internal.TileImpl;
+import org.esa.snap.core.image.ImageManager;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import static org.junit.Assert.*;
+
+public class TileRowReaderTest {
+
+    @Test
+    public void testReadRow_scaledUInt16() {
+        final Product product = new Product("test", "test", 8, 6);
+        final Band band = product.addBand("refl", ProductData.TYPE_UINT16);
+        band.setScalingFactor(0.01);
+        band.setScalingOffset(1.0);
+        final Tile tile = createTile(band, 40000);
+
+        final Rectangle rectangle = new Rectangle(2, 3, 4, 2);
+        final TileRowReader reader = new TileRowReader(tile, rectangle);
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            final double[] row = reader.readRow(y);
+            assertEquals(rectangle.width, row.length);
+            for (int i = 0; i < rectangle.width; i++) {
+                assertEquals(tile.getSampleDouble(rectangle.x + i, y), row[i], 1.E-10);
+            }
+        }
+    }
+
+    @Test
+    public void testReadRow_float() {
+        final Product product = new Product("test", "test", 8, 6);
+        final Band band = product.addBand("sza", ProductData.TYPE_FLOAT32);
+        final Tile tile = createTile(band, 0);
+
+        final Rectangle rectangle = new Rectangle(1, 1, 7, 5);
+        final TileRowReader reader = new TileRowReader(tile, rectangle);
+        final double[] row = reader.readRow(4);
+        for (int i = 0; i < rectangle.width; i++) {
+            assertEquals(tile.getSampleDouble(rectangle.x + i, 4), row[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testReadIntRow_flags() {
+        final Product product = new Product("test", "test", 8, 6);
+        final Band band = product.addBand("flags", ProductData.TYPE_INT16);
+        final Tile tile = createTile(band, 0);
+
+        final Rectangle rectangle = new Rectangle(0, 0, 8, 6);
+        final TileRowReader reader = new TileRowReader(tile, rectangle);
+        final int[] row = reader.readIntRow(2);
+        for (int i = 0; i < rectangle.width; i++) {
+            for (int bit = 0; bit < 12; bit++) {
+                assertEquals(tile.getSampleBit(i, 2, bit), TileRowReader.isBitSet(row[i], bit));
+            }
+        }
+    }
+
+    @Test
+    public void testReadIntSampleRow() {
+        final Product product = new Product("test", "test", 8, 6);
+        final Band scaledBand = product.addBand("num_obs", ProductData.TYPE_INT16);
+        scaledBand.setScalingFactor(0.37);
+        final Band floatBand = product.addBand("counts", ProductData.TYPE_FLOAT32);
+
+        final Rectangle rectangle = new Rectangle(1, 2, 6, 3);
+        for (Band band : new Band[]{scaledBand, floatBand}) {
+            final Tile tile = createTile(band, 5);
+            final TileRowReader reader = new TileRowReader(tile, rectangle);
+            for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+                final int[] row = reader.readIntSampleRow(y);
+                for (int i = 0; i < rectangle.width; i++) {
+                    assertEquals(tile.getSampleInt(rectangle.x + i, y), row[i]);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRectangleOutsideTile() {
+        final Product product = new Product("test", "test", 8, 6);
+        final Band band = product.addBand("sza", ProductData.TYPE_FLOAT32);
+        new TileRowReader(createTile(band, 0), new Rectangle(4, 4, 5, 2));
+    }
+
+    // tile on a child raster, so that the scanline offset and stride differ from the plain rectangle layout
+    private static Tile createTile(Band band, int valueOffset) {
+        final int width = band.getRasterWidth();
+        final int height = band.getRasterHeight();
+        final WritableRaster parent = Raster.createWritableRaster(
+                ImageManager.createSingleBandedSampleModel(band.getDataType(), width + 3, height + 2), new Point(-2, -1));
+        for (int y = -1; y < height + 1; y++) {
+            for (int x = -2; x < width + 1; x++) {
+                parent.setSample(x, y, 0, valueOffset + 7 * (y + 1) * (width + 3) + 3 * (x + 2));
+            }
+        }
+        final WritableRaster child = parent.createWritableChild(0, 0, width, height, 0, 0, null);
+        return new TileImpl(band, child);
+    }
+}